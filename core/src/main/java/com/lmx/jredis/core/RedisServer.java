@@ -29,9 +29,10 @@ public interface RedisServer {
      * @param key0
      * @param start1
      * @param end2
+     * @param unit3
      * @return IntegerReply
      */
-    IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2) throws RedisException;
+    IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2, byte[] unit3) throws RedisException;
 
     /**
      * Perform bitwise operations between strings
@@ -44,6 +45,29 @@ public interface RedisServer {
      */
     IntegerReply bitop(byte[] operation0, byte[] destkey1, byte[][] key2) throws RedisException;
 
+    /**
+     * Find first bit set or clear in a string
+     * String
+     *
+     * @param key0
+     * @param bit1
+     * @param start2
+     * @param end3
+     * @param unit4
+     * @return IntegerReply
+     */
+    IntegerReply bitpos(byte[] key0, byte[] bit1, byte[] start2, byte[] end3, byte[] unit4) throws RedisException;
+
+    /**
+     * Perform arbitrary bitfield integer operations on strings
+     * String
+     *
+     * @param key0
+     * @param operation1
+     * @return MultiBulkReply
+     */
+    MultiBulkReply bitfield(byte[] key0, byte[][] operation1) throws RedisException;
+
     /**
      * Decrement the integer value of a key by one
      * String
@@ -232,6 +256,35 @@ public interface RedisServer {
      */
     IntegerReply strlen(byte[] key0) throws RedisException;
 
+    /**
+     * Adds the specified elements to the specified HyperLogLog.
+     * HyperLogLog
+     *
+     * @param key0
+     * @param element1
+     * @return IntegerReply
+     */
+    IntegerReply pfadd(byte[] key0, byte[][] element1) throws RedisException;
+
+    /**
+     * Return the approximated cardinality of the set(s) observed by the HyperLogLog at key(s).
+     * HyperLogLog
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    IntegerReply pfcount(byte[][] key0) throws RedisException;
+
+    /**
+     * Merge N different HyperLogLogs into a single one.
+     * HyperLogLog
+     *
+     * @param destkey0
+     * @param sourcekey1
+     * @return StatusReply
+     */
+    StatusReply pfmerge(byte[] destkey0, byte[][] sourcekey1) throws RedisException;
+
     /**
      * Echo the given string
      * Connection
@@ -470,7 +523,7 @@ public interface RedisServer {
      * @param key0
      * @return MultiBulkReply
      */
-    MultiBulkReply blpop(byte[][] key0) throws RedisException;
+    Reply blpop(byte[][] key0) throws RedisException;
 
     /**
      * Remove and get the last element in a list, or block until one is available
@@ -479,7 +532,7 @@ public interface RedisServer {
      * @param key0
      * @return MultiBulkReply
      */
-    MultiBulkReply brpop(byte[][] key0) throws RedisException;
+    Reply brpop(byte[][] key0) throws RedisException;
 
     /**
      * Pop a value from a list, push it to another list and return it; or block until one is available
@@ -490,7 +543,7 @@ public interface RedisServer {
      * @param timeout2
      * @return BulkReply
      */
-    BulkReply brpoplpush(byte[] source0, byte[] destination1, byte[] timeout2) throws RedisException;
+    Reply brpoplpush(byte[] source0, byte[] destination1, byte[] timeout2) throws RedisException;
 
     /**
      * Get an element from a list by its index
@@ -1089,6 +1142,16 @@ public interface RedisServer {
      */
     MultiBulkReply sinter(byte[][] key0) throws RedisException;
 
+    /**
+     * Intersect multiple sets and return the cardinality of the result
+     * Set
+     *
+     * @param numkeys0
+     * @param key_limit1
+     * @return IntegerReply
+     */
+    IntegerReply sintercard(byte[] numkeys0, byte[][] key_limit1) throws RedisException;
+
     /**
      * Intersect multiple sets and store the resulting set in a key
      * Set
@@ -1228,6 +1291,17 @@ public interface RedisServer {
      */
     IntegerReply zinterstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException;
 
+    /**
+     * Count the number of members in a sorted set between a given lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    IntegerReply zlexcount(byte[] key0, byte[] min1, byte[] max2) throws RedisException;
+
     /**
      * Return a range of members in a sorted set, by index
      * Sorted_set
@@ -1240,6 +1314,18 @@ public interface RedisServer {
      */
     MultiBulkReply zrange(byte[] key0, byte[] start1, byte[] stop2, byte[] withscores3) throws RedisException;
 
+    /**
+     * Return a range of members in a sorted set, by lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @param offset_or_count3
+     * @return MultiBulkReply
+     */
+    MultiBulkReply zrangebylex(byte[] key0, byte[] min1, byte[] max2, byte[][] offset_or_count3) throws RedisException;
+
     /**
      * Return a range of members in a sorted set, by score
      * Sorted_set
@@ -1272,6 +1358,17 @@ public interface RedisServer {
      */
     IntegerReply zrem(byte[] key0, byte[][] member1) throws RedisException;
 
+    /**
+     * Remove all members in a sorted set between the given lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    IntegerReply zremrangebylex(byte[] key0, byte[] min1, byte[] max2) throws RedisException;
+
     /**
      * Remove all members in a sorted set within the given indexes
      * Sorted_set
@@ -1306,6 +1403,18 @@ public interface RedisServer {
      */
     MultiBulkReply zrevrange(byte[] key0, byte[] start1, byte[] stop2, byte[] withscores3) throws RedisException;
 
+    /**
+     * Return a range of members in a sorted set, by lexicographical range, ordered from higher to lower strings
+     * Sorted_set
+     *
+     * @param key0
+     * @param max1
+     * @param min2
+     * @param offset_or_count3
+     * @return MultiBulkReply
+     */
+    MultiBulkReply zrevrangebylex(byte[] key0, byte[] max1, byte[] min2, byte[][] offset_or_count3) throws RedisException;
+
     /**
      * Return a range of members in a sorted set, by score, with scores ordered from high to low
      * Sorted_set
@@ -1348,4 +1457,139 @@ public interface RedisServer {
      * @return IntegerReply
      */
     IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException;
+
+    /**
+     * Marks pending messages as correctly processed, removing them from the pending entries list of the consumer group
+     * Stream
+     *
+     * @param key0
+     * @param group1
+     * @param id2
+     * @return IntegerReply
+     */
+    IntegerReply xack(byte[] key0, byte[] group1, byte[][] id2) throws RedisException;
+
+    /**
+     * Appends a new message to a stream. Creates the key if it doesn't exist
+     * Stream
+     *
+     * @param key0
+     * @param args1
+     * @return BulkReply
+     */
+    BulkReply xadd(byte[] key0, byte[][] args1) throws RedisException;
+
+    /**
+     * Creates, destroys and manages consumer groups and their consumers
+     * Stream
+     *
+     * @param subcommand0
+     * @param args1
+     * @return Reply
+     */
+    Reply xgroup(byte[] subcommand0, byte[][] args1) throws RedisException;
+
+    /**
+     * Return the number of messages in a stream
+     * Stream
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    IntegerReply xlen(byte[] key0) throws RedisException;
+
+    /**
+     * Returns the messages from a stream within a range of IDs
+     * Stream
+     *
+     * @param key0
+     * @param start1
+     * @param end2
+     * @param count3
+     * @return MultiBulkReply
+     */
+    MultiBulkReply xrange(byte[] key0, byte[] start1, byte[] end2, byte[][] count3) throws RedisException;
+
+    /**
+     * Returns messages from multiple streams with IDs greater than the ones requested
+     * Stream
+     *
+     * @param args0
+     * @return Reply
+     */
+    Reply xread(byte[][] args0) throws RedisException;
+
+    /**
+     * Returns new or historical messages from a stream for a consumer in a group
+     * Stream
+     *
+     * @param args0
+     * @return Reply
+     */
+    Reply xreadgroup(byte[][] args0) throws RedisException;
+
+    /**
+     * Returns the messages from a stream within a range of IDs in reverse order
+     * Stream
+     *
+     * @param key0
+     * @param end1
+     * @param start2
+     * @param count3
+     * @return MultiBulkReply
+     */
+    MultiBulkReply xrevrange(byte[] key0, byte[] end1, byte[] start2, byte[][] count3) throws RedisException;
+
+    /**
+     * Deletes messages from the beginning of a stream
+     * Stream
+     *
+     * @param key0
+     * @param args1
+     * @return IntegerReply
+     */
+    IntegerReply xtrim(byte[] key0, byte[][] args1) throws RedisException;
+
+    /**
+     * Incrementally iterate the keys space
+     * Generic
+     *
+     * @param cursor0
+     * @param args1
+     * @return MultiBulkReply
+     */
+    MultiBulkReply scan(byte[] cursor0, byte[][] args1) throws RedisException;
+
+    /**
+     * Incrementally iterate hash fields and associated values
+     * Hash
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException;
+
+    /**
+     * Incrementally iterate Set elements
+     * Set
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException;
+
+    /**
+     * Incrementally iterate sorted sets elements and associated scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException;
 }
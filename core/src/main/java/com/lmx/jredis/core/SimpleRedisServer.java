@@ -1,12 +1,25 @@
 package com.lmx.jredis.core;
 
+import com.lmx.jredis.core.datastruct.BaseOP;
+import com.lmx.jredis.core.datastruct.BlockingKeys;
+import com.lmx.jredis.core.datastruct.MemoryEvictor;
 import com.lmx.jredis.core.datastruct.SimpleHash;
 import com.lmx.jredis.core.datastruct.SimpleKV;
 import com.lmx.jredis.core.datastruct.SimpleList;
+import com.lmx.jredis.core.datastruct.SimpleSet;
+import com.lmx.jredis.core.datastruct.SimpleStream;
+import com.lmx.jredis.core.datastruct.SimpleZSet;
 import com.lmx.jredis.core.datastruct.RedisDbDelegate;
 import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
 import com.lmx.jredis.storage.DataTypeEnum;
+import com.lmx.jredis.storage.HashFields;
+import com.lmx.jredis.storage.HashIndex;
 import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.IndexKey;
+import com.lmx.jredis.storage.MemberLog;
+import com.lmx.jredis.storage.QuickList;
+import com.lmx.jredis.storage.WriteAheadLog;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.Attribute;
@@ -30,15 +43,16 @@ public class SimpleRedisServer implements RedisServer {
     BusHelper bus;
     RedisDbDelegate delegate;
     //加入会话隔离db数据
-    ChannelHandlerContext channelHandlerContext;
-    String session = "sessionIdentify";
+    //多个io线程共用一个实例,当前连接按线程保存
+    final ThreadLocal<ChannelHandlerContext> channelHandlerContext = new ThreadLocal<>();
+    static final AttributeKey<RedisDbDelegate.RedisDB> SESSION = AttributeKey.valueOf("sessionIdentify");
 
     public void setChannelHandlerContext(ChannelHandlerContext channelHandlerContext) {
-        this.channelHandlerContext = channelHandlerContext;
+        this.channelHandlerContext.set(channelHandlerContext);
     }
 
     private RedisDbDelegate.RedisDB getRedisDB() {
-        RedisDbDelegate.RedisDB redisDB = (RedisDbDelegate.RedisDB) channelHandlerContext.channel().attr(AttributeKey.valueOf(session)).get();
+        RedisDbDelegate.RedisDB redisDB = channelHandlerContext.get().channel().attr(SESSION).get();
         return (redisDB == null ? delegate.select(0) : redisDB);
     }
 
@@ -52,7 +66,7 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public StatusReply select(byte[] index0) throws RedisException {
         RedisDbDelegate.RedisDB store = delegate.select(Integer.parseInt(new String(index0)));
-        Attribute attribute = channelHandlerContext.channel().attr(AttributeKey.valueOf(session));
+        Attribute<RedisDbDelegate.RedisDB> attribute = channelHandlerContext.get().channel().attr(SESSION);
         if (null == store) {
             attribute.remove();
             throw new RedisException();
@@ -62,7 +76,7 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     public IntegerReply subscribe(byte[][] channel) {
-        bus.regSubscriber(channelHandlerContext, channel);
+        bus.regSubscriber(channelHandlerContext.get(), channel);
         return integer(1);
     }
 
@@ -76,9 +90,8 @@ public class SimpleRedisServer implements RedisServer {
 
     private BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
     private BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
-    private static int[] mask = {128, 64, 32, 16, 8, 4, 2, 1};
 
-    private static RedisException invalidValue() {
+    static RedisException invalidValue() {
         return new RedisException("Operation against a key holding the wrong kind of value");
     }
 
@@ -90,49 +103,62 @@ public class SimpleRedisServer implements RedisServer {
         return new RedisException("value is not a float or out of range");
     }
 
-    @SuppressWarnings("unchecked")
-    private BytesKeyObjectMap<byte[]> _gethash(byte[] key0, boolean create) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            o = new BytesKeyObjectMap();
-            if (create) {
-                data.put(key0, o);
-            }
-        }
-        if (!(o instanceof HashMap)) {
+    private static RedisException notHyperLogLog() {
+        return new RedisException("Key is not a valid HyperLogLog string value.");
+    }
+
+    private byte[] _hget(byte[] key0, byte[] field1) throws RedisException {
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        if (!hash.checkKeyType(key0))
             throw invalidValue();
-        }
-        return (BytesKeyObjectMap<byte[]>) o;
+        return hash.read(key0, field1);
     }
 
-    @SuppressWarnings("unchecked")
-    private BytesKeySet _getset(byte[] key0, boolean create) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            o = new BytesKeySet();
-            if (create) {
-                data.put(key0, o);
-            }
-        }
-        if (!(o instanceof BytesKeySet)) {
+    /**
+     * @return field和value交替排列
+     */
+    private byte[][] _hgetall(byte[] key0) throws RedisException {
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        if (!hash.checkKeyType(key0))
             throw invalidValue();
-        }
-        return (BytesKeySet) o;
+        return hash.read(key0);
     }
 
-    @SuppressWarnings("unchecked")
-    private ZSet _getzset(byte[] key0, boolean create) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            o = new ZSet();
-            if (create) {
-                data.put(key0, o);
-            }
-        }
-        if (!(o instanceof ZSet)) {
+    private void _hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
+        if (getRedisDB().getSimpleHash().write(key0, field1, value2) < 0)
             throw invalidValue();
-        }
-        return (ZSet) o;
+    }
+
+    /**
+     * @return key上的HyperLogLog,key不存在时返回null
+     */
+    private HyperLogLog _gethll(byte[] key0) throws RedisException {
+        SimpleKV kv = getRedisDB().getSimpleKV();
+        if (!kv.checkKeyType(key0))
+            throw invalidValue();
+        byte[] value = kv.read(key0);
+        if (value == null)
+            return null;
+        HyperLogLog hll = HyperLogLog.of(value);
+        if (hll == null)
+            throw notHyperLogLog();
+        return hll;
+    }
+
+    private BytesKeySet _getset(byte[] key0) throws RedisException {
+        SimpleSet set = getRedisDB().getSimpleSet();
+        if (!set.checkKeyType(key0))
+            throw invalidValue();
+        BytesKeySet members = set.members(key0);
+        return members == null ? new BytesKeySet() : members;
+    }
+
+    private ZSet _getzset(byte[] key0) throws RedisException {
+        SimpleZSet zset = getRedisDB().getSimpleZSet();
+        if (!zset.checkKeyType(key0))
+            throw invalidValue();
+        ZSet members = zset.members(key0);
+        return members == null ? new ZSet() : members;
     }
 
     private Object _get(byte[] key0) {
@@ -187,18 +213,9 @@ public class SimpleRedisServer implements RedisServer {
         }
     }
 
-    private static int _test(byte[] bytes, long offset) throws RedisException {
-        long div = offset / 8;
-        if (div > MAX_VALUE) throw notInteger();
-        int i;
-        if (bytes.length < div + 1) {
-            i = 0;
-        } else {
-            int mod = (int) (offset % 8);
-            int value = bytes[((int) div)] & 0xFF;
-            i = value & mask[mod];
-        }
-        return i != 0 ? 1 : 0;
+    private static boolean _test(byte[] bytes, long offset) {
+        long index = offset >>> 3;
+        return index < bytes.length && (bytes[(int) index] & (0x80 >>> (int) (offset & 7))) != 0;
     }
 
     private byte[] _getbytes(byte[] aKey2) throws RedisException {
@@ -206,6 +223,8 @@ public class SimpleRedisServer implements RedisServer {
         Object o = _get(aKey2);
         if (o instanceof byte[]) {
             src = (byte[]) o;
+        } else if (o instanceof Bitmap) {
+            src = ((Bitmap) o).toBytes();
         } else if (o != null) {
             throw invalidValue();
         } else {
@@ -214,22 +233,55 @@ public class SimpleRedisServer implements RedisServer {
         return src;
     }
 
-    @SuppressWarnings("unchecked")
-    private List<BytesValue> _getlist(byte[] key0, boolean create) throws RedisException {
+    /**
+     * 位命令操作的值:普通字符串转换成位图后存回,之后原地修改
+     */
+    private Bitmap _getbitmap(byte[] key0, boolean create) throws RedisException {
         Object o = _get(key0);
-        if (o instanceof List) {
-            return (List<BytesValue>) o;
-        } else if (o == null) {
-            if (create) {
-                ArrayList<BytesValue> list = new ArrayList<BytesValue>();
-                _put(key0, list);
-                return list;
-            } else {
-                return null;
-            }
-        } else {
+        if (o instanceof Bitmap) {
+            return (Bitmap) o;
+        } else if (o instanceof byte[]) {
+            Bitmap bitmap = Bitmap.of((byte[]) o, delegate.isBitmapCompressed());
+            data.put(key0, bitmap);
+            return bitmap;
+        } else if (o != null) {
             throw invalidValue();
+        } else if (create) {
+            Bitmap bitmap = new Bitmap(delegate.isBitmapCompressed());
+            _put(key0, bitmap);
+            return bitmap;
+        }
+        return null;
+    }
+
+    static long _tobitoffset(byte[] offset1) throws RedisException {
+        try {
+            long offset = bytesToNum(offset1);
+            if (offset >= 0 && offset < Bitmap.MAX_BITS) {
+                return offset;
+            }
+        } catch (IllegalArgumentException e) {
+            // 按位偏移的错误返回
         }
+        throw new RedisException("bit offset is not an integer or out of range");
+    }
+
+    private boolean _tobitunit(byte[] unit) throws RedisException {
+        return unit != null && !_checkcommand(unit, "byte", false) && _checkcommand(unit, "bit", true);
+    }
+
+    /**
+     * @return start到end(含,负数从末尾算)按字节或位换算出的位区间[from, to),区间为空时返回null
+     */
+    private static long[] _tobitrange(byte[] start1, byte[] end2, long length, boolean bits) {
+        long total = bits ? length << 3 : length;
+        long start = start1 == null ? 0 : bytesToNum(start1);
+        long end = end2 == null ? total - 1 : bytesToNum(end2);
+        if (start < 0) start = Math.max(total + start, 0);
+        if (end < 0) end = Math.max(total + end, 0);
+        if (end >= total) end = total - 1;
+        if (start > end) return null;
+        return bits ? new long[]{start, end + 1} : new long[]{start << 3, (end + 1) << 3};
     }
 
     private Object _put(byte[] key, Object value) {
@@ -313,17 +365,19 @@ public class SimpleRedisServer implements RedisServer {
     private static Random r = new SecureRandom();
     private static Field tableField;
     private static Field nextField;
-    private static Field mapField;
 
     static {
         try {
             tableField = HashMap.class.getDeclaredField("table");
             tableField.setAccessible(true);
-//            nextField = Class.forName("java.util.HashMap$Entry").getDeclaredField("next");
-            nextField = Class.forName("java.util.LinkedHashMap$Entry").getDeclaredField("after");
+            Class<?> node;
+            try {
+                node = Class.forName("java.util.HashMap$Node");
+            } catch (ClassNotFoundException e) {
+                node = Class.forName("java.util.HashMap$Entry");
+            }
+            nextField = node.getDeclaredField("next");
             nextField.setAccessible(true);
-            mapField = HashSet.class.getDeclaredField("map");
-            mapField.setAccessible(true);
         } catch (Exception e) {
             e.printStackTrace();
             tableField = null;
@@ -351,6 +405,9 @@ public class SimpleRedisServer implements RedisServer {
     public IntegerReply append(byte[] key0, byte[] value1) throws RedisException {
         Object o = _get(key0);
         int length1 = value1.length;
+        if (o instanceof Bitmap) {
+            o = ((Bitmap) o).toBytes();
+        }
         if (o instanceof byte[]) {
             byte[] src = (byte[]) o;
             int length0 = src.length;
@@ -377,24 +434,20 @@ public class SimpleRedisServer implements RedisServer {
      * @return IntegerReply
      */
     @Override
-    public IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2) throws RedisException {
+    public IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2, byte[] unit3) throws RedisException {
+        if (start1 != null && end2 == null) {
+            throw new RedisException("syntax error");
+        }
+        boolean bits = _tobitunit(unit3);
         Object o = _get(key0);
-        if (o instanceof byte[]) {
+        if (o instanceof Bitmap) {
+            Bitmap bitmap = (Bitmap) o;
+            long[] range = _tobitrange(start1, end2, bitmap.length(), bits);
+            return integer(range == null ? 0 : bitmap.count(range[0], range[1]));
+        } else if (o instanceof byte[]) {
             byte[] bytes = (byte[]) o;
-            int size = bytes.length;
-            int s = _torange(start1, size);
-            int e = _torange(end2, size);
-            if (e < s) e = s;
-            int total = 0;
-            for (int i = s; i <= e; i++) {
-                int b = bytes[i] & 0xFF;
-                for (int j = 0; j < 8; j++) {
-                    if ((b & mask[j]) != 0) {
-                        total++;
-                    }
-                }
-            }
-            return integer(total);
+            long[] range = _tobitrange(start1, end2, bytes.length, bits);
+            return integer(range == null ? 0 : Bitmap.count(bytes, range[0], range[1]));
         } else if (o == null) {
             return integer(0);
         } else {
@@ -413,53 +466,226 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply bitop(byte[] operation0, byte[] destkey1, byte[][] key2) throws RedisException {
-        BitOp bitOp = BitOp.valueOf(new String(operation0).toUpperCase());
-        int size = 0;
-        for (byte[] aKey2 : key2) {
-            int length = aKey2.length;
-            if (length > size) {
-                size = length;
-            }
-        }
-        byte[] bytes = null;
-        for (byte[] aKey2 : key2) {
-            byte[] src;
-            src = _getbytes(aKey2);
-            if (bytes == null) {
-                bytes = new byte[size];
-                if (bitOp == BitOp.NOT) {
-                    if (key2.length > 1) {
-                        throw new RedisException("invalid number of arguments for 'bitop' NOT operation");
-                    }
-                    for (int i = 0; i < src.length; i++) {
-                        bytes[i] = (byte) ~(src[i] & 0xFF);
+        BitOp bitOp;
+        try {
+            bitOp = BitOp.valueOf(new String(operation0).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RedisException("syntax error");
+        }
+        if (key2.length == 0) {
+            throw new RedisException("wrong number of arguments for 'bitop' command");
+        }
+        if (bitOp == BitOp.NOT && key2.length > 1) {
+            throw new RedisException("BITOP NOT must be called with a single source key.");
+        }
+        boolean compressed = delegate.isBitmapCompressed();
+        Bitmap[] sources = new Bitmap[key2.length];
+        for (int i = 0; i < key2.length; i++) {
+            Object o = _get(key2[i]);
+            //位图直接按容器参与运算,普通字符串先转换一次
+            sources[i] = o instanceof Bitmap ? (Bitmap) o : Bitmap.of(_getbytes(key2[i]), compressed);
+        }
+        Bitmap result = bitOp == BitOp.NOT ? Bitmap.not(sources[0], compressed)
+                : Bitmap.combine(Bitmap.Op.valueOf(bitOp.name()), sources, compressed);
+        if (result.length() == 0) {
+            data.remove(destkey1);
+            expires.remove(destkey1);
+        } else {
+            _put(destkey1, result);
+        }
+        return integer(result.length());
+    }
+
+    enum BitOp {AND, OR, XOR, NOT}
+
+    /**
+     * BITFIELD里的一个GET/SET/INCRBY子命令,OVERFLOW作用于之后的子命令
+     */
+    static class BitField {
+        static final int GET = 0, SET = 1, INCRBY = 2;
+
+        enum Overflow {WRAP, SAT, FAIL}
+
+        int op;
+        boolean signed;
+        int width;
+        long offset;
+        long value;
+        Overflow overflow;
+
+        /**
+         * 先解析全部子命令,有错时一个都不执行
+         */
+        static List<BitField> parse(byte[][] arguments) throws RedisException {
+            List<BitField> fields = new ArrayList<BitField>();
+            Overflow overflow = Overflow.WRAP;
+            for (int i = 0; i < arguments.length; ) {
+                String name = new String(arguments[i]).toLowerCase();
+                if (name.equals("overflow") && i + 1 < arguments.length) {
+                    try {
+                        overflow = Overflow.valueOf(new String(arguments[i + 1]).toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new RedisException("Invalid OVERFLOW type specified");
                     }
-                } else {
-                    System.arraycopy(src, 0, bytes, 0, src.length);
+                    i += 2;
+                    continue;
                 }
-            } else {
-                for (int i = 0; i < src.length; i++) {
-                    int d = bytes[i] & 0xFF;
-                    int s = src[i] & 0xFF;
-                    switch (bitOp) {
-                        case AND:
-                            bytes[i] = (byte) (d & s);
-                            break;
-                        case OR:
-                            bytes[i] = (byte) (d | s);
-                            break;
-                        case XOR:
-                            bytes[i] = (byte) (d ^ s);
-                            break;
-                    }
+                BitField field = new BitField();
+                field.op = name.equals("get") ? GET : name.equals("set") ? SET : name.equals("incrby") ? INCRBY : -1;
+                int count = field.op == GET ? 3 : 4;
+                if (field.op < 0 || i + count > arguments.length) {
+                    throw new RedisException("syntax error");
                 }
+                field.type(arguments[i + 1]);
+                field.offset(arguments[i + 2]);
+                if (field.op != GET) {
+                    field.value = bytesToNum(arguments[i + 3]);
+                }
+                field.overflow = overflow;
+                fields.add(field);
+                i += count;
+            }
+            return fields;
+        }
+
+        private void type(byte[] type) throws RedisException {
+            String s = new String(type).toLowerCase();
+            signed = s.startsWith("i");
+            try {
+                width = signed || s.startsWith("u") ? Integer.parseInt(s.substring(1)) : 0;
+            } catch (NumberFormatException e) {
+                width = 0;
+            }
+            if (width < 1 || width > (signed ? 64 : 63)) {
+                throw new RedisException("Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+            }
+        }
+
+        /**
+         * 偏移可以写成#N,表示第N个width宽的字段
+         */
+        private void offset(byte[] offset1) throws RedisException {
+            boolean multiply = offset1.length > 0 && offset1[0] == '#';
+            offset = _tobitoffset(multiply ? Arrays.copyOfRange(offset1, 1, offset1.length) : offset1);
+            if (multiply) {
+                offset *= width;
+            }
+            if (offset + width > Bitmap.MAX_BITS) {
+                throw new RedisException("bit offset is not an integer or out of range");
+            }
+        }
+
+        /**
+         * @return 字段当前的值,有符号时做符号扩展
+         */
+        long read(Bitmap bitmap) {
+            long bits = bitmap == null ? 0 : bitmap.getBits(offset, width);
+            return signed && width < 64 ? bits << (64 - width) >> (64 - width) : bits;
+        }
+
+        /**
+         * @return SET或INCRBY之后要写回的值,FAIL时溢出返回null
+         */
+        Long apply(long current) {
+            long base = op == SET ? 0 : current;
+            long max = signed ? (width == 64 ? Long.MAX_VALUE : (1L << (width - 1)) - 1) : (1L << width) - 1;
+            long min = signed ? -max - 1 : 0;
+            boolean overflows;
+            if (value > 0) {
+                overflows = base > max - value;
+            } else {
+                overflows = signed ? base < min - value : base + value < 0;
+            }
+            if (!overflows) {
+                return base + value;
+            }
+            switch (overflow) {
+                case SAT:
+                    return value > 0 ? max : min;
+                case FAIL:
+                    return null;
+                default:
+                    long wrapped = base + value;
+                    return signed ? (width == 64 ? wrapped : wrapped << (64 - width) >> (64 - width)) : wrapped & max;
             }
         }
-        _put(destkey1, bytes);
-        return integer(bytes == null ? 0 : bytes.length);
     }
 
-    enum BitOp {AND, OR, XOR, NOT}
+    /**
+     * Find first bit set or clear in a string
+     * String
+     *
+     * @param key0
+     * @param bit1
+     * @param start2
+     * @param end3
+     * @param unit4
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply bitpos(byte[] key0, byte[] bit1, byte[] start2, byte[] end3, byte[] unit4) throws RedisException {
+        long bit = bytesToNum(bit1);
+        if (bit != 0 && bit != 1) {
+            throw new RedisException("The bit argument must be 1 or 0.");
+        }
+        boolean bits = _tobitunit(unit4);
+        Object o = _get(key0);
+        long length;
+        if (o instanceof Bitmap) {
+            length = ((Bitmap) o).length();
+        } else if (o instanceof byte[]) {
+            length = ((byte[]) o).length;
+        } else if (o == null) {
+            return integer(bit == 1 ? -1 : 0);
+        } else {
+            throw invalidValue();
+        }
+        long[] range = _tobitrange(start2, end3, length, bits);
+        if (range == null) {
+            return integer(-1);
+        }
+        long position = o instanceof Bitmap ? ((Bitmap) o).position(bit == 1, range[0], range[1])
+                : Bitmap.position((byte[]) o, bit == 1, range[0], range[1]);
+        //找0且没有给end时,字符串之后的位都当作0
+        if (position == -1 && bit == 0 && end3 == null) {
+            position = range[1];
+        }
+        return integer(position);
+    }
+
+    /**
+     * Perform arbitrary bitfield integer operations on strings
+     * String
+     *
+     * @param key0
+     * @param operation1
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply bitfield(byte[] key0, byte[][] operation1) throws RedisException {
+        List<BitField> fields = BitField.parse(operation1);
+        Bitmap bitmap = _getbitmap(key0, false);
+        Reply[] replies = new Reply[fields.size()];
+        for (int i = 0; i < replies.length; i++) {
+            BitField field = fields.get(i);
+            long value = field.read(bitmap);
+            if (field.op == BitField.GET) {
+                replies[i] = integer(value);
+                continue;
+            }
+            Long result = field.apply(value);
+            if (result == null) {
+                replies[i] = NIL_REPLY;
+                continue;
+            }
+            if (bitmap == null) {
+                bitmap = _getbitmap(key0, true);
+            }
+            bitmap.setBits(field.offset, field.width, result);
+            replies[i] = integer(field.op == BitField.SET ? value : result);
+        }
+        return new MultiBulkReply(replies);
+    }
 
     /**
      * Decrement the integer value of a key by one
@@ -496,7 +722,7 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public BulkReply get(byte[] key0) throws RedisException {
         RedisDbDelegate.RedisDB db = getRedisDB();
-        Object o = db.getSimpleKV().read(new String(key0));
+        Object o = db.getSimpleKV().read(key0);
         if (o instanceof byte[]) {
             return new BulkReply((byte[]) o);
         }
@@ -517,11 +743,12 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply getbit(byte[] key0, byte[] offset1) throws RedisException {
+        long offset = _tobitoffset(offset1);
         Object o = _get(key0);
-        if (o instanceof byte[]) {
-            long offset = bytesToNum(offset1);
-            byte[] bytes = (byte[]) o;
-            return _test(bytes, offset) == 1 ? integer(1) : integer(0);
+        if (o instanceof Bitmap) {
+            return integer(((Bitmap) o).get(offset) ? 1 : 0);
+        } else if (o instanceof byte[]) {
+            return integer(_test((byte[]) o, offset) ? 1 : 0);
         } else if (o == null) {
             return integer(0);
         } else {
@@ -562,7 +789,9 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public BulkReply getset(byte[] key0, byte[] value1) throws RedisException {
         Object put = _put(key0, value1);
-        if (put == null || put instanceof byte[]) {
+        if (put instanceof Bitmap) {
+            return new BulkReply(((Bitmap) put).toBytes());
+        } else if (put == null || put instanceof byte[]) {
             return put == null ? NIL_REPLY : new BulkReply((byte[]) put);
         } else {
             // Put it back
@@ -624,6 +853,8 @@ public class SimpleRedisServer implements RedisServer {
             Object o = _get(key0[i]);
             if (o instanceof byte[]) {
                 replies[i] = new BulkReply((byte[]) o);
+            } else if (o instanceof Bitmap) {
+                replies[i] = new BulkReply(((Bitmap) o).toBytes());
             } else {
                 replies[i] = NIL_REPLY;
             }
@@ -700,7 +931,7 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public StatusReply set(byte[] key0, byte[] value1) throws RedisException {
         RedisDbDelegate.RedisDB kv = getRedisDB();
-        return kv.getSimpleKV().write(new String(key0), new String(value1)) ? OK : WRONG_TYPE;
+        return kv.getSimpleKV().write(key0, value1) ? OK : WRONG_TYPE;
     }
 
     /**
@@ -714,38 +945,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply setbit(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
-        int bit = (int) bytesToNum(value2);
-        if (bit != 0 && bit != 1) throw notInteger();
-        Object o = _get(key0);
-        if (o instanceof byte[] || o == null) {
-            long offset = bytesToNum(offset1);
-            long div = offset / 8;
-            if (div + 1 > MAX_VALUE) throw notInteger();
-
-            byte[] bytes = (byte[]) o;
-            if (bytes == null || bytes.length < div + 1) {
-                byte[] tmp = bytes;
-                bytes = new byte[(int) div + 1];
-                if (tmp != null) System.arraycopy(tmp, 0, bytes, 0, tmp.length);
-                _put(key0, bytes);
-            }
-            int mod = (int) (offset % 8);
-            int value = bytes[((int) div)] & 0xFF;
-            int i = value & mask[mod];
-            if (i == 0) {
-                if (bit != 0) {
-                    bytes[((int) div)] += mask[mod];
-                }
-                return integer(0);
-            } else {
-                if (bit == 0) {
-                    bytes[((int) div)] -= mask[mod];
-                }
-                return integer(1);
-            }
-        } else {
-            throw invalidValue();
+        long offset = _tobitoffset(offset1);
+        if (value2.length != 1 || (value2[0] != '0' && value2[0] != '1')) {
+            throw new RedisException("bit is not an integer or out of range");
         }
+        return integer(_getbitmap(key0, true).set(offset, value2[0] == '1') ? 1 : 0);
     }
 
     /**
@@ -792,6 +996,10 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public IntegerReply setrange(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
         byte[] bytes = _getbytes(key0);
+        if (_get(key0) instanceof Bitmap) {
+            //位图转回普通字符串再修改
+            data.put(key0, bytes);
+        }
         int offset = _toposint(offset1);
         int length = value2.length + offset;
         if (bytes.length < length) {
@@ -813,7 +1021,110 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply strlen(byte[] key0) throws RedisException {
-        return integer(_getbytes(key0).length);
+        Object o = _get(key0);
+        return integer(o instanceof Bitmap ? ((Bitmap) o).length() : _getbytes(key0).length);
+    }
+
+    /**
+     * Adds the specified elements to the specified HyperLogLog.
+     * HyperLogLog
+     *
+     * @param key0
+     * @param element1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply pfadd(byte[] key0, byte[][] element1) throws RedisException {
+        SimpleKV kv = getRedisDB().getSimpleKV();
+        HyperLogLog hll = _gethll(key0);
+        if (hll == null) {
+            hll = new HyperLogLog();
+            for (byte[] element : element1) {
+                hll.add(element);
+            }
+            kv.write(key0, hll.toBytes());
+            return integer(1);
+        }
+        long[] registers = new long[element1.length];
+        int changed = 0;
+        for (byte[] element : element1) {
+            int register = HyperLogLog.register(element);
+            if (hll.set(register >>> 8, register & 0xFF)) {
+                registers[changed++] = register;
+            }
+        }
+        if (changed == 0) {
+            return integer(0);
+        }
+        kv.pfadd(key0, hll.toBytes(), Arrays.copyOf(registers, changed));
+        return integer(1);
+    }
+
+    /**
+     * Return the approximated cardinality of the set(s) observed by the HyperLogLog at key(s).
+     * HyperLogLog
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply pfcount(byte[][] key0) throws RedisException {
+        if (key0.length == 0) {
+            throw new RedisException("wrong number of arguments for 'pfcount' command");
+        }
+        if (key0.length == 1) {
+            HyperLogLog hll = _gethll(key0[0]);
+            if (hll == null) {
+                return integer(0);
+            }
+            if (hll.isCached()) {
+                return integer(hll.count());
+            }
+            long count = hll.count();
+            getRedisDB().getSimpleKV().cacheCount(key0[0], hll.toBytes());
+            return integer(count);
+        }
+        List<HyperLogLog> hlls = new ArrayList<HyperLogLog>(key0.length);
+        for (byte[] key : key0) {
+            HyperLogLog hll = _gethll(key);
+            if (hll != null) {
+                hlls.add(hll);
+            }
+        }
+        return integer(HyperLogLog.count(hlls));
+    }
+
+    /**
+     * Merge N different HyperLogLogs into a single one.
+     * HyperLogLog
+     *
+     * @param destkey0
+     * @param sourcekey1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply pfmerge(byte[] destkey0, byte[][] sourcekey1) throws RedisException {
+        HyperLogLog merged = _gethll(destkey0);
+        boolean exists = merged != null;
+        if (merged == null) {
+            merged = new HyperLogLog();
+        }
+        for (byte[] key : sourcekey1) {
+            HyperLogLog hll = _gethll(key);
+            if (hll != null) {
+                merged.merge(hll);
+            }
+        }
+        //和redis一样合并结果总是dense
+        merged.toDense();
+        merged.invalidate();
+        SimpleKV kv = getRedisDB().getSimpleKV();
+        if (exists) {
+            kv.pfmerge(destkey0, merged.toBytes());
+        } else {
+            kv.write(destkey0, merged.toBytes());
+        }
+        return OK;
     }
 
     /**
@@ -1035,6 +1346,46 @@ public class SimpleRedisServer implements RedisServer {
         sb.append("redis_version:2.6.0\n");
         sb.append("keys:").append(data.size()).append("\n");
         sb.append("uptime:").append(now() - started).append("\n");
+        for (BaseOP op : getRedisDB().ops()) {
+            DataMedia store = op.getStore();
+            sb.append(store.getName()).append("_segments:").append(store.getSegmentCount()).append("\n");
+            sb.append(store.getName()).append("_live_bytes:").append(store.getLiveBytes()).append("\n");
+            sb.append(store.getName()).append("_dead_bytes:").append(store.getDeadBytes()).append("\n");
+            sb.append(store.getName()).append("_live_ratio:").append(String.format("%.2f", store.getLiveRatio())).append("\n");
+            DataMedia.ScanResult scan = store.getLastScan();
+            if (scan != null) {
+                sb.append(store.getName()).append("_scrub_records:").append(scan.getRecords()).append("\n");
+                sb.append(store.getName()).append("_scrub_corrupt:").append(scan.getCorrupt()).append("\n");
+                sb.append(store.getName()).append("_scrub_torn:").append(scan.getTorn()).append("\n");
+                sb.append(store.getName()).append("_scrub_ms:").append(scan.getMillis()).append("\n");
+                sb.append(store.getName()).append("_scrub_mb_per_sec:").append(String.format("%.1f", scan.getMbPerSecond())).append("\n");
+            }
+        }
+        IndexHelper indexHelper = getRedisDB().getIndexHelper();
+        sb.append("index_keys:").append(indexHelper.size()).append("\n");
+        sb.append("index_bytes_per_key:").append(indexHelper.getBytesPerKey()).append("\n");
+        sb.append("index_recovery_mode:").append(indexHelper.getRecoveryMode()).append("\n");
+        sb.append("index_recovery_ms:").append(indexHelper.getRecoveryMillis()).append("\n");
+        sb.append("index_recovery_records:").append(indexHelper.getRecoveredRecords()).append("\n");
+        MemoryEvictor evictor = delegate.getEvictor();
+        sb.append("used_memory:").append(MemoryEvictor.usedBytes(RedisDbDelegate.db.values())).append("\n");
+        sb.append("maxmemory:").append(evictor.getMaxBytes()).append("\n");
+        sb.append("maxmemory_policy:").append(evictor.getPolicy().getName()).append("\n");
+        sb.append("evicted_keys:").append(evictor.getEvictedKeys()).append("\n");
+        sb.append("expired_keys:").append(getRedisDB().getExpiredKeys()).append("\n");
+        sb.append("expired_per_sec:").append(getRedisDB().getExpiredPerSec()).append("\n");
+        sb.append("expires_pending:").append(indexHelper.getExpiresPending()).append("\n");
+        sb.append("blocked_clients:").append(getRedisDB().getBlockingKeys().size()).append("\n");
+        WriteAheadLog wal = delegate.getWal();
+        if (wal != null) {
+            sb.append("wal_fsync_policy:").append(wal.getPolicy().name().toLowerCase()).append("\n");
+            sb.append("wal_fsync_count:").append(wal.getFsyncCount()).append("\n");
+            sb.append("wal_fsync_last_us:").append(wal.getFsyncLastMicros()).append("\n");
+            sb.append("wal_fsync_avg_us:").append(wal.getFsyncAvgMicros()).append("\n");
+            sb.append("wal_fsync_max_us:").append(wal.getFsyncMaxMicros()).append("\n");
+            sb.append("wal_lag_bytes:").append(wal.getLagBytes()).append("\n");
+            sb.append("wal_lag_ms:").append(wal.getLagMillis()).append("\n");
+        }
         return new BulkReply(sb.toString().getBytes());
     }
 
@@ -1149,9 +1500,8 @@ public class SimpleRedisServer implements RedisServer {
      * @return MultiBulkReply
      */
     @Override
-    public MultiBulkReply blpop(byte[][] key0) throws RedisException {
-        // TODO: Blocking
-        return null;
+    public Reply blpop(byte[][] key0) throws RedisException {
+        return _bpop(key0, true, "blpop");
     }
 
     /**
@@ -1162,11 +1512,59 @@ public class SimpleRedisServer implements RedisServer {
      * @return MultiBulkReply
      */
     @Override
-    public MultiBulkReply brpop(byte[][] key0) throws RedisException {
-        // TODO: Blocking
+    public Reply brpop(byte[][] key0) throws RedisException {
+        return _bpop(key0, false, "brpop");
+    }
+
+    /**
+     * BLPOP/BRPOP,所有list都为空时连接阻塞,由io线程登记到BlockingKeys
+     */
+    private Reply _bpop(byte[][] args, boolean head, String name) throws RedisException {
+        if (args.length < 2)
+            throw new RedisException("wrong number of arguments for '" + name + "' command");
+        long deadline = _todeadline(args[args.length - 1]);
+        byte[][] keys = Arrays.copyOf(args, args.length - 1);
+        RedisDbDelegate.RedisDB redisDB = getRedisDB();
+        MultiBulkReply popped = _bpop(redisDB.getSimpleList(), keys, head);
+        return popped != null ? popped : new BlockingKeys.Blocked(redisDB.getBlockingKeys(), keys, deadline, MultiBulkReply.NIL_REPLY);
+    }
+
+    /**
+     * 从第一个非空的list弹出
+     *
+     * @return [key, 元素],所有list都为空时返回null
+     */
+    static MultiBulkReply _bpop(SimpleList list, byte[][] keys, boolean head) throws RedisException {
+        for (byte[] key : keys) {
+            if (!list.checkKeyType(key))
+                throw invalidValue();
+            byte[] value = list.pop(key, head);
+            if (value != null)
+                return new MultiBulkReply(new Reply[]{new BulkReply(key), new BulkReply(value)});
+        }
         return null;
     }
 
+    /**
+     * 阻塞命令的超时,单位秒,可以是小数
+     *
+     * @return 超时时间(毫秒时间戳),0表示一直等待
+     */
+    static long _todeadline(byte[] timeout) throws RedisException {
+        double seconds;
+        try {
+            seconds = parseDouble(new String(timeout));
+        } catch (NumberFormatException e) {
+            throw new RedisException("timeout is not a float or out of range");
+        }
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds))
+            throw new RedisException("timeout is not a float or out of range");
+        if (seconds < 0)
+            throw new RedisException("timeout is negative");
+        long millis = (long) Math.ceil(seconds * 1000);
+        return millis == 0 ? 0 : System.currentTimeMillis() + millis;
+    }
+
     /**
      * Pop a value from a list, push it to another list and return it; or block until one is available
      * List
@@ -1177,9 +1575,14 @@ public class SimpleRedisServer implements RedisServer {
      * @return BulkReply
      */
     @Override
-    public BulkReply brpoplpush(byte[] source0, byte[] destination1, byte[] timeout2) throws RedisException {
-        // TODO: Blocking
-        return null;
+    public Reply brpoplpush(byte[] source0, byte[] destination1, byte[] timeout2) throws RedisException {
+        if (timeout2 == null)
+            throw new RedisException("wrong number of arguments for 'brpoplpush' command");
+        long deadline = _todeadline(timeout2);
+        BulkReply popped = rpoplpush(source0, destination1);
+        if (popped != NIL_REPLY)
+            return popped;
+        return new BlockingKeys.Blocked(getRedisDB().getBlockingKeys(), new byte[][]{source0}, deadline, NIL_REPLY);
     }
 
     /**
@@ -1190,16 +1593,13 @@ public class SimpleRedisServer implements RedisServer {
      * @param index1
      * @return BulkReply
      */
-    @SuppressWarnings("unchecked")
     @Override
     public BulkReply lindex(byte[] key0, byte[] index1) throws RedisException {
-        int index = _toposint(index1);
-        List<BytesValue> list = _getlist(key0, true);
-        if (list == null || list.size() <= index) {
-            return NIL_REPLY;
-        } else {
-            return new BulkReply(list.get(index).getBytes());
-        }
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        byte[] value = list.index(key0, bytesToNum(index1));
+        return value == null ? NIL_REPLY : new BulkReply(value);
     }
 
     /**
@@ -1215,17 +1615,10 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public IntegerReply linsert(byte[] key0, byte[] where1, byte[] pivot2, byte[] value3) throws RedisException {
         Where where = Where.valueOf(new String(where1).toUpperCase());
-        List<BytesValue> list = _getlist(key0, true);
-        if (list == null) {
-            return integer(-1);
-        }
-        BytesKey pivot = new BytesKey(pivot2);
-        int i = list.indexOf(pivot);
-        if (i == -1) {
-            return integer(-1);
-        }
-        list.add(i + (where == Where.BEFORE ? 0 : 1), new BytesKey(value3));
-        return integer(list.size());
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        return integer(list.insert(key0, pivot2, value3, where == Where.BEFORE));
     }
 
     enum Where {BEFORE, AFTER}
@@ -1239,8 +1632,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply llen(byte[] key0) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        return list == null ? integer(0) : integer(list.size());
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        return integer(list.size(key0));
     }
 
     /**
@@ -1252,14 +1647,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply lpop(byte[] key0) throws RedisException {
-        //TODO 和读取的不是一个数据list
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null || list.size() == 0) {
-            return NIL_REPLY;
-        } else {
-            return new BulkReply(list.remove(0).getBytes());
-        }
-
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        byte[] value = list.pop(key0, true);
+        return value == null ? NIL_REPLY : new BulkReply(value);
     }
 
     /**
@@ -1273,11 +1665,11 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public Reply lpush(byte[] key0, byte[][] value1) throws RedisException {
         SimpleList list = getRedisDB().getSimpleList();
-        int size = 0;
+        long size = 0;
         for (byte[] value : value1) {
-            if (!list.write(new String(key0), new String(value)))
+            size = list.push(key0, value, true);
+            if (size < 0)
                 return WRONG_TYPE;
-            size++;
         }
         return integer(size);
     }
@@ -1292,13 +1684,12 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lpushx(byte[] key0, byte[] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null) {
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        if (list.size(key0) == 0)
             return integer(0);
-        } else {
-            list.add(0, new BytesKey(value1));
-        }
-        return integer(list.size());
+        return integer(list.push(key0, value1, true));
     }
 
     /**
@@ -1313,7 +1704,9 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public MultiBulkReply lrange(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
         SimpleList list = getRedisDB().getSimpleList();
-        List<byte[]> list_ = list.read(new String(key0), Integer.parseInt(new String(start1)), Integer.parseInt(new String(stop2)));
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        List<byte[]> list_ = list.read(key0, bytesToNum(start1), bytesToNum(stop2));
         if (list_ == null) {
             return MultiBulkReply.EMPTY;
         } else {
@@ -1336,35 +1729,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lrem(byte[] key0, byte[] count1, byte[] value2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null) {
-            return integer(0);
-        } else {
-            int count = _toint(count1);
-            BytesKey value = new BytesKey(value2);
-            int size = list.size();
-            int dir = 1;
-            int s = 0;
-            int e = size;
-            int rem = 0;
-            boolean all = count == 0;
-            if (count < 0) {
-                count = -count;
-                dir = -1;
-                s = e;
-                e = -1;
-            }
-            for (int i = s; (all || count != 0) && i != e; i += dir) {
-                if (list.get(i).equals(value)) {
-                    list.remove(i);
-                    e -= dir;
-                    i -= dir;
-                    rem++;
-                    count--;
-                }
-            }
-            return integer(rem);
-        }
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        return integer(list.delete(key0, bytesToNum(count1), value2));
     }
 
     /**
@@ -1378,17 +1746,16 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply lset(byte[] key0, byte[] index1, byte[] value2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null) {
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        if (list.size(key0) == 0) {
             throw noSuchKey();
         }
-        int size = list.size();
-        int index = _toposint(index1);
-        if (index < size) {
-            list.set(index, new BytesKey(value2));
+        if (list.set(key0, bytesToNum(index1), value2)) {
             return OK;
         } else {
-            throw invalidValue();
+            throw new RedisException("index out of range");
         }
     }
 
@@ -1403,17 +1770,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply ltrim(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null) {
-            return OK;
-        } else {
-            int l = list.size();
-            int s = _torange(start1, l);
-            int e = _torange(stop2, l);
-            // Doesn't change expiration
-            data.put(key0, list.subList(s, e + 1));
-            return OK;
-        }
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        list.trim(key0, bytesToNum(start1), bytesToNum(stop2));
+        return OK;
     }
 
     /**
@@ -1425,15 +1786,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply rpop(byte[] key0) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        int l;
-        if (list == null || (l = list.size()) == 0) {
-            return NIL_REPLY;
-        } else {
-            byte[] bytes = list.get(l - 1).getBytes();
-            list.remove(l - 1);
-            return new BulkReply(bytes);
-        }
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        byte[] value = list.pop(key0, false);
+        return value == null ? NIL_REPLY : new BulkReply(value);
     }
 
     /**
@@ -1446,17 +1803,15 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply rpoplpush(byte[] source0, byte[] destination1) throws RedisException {
-        List<BytesValue> source = _getlist(source0, false);
-        int l;
-        if (source == null || (l = source.size()) == 0) {
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(source0) || !list.checkKeyType(destination1))
+            throw invalidValue();
+        byte[] popped = list.pop(source0, false);
+        if (popped == null) {
             return NIL_REPLY;
-        } else {
-            List<BytesValue> dest = _getlist(destination1, true);
-            BytesValue popped = source.get(l - 1);
-            source.remove(l - 1);
-            dest.add(0, popped);
-            return new BulkReply(popped.getBytes());
         }
+        list.push(destination1, popped, true);
+        return new BulkReply(popped);
     }
 
     /**
@@ -1469,12 +1824,12 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply rpush(byte[] key0, byte[][] value1) throws RedisException {
-        SimpleList list = (SimpleList) getRedisDB().getSimpleList();
-        int size = 0;
+        SimpleList list = getRedisDB().getSimpleList();
+        long size = 0;
         for (byte[] value : value1) {
-            if (!list.write(new String(key0), new String(value)))
+            size = list.push(key0, value, false);
+            if (size < 0)
                 return WRONG_TYPE;
-            size++;
         }
         return integer(size);
     }
@@ -1489,13 +1844,12 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply rpushx(byte[] key0, byte[] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        if (list == null) {
+        SimpleList list = getRedisDB().getSimpleList();
+        if (!list.checkKeyType(key0))
+            throw invalidValue();
+        if (list.size(key0) == 0)
             return integer(0);
-        } else {
-            list.add(new BytesKey(value1));
-            return integer(list.size());
-        }
+        return integer(list.push(key0, value1, false));
     }
 
     /**
@@ -1513,13 +1867,15 @@ public class SimpleRedisServer implements RedisServer {
         SimpleHash hash = getRedisDB().getSimpleHash();
         int total = 0;
         for (byte[] bytes : key0) {
-            String key = new String(bytes);
-            if (indexHelper.type(key) instanceof DataHelper)
-                kv.remove(key);
-            if (indexHelper.type(key) instanceof List)
-                list.remove(key);
-            if (indexHelper.type(key) instanceof Map)
-                hash.remove(key);
+            Object type = indexHelper.type(bytes);
+            if (type instanceof DataHelper)
+                kv.remove(bytes);
+            if (type instanceof QuickList)
+                list.remove(bytes);
+            if (type instanceof HashFields)
+                hash.remove(bytes);
+            if (type instanceof MemberLog)
+                getRedisDB().memberOp((MemberLog) type).remove(bytes);
             total++;
         }
         return integer(total);
@@ -1560,12 +1916,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply expire(byte[] key0, byte[] seconds1) throws RedisException {
-        IndexHelper indexHelper = getRedisDB().getIndexHelper();
-        if (indexHelper.type(new String(key0)) != null) {
-            indexHelper.setExpire(new String(key0), bytesToNum(seconds1) * 1000);
-            return integer(1);
-        } else
-            return integer(0);
+        return integer(getRedisDB().expireAt(key0, now() + bytesToNum(seconds1) * 1000) ? 1 : 0);
     }
 
     /**
@@ -1578,13 +1929,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply expireat(byte[] key0, byte[] timestamp1) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(0);
-        } else {
-            expires.put(key0, bytesToNum(timestamp1) * 1000);
-            return integer(1);
-        }
+        return integer(getRedisDB().expireAt(key0, bytesToNum(timestamp1) * 1000) ? 1 : 0);
     }
 
     /**
@@ -1601,10 +1946,7 @@ public class SimpleRedisServer implements RedisServer {
         }
         List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
         IndexHelper indexHelper = getRedisDB().getIndexHelper();
-        Iterator<String> it = indexHelper.getKv().keySet().iterator();
-        while (it.hasNext()) {
-            String key = it.next();
-            byte[] bytes = key.getBytes();
+        for (byte[] bytes : indexHelper.keys()) {
             if (matches(bytes, pattern0, 0, 0)) {
                 replies.add(new BulkReply(bytes));
             }
@@ -1664,13 +2006,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply persist(byte[] key0) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(0);
-        } else {
-            Long remove = expires.remove(key0);
-            return remove == null ? integer(0) : integer(1);
-        }
+        return integer(getRedisDB().expireAt(key0, 0) ? 1 : 0);
     }
 
     /**
@@ -1683,13 +2019,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply pexpire(byte[] key0, byte[] milliseconds1) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(0);
-        } else {
-            expires.put(key0, bytesToNum(milliseconds1) + now());
-            return integer(1);
-        }
+        return integer(getRedisDB().expireAt(key0, now() + bytesToNum(milliseconds1)) ? 1 : 0);
     }
 
     /**
@@ -1702,13 +2032,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply pexpireat(byte[] key0, byte[] milliseconds_timestamp1) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(0);
-        } else {
-            expires.put(key0, bytesToNum(milliseconds_timestamp1));
-            return integer(1);
-        }
+        return integer(getRedisDB().expireAt(key0, bytesToNum(milliseconds_timestamp1)) ? 1 : 0);
     }
 
     /**
@@ -1720,17 +2044,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply pttl(byte[] key0) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(-1);
-        } else {
-            Long aLong = expires.get(key0);
-            if (aLong == null) {
-                return integer(-1);
-            } else {
-                return integer(aLong - now());
-            }
-        }
+        return integer(getRedisDB().ttlMillis(key0));
     }
 
     /**
@@ -1759,6 +2073,10 @@ public class SimpleRedisServer implements RedisServer {
         return null;
     }
 
+    private BytesKey _randommember(BytesKeySet set) {
+        return set.random(r);
+    }
+
     private BytesKey getRandomKey(Map data1) throws IllegalAccessException {
         Map.Entry[] table = (Map.Entry[]) tableField.get(data1);
         int length = table.length;
@@ -1868,17 +2186,8 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply ttl(byte[] key0) throws RedisException {
-        Object o = _get(key0);
-        if (o == null) {
-            return integer(-1);
-        } else {
-            Long aLong = expires.get(key0);
-            if (aLong == null) {
-                return integer(-1);
-            } else {
-                return integer((aLong - now()) / 1000);
-            }
-        }
+        long ttl = getRedisDB().ttlMillis(key0);
+        return integer(ttl < 0 ? ttl : (ttl + 500) / 1000);
     }
 
     /**
@@ -1891,20 +2200,18 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public StatusReply type(byte[] key0) throws RedisException {
         IndexHelper indexHelper = getRedisDB().getIndexHelper();
-        Object o = indexHelper.type(new String(key0));
+        Object o = indexHelper.type(key0);
         if (o == null) {
             return new StatusReply("none");
         }
         if (o instanceof DataHelper) {
             return new StatusReply("string");
-        } else if (o instanceof Map) {
+        } else if (o instanceof HashFields) {
             return new StatusReply(DataTypeEnum.HASH.getDesc());
-        } else if (o instanceof List) {
+        } else if (o instanceof QuickList) {
             return new StatusReply(DataTypeEnum.LIST.getDesc());
-        } else if (o instanceof SortedSet) {
-            return new StatusReply("zset");
-        } else if (o instanceof Set) {
-            return new StatusReply("set");
+        } else if (o instanceof MemberLog) {
+            return new StatusReply(((MemberLog) o).getType().getDesc());
         }
         return null;
     }
@@ -2018,12 +2325,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply hdel(byte[] key0, byte[][] field1) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
-        int total = 0;
-        for (byte[] hkey : field1) {
-            total += hash.remove(hkey) == null ? 0 : 1;
-        }
-        return integer(total);
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        if (!hash.checkKeyType(key0))
+            throw invalidValue();
+        return integer(hash.delete(key0, field1));
     }
 
     /**
@@ -2036,7 +2341,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply hexists(byte[] key0, byte[] field1) throws RedisException {
-        return _gethash(key0, false).get(field1) == null ? integer(0) : integer(1);
+        return _hget(key0, field1) == null ? integer(0) : integer(1);
     }
 
     /**
@@ -2049,8 +2354,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply hget(byte[] key0, byte[] field1) throws RedisException {
-        SimpleHash hash = getRedisDB().getSimpleHash();
-        byte[] bytes = hash.read(new String(key0), new String(field1));
+        byte[] bytes = _hget(key0, field1);
         if (bytes == null) {
             return NIL_REPLY;
         } else {
@@ -2067,15 +2371,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply hgetall(byte[] key0) throws RedisException {
-        SimpleHash hash = getRedisDB().getSimpleHash();
-        byte[][] data = hash.read(new String(key0));
-        int size = data.length;
-        Reply[] replies = new Reply[size];
-        int j = 0, m = 0;
-        for (int i = 0; i < size; ++i) {
-            replies[j++] = new BulkReply(data[m++]);
-            replies[j++] = new BulkReply(data[m++]);
-            i++;
+        byte[][] data = _hgetall(key0);
+        Reply[] replies = new Reply[data.length];
+        for (int i = 0; i < data.length; i++) {
+            replies[i] = new BulkReply(data[i]);
         }
         return new MultiBulkReply(replies);
     }
@@ -2091,17 +2390,13 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply hincrby(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
-        byte[] field = hash.get(field1);
-        int increment = _toint(increment2);
-        if (field == null) {
-            hash.put(field1, increment2);
-            return new IntegerReply(increment);
-        } else {
-            int i = _toint(field);
-            int value = i + increment;
-            hash.put(field1, numToBytes(value, false));
-            return new IntegerReply(value);
+        byte[] field = _hget(key0, field1);
+        try {
+            long value = bytesToNum(increment2) + (field == null ? 0 : bytesToNum(field));
+            _hset(key0, field1, numToBytes(value, false));
+            return integer(value);
+        } catch (IllegalArgumentException e) {
+            throw new RedisException(e.getMessage());
         }
     }
 
@@ -2116,19 +2411,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply hincrbyfloat(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
-        byte[] field = hash.get(field1);
+        byte[] field = _hget(key0, field1);
         double increment = _todouble(increment2);
-        if (field == null) {
-            hash.put(field1, increment2);
-            return new BulkReply(increment2);
-        } else {
-            double d = _todouble(field);
-            double value = d + increment;
-            byte[] bytes = _tobytes(value);
-            hash.put(field1, bytes);
-            return new BulkReply(bytes);
-        }
+        byte[] bytes = field == null ? increment2 : _tobytes(_todouble(field) + increment);
+        _hset(key0, field1, bytes);
+        return new BulkReply(bytes);
     }
 
     /**
@@ -2140,12 +2427,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply hkeys(byte[] key0) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
-        int size = hash.size();
-        Reply[] replies = new Reply[size];
-        int i = 0;
-        for (Object hkey : hash.keySet()) {
-            replies[i++] = new BulkReply(((BytesKey) hkey).getBytes());
+        byte[][] data = _hgetall(key0);
+        Reply[] replies = new Reply[data.length / 2];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new BulkReply(data[i * 2]);
         }
         return new MultiBulkReply(replies);
     }
@@ -2159,8 +2444,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply hlen(byte[] key0) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
-        return integer(hash.size());
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        if (!hash.checkKeyType(key0))
+            throw invalidValue();
+        return integer(hash.size(key0));
     }
 
     /**
@@ -2173,11 +2460,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply hmget(byte[] key0, byte[][] field1) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
         int length = field1.length;
         Reply[] replies = new Reply[length];
         for (int i = 0; i < length; i++) {
-            byte[] bytes = hash.get(field1[i]);
+            byte[] bytes = _hget(key0, field1[i]);
             if (bytes == null) {
                 replies[i] = NIL_REPLY;
             } else {
@@ -2197,12 +2483,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply hmset(byte[] key0, byte[][] field_or_value1) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
         if (field_or_value1.length % 2 != 0) {
             throw new RedisException("wrong number of arguments for HMSET");
         }
         for (int i = 0; i < field_or_value1.length; i += 2) {
-            hash.put(field_or_value1[i], field_or_value1[i + 1]);
+            _hset(key0, field_or_value1[i], field_or_value1[i + 1]);
         }
         return OK;
     }
@@ -2218,8 +2503,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-        SimpleHash hash = (SimpleHash) getRedisDB().getSimpleHash();
-        return hash.write(new String(key0), new String(field1), new String(value2)) ? integer(1) : WRONG_TYPE;
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        int added = hash.write(key0, field1, value2);
+        return added < 0 ? WRONG_TYPE : integer(added);
     }
 
     /**
@@ -2233,10 +2519,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply hsetnx(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
-        byte[] bytes = hash.get(field1);
+        byte[] bytes = _hget(key0, field1);
         if (bytes == null) {
-            hash.put(field1, value2);
+            _hset(key0, field1, value2);
             return integer(1);
         } else {
             return integer(0);
@@ -2252,12 +2537,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply hvals(byte[] key0) throws RedisException {
-        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
-        int size = hash.size();
-        Reply[] replies = new Reply[size];
-        int i = 0;
-        for (byte[] hvalue : hash.values()) {
-            replies[i++] = new BulkReply(hvalue);
+        byte[][] data = _hgetall(key0);
+        Reply[] replies = new Reply[data.length / 2];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new BulkReply(data[i * 2 + 1]);
         }
         return new MultiBulkReply(replies);
     }
@@ -2286,12 +2569,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply sadd(byte[] key0, byte[][] member1) throws RedisException {
-        BytesKeySet set = _getset(key0, true);
-        int total = 0;
-        for (byte[] bytes : member1) {
-            if (set.add(bytes)) total++;
-        }
-        return integer(total);
+        int added = getRedisDB().getSimpleSet().add(key0, member1);
+        if (added < 0)
+            throw invalidValue();
+        return integer(added);
     }
 
     /**
@@ -2303,7 +2584,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply scard(byte[] key0) throws RedisException {
-        BytesKeySet bytesKeys = _getset(key0, false);
+        BytesKeySet bytesKeys = _getset(key0);
         return integer(bytesKeys.size());
     }
 
@@ -2321,20 +2602,18 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     private BytesKeySet _sdiff(byte[][] key0) throws RedisException {
-        BytesKeySet set = null;
-        for (byte[] key : key0) {
-            if (set == null) {
-                set = new BytesKeySet();
-                set.addAll(_getset(key, false));
-            } else {
-                BytesKeySet c = _getset(key, false);
-                set.removeAll(c);
-            }
+        return BytesKeySet.difference(_getsets(key0, "sdiff"));
+    }
+
+    private List<BytesKeySet> _getsets(byte[][] key0, String name) throws RedisException {
+        if (key0.length == 0) {
+            throw new RedisException("wrong number of arguments for '" + name + "' command");
         }
-        if (set == null) {
-            throw new RedisException("wrong number of arguments for 'sdiff' command");
+        List<BytesKeySet> sets = new ArrayList<BytesKeySet>(key0.length);
+        for (byte[] key : key0) {
+            sets.add(_getset(key));
         }
-        return set;
+        return sets;
     }
 
     /**
@@ -2347,14 +2626,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply sdiffstore(byte[] destination0, byte[][] key1) throws RedisException {
-        Object o = _get(destination0);
-        if (o == null || o instanceof Set) {
-            BytesKeySet set = _sdiff(key1);
-            _put(destination0, set);
-            return integer(set.size());
-        } else {
+        int stored = getRedisDB().getSimpleSet().store(destination0, _sdiff(key1));
+        if (stored < 0)
             throw invalidValue();
-        }
+        return integer(stored);
     }
 
     /**
@@ -2371,25 +2646,37 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     private BytesKeySet _sinter(byte[][] key0) throws RedisException {
-        BytesKeySet set = null;
-        for (byte[] key : key0) {
-            if (set == null) {
-                set = _getset(key, false);
-            } else {
-                BytesKeySet inter = new BytesKeySet();
-                BytesKeySet newset = _getset(key, false);
-                for (BytesKey bytesKey : newset) {
-                    if (set.contains(bytesKey)) {
-                        inter.add(bytesKey);
-                    }
-                }
-                set = inter;
-            }
+        return BytesKeySet.intersect(_getsets(key0, "sinter"), 0);
+    }
+
+    /**
+     * Intersect multiple sets and return the cardinality of the result
+     * Set
+     *
+     * @param numkeys0
+     * @param key_limit1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sintercard(byte[] numkeys0, byte[][] key_limit1) throws RedisException {
+        int numkeys = _toint(numkeys0);
+        if (numkeys < 1) {
+            throw new RedisException("numkeys should be greater than 0");
+        }
+        if (key_limit1.length < numkeys) {
+            throw new RedisException("Number of keys can't be greater than number of args");
         }
-        if (set == null) {
-            throw new RedisException("wrong number of arguments for 'sinter' command");
+        int limit = 0;
+        if (key_limit1.length > numkeys) {
+            if (key_limit1.length != numkeys + 2 || !_checkcommand(key_limit1[numkeys], "limit", true)) {
+                throw new RedisException("syntax error");
+            }
+            limit = _toint(key_limit1[numkeys + 1]);
+            if (limit < 0) {
+                throw new RedisException("LIMIT can't be negative");
+            }
         }
-        return set;
+        return integer(BytesKeySet.intersect(_getsets(Arrays.copyOf(key_limit1, numkeys), "sintercard"), limit).size());
     }
 
     /**
@@ -2402,14 +2689,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply sinterstore(byte[] destination0, byte[][] key1) throws RedisException {
-        Object o = _get(destination0);
-        if (o == null || o instanceof Set) {
-            BytesKeySet set = _sinter(key1);
-            _put(destination0, set);
-            return integer(set.size());
-        } else {
+        int stored = getRedisDB().getSimpleSet().store(destination0, _sinter(key1));
+        if (stored < 0)
             throw invalidValue();
-        }
+        return integer(stored);
     }
 
     /**
@@ -2422,7 +2705,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply sismember(byte[] key0, byte[] member1) throws RedisException {
-        BytesKeySet set = _getset(key0, false);
+        BytesKeySet set = _getset(key0);
         return set.contains(member1) ? integer(1) : integer(0);
     }
 
@@ -2435,7 +2718,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply smembers(byte[] key0) throws RedisException {
-        BytesKeySet set = _getset(key0, false);
+        BytesKeySet set = _getset(key0);
         return _setreply(set);
     }
 
@@ -2459,14 +2742,14 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply smove(byte[] source0, byte[] destination1, byte[] member2) throws RedisException {
-        BytesKeySet source = _getset(source0, false);
-        if (source.remove(member2)) {
-            BytesKeySet dest = _getset(destination1, true);
-            dest.add(member2);
-            return integer(1);
-        } else {
+        BytesKeySet source = _getset(source0);
+        _getset(destination1);
+        if (!source.contains(member2))
             return integer(0);
-        }
+        SimpleSet set = getRedisDB().getSimpleSet();
+        set.delete(source0, member2);
+        set.add(destination1, member2);
+        return integer(1);
     }
 
     /**
@@ -2478,18 +2761,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply spop(byte[] key0) throws RedisException {
-        if (mapField == null || tableField == null) {
-            throw new RedisException("Not supported");
-        }
-        BytesKeySet set = _getset(key0, false);
+        BytesKeySet set = _getset(key0);
         if (set.size() == 0) return NIL_REPLY;
-        try {
-            BytesKey key = getRandomKey((Map) mapField.get(set));
-            set.remove(key);
-            return new BulkReply(key.getBytes());
-        } catch (IllegalAccessException e) {
-            throw new RedisException("Not supported");
-        }
+        BytesKey key = _randommember(set);
+        getRedisDB().getSimpleSet().delete(key0, key.getBytes());
+        return new BulkReply(key.getBytes());
     }
 
     /**
@@ -2501,39 +2777,32 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply srandmember(byte[] key0, byte[] count1) throws RedisException {
-        if (mapField == null || tableField == null) {
-            throw new RedisException("Not supported");
-        }
-        BytesKeySet set = _getset(key0, false);
+        BytesKeySet set = _getset(key0);
         int size = set.size();
-        try {
-            if (count1 == null) {
-                if (size == 0) return NIL_REPLY;
-                BytesKey key = getRandomKey((Map) mapField.get(set));
-                return new BulkReply(key.getBytes());
+        if (count1 == null) {
+            if (size == 0) return NIL_REPLY;
+            BytesKey key = _randommember(set);
+            return new BulkReply(key.getBytes());
+        } else {
+            int count = _toint(count1);
+            int distinct = count < 0 ? -1 : 1;
+            count *= distinct;
+            if (count > size && distinct > 0) count = size;
+            Reply[] replies = new Reply[count];
+            Set<BytesKey> found;
+            if (distinct > 0) {
+                found = new HashSet<BytesKey>(count);
             } else {
-                int count = _toint(count1);
-                int distinct = count < 0 ? -1 : 1;
-                count *= distinct;
-                if (count > size && distinct > 0) count = size;
-                Reply[] replies = new Reply[count];
-                Set<BytesKey> found;
-                if (distinct > 0) {
-                    found = new HashSet<BytesKey>(count);
-                } else {
-                    found = null;
-                }
-                for (int i = 0; i < count; i++) {
-                    BytesKey key;
-                    do {
-                        key = getRandomKey((Map) mapField.get(set));
-                    } while (found != null && !found.add(key));
-                    replies[i] = new BulkReply(key.getBytes());
-                }
-                return new MultiBulkReply(replies);
+                found = null;
+            }
+            for (int i = 0; i < count; i++) {
+                BytesKey key;
+                do {
+                    key = _randommember(set);
+                } while (found != null && !found.add(key));
+                replies[i] = new BulkReply(key.getBytes());
             }
-        } catch (IllegalAccessException e) {
-            throw new RedisException("Not supported");
+            return new MultiBulkReply(replies);
         }
     }
 
@@ -2547,14 +2816,8 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply srem(byte[] key0, byte[][] member1) throws RedisException {
-        BytesKeySet set = _getset(key0, false);
-        int total = 0;
-        for (byte[] member : member1) {
-            if (set.remove(member)) {
-                total++;
-            }
-        }
-        return new IntegerReply(total);
+        _getset(key0);
+        return integer(getRedisDB().getSimpleSet().delete(key0, member1));
     }
 
     /**
@@ -2571,19 +2834,7 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     private BytesKeySet _sunion(byte[][] key0) throws RedisException {
-        BytesKeySet set = null;
-        for (byte[] key : key0) {
-            if (set == null) {
-                set = new BytesKeySet();
-                set.addAll(_getset(key, false));
-            } else {
-                set.addAll(_getset(key, false));
-            }
-        }
-        if (set == null) {
-            throw new RedisException("wrong number of arguments for 'sunion' command");
-        }
-        return set;
+        return BytesKeySet.union(_getsets(key0, "sunion"));
     }
 
     /**
@@ -2596,14 +2847,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply sunionstore(byte[] destination0, byte[][] key1) throws RedisException {
-        Object o = _get(destination0);
-        if (o == null || o instanceof Set) {
-            BytesKeySet set = _sunion(key1);
-            _put(destination0, set);
-            return integer(set.size());
-        } else {
+        int stored = getRedisDB().getSimpleSet().store(destination0, _sunion(key1));
+        if (stored < 0)
             throw invalidValue();
-        }
+        return integer(stored);
     }
 
     /**
@@ -2619,20 +2866,34 @@ public class SimpleRedisServer implements RedisServer {
             throw new RedisException("wrong number of arguments for 'zadd' command");
         }
         byte[] key = args[0];
-        ZSet zset = _getzset(key, true);
+        double[] scores = new double[args.length / 2];
+        for (int i = 1; i < args.length; i += 2) {
+            scores[i / 2] = _todouble(args[i]);
+        }
+        SimpleZSet zset = getRedisDB().getSimpleZSet();
         int total = 0;
         for (int i = 1; i < args.length; i += 2) {
-            byte[] value = args[i + 1];
-            byte[] score = args[i];
-            if (zset.add(new BytesKey(value), _todouble(score))) {
-                total++;
-            }
+            int added = zset.add(key, args[i + 1], scores[i / 2]);
+            if (added < 0)
+                throw invalidValue();
+            total += added;
         }
         return integer(total);
     }
 
-    private double _todouble(byte[] score) {
-        return parseDouble(new String(score));
+    private double _todouble(byte[] score) throws RedisException {
+        String s = new String(score).toLowerCase();
+        if (s.equals("inf") || s.equals("+inf"))
+            return Double.POSITIVE_INFINITY;
+        if (s.equals("-inf"))
+            return Double.NEGATIVE_INFINITY;
+        try {
+            double value = parseDouble(s);
+            if (!Double.isNaN(value))
+                return value;
+        } catch (NumberFormatException e) {
+        }
+        throw notFloat();
     }
 
     /**
@@ -2644,7 +2905,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply zcard(byte[] key0) throws RedisException {
-        ZSet zset = _getzset(key0, false);
+        ZSet zset = _getzset(key0);
         return integer(zset.size());
     }
 
@@ -2662,21 +2923,8 @@ public class SimpleRedisServer implements RedisServer {
         if (key0 == null || min1 == null || max2 == null) {
             throw new RedisException("wrong number of arguments for 'zcount' command");
         }
-        ZSet zset = _getzset(key0, false);
-        Score min = _toscorerange(min1);
-        Score max = _toscorerange(max2);
-        Iterable<ZSetEntry> entries = zset.subSet(_todouble(min1), _todouble(max2));
-        int total = 0;
-        for (ZSetEntry entry : entries) {
-            if (entry.getScore() == min.value && !min.inclusive) {
-                continue;
-            }
-            if (entry.getScore() == max.value && !max.inclusive) {
-                continue;
-            }
-            total++;
-        }
-        return integer(total);
+        ZSet zset = _getzset(key0);
+        return integer(Math.max(_toscorerank(zset, max2, false) - _toscorerank(zset, min1, true), 0));
     }
 
     /**
@@ -2690,17 +2938,13 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply zincrby(byte[] key0, byte[] increment1, byte[] member2) throws RedisException {
-        ZSet zset = _getzset(key0, true);
-        ZSetEntry entry = zset.get(member2);
-        double increment = _todouble(increment1);
-        if (entry == null) {
-            zset.add(new BytesKey(member2), increment);
-            return new BulkReply(increment1);
-        } else {
-            zset.remove(member2);
-            zset.add(entry.getKey(), entry.getScore() + increment);
-            return new BulkReply(_tobytes(entry.getScore()));
-        }
+        ZSetEntry entry = _getzset(key0).get(member2);
+        double score = _todouble(increment1) + (entry == null ? 0 : entry.getScore());
+        if (Double.isNaN(score))
+            throw new RedisException("resulting score is not a number (NaN)");
+        if (getRedisDB().getSimpleZSet().add(key0, member2, score) < 0)
+            throw invalidValue();
+        return new BulkReply(_tobytes(score));
     }
 
     /**
@@ -2748,10 +2992,9 @@ public class SimpleRedisServer implements RedisServer {
                 throw new RedisException("wrong number of arguments for '" + name + "' command");
             }
         }
-        del(new byte[][]{destination0});
-        ZSet destination = _getzset(destination0, true);
+        ZSet destination = new ZSet();
         for (int i = 0; i < numkeys; i++) {
-            ZSet zset = _getzset(key2[i], false);
+            ZSet zset = _getzset(key2[i]);
             if (i == 0) {
                 if (weights == null) {
                     destination.addAll(zset);
@@ -2794,11 +3037,29 @@ public class SimpleRedisServer implements RedisServer {
                 }
             }
         }
-        return integer(destination.size());
+        int stored = getRedisDB().getSimpleZSet().store(destination0, destination);
+        if (stored < 0)
+            throw invalidValue();
+        return integer(stored);
     }
 
     enum Aggregate {SUM, MIN, MAX}
 
+    /**
+     * Count the number of members in a sorted set between a given lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zlexcount(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
+        ZSet zset = _getzset(key0);
+        return integer(Math.max(_tolexrank(zset, max2, false) - _tolexrank(zset, min1, true), 0));
+    }
+
     /**
      * Return a range of members in a sorted set, by index
      * Sorted_set
@@ -2815,23 +3076,15 @@ public class SimpleRedisServer implements RedisServer {
             throw new RedisException("invalid number of argumenst for 'zrange' command");
         }
         boolean withscores = _checkcommand(withscores3, "withscores", true);
-        ZSet zset = _getzset(key0, false);
+        ZSet zset = _getzset(key0);
         int size = zset.size();
         int start = _torange(start1, size);
         int end = _torange(stop2, size);
-        Iterator<ZSetEntry> iterator = zset.iterator();
         List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(new BulkReply(next.getKey().getBytes()));
-                    if (withscores) {
-                        list.add(new BulkReply(_tobytes(next.getScore())));
-                    }
-                } else if (i > end) {
-                    break;
-                }
+        for (ZSetEntry next : zset.subSet(start, end)) {
+            list.add(new BulkReply(next.getKey().getBytes()));
+            if (withscores) {
+                list.add(new BulkReply(_tobytes(next.getScore())));
             }
         }
         return new MultiBulkReply(list.toArray(new Reply[0]));
@@ -2855,6 +3108,23 @@ public class SimpleRedisServer implements RedisServer {
         return result;
     }
 
+    /**
+     * Return a range of members in a sorted set, by lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @param offset_or_count3
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrangebylex(byte[] key0, byte[] min1, byte[] max2, byte[][] offset_or_count3) throws RedisException {
+        ZSet zset = _getzset(key0);
+        List<Reply<ByteBuf>> list = _zrangebylex(min1, max2, offset_or_count3, zset, false);
+        return new MultiBulkReply(list.toArray(new Reply[0]));
+    }
+
     /**
      * Return a range of members in a sorted set, by score
      * Sorted_set
@@ -2867,7 +3137,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply zrangebyscore(byte[] key0, byte[] min1, byte[] max2, byte[][] withscores_offset_or_count4) throws RedisException {
-        ZSet zset = _getzset(key0, false);
+        ZSet zset = _getzset(key0);
         if (zset.isEmpty()) return MultiBulkReply.EMPTY;
         List<Reply<ByteBuf>> list = _zrangebyscore(min1, max2, withscores_offset_or_count4, zset, false);
         return new MultiBulkReply(list.toArray(new Reply[0]));
@@ -2888,30 +3158,75 @@ public class SimpleRedisServer implements RedisServer {
             throw new RedisException("syntax error");
         }
         int offset = 0;
-        int number = Integer.MAX_VALUE;
+        int number = -1;
         if (limit) {
             offset = _toint(withscores_offset_or_count4[position++]);
             number = _toint(withscores_offset_or_count4[position]);
-            if (offset < 0 || number < 1) {
-                throw notInteger();
+        }
+        return _zrangebyrank(zset, _toscorerank(zset, min1, true), _toscorerank(zset, max2, false), offset, number, reverse, withscores);
+    }
+
+    private List<Reply<ByteBuf>> _zrangebylex(byte[] min1, byte[] max2, byte[][] offset_or_count3, ZSet zset, boolean reverse) throws RedisException {
+        int offset = 0;
+        int number = -1;
+        if (offset_or_count3.length > 0) {
+            if (offset_or_count3.length != 3 || !_checkcommand(offset_or_count3[0], "limit", true)) {
+                throw new RedisException("syntax error");
             }
+            offset = _toint(offset_or_count3[1]);
+            number = _toint(offset_or_count3[2]);
+        }
+        return _zrangebyrank(zset, _tolexrank(zset, min1, true), _tolexrank(zset, max2, false), offset, number, reverse, false);
+    }
+
+    /**
+     * 把[member/(member/-/+转换成排名:min为第一个在范围内的排名,max为第一个超出范围的排名
+     */
+    private int _tolexrank(ZSet zset, byte[] specifier, boolean min) throws RedisException {
+        if (specifier.length == 1 && specifier[0] == '-') return 0;
+        if (specifier.length == 1 && specifier[0] == '+') return zset.size();
+        if (specifier.length == 0 || (specifier[0] != '[' && specifier[0] != '(')) {
+            throw new RedisException("min or max not valid string range item");
         }
-        Score min = _toscorerange(min1);
-        Score max = _toscorerange(max2);
-        List<ZSetEntry> entries = zset.subSet(min.value, max.value);
-        if (reverse) Collections.reverse(entries);
-        int current = 0;
+        boolean inclusive = specifier[0] == '[';
+        return zset.lexRank(Arrays.copyOfRange(specifier, 1, specifier.length), min != inclusive);
+    }
+
+    /**
+     * 同_tolexrank,分值范围
+     */
+    private int _toscorerank(ZSet zset, byte[] specifier, boolean min) {
+        Score score = _toscorerange(specifier);
+        return zset.scoreRank(score.value, min != score.inclusive);
+    }
+
+    /**
+     * 返回排名在[start,end)中的成员,LIMIT的offset和count直接换算成起始排名和个数,不逐个跳过
+     */
+    private List<Reply<ByteBuf>> _zrangebyrank(ZSet zset, int start, int end, int offset, int number, boolean reverse, boolean withscores) {
         List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (ZSetEntry entry : entries) {
-            if (current >= offset && current < offset + number) {
-                list.add(new BulkReply(entry.getKey().getBytes()));
-                if (withscores) list.add(new BulkReply(_tobytes(entry.getScore())));
-            }
-            current++;
+        if (offset < 0 || offset >= end - start || number == 0) {
+            return list;
+        }
+        int count = end - start - offset;
+        if (number > 0 && number < count) count = number;
+        Iterator<ZSetEntry> iterator = zset.iterator(reverse ? end - 1 - offset : start + offset, reverse);
+        for (int i = 0; i < count; i++) {
+            ZSetEntry entry = iterator.next();
+            list.add(new BulkReply(entry.getKey().getBytes()));
+            if (withscores) list.add(new BulkReply(_tobytes(entry.getScore())));
         }
         return list;
     }
 
+    private int _zremrangebyrank(byte[] key0, ZSet zset, int start, int end) {
+        List<byte[]> members = new ArrayList<byte[]>();
+        for (ZSetEntry entry : zset.range(start, end, false)) {
+            members.add(entry.getKey().getBytes());
+        }
+        return members.isEmpty() ? 0 : getRedisDB().getSimpleZSet().delete(key0, members.toArray(new byte[0][]));
+    }
+
     private Score _toscorerange(byte[] specifier) {
         Score score = new Score();
         String s = new String(specifier).toLowerCase();
@@ -2944,8 +3259,8 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply zrank(byte[] key0, byte[] member1) throws RedisException {
-        List<ZSetEntry> zset = _getzset(key0, false).list();
-        return _zrank(member1, zset);
+        int rank = _getzset(key0).rank(member1);
+        return rank < 0 ? NIL_REPLY : integer(rank);
     }
 
     /**
@@ -2958,15 +3273,23 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply zrem(byte[] key0, byte[][] member1) throws RedisException {
-        ZSet zset = _getzset(key0, false);
-        if (zset.isEmpty()) return integer(0);
-        int total = 0;
-        for (byte[] member : member1) {
-            if (zset.remove(member)) {
-                total++;
-            }
-        }
-        return integer(total);
+        _getzset(key0);
+        return integer(getRedisDB().getSimpleZSet().delete(key0, member1));
+    }
+
+    /**
+     * Remove all members in a sorted set between the given lexicographical range
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zremrangebylex(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
+        ZSet zset = _getzset(key0);
+        return integer(_zremrangebyrank(key0, zset, _tolexrank(zset, min1, true), _tolexrank(zset, max2, false) - 1));
     }
 
     /**
@@ -2980,28 +3303,12 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply zremrangebyrank(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        ZSet zset = _getzset(key0, false);
+        ZSet zset = _getzset(key0);
         if (zset.isEmpty()) return integer(0);
         int size = zset.size();
         int start = _torange(start1, size);
         int end = _torange(stop2, size);
-        Iterator<ZSetEntry> iterator = zset.iterator();
-        List<ZSetEntry> list = new ArrayList<ZSetEntry>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(next);
-                } else if (i > end) {
-                    break;
-                }
-            }
-        }
-        int total = 0;
-        for (ZSetEntry zSetEntry : list) {
-            if (zset.remove(zSetEntry.getKey())) total++;
-        }
-        return integer(total);
+        return integer(_zremrangebyrank(key0, zset, start, end));
     }
 
     /**
@@ -3015,20 +3322,8 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply zremrangebyscore(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
-        ZSet zset = _getzset(key0, false);
-        if (zset.isEmpty()) return integer(0);
-        Score min = _toscorerange(min1);
-        Score max = _toscorerange(max2);
-        List<ZSetEntry> entries = zset.subSet(min.value, max.value);
-        int total = 0;
-        for (ZSetEntry entry : new ArrayList<ZSetEntry>(entries)) {
-            if (!min.inclusive && entry.getScore() == min.value) continue;
-            if (!max.inclusive && entry.getScore() == max.value) continue;
-            if (zset.remove(entry.getKey())) {
-                total++;
-            }
-        }
-        return integer(total);
+        ZSet zset = _getzset(key0);
+        return integer(_zremrangebyrank(key0, zset, _toscorerank(zset, min1, true), _toscorerank(zset, max2, false) - 1));
     }
 
     /**
@@ -3047,43 +3342,52 @@ public class SimpleRedisServer implements RedisServer {
             throw new RedisException("invalid number of argumenst for 'zrevrange' command");
         }
         boolean withscores = _checkcommand(withscores3, "withscores", true);
-        ZSet zset = _getzset(key0, false);
+        ZSet zset = _getzset(key0);
         int size = zset.size();
         int end = size - _torange(start1, size) - 1;
         int start = size - _torange(stop2, size) - 1;
-        Iterator<ZSetEntry> iterator = zset.iterator();
         List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(0, new BulkReply(next.getKey().getBytes()));
-                    if (withscores) {
-                        list.add(1, new BulkReply(_tobytes(next.getScore())));
-                    }
-                } else if (i > end) {
-                    break;
-                }
+        for (ZSetEntry next : zset.range(start, end, true)) {
+            list.add(new BulkReply(next.getKey().getBytes()));
+            if (withscores) {
+                list.add(new BulkReply(_tobytes(next.getScore())));
             }
         }
         return new MultiBulkReply(list.toArray(new Reply[0]));
     }
 
     /**
-     * Return a range of members in a sorted set, by score, with scores ordered from high to low
+     * Return a range of members in a sorted set, by lexicographical range, ordered from higher to lower strings
      * Sorted_set
      *
      * @param key0
      * @param max1
      * @param min2
-     * @param withscores_offset_or_count4
+     * @param offset_or_count3
      * @return MultiBulkReply
      */
     @Override
-    public MultiBulkReply zrevrangebyscore(byte[] key0, byte[] max1, byte[] min2, byte[][] withscores_offset_or_count4) throws RedisException {
-        ZSet zset = _getzset(key0, false);
-        if (zset.isEmpty()) return MultiBulkReply.EMPTY;
-        List<Reply<ByteBuf>> list = _zrangebyscore(min2, max1, withscores_offset_or_count4, zset, true);
+    public MultiBulkReply zrevrangebylex(byte[] key0, byte[] max1, byte[] min2, byte[][] offset_or_count3) throws RedisException {
+        ZSet zset = _getzset(key0);
+        List<Reply<ByteBuf>> list = _zrangebylex(min2, max1, offset_or_count3, zset, true);
+        return new MultiBulkReply(list.toArray(new Reply[0]));
+    }
+
+    /**
+     * Return a range of members in a sorted set, by score, with scores ordered from high to low
+     * Sorted_set
+     *
+     * @param key0
+     * @param max1
+     * @param min2
+     * @param withscores_offset_or_count4
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrevrangebyscore(byte[] key0, byte[] max1, byte[] min2, byte[][] withscores_offset_or_count4) throws RedisException {
+        ZSet zset = _getzset(key0);
+        if (zset.isEmpty()) return MultiBulkReply.EMPTY;
+        List<Reply<ByteBuf>> list = _zrangebyscore(min2, max1, withscores_offset_or_count4, zset, true);
         return new MultiBulkReply(list.toArray(new Reply[0]));
     }
 
@@ -3097,21 +3401,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply zrevrank(byte[] key0, byte[] member1) throws RedisException {
-        List<ZSetEntry> zset = _getzset(key0, false).list();
-        Collections.reverse(zset);
-        return _zrank(member1, zset);
-    }
-
-    private Reply _zrank(byte[] member1, List<ZSetEntry> zset) {
-        BytesKey member = new BytesKey(member1);
-        int position = 0;
-        for (ZSetEntry entry : zset) {
-            if (entry.getKey().equals(member)) {
-                return integer(position);
-            }
-            position++;
-        }
-        return NIL_REPLY;
+        ZSet zset = _getzset(key0);
+        int rank = zset.rank(member1);
+        return rank < 0 ? NIL_REPLY : integer(zset.size() - 1 - rank);
     }
 
     /**
@@ -3124,10 +3416,10 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply zscore(byte[] key0, byte[] member1) throws RedisException {
-        ZSet zset = _getzset(key0, false);
-        ZSetEntry entry = zset.get(member1);
-        double score = entry.getScore();
-        return new BulkReply(_tobytes(score));
+        ZSetEntry entry = _getzset(key0).get(member1);
+        if (entry == null)
+            return NIL_REPLY;
+        return new BulkReply(_tobytes(entry.getScore()));
     }
 
     private byte[] _tobytes(double score) {
@@ -3147,4 +3439,727 @@ public class SimpleRedisServer implements RedisServer {
     public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException {
         return _zstore(destination0, numkeys1, key2, "zunionstore", true);
     }
+
+    /**
+     * XADD/XTRIM的MAXLEN|MINID [=|~] threshold [LIMIT count]
+     */
+    static class XTrim {
+        long maxlen = -1;
+        Stream.ID minid;
+        boolean approx;
+        /**
+         * ~时最多删除的条目数,0表示不限制
+         */
+        long limit;
+        /**
+         * 占用的参数个数
+         */
+        int length;
+
+        /**
+         * @return args[offset]不是MAXLEN/MINID时返回null
+         */
+        static XTrim parse(byte[][] args, int offset) throws RedisException {
+            if (offset >= args.length)
+                return null;
+            String strategy = new String(args[offset]).toLowerCase();
+            if (!strategy.equals("maxlen") && !strategy.equals("minid"))
+                return null;
+            XTrim trim = new XTrim();
+            int i = offset + 1;
+            if (i < args.length && (new String(args[i]).equals("=") || new String(args[i]).equals("~"))) {
+                trim.approx = new String(args[i++]).equals("~");
+            }
+            if (i >= args.length)
+                throw new RedisException("syntax error");
+            if (strategy.equals("maxlen")) {
+                trim.maxlen = bytesToNum(args[i++]);
+                if (trim.maxlen < 0)
+                    throw new RedisException("The MAXLEN argument must be >= 0.");
+            } else {
+                trim.minid = _toxid(new String(args[i++]), 0);
+            }
+            //和redis一样~默认最多删除100个块的条目
+            trim.limit = trim.approx ? 100L * Stream.BLOCK_MAX_ENTRIES : 0;
+            if (i + 1 < args.length && new String(args[i]).toLowerCase().equals("limit")) {
+                if (!trim.approx)
+                    throw new RedisException("syntax error, LIMIT cannot be used without the special ~ option");
+                trim.limit = bytesToNum(args[i + 1]);
+                if (trim.limit < 0)
+                    throw new RedisException("The LIMIT argument must be >= 0.");
+                i += 2;
+            }
+            trim.length = i - offset;
+            return trim;
+        }
+    }
+
+    static Stream.ID _toxid(String id, long missingSeq) throws RedisException {
+        Stream.ID parsed = Stream.ID.parse(id, missingSeq);
+        if (parsed == null)
+            throw new RedisException("Invalid stream ID specified as stream command argument");
+        return parsed;
+    }
+
+    /**
+     * XADD的id:*为当前时间(时钟回拨时为最后id的下一个),ms-*为这个毫秒内的下一个序号
+     */
+    static Stream.ID _toxaddid(byte[] arg, Stream.ID last, long now) throws RedisException {
+        String s = new String(arg);
+        Stream.ID id;
+        if (s.equals("*")) {
+            id = now > last.getMs() ? new Stream.ID(now, 0) : last.next();
+        } else if (s.endsWith("-*")) {
+            long ms = _toxid(s.substring(0, s.length() - 2), 0).getMs();
+            id = ms == last.getMs() ? last.next() : new Stream.ID(ms, 0);
+        } else {
+            id = _toxid(s, 0);
+        }
+        if (id == null)
+            throw new RedisException("The stream has exhausted the last possible ID, unable to add more items");
+        if (id.equals(Stream.ID.MIN))
+            throw new RedisException("The ID specified in XADD must be greater than 0-0");
+        if (id.compareTo(last) <= 0)
+            throw new RedisException("The ID specified in XADD is equal or smaller than the target stream top item");
+        return id;
+    }
+
+    /**
+     * XRANGE/XREVRANGE的边界:-和+为最小和最大id,(开头的不包含这个id,省略序号时开始为0结束为最大值
+     */
+    static Stream.ID _toxbound(byte[] bound, boolean start) throws RedisException {
+        String s = new String(bound);
+        if (s.equals("-"))
+            return Stream.ID.MIN;
+        if (s.equals("+"))
+            return Stream.ID.MAX;
+        boolean exclusive = s.startsWith("(");
+        Stream.ID id = _toxid(exclusive ? s.substring(1) : s, start ? 0 : Long.MAX_VALUE);
+        if (!exclusive)
+            return id;
+        id = start ? id.next() : id.prev();
+        if (id == null)
+            throw new RedisException("invalid " + (start ? "start" : "end") + " ID for the interval");
+        return id;
+    }
+
+    /**
+     * XREAD/XREADGROUP的COUNT,0和负数表示不限制
+     */
+    static long _toxcount(byte[] count) {
+        long value = bytesToNum(count);
+        return value <= 0 ? -1 : value;
+    }
+
+    static long _toxtimeout(byte[] timeout) throws RedisException {
+        long value = bytesToNum(timeout);
+        if (value < 0)
+            throw new RedisException("timeout is negative");
+        return value;
+    }
+
+    /**
+     * @param from STREAMS之后的第一个参数
+     * @return key的个数,之后是同样个数的id
+     */
+    static int _toxkeys(byte[][] args, int from, String name) throws RedisException {
+        if (from > args.length)
+            throw new RedisException("syntax error");
+        int rest = args.length - from;
+        if (rest == 0 || rest % 2 != 0)
+            throw new RedisException("Unbalanced '" + name + "' list of streams: for each stream key an ID or '"
+                    + (name.equals("xread") ? "$" : ">") + "' must be specified.");
+        return rest / 2;
+    }
+
+    static RedisException _nogroup(byte[] key, byte[] group) {
+        return new RedisException("NOGROUP No such consumer group '" + new String(group) + "' for key name '" + new String(key) + "'");
+    }
+
+    static MultiBulkReply _xentries(List<Stream.Entry> entries) {
+        Reply[] replies = new Reply[entries.size()];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = _xentry(entries.get(i).getId(), entries.get(i).getFields());
+        }
+        return new MultiBulkReply(replies);
+    }
+
+    /**
+     * @param fields 为null时(条目已被截断)field列表为nil
+     */
+    static MultiBulkReply _xentry(Stream.ID id, byte[][] fields) {
+        Reply fieldReply = NIL_REPLY;
+        if (fields != null) {
+            Reply[] values = new Reply[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = new BulkReply(fields[i]);
+            }
+            fieldReply = new MultiBulkReply(values);
+        }
+        return new MultiBulkReply(new Reply[]{new BulkReply(id.toString().getBytes()), fieldReply});
+    }
+
+    private Stream _getstream(byte[] key0) throws RedisException {
+        SimpleStream stream = getRedisDB().getSimpleStream();
+        if (!stream.checkKeyType(key0))
+            throw invalidValue();
+        return stream.members(key0);
+    }
+
+    /**
+     * Marks pending messages as correctly processed, removing them from the pending entries list of the consumer group
+     * Stream
+     *
+     * @param key0
+     * @param group1
+     * @param id2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply xack(byte[] key0, byte[] group1, byte[][] id2) throws RedisException {
+        if (group1 == null || id2.length == 0) {
+            throw new RedisException("wrong number of arguments for 'xack' command");
+        }
+        Stream.ID[] ids = new Stream.ID[id2.length];
+        for (int i = 0; i < id2.length; i++) {
+            ids[i] = _toxid(new String(id2[i]), 0);
+        }
+        Stream stream = _getstream(key0);
+        Stream.Group group = stream == null ? null : stream.group(group1);
+        if (group == null) {
+            return integer(0);
+        }
+        SimpleStream simpleStream = getRedisDB().getSimpleStream();
+        int acked = 0;
+        for (Stream.ID id : ids) {
+            if (group.getPending().containsKey(id)) {
+                simpleStream.ack(key0, group1, id);
+                acked++;
+            }
+        }
+        return integer(acked);
+    }
+
+    /**
+     * Appends a new message to a stream. Creates the key if it doesn't exist
+     * Stream
+     *
+     * @param key0
+     * @param args1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply xadd(byte[] key0, byte[][] args1) throws RedisException {
+        int i = 0;
+        boolean nomkstream = false;
+        XTrim trim = null;
+        while (i < args1.length) {
+            if (_checkcommand(args1[i], "nomkstream", false)) {
+                nomkstream = true;
+                i++;
+                continue;
+            }
+            XTrim parsed = XTrim.parse(args1, i);
+            if (parsed == null) {
+                break;
+            }
+            trim = parsed;
+            i += parsed.length;
+        }
+        int fields = args1.length - i - 1;
+        if (key0 == null || fields <= 0 || fields % 2 != 0) {
+            throw new RedisException("wrong number of arguments for 'xadd' command");
+        }
+        Stream stream = _getstream(key0);
+        if (stream == null && nomkstream) {
+            return NIL_REPLY;
+        }
+        Stream.ID id = _toxaddid(args1[i], stream == null ? Stream.ID.MIN : stream.getLastId(), now());
+        SimpleStream simpleStream = getRedisDB().getSimpleStream();
+        if (!simpleStream.add(key0, id, Arrays.copyOfRange(args1, i + 1, args1.length))) {
+            throw invalidValue();
+        }
+        if (trim != null) {
+            simpleStream.trim(key0, trim.maxlen, trim.minid, trim.approx, trim.limit);
+        }
+        return new BulkReply(id.toString().getBytes());
+    }
+
+    /**
+     * Creates, destroys and manages consumer groups and their consumers
+     * Stream
+     *
+     * @param subcommand0
+     * @param args1
+     * @return Reply
+     */
+    @Override
+    public Reply xgroup(byte[] subcommand0, byte[][] args1) throws RedisException {
+        if (subcommand0 == null) {
+            throw new RedisException("wrong number of arguments for 'xgroup' command");
+        }
+        String subcommand = new String(subcommand0).toLowerCase();
+        int arity = subcommand.equals("create") ? 3 : subcommand.equals("setid") ? 3 : subcommand.equals("destroy") ? 2
+                : subcommand.equals("createconsumer") || subcommand.equals("delconsumer") ? 3 : -1;
+        if (arity < 0) {
+            throw new RedisException("unknown subcommand '" + new String(subcommand0) + "'. Try XGROUP HELP.");
+        }
+        boolean mkstream = subcommand.equals("create") && args1.length == 4 && _checkcommand(args1[3], "mkstream", true);
+        if (args1.length != arity && !mkstream) {
+            throw new RedisException("wrong number of arguments for 'xgroup|" + subcommand + "' command");
+        }
+        byte[] key = args1[0];
+        byte[] name = args1[1];
+        Stream stream = _getstream(key);
+        if (stream == null && !mkstream) {
+            throw new RedisException("The XGROUP subcommand requires the key to exist. Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.");
+        }
+        SimpleStream simpleStream = getRedisDB().getSimpleStream();
+        Stream.Group group = stream == null ? null : stream.group(name);
+        if (subcommand.equals("create") || subcommand.equals("setid")) {
+            Stream.ID id = new String(args1[2]).equals("$") ? (stream == null ? Stream.ID.MIN : stream.getLastId()) : _toxid(new String(args1[2]), 0);
+            if (subcommand.equals("create") && group != null) {
+                throw new RedisException("BUSYGROUP Consumer Group name already exists");
+            }
+            if (subcommand.equals("setid") && group == null) {
+                throw _nogroup(key, name);
+            }
+            if (!simpleStream.setGroup(key, name, id)) {
+                throw invalidValue();
+            }
+            return OK;
+        }
+        if (subcommand.equals("destroy")) {
+            return integer(group != null && simpleStream.destroyGroup(key, name) ? 1 : 0);
+        }
+        if (group == null) {
+            throw _nogroup(key, name);
+        }
+        Stream.Consumer consumer = group.consumer(args1[2], false);
+        if (subcommand.equals("createconsumer")) {
+            return integer(consumer == null && simpleStream.createConsumer(key, name, args1[2]) ? 1 : 0);
+        }
+        if (consumer == null) {
+            return integer(0);
+        }
+        int pending = consumer.getPending().size();
+        simpleStream.deleteConsumer(key, name, args1[2]);
+        return integer(pending);
+    }
+
+    /**
+     * Return the number of messages in a stream
+     * Stream
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply xlen(byte[] key0) throws RedisException {
+        Stream stream = _getstream(key0);
+        return integer(stream == null ? 0 : stream.size());
+    }
+
+    /**
+     * Returns the messages from a stream within a range of IDs
+     * Stream
+     *
+     * @param key0
+     * @param start1
+     * @param end2
+     * @param count3
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply xrange(byte[] key0, byte[] start1, byte[] end2, byte[][] count3) throws RedisException {
+        return _xrange(key0, start1, end2, count3, "xrange", false);
+    }
+
+    /**
+     * Returns messages from multiple streams with IDs greater than the ones requested
+     * Stream
+     *
+     * @param args0
+     * @return Reply
+     */
+    @Override
+    public Reply xread(byte[][] args0) throws RedisException {
+        long count = -1;
+        int i = 0;
+        for (; i < args0.length; i++) {
+            if (_checkcommand(args0[i], "streams", false)) {
+                break;
+            }
+            if (i + 1 < args0.length && _checkcommand(args0[i], "count", false)) {
+                count = _toxcount(args0[++i]);
+            } else if (i + 1 < args0.length && _checkcommand(args0[i], "block", false)) {
+                //还不支持阻塞,没有新条目时立即返回
+                _toxtimeout(args0[++i]);
+            } else {
+                throw new RedisException("syntax error");
+            }
+        }
+        int keys = _toxkeys(args0, i + 1, "xread");
+        List<Reply> results = new ArrayList<Reply>();
+        for (int k = 0; k < keys; k++) {
+            byte[] key = args0[i + 1 + k];
+            String id = new String(args0[i + 1 + keys + k]);
+            Stream stream = _getstream(key);
+            Stream.ID after = id.equals("$") ? null : _toxid(id, 0);
+            if (stream == null || after == null || after.next() == null) {
+                continue;
+            }
+            List<Stream.Entry> entries = stream.range(after.next(), Stream.ID.MAX, count, false);
+            if (!entries.isEmpty()) {
+                results.add(new MultiBulkReply(new Reply[]{new BulkReply(key), _xentries(entries)}));
+            }
+        }
+        return results.isEmpty() ? NIL_REPLY : new MultiBulkReply(results.toArray(new Reply[0]));
+    }
+
+    /**
+     * Returns new or historical messages from a stream for a consumer in a group
+     * Stream
+     *
+     * @param args0
+     * @return Reply
+     */
+    @Override
+    public Reply xreadgroup(byte[][] args0) throws RedisException {
+        byte[] name = null;
+        byte[] consumerName = null;
+        long count = -1;
+        boolean noack = false;
+        int i = 0;
+        for (; i < args0.length; i++) {
+            if (_checkcommand(args0[i], "streams", false)) {
+                break;
+            }
+            if (i + 2 < args0.length && _checkcommand(args0[i], "group", false)) {
+                name = args0[++i];
+                consumerName = args0[++i];
+            } else if (i + 1 < args0.length && _checkcommand(args0[i], "count", false)) {
+                count = _toxcount(args0[++i]);
+            } else if (i + 1 < args0.length && _checkcommand(args0[i], "block", false)) {
+                _toxtimeout(args0[++i]);
+            } else if (_checkcommand(args0[i], "noack", false)) {
+                noack = true;
+            } else {
+                throw new RedisException("syntax error");
+            }
+        }
+        if (name == null) {
+            throw new RedisException("Missing GROUP option for XREADGROUP");
+        }
+        int keys = _toxkeys(args0, i + 1, "xreadgroup");
+        Stream[] streams = new Stream[keys];
+        Stream.ID[] ids = new Stream.ID[keys];
+        for (int k = 0; k < keys; k++) {
+            byte[] key = args0[i + 1 + k];
+            String id = new String(args0[i + 1 + keys + k]);
+            streams[k] = _getstream(key);
+            if (streams[k] == null || streams[k].group(name) == null) {
+                throw new RedisException("NOGROUP No such key '" + new String(key) + "' or consumer group '" + new String(name)
+                        + "' in XREADGROUP with GROUP option");
+            }
+            ids[k] = id.equals(">") ? null : _toxid(id, 0);
+        }
+        SimpleStream simpleStream = getRedisDB().getSimpleStream();
+        long now = now();
+        List<Reply> results = new ArrayList<Reply>();
+        for (int k = 0; k < keys; k++) {
+            byte[] key = args0[i + 1 + k];
+            Stream.Group group = streams[k].group(name);
+            Stream.Consumer consumer = group.consumer(consumerName, false);
+            if (consumer == null) {
+                simpleStream.createConsumer(key, name, consumerName);
+                consumer = group.consumer(consumerName, false);
+            }
+            if (ids[k] == null) {
+                //新条目:发送组的最后id之后的条目,NOACK时不进入待确认列表
+                Stream.ID from = group.getLastDelivered().next();
+                List<Stream.Entry> entries = from == null ? new ArrayList<Stream.Entry>()
+                        : streams[k].range(from, Stream.ID.MAX, count, false);
+                for (Stream.Entry e : entries) {
+                    simpleStream.deliver(key, name, consumerName, e.getId(), true, now, noack ? 0 : 1);
+                }
+                if (!entries.isEmpty()) {
+                    results.add(new MultiBulkReply(new Reply[]{new BulkReply(key), _xentries(entries)}));
+                }
+                continue;
+            }
+            //历史条目:重新发送这个消费者待确认的条目,已经被截断的条目只返回id
+            List<Stream.Pending> pending = new ArrayList<Stream.Pending>();
+            for (Stream.Pending p : consumer.getPending().tailMap(ids[k], false).values()) {
+                if (pending.size() == count) {
+                    break;
+                }
+                pending.add(p);
+            }
+            Reply[] entries = new Reply[pending.size()];
+            for (int j = 0; j < entries.length; j++) {
+                Stream.Pending p = pending.get(j);
+                Stream.Entry e = streams[k].get(p.getId());
+                entries[j] = _xentry(p.getId(), e == null ? null : e.getFields());
+                simpleStream.deliver(key, name, consumerName, p.getId(), false, now, p.getCount() + 1);
+            }
+            results.add(new MultiBulkReply(new Reply[]{new BulkReply(key), new MultiBulkReply(entries)}));
+        }
+        return results.isEmpty() ? NIL_REPLY : new MultiBulkReply(results.toArray(new Reply[0]));
+    }
+
+    /**
+     * Returns the messages from a stream within a range of IDs in reverse order
+     * Stream
+     *
+     * @param key0
+     * @param end1
+     * @param start2
+     * @param count3
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply xrevrange(byte[] key0, byte[] end1, byte[] start2, byte[][] count3) throws RedisException {
+        return _xrange(key0, start2, end1, count3, "xrevrange", true);
+    }
+
+    private MultiBulkReply _xrange(byte[] key0, byte[] start1, byte[] end2, byte[][] count3, String name, boolean reverse) throws RedisException {
+        if (key0 == null || start1 == null || end2 == null) {
+            throw new RedisException("wrong number of arguments for '" + name + "' command");
+        }
+        long count = -1;
+        if (count3.length != 0) {
+            if (count3.length != 2 || !_checkcommand(count3[0], "count", true)) {
+                throw new RedisException("syntax error");
+            }
+            count = Math.max(0, bytesToNum(count3[1]));
+        }
+        Stream.ID start = _toxbound(start1, true);
+        Stream.ID end = _toxbound(end2, false);
+        Stream stream = _getstream(key0);
+        if (stream == null) {
+            return MultiBulkReply.EMPTY;
+        }
+        return _xentries(stream.range(start, end, count, reverse));
+    }
+
+    /**
+     * Deletes messages from the beginning of a stream
+     * Stream
+     *
+     * @param key0
+     * @param args1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply xtrim(byte[] key0, byte[][] args1) throws RedisException {
+        XTrim trim = XTrim.parse(args1, 0);
+        if (key0 == null || trim == null || trim.length != args1.length) {
+            throw new RedisException("syntax error");
+        }
+        if (_getstream(key0) == null) {
+            return integer(0);
+        }
+        return integer(getRedisDB().getSimpleStream().trim(key0, trim.maxlen, trim.minid, trim.approx, trim.limit));
+    }
+
+    /**
+     * Incrementally iterate the keys space
+     * Generic
+     *
+     * @param cursor0
+     * @param args1
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply scan(byte[] cursor0, byte[][] args1) throws RedisException {
+        if (cursor0 == null) {
+            throw new RedisException("wrong number of arguments for 'scan' command");
+        }
+        long cursor = _tocursor(cursor0);
+        return _scankeys(getRedisDB().getIndexHelper(), cursor, ScanArgs.parse(args1, true));
+    }
+
+    /**
+     * Incrementally iterate hash fields and associated values
+     * Hash
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException {
+        if (key0 == null || cursor1 == null) {
+            throw new RedisException("wrong number of arguments for 'hscan' command");
+        }
+        long cursor = _tocursor(cursor1);
+        ScanArgs scan = ScanArgs.parse(args2, false);
+        SimpleHash hash = getRedisDB().getSimpleHash();
+        if (!hash.checkKeyType(key0)) {
+            throw invalidValue();
+        }
+        List<byte[]> page = new ArrayList<byte[]>();
+        long next = hash.scan(key0, cursor, scan.count, page);
+        List<byte[]> items = new ArrayList<byte[]>();
+        for (int i = 0; i < page.size(); i += 2) {
+            if (scan.matches(page.get(i))) {
+                items.add(page.get(i));
+                items.add(page.get(i + 1));
+            }
+        }
+        return _scanreply(next, items);
+    }
+
+    /**
+     * Incrementally iterate Set elements
+     * Set
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException {
+        if (key0 == null || cursor1 == null) {
+            throw new RedisException("wrong number of arguments for 'sscan' command");
+        }
+        long cursor = _tocursor(cursor1);
+        ScanArgs scan = ScanArgs.parse(args2, false);
+        SimpleSet set = getRedisDB().getSimpleSet();
+        if (!set.checkKeyType(key0)) {
+            throw invalidValue();
+        }
+        List<byte[]> page = new ArrayList<byte[]>();
+        long next = set.scan(key0, cursor, scan.count, page);
+        List<byte[]> items = new ArrayList<byte[]>();
+        for (byte[] member : page) {
+            if (scan.matches(member)) {
+                items.add(member);
+            }
+        }
+        return _scanreply(next, items);
+    }
+
+    /**
+     * Incrementally iterate sorted sets elements and associated scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param cursor1
+     * @param args2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] args2) throws RedisException {
+        if (key0 == null || cursor1 == null) {
+            throw new RedisException("wrong number of arguments for 'zscan' command");
+        }
+        long cursor = _tocursor(cursor1);
+        ScanArgs scan = ScanArgs.parse(args2, false);
+        SimpleZSet zset = getRedisDB().getSimpleZSet();
+        if (!zset.checkKeyType(key0)) {
+            throw invalidValue();
+        }
+        List<ZSetEntry> page = new ArrayList<ZSetEntry>();
+        long next = zset.scan(key0, cursor, scan.count, page);
+        List<byte[]> items = new ArrayList<byte[]>();
+        for (ZSetEntry entry : page) {
+            if (scan.matches(entry.getKey().getBytes())) {
+                items.add(entry.getKey().getBytes());
+                items.add(_tobytes(entry.getScore()));
+            }
+        }
+        return _scanreply(next, items);
+    }
+
+    /**
+     * SCAN系列命令的[MATCH pattern] [COUNT count] [TYPE type]
+     */
+    static class ScanArgs {
+        byte[] pattern;
+        int count = 10;
+        String type;
+
+        static ScanArgs parse(byte[][] args, boolean withType) throws RedisException {
+            ScanArgs scan = new ScanArgs();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length)
+                    throw new RedisException("syntax error");
+                String option = new String(args[i]).toLowerCase();
+                if (option.equals("match")) {
+                    scan.pattern = args[i + 1];
+                } else if (option.equals("count")) {
+                    long count = bytesToNum(args[i + 1]);
+                    if (count < 1)
+                        throw new RedisException("syntax error");
+                    scan.count = (int) Math.min(count, MAX_VALUE);
+                } else if (withType && option.equals("type")) {
+                    scan.type = new String(args[i + 1]).toLowerCase();
+                } else {
+                    throw new RedisException("syntax error");
+                }
+            }
+            return scan;
+        }
+
+        boolean matches(byte[] member) {
+            return pattern == null || SimpleRedisServer.matches(member, pattern, 0, 0);
+        }
+    }
+
+    /**
+     * @return 游标, key空间的游标是索引表的位置,元素的游标是32位的hash位反转值
+     */
+    static long _tocursor(byte[] cursor) throws RedisException {
+        try {
+            long value = Long.parseLong(new String(cursor));
+            if (value >= 0 && value <= 0xFFFFFFFFL)
+                return value;
+        } catch (NumberFormatException e) {
+            //按无效游标处理
+        }
+        throw new RedisException("invalid cursor");
+    }
+
+    /**
+     * SCAN:遍历count个索引位置,之后再按过期时间、类型和pattern过滤
+     */
+    static MultiBulkReply _scankeys(IndexHelper indexHelper, long cursor, final ScanArgs scan) {
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        final long now = System.currentTimeMillis();
+        long next = indexHelper.scan(cursor, scan.count, new HashIndex.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, DataHelper dh) {
+                //已过期还没有被删除的key
+                if (dh.getExpire() != 0 && now - dh.getExpire() > 0)
+                    return;
+                if (scan.type != null && !scan.type.equals(_typename(type)))
+                    return;
+                if (scan.matches(key))
+                    keys.add(key);
+            }
+        });
+        return _scanreply(next, keys);
+    }
+
+    /**
+     * @return 与TYPE命令一致的类型名
+     */
+    static String _typename(byte code) {
+        DataTypeEnum type = DataTypeEnum.of(code);
+        if (type == DataTypeEnum.KV)
+            return "string";
+        return type == DataTypeEnum.HASH_PACKED ? DataTypeEnum.HASH.getDesc() : type.getDesc();
+    }
+
+    static MultiBulkReply _scanreply(long cursor, List<byte[]> items) {
+        Reply[] replies = new Reply[items.size()];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new BulkReply(items.get(i));
+        }
+        return new MultiBulkReply(new Reply[]{new BulkReply(numToBytes(cursor)), new MultiBulkReply(replies)});
+    }
 }
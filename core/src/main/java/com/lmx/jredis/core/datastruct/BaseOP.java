@@ -1,48 +1,224 @@
 package com.lmx.jredis.core.datastruct;
 
+import com.lmx.jredis.storage.DataHelper;
 import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.DataTypeEnum;
 import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.WriteAheadLog;
 import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Created by limingxin on 2017/8/7.
  */
 @Data
+@Slf4j
 public abstract class BaseOP {
+    /**
+     * 预写日志中的操作类型
+     */
+    public static final byte OP_SET = 1;
+    public static final byte OP_PUSH = 2;
+    public static final byte OP_HSET = 3;
+    public static final byte OP_DEL = 4;
+    /**
+     * arg为绝对过期时间,0表示PERSIST
+     */
+    public static final byte OP_EXPIRE = 5;
+    /**
+     * list操作,arg为操作之后的首元素位置(LPUSH/LPOP)或尾元素之后的位置(PUSH即RPUSH/RPOP),
+     * LSET为元素的位置,见QuickList;field为这次修改写入块记录的序号(8字节),旧格式的记录为null
+     */
+    public static final byte OP_LPUSH = 6;
+    public static final byte OP_LPOP = 7;
+    public static final byte OP_RPOP = 8;
+    public static final byte OP_LSET = 9;
+    /**
+     * 删除hash的一个field
+     */
+    public static final byte OP_HDEL = 10;
+    /**
+     * set/zset的成员操作,value为成员,ZADD的arg为分值(Double.doubleToLongBits)
+     */
+    public static final byte OP_SADD = 11;
+    public static final byte OP_SREM = 12;
+    public static final byte OP_ZADD = 13;
+    public static final byte OP_ZREM = 14;
+    /**
+     * HyperLogLog的修改,PFADD的arg为寄存器编号<<8|新值,PFMERGE的value为合并后的HyperLogLog,
+     * 重放时和key上已有的寄存器取最大值
+     */
+    public static final byte OP_PFADD = 15;
+    public static final byte OP_PFMERGE = 16;
+    /**
+     * stream的修改,value为SimpleStream的条目(添加/截断/消费组等),重放时重复执行结果不变
+     */
+    public static final byte OP_STREAM = 17;
+    /**
+     * list中间的修改,field同上:LINSERT的arg为新元素的下标;LREM的arg为count;
+     * LTRIM的arg为保留的第一个下标,value为保留的最后一个下标加1(8字节)
+     */
+    public static final byte OP_LINSERT = 18;
+    public static final byte OP_LREM = 19;
+    public static final byte OP_LTRIM = 20;
     DataMedia store;
     IndexHelper ih;
+    int db;
+    /**
+     * 为null时不记日志(启动重放期间)
+     */
+    WriteAheadLog wal;
 
-    public boolean isExpire(String key) {
+    /**
+     * 读命令只判断是否过期,过期的key由后台过期线程或下一次写命令持有写锁删除
+     */
+    public boolean isExpire(byte[] key) {
         long time = ih.getExpire(key);
         if (time == 0)
             return false;
-        if (System.currentTimeMillis() - time > 0) {
+        return System.currentTimeMillis() - time > 0;
+    }
+
+    /**
+     * 写命令修改key之前先删除已过期的同类型旧值,其他类型的留给后台过期线程
+     */
+    public void removeIfExpired(byte[] key) {
+        if (isExpire(key) && checkKeyType(key))
             remove(key);
-            ih.rmExpire(key);
-            return true;
-        }else {
-            return false;
-        }
     }
 
-    public boolean isExist(String key) {
+    public boolean isExist(byte[] key) {
         return ih.exist(key);
     }
 
-    public abstract boolean checkKeyType(String key);
+    public abstract boolean checkKeyType(byte[] key);
+
+    public abstract void removeData(byte[] key);
+
+    /**
+     * 数据文件中记录的类型
+     */
+    public abstract DataTypeEnum dataType();
+
+    /**
+     * 数据文件中的记录是否属于当前类型,重建索引时使用
+     */
+    boolean accepts(byte type) {
+        return type == dataType().getCode();
+    }
+
+    /**
+     * 当前类型所有存活的数据记录,用于压缩搬迁和启动时统计存活字节
+     */
+    public abstract Collection<DataHelper> liveRecords();
+
+    public void recoverStats() {
+        store.recoverStats(liveRecords());
+    }
+
+    /**
+     * key索引丢失时从数据文件重建:并行扫描所有校验通过的记录,同一个key(hash为hash+field,list块为key+块编号,
+     * hash的打包记录为hash名)
+     * 只保留序号最大的一条,其余的标记删除;旧格式的list元素没有块编号,全部按序号顺序加入.
+     * 写了一半的尾部记录丢弃.过期时间不在数据文件中,重建后全部为不过期
+     *
+     * @return 加入索引的记录数
+     */
+    public int rebuildIndex(ForkJoinPool pool) throws Exception {
+        final ConcurrentSkipListMap<Long, DataHelper> found = new ConcurrentSkipListMap<>();
+        final ConcurrentSkipListMap<Long, byte[]> blockIds = new ConcurrentSkipListMap<>();
+        DataMedia.ScanResult result = store.scan(pool, new DataMedia.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, byte[] field, long seq, DataHelper dh) {
+                if (!accepts(type))
+                    return;
+                dh.setType(DataTypeEnum.of(type).getDesc());
+                if (type == DataTypeEnum.HASH.getCode()) {
+                    dh.setHash(key);
+                    dh.setKey(field == null ? new byte[0] : field);
+                } else {
+                    dh.setKey(key);
+                    if (field != null)
+                        blockIds.put(seq, field);
+                }
+                found.put(seq, dh);
+            }
+        });
+        store.discardTail(result.getTornAt());
+        Set<ByteBuffer> seen = new HashSet<>();
+        List<DataHelper> winners = new ArrayList<>();
+        for (Map.Entry<Long, DataHelper> e : found.descendingMap().entrySet()) {
+            DataHelper dh = e.getValue();
+            boolean legacyElement = dataType() == DataTypeEnum.LIST && !blockIds.containsKey(e.getKey());
+            byte type = DataTypeEnum.ofDesc(dh.getType()).getCode();
+            if (legacyElement || seen.add(identity(type, dh.getHash(), dh.getKey(), blockIds.get(e.getKey()))))
+                winners.add(dh);
+            else
+                store.remove(dh);
+        }
+        Collections.reverse(winners);
+        for (DataHelper dh : winners) {
+            ih.add(dh);
+        }
+        log.info("db: {}, rebuild {} index from {}: {} records, {} kept, {} corrupt, {} torn in {}ms",
+                db, dataType().getDesc(), store.getName(), result.getRecords(), winners.size(),
+                result.getCorrupt(), result.getTorn(), result.getMillis());
+        return winners.size();
+    }
 
-    public abstract void removeData(String key);
+    /**
+     * @param block list块的编号,其他类型为null
+     */
+    static ByteBuffer identity(byte type, byte[] hash, byte[] key, byte[] block) {
+        hash = hash == null ? new byte[0] : hash;
+        block = block == null ? new byte[0] : block;
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + hash.length + 4 + key.length + block.length);
+        b.put(type).putInt(hash.length).put(hash).putInt(key.length).put(key).put(block);
+        b.flip();
+        return b;
+    }
 
-    public void remove(String key) {
+    /**
+     * 没有需要压缩的段时不收集存活记录
+     *
+     * @param lock 写锁,压缩和写命令串行执行,读命令不受影响
+     */
+    public int compact(double liveRatio, Lock lock) throws Exception {
+        lock.lock();
+        try {
+            if (store.victims(liveRatio).isEmpty())
+                return 0;
+            return store.compact(liveRecords(), ih, liveRatio);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(byte[] key) {
+        appendLog(OP_DEL, key, null, null, 0);
         removeData(key);
-        ih.kv.remove(key);
+        ih.remove(key);
     }
 
-    public boolean isCanWrite(String key, String value) {
+    public boolean isCanWrite(byte[] key, byte[] value) {
         return checkKeyType(key);
     }
 
-    public boolean isCanWrite(int db, String key, String value) {
+    public boolean isCanWrite(int db, byte[] key, byte[] value) {
         return checkKeyType(key);
     }
+
+    /**
+     * 修改映射文件之前先追加预写日志
+     */
+    void appendLog(byte op, byte[] key, byte[] field, byte[] value, long arg) {
+        if (wal != null)
+            wal.append(op, db, key, field, value, arg);
+    }
 }
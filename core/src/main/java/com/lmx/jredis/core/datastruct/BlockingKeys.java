@@ -0,0 +1,210 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.lmx.jredis.storage.TimingWheel;
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 阻塞在list上的客户端(BLPOP/BRPOP/BRPOPLPUSH),等待期间不占用任何线程:
+ * 命令取不到元素时返回Blocked,io线程把连接登记为这些key的等待者后继续处理其他连接;
+ * push时有等待者的key被标记为就绪,写命令执行完后(仍持有写锁)按阻塞先后重新执行等待者的命令并直接回复到它的连接;
+ * 超时登记在时间轮中,过期线程每个tick取出到期的等待者回复nil
+ * 非线程安全,调用方持有写锁
+ * Created by lmx on 2018/1/25.
+ */
+public class BlockingKeys {
+    /**
+     * 阻塞命令暂时没有结果,由io线程登记等待者,不会发送给客户端
+     */
+    @Getter
+    public static class Blocked implements Reply<byte[][]> {
+        final BlockingKeys owner;
+        final byte[][] keys;
+        /**
+         * 超时时间(毫秒时间戳),0表示一直等待
+         */
+        final long deadline;
+        /**
+         * 超时时的回复
+         */
+        final Reply timeoutReply;
+
+        public Blocked(BlockingKeys owner, byte[][] keys, long deadline, Reply timeoutReply) {
+            this.owner = owner;
+            this.keys = keys;
+            this.deadline = deadline;
+            this.timeoutReply = timeoutReply;
+        }
+
+        @Override
+        public byte[][] data() {
+            return keys;
+        }
+
+        @Override
+        public void write(ByteBuf os) throws IOException {
+            throw new IOException("blocked reply can not be written");
+        }
+    }
+
+    /**
+     * 一个阻塞的连接,由io层实现
+     */
+    public abstract static class Waiter {
+        BlockingKeys owner;
+        byte[][] keys;
+        Reply timeoutReply;
+        long id;
+
+        /**
+         * @return 连接仍然有效, 已经关闭的等待者被直接移除
+         */
+        public abstract boolean isActive();
+
+        /**
+         * 重新执行阻塞的命令,取到元素(或出错)时发送回复
+         *
+         * @return 仍然取不到元素时返回false, 继续等待
+         */
+        public abstract boolean retry();
+
+        /**
+         * 超时,发送回复
+         */
+        public abstract void timeout(Reply reply);
+
+        /**
+         * 连接关闭时取消等待
+         */
+        public void cancel() {
+            if (owner != null)
+                owner.unblock(this);
+        }
+    }
+
+    /**
+     * key -> 按阻塞先后排列的等待者
+     */
+    final Map<BytesKey, ArrayDeque<Waiter>> waiters = new HashMap<>();
+    /**
+     * push之后有等待者的key,按就绪先后服务
+     */
+    final Set<BytesKey> ready = new LinkedHashSet<>();
+    /**
+     * 有超时的等待者,时间轮中登记的是等待者编号
+     */
+    final Map<Long, Waiter> timeouts = new HashMap<>();
+    final TimingWheel wheel;
+    long lastId;
+    int size;
+
+    public BlockingKeys(long tickMs) {
+        wheel = new TimingWheel(tickMs, System.currentTimeMillis());
+    }
+
+    public void block(Waiter waiter, Blocked blocked) {
+        waiter.owner = this;
+        waiter.keys = blocked.keys;
+        waiter.timeoutReply = blocked.timeoutReply;
+        waiter.id = ++lastId;
+        for (byte[] key : blocked.keys) {
+            BytesKey k = new BytesKey(key);
+            ArrayDeque<Waiter> queue = waiters.get(k);
+            if (queue == null)
+                waiters.put(k, queue = new ArrayDeque<Waiter>());
+            queue.add(waiter);
+        }
+        if (blocked.deadline > 0) {
+            timeouts.put(waiter.id, waiter);
+            wheel.add(ByteBuffer.allocate(8).putLong(waiter.id).array(), blocked.deadline);
+        }
+        size++;
+    }
+
+    void unblock(Waiter waiter) {
+        if (waiter.owner != this)
+            return;
+        for (byte[] key : waiter.keys) {
+            BytesKey k = new BytesKey(key);
+            ArrayDeque<Waiter> queue = waiters.get(k);
+            if (queue != null && queue.remove(waiter) && queue.isEmpty())
+                waiters.remove(k);
+        }
+        timeouts.remove(waiter.id);
+        waiter.owner = null;
+        size--;
+    }
+
+    /**
+     * list增加了元素,有等待者时标记为就绪
+     */
+    public void signal(byte[] key) {
+        if (waiters.isEmpty())
+            return;
+        BytesKey k = new BytesKey(key);
+        if (waiters.containsKey(k))
+            ready.add(k);
+    }
+
+    /**
+     * 按阻塞先后重新执行就绪key的等待者,直到list再次为空;BRPOPLPUSH执行时可能使目标key就绪
+     *
+     * @return 被唤醒的等待者数
+     */
+    public int serve() {
+        int served = 0;
+        while (!ready.isEmpty()) {
+            Iterator<BytesKey> it = ready.iterator();
+            BytesKey key = it.next();
+            it.remove();
+            ArrayDeque<Waiter> queue;
+            while ((queue = waiters.get(key)) != null) {
+                Waiter waiter = queue.peek();
+                if (waiter.isActive()) {
+                    if (!waiter.retry())
+                        break;
+                    served++;
+                }
+                unblock(waiter);
+            }
+        }
+        return served;
+    }
+
+    /**
+     * 过期线程每个tick调用,到期的等待者回复超时
+     *
+     * @return 超时的等待者数
+     */
+    public int timeout(long now) {
+        int count = 0;
+        TimingWheel.Entry e;
+        while ((e = wheel.poll(now)) != null) {
+            Waiter waiter = timeouts.get(ByteBuffer.wrap(e.getKey()).getLong());
+            if (waiter == null)
+                continue;
+            unblock(waiter);
+            waiter.timeout(waiter.timeoutReply);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return 阻塞的连接数
+     */
+    public int size() {
+        return size;
+    }
+}
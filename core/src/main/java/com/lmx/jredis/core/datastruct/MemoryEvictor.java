@@ -0,0 +1,166 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.HashIndex;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * maxmemory淘汰:会增加内存的写命令执行前检查已用内存,超过上限时按策略淘汰key直到低于上限.
+ * 已用内存=各db数据文件的存活字节+key索引使用中的槽位(索引表扩容后不会缩小,按槽位计算淘汰才有效果).
+ * 近似淘汰:每轮从每个db随机采样samples个key,按淘汰优先级放入候选池(保留最值得淘汰的16个),
+ * 再淘汰池中优先级最高且仍然存在的key.LRU/LFU的访问信息记在索引槽位中,见HashIndex
+ * Created by lmx on 2018/1/5.
+ */
+@Slf4j
+public class MemoryEvictor {
+    public enum Policy {
+        NOEVICTION, ALLKEYS_LRU, VOLATILE_LRU, ALLKEYS_LFU, VOLATILE_TTL;
+
+        public static Policy of(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+
+        public String getName() {
+            return name().toLowerCase().replace('_', '-');
+        }
+
+        /**
+         * @return 只淘汰设置了过期时间的key
+         */
+        boolean isVolatile() {
+            return this == VOLATILE_LRU || this == VOLATILE_TTL;
+        }
+    }
+
+    static final int POOL = 16;
+
+    final long maxBytes;
+    @Getter
+    final Policy policy;
+    final int samples;
+    final Random random = new Random();
+    /**
+     * 候选池,按淘汰优先级从高到低排列
+     */
+    final long[] scores = new long[POOL];
+    final byte[][] keys = new byte[POOL][];
+    final RedisDbDelegate.RedisDB[] owners = new RedisDbDelegate.RedisDB[POOL];
+    int poolSize;
+    @Getter
+    long evictedKeys;
+
+    public MemoryEvictor(long maxBytes, Policy policy, int samples) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.samples = samples;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static long usedBytes(Collection<RedisDbDelegate.RedisDB> dbs) {
+        long used = 0;
+        for (RedisDbDelegate.RedisDB db : dbs) {
+            used += db.usedBytes();
+        }
+        return used;
+    }
+
+    /**
+     * 调用方持有写锁
+     *
+     * @return 已用内存不超过上限(或淘汰后不超过)
+     */
+    public boolean freeMemoryIfNeeded(Collection<RedisDbDelegate.RedisDB> dbs) {
+        if (maxBytes <= 0)
+            return true;
+        long used = usedBytes(dbs);
+        if (used <= maxBytes)
+            return true;
+        if (policy == Policy.NOEVICTION)
+            return false;
+        while (used > maxBytes) {
+            for (RedisDbDelegate.RedisDB db : dbs) {
+                sample(db);
+            }
+            if (!evictOne())
+                return false;
+            used = usedBytes(dbs);
+        }
+        return true;
+    }
+
+    void sample(final RedisDbDelegate.RedisDB db) {
+        final HashIndex index = db.getIndexHelper().getIndex();
+        index.sample(random, samples, new HashIndex.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, DataHelper dh) {
+                if (policy.isVolatile() && dh.getExpire() == 0)
+                    return;
+                long score;
+                switch (policy) {
+                    case ALLKEYS_LFU:
+                        score = 255 - index.frequency(dh.getSlot());
+                        break;
+                    case VOLATILE_TTL:
+                        score = Long.MAX_VALUE - dh.getExpire();
+                        break;
+                    default:
+                        score = index.idleSeconds(dh.getSlot());
+                }
+                offer(db, key, score);
+            }
+        });
+    }
+
+    void offer(RedisDbDelegate.RedisDB db, byte[] key, long score) {
+        int i = 0;
+        while (i < poolSize && scores[i] >= score) {
+            if (owners[i] == db && Arrays.equals(keys[i], key))
+                return;
+            i++;
+        }
+        if (i == POOL)
+            return;
+        for (int j = i; j < poolSize; j++) {
+            if (owners[j] == db && Arrays.equals(keys[j], key))
+                return;
+        }
+        int tail = Math.min(poolSize, POOL - 1);
+        System.arraycopy(scores, i, scores, i + 1, tail - i);
+        System.arraycopy(keys, i, keys, i + 1, tail - i);
+        System.arraycopy(owners, i, owners, i + 1, tail - i);
+        scores[i] = score;
+        keys[i] = key;
+        owners[i] = db;
+        poolSize = tail + 1;
+    }
+
+    /**
+     * 从池头开始取出候选,第一个仍然存在(volatile策略下仍有过期时间)的key删除
+     */
+    boolean evictOne() {
+        while (poolSize > 0) {
+            byte[] key = keys[0];
+            RedisDbDelegate.RedisDB db = owners[0];
+            poolSize--;
+            System.arraycopy(scores, 1, scores, 0, poolSize);
+            System.arraycopy(keys, 1, keys, 0, poolSize);
+            System.arraycopy(owners, 1, owners, 0, poolSize);
+            keys[poolSize] = null;
+            owners[poolSize] = null;
+            if (db.getIndexHelper().exist(key) && (!policy.isVolatile() || db.getIndexHelper().getExpire(key) != 0)) {
+                db.remove(key);
+                evictedKeys++;
+                return true;
+            }
+        }
+        return false;
+    }
+}
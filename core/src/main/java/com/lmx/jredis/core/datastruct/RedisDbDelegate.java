@@ -1,8 +1,14 @@
 package com.lmx.jredis.core.datastruct;
 
 import com.lmx.jredis.storage.DataHelper;
-import com.lmx.jredis.storage.DataTypeEnum;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.HashFields;
 import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.IndexMigration;
+import com.lmx.jredis.storage.MemberLog;
+import com.lmx.jredis.storage.QuickList;
+import com.lmx.jredis.storage.TimingWheel;
+import com.lmx.jredis.storage.WriteAheadLog;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -10,12 +16,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 //import javax.validation.constraints.Max;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by limingxin on 2017/12/7.
@@ -23,12 +34,60 @@ import java.util.concurrent.ConcurrentHashMap;
 @Component
 @Slf4j
 public class RedisDbDelegate {
-    @Value("${memorySize:1024}")
+    @Value("${memorySize:64}")
     int storeSize;
 //    @Max(10)
     //db size
     @Value("${dbSize:2}")
     int sharedSize;
+    //seconds between two compaction passes
+    @Value("${compaction.interval:10}")
+    int compactInterval;
+    //segments whose live bytes fall below this ratio are compacted
+    @Value("${compaction.liveRatio:0.5}")
+    double compactLiveRatio;
+    //fsync policy of the write-ahead log: always, everysec or no
+    @Value("${wal.fsync:everysec}")
+    String walFsync;
+    //seconds between two checkpoints, a checkpoint flushes the data files and empties the log
+    @Value("${wal.checkpointInterval:60}")
+    int checkpointInterval;
+    //threads used to scan the key index on startup, 0 means one per cpu
+    @Value("${recovery.threads:0}")
+    int recoveryThreads;
+    //seconds between two integrity scrubs of the data files, 0 disables scrubbing
+    @Value("${scrub.interval:0}")
+    int scrubInterval;
+    //milliseconds per tick of the active expiration timing wheel
+    @Value("${expire.tickMs:100}")
+    int expireTickMs;
+    //milliseconds per tick the expiration thread may spend deleting keys under the write lock
+    @Value("${expire.budgetMs:25}")
+    int expireBudgetMs;
+    //unit MB, upper bound of live data bytes plus used key index slots over all dbs, 0 means unlimited
+    @Value("${maxmemory:0}")
+    long maxMemory;
+    //noeviction, allkeys-lru, volatile-lru, allkeys-lfu or volatile-ttl
+    @Value("${maxmemory.policy:noeviction}")
+    String maxMemoryPolicy;
+    //keys sampled from each db per eviction round
+    @Value("${maxmemory.samples:5}")
+    int maxMemorySamples;
+    //bit commands keep sparse 64K-bit chunks of a bitmap as sorted offsets instead of 8KB of words
+    @Getter
+    @Value("${bitmap.compressed:true}")
+    boolean bitmapCompressed;
+    @Getter
+    MemoryEvictor evictor;
+    ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor();
+    ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor();
+    @Getter
+    WriteAheadLog wal;
+    /**
+     * 多个io线程并发执行命令:只读命令共享读锁,写命令串行持有写锁
+     */
+    @Getter
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     static public Map<Integer, RedisDB> db = new ConcurrentHashMap<>();
 
@@ -38,9 +97,147 @@ public class RedisDbDelegate {
 
     @PostConstruct
     public void init() {
-        for (int i = 0; i < sharedSize; i++) {
-            RedisDB redisDB = new RedisDB();
-            redisDB.init(i, storeSize);
+        evictor = new MemoryEvictor(maxMemory * 1024 * 1024, MemoryEvictor.Policy.of(maxMemoryPolicy), maxMemorySamples);
+        ForkJoinPool recoveryPool = recoveryThreads > 0 ? new ForkJoinPool(recoveryThreads) : new ForkJoinPool();
+        try {
+            for (int i = 0; i < sharedSize; i++) {
+                RedisDB redisDB = new RedisDB();
+                redisDB.init(i, storeSize, recoveryPool, expireTickMs);
+                redisDB.getIndexHelper().getIndex().setLfu(evictor.getPolicy() == MemoryEvictor.Policy.ALLKEYS_LFU);
+            }
+        } finally {
+            recoveryPool.shutdown();
+        }
+        try {
+            wal = new WriteAheadLog("appendLog", WriteAheadLog.policy(walFsync));
+            int replayed = wal.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public void replay(byte op, int db, long arg, byte[] key, byte[] field, byte[] value) throws Exception {
+                    RedisDB redisDB = select(db);
+                    if (redisDB != null)
+                        redisDB.replay(op, arg, key, field, value);
+                }
+            });
+            log.info("replay {} write-ahead log records", replayed);
+            for (RedisDB redisDB : db.values()) {
+                redisDB.simpleList.endReplay();
+            }
+            checkpoint();
+        } catch (Exception e) {
+            throw new IllegalStateException("open write-ahead log error", e);
+        }
+        for (RedisDB redisDB : db.values()) {
+            for (BaseOP op : redisDB.ops()) {
+                op.setWal(wal);
+            }
+        }
+        wal.start();
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                lock.writeLock().lock();
+                try {
+                    checkpoint();
+                } catch (Exception e) {
+                    log.error("checkpoint error", e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (RedisDB redisDB : db.values()) {
+                    redisDB.compact(compactLiveRatio, lock.writeLock());
+                }
+            }
+        }, compactInterval, compactInterval, TimeUnit.SECONDS);
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                lock.writeLock().lock();
+                try {
+                    long budget = TimeUnit.MILLISECONDS.toNanos(expireBudgetMs);
+                    for (RedisDB redisDB : db.values()) {
+                        long start = System.nanoTime();
+                        redisDB.activeExpire(budget);
+                        budget -= System.nanoTime() - start;
+                    }
+                    long now = System.currentTimeMillis();
+                    for (RedisDB redisDB : db.values()) {
+                        redisDB.getBlockingKeys().timeout(now);
+                    }
+                } catch (Exception e) {
+                    log.error("active expire error", e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }, expireTickMs, expireTickMs, TimeUnit.MILLISECONDS);
+        if (scrubInterval > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (RedisDB redisDB : db.values()) {
+                        redisDB.scrub(recoveryThreads);
+                    }
+                }
+            }, scrubInterval, scrubInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 会增加内存的写命令执行前调用,调用方持有写锁
+     *
+     * @return 内存足够, 返回false时命令应当被拒绝
+     */
+    public boolean freeMemoryIfNeeded() {
+        return evictor.freeMemoryIfNeeded(db.values());
+    }
+
+    /**
+     * 写命令执行后调用,唤醒阻塞在这次push过的key上的客户端,调用方持有写锁
+     */
+    public void serveBlocked() {
+        for (RedisDB redisDB : db.values()) {
+            redisDB.getBlockingKeys().serve();
+        }
+    }
+
+    /**
+     * 映射文件刷盘后清空预写日志,调用方需要持有写锁
+     */
+    void checkpoint() throws Exception {
+        wal.checkpoint(new Runnable() {
+            @Override
+            public void run() {
+                for (RedisDB redisDB : db.values()) {
+                    redisDB.force();
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        compactor.shutdownNow();
+        expirer.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            //正常关闭时做一次checkpoint,下次启动可以直接使用保存的索引
+            if (wal != null)
+                checkpoint();
+        } catch (Exception e) {
+            log.error("checkpoint on shutdown error", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            if (wal != null)
+                wal.close();
+        } catch (Exception e) {
+            log.error("close write-ahead log error", e);
         }
     }
 
@@ -53,45 +250,38 @@ public class RedisDbDelegate {
         SimpleKV simpleKV;
         SimpleList simpleList;
         SimpleHash simpleHash;
-        int lastKvSize;
+        SimpleSet simpleSet;
+        SimpleZSet simpleZSet;
+        SimpleStream simpleStream;
+        BlockingKeys blockingKeys;
 
         @Getter
         public Map<String, Object> kvFilter = new ConcurrentHashMap<>();
+        /**
+         * 主动过期删除的key数和最近一秒的速率
+         */
+        long expiredKeys;
+        long expiredPerSec;
+        long rateStart;
+        long rateCount;
 
-        void init(int i, int storeSize) {
+        void init(int i, int storeSize, ForkJoinPool recoveryPool, long expireTickMs) {
             try {
                 indexHelper = new IndexHelper(i, "keyIndex", storeSize / 2) {
                     public void wrapData(DataHelper dataHelper) {
-                        if (dataHelper.getType().equals(DataTypeEnum.KV.getDesc())) {
-                            if (!kv.containsKey(dataHelper.getKey())) {
-                                kv.put(dataHelper.getKey(), dataHelper);
-                                expire.put(dataHelper.getKey(), dataHelper.getExpire());
-                                lastKvSize++;
-                            }
-                        } else if (dataHelper.getType().equals(DataTypeEnum.LIST.getDesc())) {
-                            if (!kv.containsKey(dataHelper.getKey())) {
-                                kv.put(dataHelper.getKey(), new LinkedList<DataHelper>());
-                                expire.put(dataHelper.getKey(), dataHelper.getExpire());
-                                lastKvSize++;
-                            }
-                            ((List) kv.get(dataHelper.getKey())).add(dataHelper);
-                        } else if (dataHelper.getType().equals(DataTypeEnum.HASH.getDesc())) {
-                            if (!kv.containsKey(dataHelper.getHash())) {
-                                kv.put(dataHelper.getHash(), new HashMap<String, DataHelper>());
-                                expire.put(dataHelper.getKey(), dataHelper.getExpire());
-                                lastKvSize++;
-                            }
-                            ((Map) kv.get(dataHelper.getHash())).put(dataHelper.getKey(), dataHelper);
-                        }
+                        put(dataHelper);
                     }
                 };
-                indexHelper.recoverIndex();
+                indexHelper.recoverIndex(recoveryPool);
             } catch (Exception e) {
-                e.printStackTrace();
+                throw new IllegalStateException("open key index of db " + i + " error", e);
             }
 
 
-            log.info("db: {},recover data key index size: {}", i, lastKvSize);
+            long millis = indexHelper.getRecoveryMillis();
+            log.info("db: {},recover data key index size: {}, {} bytes/key, mode: {}, {} records in {}ms, {} records/sec",
+                    i, indexHelper.size(), indexHelper.getBytesPerKey(), indexHelper.getRecoveryMode(),
+                    indexHelper.getRecoveredRecords(), millis, indexHelper.getRecoveredRecords() * 1000 / Math.max(1, millis));
 
             simpleKV = new SimpleKV(storeSize);
             simpleKV.init(i);
@@ -99,12 +289,252 @@ public class RedisDbDelegate {
             simpleList = new SimpleList(storeSize);
             simpleList.init(i);
             simpleList.setIh(indexHelper);
+            blockingKeys = new BlockingKeys(expireTickMs);
+            simpleList.setBlockingKeys(blockingKeys);
             simpleHash = new SimpleHash(storeSize);
             simpleHash.init(i);
             simpleHash.setIh(indexHelper);
+            simpleSet = new SimpleSet(storeSize);
+            simpleSet.init(i);
+            simpleSet.setIh(indexHelper);
+            simpleZSet = new SimpleZSet(storeSize);
+            simpleZSet.init(i);
+            simpleZSet.setIh(indexHelper);
+            simpleStream = new SimpleStream(storeSize);
+            simpleStream.init(i);
+            simpleStream.setIh(indexHelper);
+            //key索引文件丢失或损坏,从自描述的数据文件重建
+            boolean rebuild = indexHelper.getRecoveryMode().equals(IndexHelper.FULL) && indexHelper.size() == 0;
+            for (BaseOP op : ops()) {
+                if (!op.getStore().isCurrentFormat())
+                    throw new IllegalStateException(op.getStore().getName() + " of db " + i + " is in an old record format, stop the server and run "
+                            + IndexMigration.class.getName() + " first");
+                if (rebuild && !op.getStore().isEmpty()) {
+                    try {
+                        op.rebuildIndex(recoveryPool);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("rebuild key index of db " + i + " error", e);
+                    }
+                }
+            }
+            for (BaseOP op : ops()) {
+                //key索引是直接恢复的说明数据文件也没有被修改过,可以使用保存的存活字节数
+                if (!indexHelper.isRestored() || !op.getStore().loadStats())
+                    op.recoverStats();
+            }
+            try {
+                int converted = simpleList.loadBlocks();
+                if (converted > 0)
+                    log.info("db: {}, converted {} lists to the block format", i, converted);
+            } catch (Exception e) {
+                throw new IllegalStateException("load list blocks of db " + i + " error", e);
+            }
+            int repaired = simpleHash.load();
+            if (repaired > 0)
+                log.info("db: {}, removed stale field records of {} hashes", i, repaired);
+            log.info("db: {}, {} keys with a ttl", i, indexHelper.initExpires(expireTickMs));
             if (db.get(i) == null) {
                 db.put(i, this);
             }
         }
+
+        /**
+         * 按预写日志记录重做一次写操作,重放期间不会再次记录日志
+         */
+        void replay(byte op, long arg, byte[] key, byte[] field, byte[] value) throws Exception {
+            switch (op) {
+                case BaseOP.OP_SET:
+                    simpleKV.write(key, value);
+                    break;
+                case BaseOP.OP_PUSH:
+                case BaseOP.OP_LPUSH:
+                case BaseOP.OP_LPOP:
+                case BaseOP.OP_RPOP:
+                case BaseOP.OP_LSET:
+                case BaseOP.OP_LINSERT:
+                case BaseOP.OP_LREM:
+                case BaseOP.OP_LTRIM:
+                    simpleList.replay(op, arg, key, field, value);
+                    break;
+                case BaseOP.OP_HSET:
+                    simpleHash.write(key, field, value);
+                    break;
+                case BaseOP.OP_HDEL:
+                    simpleHash.delete(key, field);
+                    break;
+                case BaseOP.OP_SADD:
+                case BaseOP.OP_SREM:
+                    simpleSet.replay(op, key, value);
+                    break;
+                case BaseOP.OP_ZADD:
+                case BaseOP.OP_ZREM:
+                    simpleZSet.replay(op, arg, key, value);
+                    break;
+                case BaseOP.OP_PFADD:
+                case BaseOP.OP_PFMERGE:
+                    simpleKV.replayHyperLogLog(op, arg, key, value);
+                    break;
+                case BaseOP.OP_STREAM:
+                    simpleStream.replay(key, value);
+                    break;
+                case BaseOP.OP_DEL:
+                    remove(key);
+                    break;
+                case BaseOP.OP_EXPIRE:
+                    indexHelper.setExpireAt(key, arg);
+                    break;
+                default:
+                    log.warn("unknown write-ahead log op {}", op);
+            }
+        }
+
+        /**
+         * @return 数据文件存活字节加key索引使用中的槽位
+         */
+        public long usedBytes() {
+            long used = indexHelper.getIndex().getUsedBytes();
+            for (BaseOP op : ops()) {
+                used += op.getStore().getLiveBytes();
+            }
+            return used;
+        }
+
+        /**
+         * 按key当前的类型删除
+         */
+        void remove(byte[] key) {
+            Object type = indexHelper.type(key);
+            if (type instanceof DataHelper)
+                simpleKV.remove(key);
+            else if (type instanceof QuickList)
+                simpleList.remove(key);
+            else if (type instanceof HashFields)
+                simpleHash.remove(key);
+            else if (type instanceof MemberLog)
+                memberOp((MemberLog) type).remove(key);
+        }
+
+        /**
+         * @return 管理这个MemberLog的类型(set/zset/stream)
+         */
+        public BaseOP memberOp(MemberLog memberLog) {
+            switch (memberLog.getType()) {
+                case SET:
+                    return simpleSet;
+                case ZSET:
+                    return simpleZSet;
+                default:
+                    return simpleStream;
+            }
+        }
+
+        /**
+         * EXPIRE/PEXPIREAT等命令的统一入口,记预写日志后原地修改索引记录,已经过期的时间直接删除key
+         *
+         * @param expire 过期时间(毫秒时间戳),0表示PERSIST
+         * @return key存在(PERSIST时为原来设置了过期时间)
+         */
+        public boolean expireAt(byte[] key, long expire) {
+            if (indexHelper.type(key) == null || simpleKV.isExpire(key))
+                return false;
+            if (expire == 0 && indexHelper.getExpire(key) == 0)
+                return false;
+            if (expire != 0 && expire <= System.currentTimeMillis()) {
+                remove(key);
+                return true;
+            }
+            simpleKV.appendLog(BaseOP.OP_EXPIRE, key, null, null, expire);
+            return indexHelper.setExpireAt(key, expire);
+        }
+
+        /**
+         * @return 剩余毫秒数, key不存在返回-2, 没有过期时间返回-1
+         */
+        public long ttlMillis(byte[] key) {
+            if (indexHelper.type(key) == null || simpleKV.isExpire(key))
+                return -2;
+            long expire = indexHelper.getExpire(key);
+            return expire == 0 ? -1 : Math.max(0, expire - System.currentTimeMillis());
+        }
+
+        /**
+         * 主动过期:从时间轮取出到期的key逐个删除(删除同样记预写日志),
+         * 每16个检查一次耗时,超过budgetNanos就停下,剩下的留到下一个tick
+         *
+         * @return 删除的key数
+         */
+        int activeExpire(long budgetNanos) {
+            long deadline = System.nanoTime() + budgetNanos;
+            long now = System.currentTimeMillis();
+            int expired = 0;
+            for (int i = 1; ; i++) {
+                TimingWheel.Entry e = indexHelper.pollExpired(now);
+                if (e == null)
+                    break;
+                //登记之后key被删除、PERSIST或重新设置过过期时间
+                if (indexHelper.getExpire(e.getKey()) == e.getExpire()) {
+                    remove(e.getKey());
+                    expired++;
+                }
+                if ((i & 15) == 0 && System.nanoTime() - deadline > 0)
+                    break;
+            }
+            expiredKeys += expired;
+            if (now - rateStart >= 1000) {
+                expiredPerSec = (expiredKeys - rateCount) * 1000 / (now - rateStart);
+                rateStart = now;
+                rateCount = expiredKeys;
+            }
+            return expired;
+        }
+
+        /**
+         * 索引最后刷盘,索引的干净标记表示数据文件和存活统计也已经保存
+         */
+        void force() {
+            for (BaseOP op : ops()) {
+                op.getStore().force();
+            }
+            indexHelper.force();
+        }
+
+        public BaseOP[] ops() {
+            return new BaseOP[]{simpleKV, simpleList, simpleHash, simpleSet, simpleZSet, simpleStream};
+        }
+
+        /**
+         * 依次压缩各类型的数据文件,压缩失败只影响本轮,下一轮重试
+         */
+        void compact(double liveRatio, Lock lock) {
+            for (BaseOP op : ops()) {
+                try {
+                    op.compact(liveRatio, lock);
+                } catch (Exception e) {
+                    log.error("compact {} error", op.getStore().getName(), e);
+                }
+            }
+        }
+
+        /**
+         * 校验数据文件中所有记录的crc,不持有锁,可以和读写同时进行
+         *
+         * @param threads 并行扫描的线程数,0表示每个cpu一个
+         */
+        void scrub(int threads) {
+            ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+            try {
+                for (BaseOP op : ops()) {
+                    DataMedia.ScanResult result = op.getStore().scan(pool, null);
+                    if (result.getCorrupt() > 0)
+                        log.error("scrub {}: {} corrupt records", op.getStore().getName(), result.getCorrupt());
+                    log.info("scrub {}: {} records, {} corrupt in {}ms, {} MB/s", op.getStore().getName(), result.getRecords(),
+                            result.getCorrupt(), result.getMillis(), String.format("%.1f", result.getMbPerSecond()));
+                }
+            } catch (Exception e) {
+                log.error("scrub error", e);
+            } finally {
+                pool.shutdown();
+            }
+        }
     }
 }
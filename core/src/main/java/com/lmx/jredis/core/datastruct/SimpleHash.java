@@ -1,18 +1,13 @@
 package com.lmx.jredis.core.datastruct;
 
-import com.google.common.base.Charsets;
 import com.lmx.jredis.storage.*;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.util.CollectionUtils;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 /**
- * 基于内存读写key value操作,数据可持久,零延迟
+ * hash:小hash打包成一条记录,超过阈值后每个field一条记录并按field建索引,见HashFields
  * Created by lmx on 2017/4/14.
  */
 @Slf4j
@@ -27,6 +22,7 @@ public class SimpleHash extends BaseOP {
 
     public void init(int db) {
         try {
+            this.db = db;
             store = new DataMedia(db, "hashData", storeSize);
             /*ih = new IndexHelper(db, "hashIndex", storeSize / 8) {
                 public void wrapData(DataHelper dataHelper) {
@@ -47,86 +43,136 @@ public class SimpleHash extends BaseOP {
         }
     }
 
-    public boolean write(String hash, String field, String value) {
+    HashFields hash(byte[] key) {
+        Object hash = ih.type(key);
+        return hash instanceof HashFields ? (HashFields) hash : null;
+    }
+
+    /**
+     * HSET,field已存在时原地更新
+     *
+     * @return 新增field返回1,更新返回0,key是其他类型或写入失败时返回-1
+     */
+    public int write(byte[] hash, byte[] field, byte[] value) {
         try {
-            if (super.isCanWrite(field, value)) {
-                Map<String, DataHelper> map = ((Map<String, DataHelper>) ih.type(hash));
-                if (!CollectionUtils.isEmpty(map)) {
-                    for (Map.Entry<String, DataHelper> e : map.entrySet()) {
-                        if (e.getKey().equals(field)) {
-                            store.update(e.getValue(), value.getBytes(Charsets.UTF_8));
-                            ih.updateIndex(e.getValue());
-                        }
-                    }
-                }
-                ByteBuffer b = ByteBuffer.allocateDirect(128);
-                int length = value.getBytes().length;
-                b.putInt(length);
-                b.put(value.getBytes(BaseMedia.CHARSET));
-                b.flip();
-                DataHelper dh = store.add(b);
-                dh.setHash(hash);
-                dh.setType(DataTypeEnum.HASH.getDesc());
-                dh.setKey(field);
-                dh.setLength(length);
-                ih.add(dh);
-                return true;
+            removeIfExpired(hash);
+            if (!super.isCanWrite(hash, value))
+                return -1;
+            appendLog(OP_HSET, hash, field, value, 0);
+            HashFields fields = hash(hash);
+            if (fields == null) {
+                HashFields.create(store, ih, hash, field, value);
+                return 1;
             }
+            return fields.put(store, ih, field, value) ? 1 : 0;
         } catch (Exception e) {
-            log.error("write list data error", e);
+            log.error("write hash data error", e);
         }
-        return false;
+        return -1;
     }
 
-    public byte[] read(String hash, String field) {
+    /**
+     * HDEL,删除最后一个field后删除key,调用方先检查类型
+     *
+     * @return 删除的field数
+     */
+    public int delete(byte[] hash, byte[]... fields) {
+        int removed = 0;
         try {
-            if (super.isExpire(hash)) {
-                return null;
+            removeIfExpired(hash);
+            HashFields h = hash(hash);
+            if (h == null)
+                return 0;
+            for (byte[] field : fields) {
+                appendLog(OP_HDEL, hash, field, null, 0);
+                if (h.remove(store, ih, field))
+                    removed++;
             }
-            List<String> resp = new ArrayList<>();
-            long start = System.currentTimeMillis();
-            for (Map.Entry<String, DataHelper> e : ((Map<String, DataHelper>) ih.type(hash)).entrySet()) {
-                if (e.getKey().equals(field))
-                    return store.get(e.getValue());
+            if (h.size(store) == 0) {
+                removeData(hash);
+                ih.remove(hash);
             }
-            log.debug("key={},value={} cost={}ms", field, resp, (System.currentTimeMillis() - start));
         } catch (Exception e) {
-            log.error("read list data error", e);
+            log.error("delete hash data error", e);
         }
-        return null;
+        return removed;
     }
 
-    public byte[][] read(String hash) {
-        try {
-            if (super.isExpire(hash)) {
-                return null;
-            }
-            byte[][] data = new byte[((Map) ih.type(hash)).size() * 2][];
-            List<String> resp = new ArrayList<>();
-            long start = System.currentTimeMillis();
-            int i = 0;
-            for (Map.Entry<String, DataHelper> e : ((Map<String, DataHelper>) ih.type(hash)).entrySet()) {
-                data[i++] = e.getKey().getBytes();
-                data[i++] = store.get(e.getValue());
-            }
-            log.debug("key={},value={} cost={}ms", hash, resp, (System.currentTimeMillis() - start));
-            return data;
-        } catch (Exception e) {
-            log.error("read list data error", e);
+    public byte[] read(byte[] hash, byte[] field) {
+        if (super.isExpire(hash))
+            return null;
+        HashFields h = hash(hash);
+        return h == null ? null : h.get(store, field);
+    }
+
+    /**
+     * @return field和value交替排列,key不存在时为空数组
+     */
+    public byte[][] read(byte[] hash) {
+        if (super.isExpire(hash))
+            return new byte[0][];
+        HashFields h = hash(hash);
+        return h == null ? new byte[0][] : h.entries(store).toArray(new byte[0][]);
+    }
+
+    /**
+     * HSCAN,见HashFields.scan
+     *
+     * @param page 返回的field和value,交替排列
+     * @return 下一次的游标, 遍历完成或key不存在时返回0
+     */
+    public long scan(byte[] hash, long cursor, int count, List<byte[]> page) {
+        if (super.isExpire(hash))
+            return 0;
+        HashFields h = hash(hash);
+        return h == null ? 0 : h.scan(store, cursor, count, page);
+    }
+
+    public int size(byte[] hash) {
+        if (super.isExpire(hash))
+            return 0;
+        HashFields h = hash(hash);
+        return h == null ? 0 : h.size(store);
+    }
+
+    /**
+     * 启动恢复之后清理各hash中重复的field记录和转换中途退出留下的记录
+     *
+     * @return 清理过的hash数
+     */
+    public int load() {
+        int repaired = 0;
+        for (HashFields h : ih.containers(HashFields.class)) {
+            if (h.load(store, ih))
+                repaired++;
         }
-        return null;
+        return repaired;
     }
 
     @Override
-    public boolean checkKeyType(String key) {
-        return isExist(key) ? ih.type(key) instanceof Map : true;
+    public boolean checkKeyType(byte[] key) {
+        return isExist(key) ? ih.type(key) instanceof HashFields : true;
     }
 
     @Override
-    public void removeData(String key) {
-        for (DataHelper d : ((Map<String, DataHelper>) ih.type(key)).values()) {
-            ih.remove(d);
-            store.remove(d);
-        }
+    public void removeData(byte[] key) {
+        HashFields h = hash(key);
+        if (h != null)
+            h.clear(store, ih);
+    }
+
+    @Override
+    boolean accepts(byte type) {
+        return type == DataTypeEnum.HASH.getCode() || type == DataTypeEnum.HASH_PACKED.getCode();
+    }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.HASH;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.HASH);
     }
 }
@@ -6,8 +6,9 @@ import com.lmx.jredis.storage.DataMedia;
 import com.lmx.jredis.storage.DataTypeEnum;
 import com.lmx.jredis.storage.IndexHelper;
 import lombok.extern.slf4j.Slf4j;
+import redis.util.HyperLogLog;
 
-import java.nio.ByteBuffer;
+import java.util.Collection;
 
 /**
  * 基于内存读写key value操作,数据可持久,零延迟
@@ -24,6 +25,7 @@ public class SimpleKV extends BaseOP {
 
     public void init(int db) {
         try {
+            this.db = db;
             store = new DataMedia(db, "valueData", storeSize);
 /*            ih = new IndexHelper(db, "keyIndex", storeSize / 2) {
                 public void wrapData(DataHelper dataHelper) {
@@ -43,23 +45,28 @@ public class SimpleKV extends BaseOP {
         }
     }
 
-    public boolean write(String key, String value) {
+    public boolean write(byte[] key, byte[] value) {
         try {
+            removeIfExpired(key);
             if (super.isCanWrite(key, value)) {
+                appendLog(OP_SET, key, null, value, 0);
                 DataHelper dataHelper = (DataHelper) ih.type(key);
                 if (dataHelper != null) {
-                    dataHelper = store.update(dataHelper, value.getBytes(Charsets.UTF_8));
-                    ih.updateIndex(dataHelper);
+                    long expire = dataHelper.getExpire();
+                    ih.beginWrite(dataHelper);
+                    try {
+                        store.update(dataHelper, value);
+                        ih.updateIndex(dataHelper);
+                    } finally {
+                        ih.endWrite(dataHelper);
+                    }
+                    //SET会清除原来的过期时间
+                    if (expire != 0)
+                        ih.setExpireAt(key, 0);
                     return true;
                 } else {
-                    ByteBuffer b = ByteBuffer.allocateDirect(128);
-                    int length = value.getBytes().length;
-                    b.putInt(length);
-                    b.put(value.getBytes(Charsets.UTF_8));
-                    b.flip();
-                    DataHelper dh = store.add(b);
+                    DataHelper dh = store.add(DataTypeEnum.KV.getCode(), key, null, value);
                     dh.setKey(key);
-                    dh.setLength(length);
                     ih.add(dh);
                     return true;
                 }
@@ -70,38 +77,118 @@ public class SimpleKV extends BaseOP {
         return false;
     }
 
-    public byte[] read(String key) {
+    public byte[] read(byte[] key) {
         try {
             if (super.isExpire(key)) {
                 return null;
             }
-            long start = System.currentTimeMillis();
-            DataHelper posIh = (DataHelper) ih.type(key);
-            //check null, value not may be not exist
-            if (posIh == null){
-                log.debug("read IndexHelper null key:"+key);
-                return null;
+            for (; ; ) {
+                DataHelper posIh = (DataHelper) ih.type(key);
+                //check null, value not may be not exist
+                if (posIh == null) {
+                    return null;
+                }
+                byte[] data = store.get(posIh);
+                //读取期间被覆盖或搬迁过就重读
+                if (ih.validate(posIh))
+                    return data;
             }
-            byte[] data = store.get(posIh);
-            String resp = new String(data, Charsets.UTF_8);
-            log.debug("key={},value={} cost={}ms", key, resp, (System.currentTimeMillis() - start));
-            return data;
         } catch (Exception e) {
-            log.error("read data error key:"+key, e);
+            log.error("read data error key:" + new String(key, Charsets.UTF_8), e);
         }
         return null;
     }
 
+    /**
+     * PFADD修改已有的HyperLogLog:每个变大的寄存器记一条日志,不整个记12KB的值,保留原来的过期时间
+     *
+     * @param registers 寄存器编号<<8|新值
+     */
+    public boolean pfadd(byte[] key, byte[] value, long[] registers) {
+        for (long register : registers) {
+            appendLog(OP_PFADD, key, null, null, register);
+        }
+        return update(key, value);
+    }
+
+    /**
+     * PFMERGE修改已有的HyperLogLog,保留原来的过期时间
+     */
+    public boolean pfmerge(byte[] key, byte[] value) {
+        appendLog(OP_PFMERGE, key, null, value, 0);
+        return update(key, value);
+    }
+
+    /**
+     * 写回HyperLogLog头部缓存的基数,不记日志:重放时寄存器有修改就会让缓存失效,重新计算
+     */
+    public boolean cacheCount(byte[] key, byte[] value) {
+        return update(key, value);
+    }
+
+    void replayHyperLogLog(byte op, long arg, byte[] key, byte[] value) {
+        byte[] current = read(key);
+        HyperLogLog hll = current == null ? new HyperLogLog() : HyperLogLog.of(current);
+        if (hll == null) {
+            log.warn("replay {} on a value that is not a HyperLogLog, key: {}", op, new String(key, Charsets.UTF_8));
+            return;
+        }
+        if (op == OP_PFADD) {
+            hll.set((int) (arg >>> 8), (int) (arg & 0xFF));
+        } else {
+            HyperLogLog other = HyperLogLog.of(value);
+            if (other != null)
+                hll.merge(other);
+        }
+        hll.invalidate();
+        if (current == null)
+            write(key, hll.toBytes());
+        else
+            update(key, hll.toBytes());
+    }
+
+    /**
+     * 原地或搬迁后覆盖已有key的值,不记日志
+     */
+    private boolean update(byte[] key, byte[] value) {
+        try {
+            DataHelper dataHelper = (DataHelper) ih.type(key);
+            if (dataHelper == null)
+                return false;
+            ih.beginWrite(dataHelper);
+            try {
+                store.update(dataHelper, value);
+                ih.updateIndex(dataHelper);
+            } finally {
+                ih.endWrite(dataHelper);
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("update data error", e);
+        }
+        return false;
+    }
+
     @Override
-    public boolean checkKeyType(String key) {
+    public boolean checkKeyType(byte[] key) {
         return isExist(key) ? ih.type(key) instanceof DataHelper : true;
     }
 
     @Override
-    public void removeData(String key) {
+    public void removeData(byte[] key) {
         //TODO debug read error null
         DataHelper dataHelper = (DataHelper) ih.type(key);
         ih.remove(dataHelper);
         store.remove(dataHelper);
     }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.KV;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.KV);
+    }
 }
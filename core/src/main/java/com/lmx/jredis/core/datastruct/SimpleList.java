@@ -1,22 +1,34 @@
 package com.lmx.jredis.core.datastruct;
 
 import com.lmx.jredis.storage.*;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import redis.util.BytesKey;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
- * 基于内存读写key value操作,数据可持久,零延迟
+ * list:元素打包在数据文件的块记录中,内存中只有QuickList块目录,两端push/pop为O(1)
  * Created by lmx on 2017/4/14.
  */
 @Slf4j
 public class SimpleList extends BaseOP {
 
     int storeSize;
-    int listSize;
+    /**
+     * push后唤醒阻塞在key上的客户端
+     */
+    @Setter
+    BlockingKeys blockingKeys;
+    /**
+     * 重放期间已经重做过修改(或删除后重建)的list,块记录的序号不再和日志对应,之后的记录都要重做
+     */
+    final Set<BytesKey> replayed = new HashSet<>();
 
     SimpleList(int storeSize) {
         this.storeSize = storeSize;
@@ -24,6 +36,7 @@ public class SimpleList extends BaseOP {
 
     public void init(int db) {
         try {
+            this.db = db;
             store = new DataMedia(db, "listData", storeSize);
             /*ih = new IndexHelper(db, "listIndex", storeSize / 8) {
                 public void wrapData(DataHelper dataHelper) {
@@ -44,57 +57,316 @@ public class SimpleList extends BaseOP {
         }
     }
 
-    public boolean write(String key, String value) {
+    /**
+     * 容器第一次访问时才从目录读出,块头在这里解析
+     */
+    QuickList list(byte[] key) {
+        Object list = ih.type(key);
+        if (!(list instanceof QuickList))
+            return null;
+        ((QuickList) list).load(store);
+        return (QuickList) list;
+    }
+
+    /**
+     * @return 这次修改第一次写入块记录时分配的序号,记在日志记录的field中
+     */
+    byte[] nextSeq() {
+        return toBytes(store.getSeq() + 1);
+    }
+
+    /**
+     * LPUSH/RPUSH一个元素,日志记录push之后的首元素位置(LPUSH)或尾元素之后的位置(RPUSH)
+     *
+     * @return push之后的长度,key是其他类型或写入失败时返回-1
+     */
+    public long push(byte[] key, byte[] value, boolean head) {
         try {
-            if (super.isCanWrite(key, value)) {
-                ByteBuffer b = ByteBuffer.allocateDirect(128);
-                int length = value.getBytes().length;
-                b.putInt(length);
-                b.put(value.getBytes(BaseMedia.CHARSET));
-                b.flip();
-                DataHelper dh = store.add(b);
-                dh.setType(DataTypeEnum.LIST.getDesc());
-                dh.setKey(key);
-                dh.setLength(length);
-                ih.add(dh);
-                return true;
+            removeIfExpired(key);
+            if (!super.isCanWrite(key, value))
+                return -1;
+            QuickList list = list(key);
+            long size;
+            if (list == null) {
+                appendLog(head ? OP_LPUSH : OP_PUSH, key, nextSeq(), value, head ? 0 : 1);
+                QuickList.create(store, ih, key, value, 0);
+                size = 1;
+            } else {
+                appendLog(head ? OP_LPUSH : OP_PUSH, key, nextSeq(), value, head ? list.head() - 1 : list.tail() + 1);
+                size = list.push(store, ih, value, head);
             }
+            if (blockingKeys != null)
+                blockingKeys.signal(key);
+            return size;
         } catch (Exception e) {
             log.error("write list data error", e);
         }
-        return false;
+        return -1;
     }
 
-    public List<byte[]> read(String key, int startIdx, int endIdx) {
+    /**
+     * LPOP/RPOP,弹出最后一个元素后删除key,调用方先检查类型
+     *
+     * @return list不存在时返回null
+     */
+    public byte[] pop(byte[] key, boolean head) {
         try {
-            if (super.isExpire(key)) {
+            removeIfExpired(key);
+            QuickList list = list(key);
+            if (list == null)
                 return null;
-            }
-            List<byte[]> resp = new ArrayList<>();
-            long start = System.currentTimeMillis();
-            for (Object l : (List) (ih.kv).get(key)) {
-                if (l instanceof DataHelper)
-                    resp.add(store.get((DataHelper) l));
-            }
-            resp = resp.subList(startIdx, endIdx == -1 ? resp.size() : endIdx);
-            log.debug("key={},value={} cost={}ms", key, resp, (System.currentTimeMillis() - start));
-            return resp;
+            appendLog(head ? OP_LPOP : OP_RPOP, key, nextSeq(), null, head ? list.head() + 1 : list.tail() - 1);
+            byte[] value = list.pop(store, ih, head);
+            if (list.size() == 0)
+                ih.remove(key);
+            return value;
         } catch (Exception e) {
-            log.error("read list data error", e);
+            log.error("pop list data error", e);
         }
         return null;
     }
 
+    /**
+     * LSET,日志记录元素的位置,调用方先检查类型和key是否存在
+     *
+     * @return 下标越界时返回false
+     */
+    public boolean set(byte[] key, long index, byte[] value) {
+        try {
+            removeIfExpired(key);
+            QuickList list = list(key);
+            if (list == null)
+                return false;
+            long size = list.size();
+            long i = index < 0 ? index + size : index;
+            if (i < 0 || i >= size)
+                return false;
+            appendLog(OP_LSET, key, nextSeq(), value, list.head() + i);
+            return list.set(store, ih, i, value);
+        } catch (Exception e) {
+            log.error("set list data error", e);
+        }
+        return false;
+    }
+
+    /**
+     * LINSERT,日志记录新元素的下标,调用方先检查类型
+     *
+     * @return 插入之后的长度,key不存在时返回0,pivot不存在或写入失败时返回-1
+     */
+    public long insert(byte[] key, byte[] pivot, byte[] value, boolean before) {
+        try {
+            removeIfExpired(key);
+            QuickList list = list(key);
+            if (list == null)
+                return 0;
+            long index = list.indexOf(store, pivot);
+            if (index < 0)
+                return -1;
+            if (!before)
+                index++;
+            appendLog(OP_LINSERT, key, nextSeq(), value, index);
+            return list.insert(store, ih, index, value);
+        } catch (Exception e) {
+            log.error("insert list data error", e);
+        }
+        return -1;
+    }
+
+    /**
+     * LREM,日志记录count,没有匹配的元素时不修改也不记日志,删空后删除key,调用方先检查类型
+     *
+     * @return 删除的个数
+     */
+    public long delete(byte[] key, long count, byte[] value) {
+        try {
+            removeIfExpired(key);
+            QuickList list = list(key);
+            if (list == null || list.indexOf(store, value) < 0)
+                return 0;
+            appendLog(OP_LREM, key, nextSeq(), value, count);
+            long removed = list.remove(store, ih, value, count);
+            if (list.size() == 0)
+                ih.remove(key);
+            return removed;
+        } catch (Exception e) {
+            log.error("remove list data error", e);
+        }
+        return 0;
+    }
+
+    /**
+     * LTRIM,下标含义和LRANGE相同,日志记录保留的下标范围[start, stop+1),范围为空时删除key
+     */
+    public void trim(byte[] key, long start, long stop) {
+        try {
+            removeIfExpired(key);
+            QuickList list = list(key);
+            if (list == null)
+                return;
+            long size = list.size();
+            if (start < 0)
+                start = Math.max(0, size + start);
+            if (stop < 0)
+                stop += size;
+            stop = Math.min(stop, size - 1);
+            if (start > stop) {
+                remove(key);
+                return;
+            }
+            if (start == 0 && stop == size - 1)
+                return;
+            appendLog(OP_LTRIM, key, nextSeq(), toBytes(stop + 1), start);
+            list.trim(store, ih, start, stop + 1);
+        } catch (Exception e) {
+            log.error("trim list data error", e);
+        }
+    }
+
+    static byte[] toBytes(long n) {
+        return ByteBuffer.allocate(8).putLong(n).array();
+    }
+
+    /**
+     * LINDEX,负数下标从尾部开始
+     */
+    public byte[] index(byte[] key, long index) {
+        if (super.isExpire(key))
+            return null;
+        QuickList list = list(key);
+        return list == null ? null : list.get(store, index);
+    }
+
+    /**
+     * LRANGE,下标含义和redis相同(包含stop,负数从尾部开始)
+     */
+    public List<byte[]> read(byte[] key, long start, long stop) {
+        if (super.isExpire(key))
+            return null;
+        QuickList list = list(key);
+        return list == null ? null : list.range(store, start, stop);
+    }
+
+    public long size(byte[] key) {
+        if (super.isExpire(key))
+            return 0;
+        QuickList list = list(key);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * 重放日志中的list操作.field记录了这次修改写入块记录时的序号,list块记录的最大序号不小于它说明映射文件里已经有这次修改;
+     * 旧格式的记录没有序号,按日志记录的位置判断,新建list时按记录的位置创建,之后的位置才能对上
+     */
+    void replay(byte op, long arg, byte[] key, byte[] field, byte[] value) throws Exception {
+        if (!checkKeyType(key))
+            return;
+        QuickList list = list(key);
+        BytesKey k = new BytesKey(key);
+        if (list == null) {
+            if (op == OP_PUSH)
+                QuickList.create(store, ih, key, value, arg - 1);
+            else if (op == OP_LPUSH)
+                QuickList.create(store, ih, key, value, arg);
+            replayed.add(k);
+            return;
+        }
+        boolean stamped = field != null;
+        if (stamped && !replayed.contains(k) && list.getSeq() >= ByteBuffer.wrap(field).getLong())
+            return;
+        replayed.add(k);
+        long size = list.size();
+        switch (op) {
+            case OP_PUSH:
+                if (stamped || list.tail() < arg)
+                    list.push(store, ih, value, false);
+                break;
+            case OP_LPUSH:
+                if (stamped || list.head() > arg)
+                    list.push(store, ih, value, true);
+                break;
+            case OP_LPOP:
+            case OP_RPOP:
+                if (stamped || (op == OP_LPOP ? list.head() < arg : list.tail() > arg))
+                    list.pop(store, ih, op == OP_LPOP);
+                break;
+            case OP_LSET:
+                if (arg >= list.head() && arg < list.tail())
+                    list.set(store, ih, arg - list.head(), value);
+                break;
+            case OP_LINSERT:
+                if (arg >= 0 && arg <= size)
+                    list.insert(store, ih, arg, value);
+                break;
+            case OP_LREM:
+                list.remove(store, ih, value, arg);
+                break;
+            case OP_LTRIM:
+                long end = Math.min(ByteBuffer.wrap(value).getLong(), size);
+                if (arg >= 0 && arg < end)
+                    list.trim(store, ih, arg, end);
+                break;
+            default:
+        }
+        if (list.size() == 0)
+            ih.remove(key);
+    }
+
+    /**
+     * 重放结束
+     */
+    void endReplay() {
+        replayed.clear();
+    }
+
+    /**
+     * 启动恢复之后解析恢复期间读出的list的块.旧格式每个元素一条记录,按记录顺序打包成块后删除旧记录;
+     * 转换中途退出时,块中的元素不少于剩下的旧记录说明块已经写完(正在删除旧记录),否则丢弃块重新转换
+     *
+     * @return 转换的list数
+     */
+    public int loadBlocks() throws Exception {
+        int converted = 0;
+        for (QuickList list : ih.containers(QuickList.class)) {
+            List<DataHelper> legacy = list.load(store);
+            if (legacy.isEmpty())
+                continue;
+            if (list.size() < legacy.size()) {
+                list.clear(store, ih);
+                List<byte[]> values = new ArrayList<>(legacy.size());
+                for (DataHelper dh : legacy) {
+                    values.add(store.get(dh));
+                }
+                list.pushAll(store, ih, values);
+            }
+            for (DataHelper dh : legacy) {
+                ih.remove(dh);
+                store.remove(dh);
+            }
+            converted++;
+        }
+        return converted;
+    }
+
     @Override
-    public boolean checkKeyType(String key) {
-        return isExist(key) ? ih.type(key) instanceof List : true;
+    public boolean checkKeyType(byte[] key) {
+        return isExist(key) ? ih.type(key) instanceof QuickList : true;
     }
 
     @Override
-    public void removeData(String key) {
-        for (DataHelper d : (List<DataHelper>) ih.type(key)) {
-            ih.remove(d);
-            store.remove(d);
-        }
+    public void removeData(byte[] key) {
+        QuickList list = list(key);
+        if (list != null)
+            list.clear(store, ih);
+    }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.LIST;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.LIST);
     }
 }
@@ -0,0 +1,226 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.lmx.jredis.storage.*;
+import lombok.extern.slf4j.Slf4j;
+import redis.util.BytesKey;
+import redis.util.BytesKeySet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * set:SADD/SREM按顺序追加到MemberLog的块中,第一次访问时重放成BytesKeySet
+ * 条目为[标记][成员],标记1为添加,0为删除
+ * Created by lmx on 2018/1/15.
+ */
+@Slf4j
+public class SimpleSet extends BaseOP {
+    static final byte ADD = 1;
+    static final byte REMOVE = 0;
+    static final MemberLog.Loader<BytesKeySet> LOADER = new MemberLog.Loader<BytesKeySet>() {
+        @Override
+        public BytesKeySet create() {
+            return new BytesKeySet();
+        }
+
+        @Override
+        public void replay(BytesKeySet members, byte[] entry) {
+            byte[] member = Arrays.copyOfRange(entry, 1, entry.length);
+            if (entry[0] == ADD)
+                members.add(member);
+            else
+                members.remove(member);
+        }
+    };
+
+    int storeSize;
+
+    SimpleSet(int storeSize) {
+        this.storeSize = storeSize;
+    }
+
+    public void init(int db) {
+        try {
+            this.db = db;
+            store = new DataMedia(db, "setData", storeSize);
+        } catch (Exception e) {
+            log.error("init store file error", e);
+        }
+    }
+
+    MemberLog memberLog(byte[] key) {
+        Object memberLog = ih.type(key);
+        return memberLog instanceof MemberLog && ((MemberLog) memberLog).getType() == DataTypeEnum.SET ? (MemberLog) memberLog : null;
+    }
+
+    /**
+     * @return 成员(只读,不能修改),key不存在时返回null
+     */
+    public BytesKeySet members(byte[] key) {
+        if (super.isExpire(key))
+            return null;
+        MemberLog memberLog = memberLog(key);
+        return memberLog == null ? null : memberLog.members(store, LOADER);
+    }
+
+    /**
+     * SSCAN,intset编码一次返回所有成员,游标为0
+     *
+     * @return 下一次的游标, 遍历完成或key不存在时返回0
+     */
+    public long scan(byte[] key, long cursor, int count, List<byte[]> page) {
+        BytesKeySet members = members(key);
+        if (members == null)
+            return 0;
+        List<BytesKey> found = new ArrayList<>();
+        long next = members.scan(cursor, count, found);
+        for (BytesKey member : found) {
+            page.add(member.getBytes());
+        }
+        return next;
+    }
+
+    /**
+     * SADD
+     *
+     * @return 新增的成员数,key是其他类型或写入失败时返回-1
+     */
+    public int add(byte[] key, byte[]... members) {
+        try {
+            removeIfExpired(key);
+            if (!super.isCanWrite(key, null))
+                return -1;
+            MemberLog memberLog = memberLog(key);
+            if (memberLog == null) {
+                BytesKeySet distinct = new BytesKeySet();
+                List<byte[]> entries = new ArrayList<>();
+                for (byte[] member : members) {
+                    if (distinct.add(member)) {
+                        appendLog(OP_SADD, key, null, member, 0);
+                        entries.add(entry(ADD, member));
+                    }
+                }
+                MemberLog.create(store, ih, DataTypeEnum.SET, key, entries);
+                return entries.size();
+            }
+            BytesKeySet set = memberLog.members(store, LOADER);
+            int added = 0;
+            for (byte[] member : members) {
+                if (!set.contains(member)) {
+                    appendLog(OP_SADD, key, null, member, 0);
+                    memberLog.append(store, ih, entry(ADD, member));
+                    set.add(member);
+                    added++;
+                }
+            }
+            rewriteIfNeeded(memberLog, set);
+            return added;
+        } catch (Exception e) {
+            log.error("write set data error", e);
+        }
+        return -1;
+    }
+
+    /**
+     * SREM,删除最后一个成员后删除key,调用方先检查类型
+     *
+     * @return 删除的成员数
+     */
+    public int delete(byte[] key, byte[]... members) {
+        int removed = 0;
+        try {
+            removeIfExpired(key);
+            MemberLog memberLog = memberLog(key);
+            if (memberLog == null)
+                return 0;
+            BytesKeySet set = memberLog.members(store, LOADER);
+            for (byte[] member : members) {
+                if (set.contains(member)) {
+                    appendLog(OP_SREM, key, null, member, 0);
+                    memberLog.append(store, ih, entry(REMOVE, member));
+                    set.remove(member);
+                    removed++;
+                }
+            }
+            if (set.isEmpty()) {
+                removeData(key);
+                ih.remove(key);
+            } else {
+                rewriteIfNeeded(memberLog, set);
+            }
+        } catch (Exception e) {
+            log.error("remove set data error", e);
+        }
+        return removed;
+    }
+
+    /**
+     * SDIFFSTORE/SINTERSTORE/SUNIONSTORE:删除key原来的值后写入members,members为空时只删除
+     *
+     * @return 写入的成员数,key是其他类型时返回-1
+     */
+    public int store(byte[] key, Collection<BytesKey> members) {
+        if (!super.isCanWrite(key, null))
+            return -1;
+        //members可能就是key原来的成员,删除前先复制
+        byte[][] bytes = new byte[members.size()][];
+        int i = 0;
+        for (BytesKey member : members) {
+            bytes[i++] = member.getBytes();
+        }
+        if (isExist(key))
+            remove(key);
+        return bytes.length == 0 ? 0 : add(key, bytes);
+    }
+
+    void rewriteIfNeeded(MemberLog memberLog, BytesKeySet set) throws Exception {
+        if (!memberLog.shouldRewrite(set.size()))
+            return;
+        List<byte[]> entries = new ArrayList<>(set.size());
+        for (BytesKey member : set) {
+            entries.add(entry(ADD, member.getBytes()));
+        }
+        memberLog.rewrite(store, ih, entries);
+    }
+
+    /**
+     * 重放日志中的set操作,添加已有的成员和删除不存在的成员都不会改变结果
+     */
+    void replay(byte op, byte[] key, byte[] member) {
+        if (op == OP_SADD)
+            add(key, member);
+        else if (checkKeyType(key))
+            delete(key, member);
+    }
+
+    static byte[] entry(byte op, byte[] member) {
+        byte[] entry = new byte[member.length + 1];
+        entry[0] = op;
+        System.arraycopy(member, 0, entry, 1, member.length);
+        return entry;
+    }
+
+    @Override
+    public boolean checkKeyType(byte[] key) {
+        return isExist(key) ? memberLog(key) != null : true;
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        MemberLog memberLog = memberLog(key);
+        if (memberLog != null)
+            memberLog.clear(store, ih);
+    }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.SET;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.SET);
+    }
+}
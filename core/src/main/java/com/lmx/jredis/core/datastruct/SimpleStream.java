@@ -0,0 +1,316 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.lmx.jredis.storage.*;
+import lombok.extern.slf4j.Slf4j;
+import redis.util.Stream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * stream:所有修改按顺序追加到MemberLog的块中,第一次访问时重放成Stream(条目按块存放,块内id相对块首条目差分编码)
+ * 条目为[操作][id毫秒][id序号][时间][次数][字节串个数]([长度][字节串])...,id都是绝对值,
+ * 重放时已经执行过的条目不改变结果(添加不大于最后id的条目被忽略),所以预写日志和重写中途退出都可以重复重放
+ * Created by lmx on 2018/1/22.
+ */
+@Slf4j
+public class SimpleStream extends BaseOP {
+    /**
+     * 添加条目,字节串为field,value...
+     */
+    static final byte ADD = 1;
+    /**
+     * 删除id之前的条目
+     */
+    static final byte TRIM = 2;
+    /**
+     * 最后id,重写时条目被截断后保留
+     */
+    static final byte LAST_ID = 3;
+    /**
+     * 创建消费组或修改已发送的最后id,字节串为组名
+     */
+    static final byte GROUP = 4;
+    static final byte DESTROY_GROUP = 5;
+    /**
+     * 字节串为组名,消费者名
+     */
+    static final byte CONSUMER = 6;
+    static final byte DELETE_CONSUMER = 7;
+    /**
+     * XREADGROUP >发送的新条目,同时推进组的最后id,次数为0(NOACK)时不加入待确认列表
+     */
+    static final byte DELIVER_NEW = 8;
+    /**
+     * 待确认条目的重新发送或重写时保存的待确认条目
+     */
+    static final byte DELIVER = 9;
+    /**
+     * 字节串为组名
+     */
+    static final byte ACK = 10;
+    static final MemberLog.Loader<Stream> LOADER = new MemberLog.Loader<Stream>() {
+        @Override
+        public Stream create() {
+            return new Stream();
+        }
+
+        @Override
+        public void replay(Stream stream, byte[] entry) {
+            apply(stream, entry);
+        }
+    };
+
+    int storeSize;
+
+    SimpleStream(int storeSize) {
+        this.storeSize = storeSize;
+    }
+
+    public void init(int db) {
+        try {
+            this.db = db;
+            store = new DataMedia(db, "streamData", storeSize);
+        } catch (Exception e) {
+            log.error("init store file error", e);
+        }
+    }
+
+    MemberLog memberLog(byte[] key) {
+        Object memberLog = ih.type(key);
+        return memberLog instanceof MemberLog && ((MemberLog) memberLog).getType() == DataTypeEnum.STREAM ? (MemberLog) memberLog : null;
+    }
+
+    /**
+     * @return 条目和消费组(只读,修改通过本类的方法),key不存在时返回null
+     */
+    public Stream members(byte[] key) {
+        if (super.isExpire(key))
+            return null;
+        MemberLog memberLog = memberLog(key);
+        return memberLog == null ? null : memberLog.members(store, LOADER);
+    }
+
+    /**
+     * XADD,调用方保证id大于最后id
+     *
+     * @param fields field,value...
+     */
+    public boolean add(byte[] key, Stream.ID id, byte[][] fields) {
+        return write(key, entry(ADD, id, 0, 0, fields));
+    }
+
+    /**
+     * XTRIM以及XADD的MAXLEN/MINID,参数见Stream.trim
+     *
+     * @return 删除的条目数
+     */
+    public long trim(byte[] key, long maxlen, Stream.ID minid, boolean approx, long limit) {
+        Stream stream = members(key);
+        if (stream == null)
+            return 0;
+        long removed = stream.trim(maxlen, minid, approx, limit);
+        if (removed > 0) {
+            //记录截断之后的第一个id(全部删除时为最后id的下一个),重放时删除它之前的条目,之后添加的条目不受影响
+            Stream.ID first = stream.first();
+            if (first == null)
+                first = stream.getLastId().next();
+            write(key, entry(TRIM, first == null ? Stream.ID.MAX : first, 0, 0));
+        }
+        return removed;
+    }
+
+    /**
+     * XGROUP CREATE/SETID,key不存在时创建空的stream(MKSTREAM)
+     */
+    public boolean setGroup(byte[] key, byte[] group, Stream.ID lastDelivered) {
+        return write(key, entry(GROUP, lastDelivered, 0, 0, group));
+    }
+
+    public boolean destroyGroup(byte[] key, byte[] group) {
+        return write(key, entry(DESTROY_GROUP, Stream.ID.MIN, 0, 0, group));
+    }
+
+    public boolean createConsumer(byte[] key, byte[] group, byte[] consumer) {
+        return write(key, entry(CONSUMER, Stream.ID.MIN, 0, 0, group, consumer));
+    }
+
+    public boolean deleteConsumer(byte[] key, byte[] group, byte[] consumer) {
+        return write(key, entry(DELETE_CONSUMER, Stream.ID.MIN, 0, 0, group, consumer));
+    }
+
+    /**
+     * XREADGROUP发送一个条目
+     *
+     * @param fresh 是新条目(推进组的最后id)
+     * @param count 发送次数,新条目NOACK时为0
+     */
+    public boolean deliver(byte[] key, byte[] group, byte[] consumer, Stream.ID id, boolean fresh, long time, long count) {
+        return write(key, entry(fresh ? DELIVER_NEW : DELIVER, id, time, count, group, consumer));
+    }
+
+    public boolean ack(byte[] key, byte[] group, Stream.ID id) {
+        return write(key, entry(ACK, id, 0, 0, group));
+    }
+
+    /**
+     * 记预写日志后执行条目并追加到块中,key不存在时用这个条目新建
+     */
+    boolean write(byte[] key, byte[] entry) {
+        try {
+            removeIfExpired(key);
+            if (!super.isCanWrite(key, null))
+                return false;
+            appendLog(OP_STREAM, key, null, entry, 0);
+            MemberLog memberLog = memberLog(key);
+            if (memberLog == null) {
+                MemberLog.create(store, ih, DataTypeEnum.STREAM, key, Arrays.asList(entry));
+                return true;
+            }
+            Stream stream = memberLog.members(store, LOADER);
+            apply(stream, entry);
+            memberLog.append(store, ih, entry);
+            rewriteIfNeeded(memberLog, stream);
+            return true;
+        } catch (Exception e) {
+            log.error("write stream data error", e);
+        }
+        return false;
+    }
+
+    void rewriteIfNeeded(MemberLog memberLog, Stream stream) throws Exception {
+        long size = stream.size();
+        for (Stream.Group group : stream.getGroups()) {
+            size += 1 + group.getConsumers().size() + group.getPending().size();
+        }
+        if (!memberLog.shouldRewrite((int) Math.min(size, Integer.MAX_VALUE)))
+            return;
+        memberLog.rewrite(store, ih, snapshot(stream));
+    }
+
+    /**
+     * @return 重放后得到当前stream的条目:所有条目、最后id、消费组、消费者和待确认条目
+     */
+    static List<byte[]> snapshot(Stream stream) {
+        List<byte[]> entries = new ArrayList<>();
+        for (Stream.Entry e : stream.range(Stream.ID.MIN, Stream.ID.MAX, -1, false)) {
+            entries.add(entry(ADD, e.getId(), 0, 0, e.getFields()));
+        }
+        entries.add(entry(LAST_ID, stream.getLastId(), 0, 0));
+        for (Stream.Group group : stream.getGroups()) {
+            entries.add(entry(GROUP, group.getLastDelivered(), 0, 0, group.getName()));
+            for (Stream.Consumer consumer : group.getConsumers()) {
+                entries.add(entry(CONSUMER, Stream.ID.MIN, 0, 0, group.getName(), consumer.getName()));
+            }
+            for (Stream.Pending p : group.getPending().values()) {
+                entries.add(entry(DELIVER, p.getId(), p.getTime(), p.getCount(), group.getName(), p.getConsumer().getName()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 重放日志中的stream条目
+     */
+    void replay(byte[] key, byte[] entry) {
+        write(key, entry);
+    }
+
+    static byte[] entry(byte op, Stream.ID id, long time, long count, byte[]... parts) {
+        int length = 1 + 8 * 4 + 4;
+        for (byte[] part : parts) {
+            length += 4 + part.length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        b.put(op).putLong(id.getMs()).putLong(id.getSeq()).putLong(time).putLong(count).putInt(parts.length);
+        for (byte[] part : parts) {
+            b.putInt(part.length).put(part);
+        }
+        return b.array();
+    }
+
+    static void apply(Stream stream, byte[] entry) {
+        ByteBuffer b = ByteBuffer.wrap(entry);
+        byte op = b.get();
+        Stream.ID id = new Stream.ID(b.getLong(), b.getLong());
+        long time = b.getLong();
+        long count = b.getLong();
+        byte[][] parts = new byte[b.getInt()][];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new byte[b.getInt()];
+            b.get(parts[i]);
+        }
+        Stream.Group group = op >= GROUP && parts.length > 0 ? stream.group(parts[0]) : null;
+        switch (op) {
+            case ADD:
+                if (id.compareTo(stream.getLastId()) > 0)
+                    stream.add(id, parts);
+                break;
+            case TRIM:
+                stream.trim(-1, id, false, 0);
+                break;
+            case LAST_ID:
+                if (id.compareTo(stream.getLastId()) > 0)
+                    stream.setLastId(id);
+                break;
+            case GROUP:
+                if (group == null)
+                    stream.createGroup(parts[0], id);
+                else
+                    group.setLastDelivered(id);
+                break;
+            case DESTROY_GROUP:
+                stream.destroyGroup(parts[0]);
+                break;
+            case CONSUMER:
+                if (group != null)
+                    group.consumer(parts[1], true);
+                break;
+            case DELETE_CONSUMER:
+                if (group != null)
+                    group.deleteConsumer(parts[1]);
+                break;
+            case DELIVER_NEW:
+            case DELIVER:
+                if (group == null)
+                    break;
+                Stream.Consumer consumer = group.consumer(parts[1], true);
+                if (count > 0)
+                    group.deliver(consumer, id, time, count);
+                if (op == DELIVER_NEW && id.compareTo(group.getLastDelivered()) > 0)
+                    group.setLastDelivered(id);
+                break;
+            case ACK:
+                if (group != null)
+                    group.ack(id);
+                break;
+            default:
+                log.warn("unknown stream entry {}", op);
+        }
+    }
+
+    @Override
+    public boolean checkKeyType(byte[] key) {
+        return isExist(key) ? memberLog(key) != null : true;
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        MemberLog memberLog = memberLog(key);
+        if (memberLog != null)
+            memberLog.clear(store, ih);
+    }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.STREAM;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.STREAM);
+    }
+}
@@ -0,0 +1,205 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.lmx.jredis.storage.*;
+import lombok.extern.slf4j.Slf4j;
+import redis.util.BytesKey;
+import redis.util.ZSet;
+import redis.util.ZSetEntry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * zset:ZADD/ZREM按顺序追加到MemberLog的块中,第一次访问时重放成ZSet
+ * 条目为[标记]([分值])[成员],标记1为添加(带8字节分值),0为删除;重写时按分值顺序写入,加载时都追加在末尾
+ * Created by lmx on 2018/1/15.
+ */
+@Slf4j
+public class SimpleZSet extends BaseOP {
+    static final byte ADD = 1;
+    static final byte REMOVE = 0;
+    static final MemberLog.Loader<ZSet> LOADER = new MemberLog.Loader<ZSet>() {
+        @Override
+        public ZSet create() {
+            return new ZSet();
+        }
+
+        @Override
+        public void replay(ZSet members, byte[] entry) {
+            if (entry[0] == ADD)
+                members.add(new BytesKey(Arrays.copyOfRange(entry, 9, entry.length)), ByteBuffer.wrap(entry, 1, 8).getDouble());
+            else
+                members.remove(Arrays.copyOfRange(entry, 1, entry.length));
+        }
+    };
+
+    int storeSize;
+
+    SimpleZSet(int storeSize) {
+        this.storeSize = storeSize;
+    }
+
+    public void init(int db) {
+        try {
+            this.db = db;
+            store = new DataMedia(db, "zsetData", storeSize);
+        } catch (Exception e) {
+            log.error("init store file error", e);
+        }
+    }
+
+    MemberLog memberLog(byte[] key) {
+        Object memberLog = ih.type(key);
+        return memberLog instanceof MemberLog && ((MemberLog) memberLog).getType() == DataTypeEnum.ZSET ? (MemberLog) memberLog : null;
+    }
+
+    /**
+     * @return 成员(只读,不能修改),key不存在时返回null
+     */
+    public ZSet members(byte[] key) {
+        if (super.isExpire(key))
+            return null;
+        MemberLog memberLog = memberLog(key);
+        return memberLog == null ? null : memberLog.members(store, LOADER);
+    }
+
+    /**
+     * ZSCAN,没有紧凑编码,总是按游标分批返回
+     *
+     * @return 下一次的游标, 遍历完成或key不存在时返回0
+     */
+    public long scan(byte[] key, long cursor, int count, List<ZSetEntry> page) {
+        ZSet members = members(key);
+        return members == null ? 0 : members.scan(cursor, count, page);
+    }
+
+    /**
+     * ZADD/ZINCRBY,成员已存在时修改分值
+     *
+     * @return 新增成员返回1,已存在返回0,key是其他类型或写入失败时返回-1
+     */
+    public int add(byte[] key, byte[] member, double score) {
+        try {
+            removeIfExpired(key);
+            if (!super.isCanWrite(key, null))
+                return -1;
+            MemberLog memberLog = memberLog(key);
+            if (memberLog == null) {
+                appendLog(OP_ZADD, key, null, member, Double.doubleToLongBits(score));
+                MemberLog.create(store, ih, DataTypeEnum.ZSET, key, Arrays.asList(entry(member, score)));
+                return 1;
+            }
+            ZSet zset = memberLog.members(store, LOADER);
+            ZSetEntry current = zset.get(member);
+            if (current != null && current.getScore() == score)
+                return 0;
+            appendLog(OP_ZADD, key, null, member, Double.doubleToLongBits(score));
+            memberLog.append(store, ih, entry(member, score));
+            zset.add(new BytesKey(member), score);
+            rewriteIfNeeded(memberLog, zset);
+            return current == null ? 1 : 0;
+        } catch (Exception e) {
+            log.error("write zset data error", e);
+        }
+        return -1;
+    }
+
+    /**
+     * ZREM,删除最后一个成员后删除key,调用方先检查类型
+     *
+     * @return 删除的成员数
+     */
+    public int delete(byte[] key, byte[]... members) {
+        int removed = 0;
+        try {
+            removeIfExpired(key);
+            MemberLog memberLog = memberLog(key);
+            if (memberLog == null)
+                return 0;
+            ZSet zset = memberLog.members(store, LOADER);
+            for (byte[] member : members) {
+                if (zset.get(member) != null) {
+                    appendLog(OP_ZREM, key, null, member, 0);
+                    memberLog.append(store, ih, SimpleSet.entry(REMOVE, member));
+                    zset.remove(member);
+                    removed++;
+                }
+            }
+            if (zset.isEmpty()) {
+                removeData(key);
+                ih.remove(key);
+            } else {
+                rewriteIfNeeded(memberLog, zset);
+            }
+        } catch (Exception e) {
+            log.error("remove zset data error", e);
+        }
+        return removed;
+    }
+
+    /**
+     * ZINTERSTORE/ZUNIONSTORE:删除key原来的值后写入members,members为空时只删除
+     *
+     * @return 写入的成员数,key是其他类型时返回-1
+     */
+    public int store(byte[] key, ZSet members) {
+        if (!super.isCanWrite(key, null))
+            return -1;
+        List<ZSetEntry> entries = new ArrayList<>(members.list());
+        if (isExist(key))
+            remove(key);
+        for (ZSetEntry e : entries) {
+            add(key, e.getKey().getBytes(), e.getScore());
+        }
+        return entries.size();
+    }
+
+    void rewriteIfNeeded(MemberLog memberLog, ZSet zset) throws Exception {
+        if (!memberLog.shouldRewrite(zset.size()))
+            return;
+        List<byte[]> entries = new ArrayList<>(zset.size());
+        for (ZSetEntry e : zset) {
+            entries.add(entry(e.getKey().getBytes(), e.getScore()));
+        }
+        memberLog.rewrite(store, ih, entries);
+    }
+
+    /**
+     * 重放日志中的zset操作,按日志中的分值设置,重复执行结果不变
+     */
+    void replay(byte op, long arg, byte[] key, byte[] member) {
+        if (op == OP_ZADD)
+            add(key, member, Double.longBitsToDouble(arg));
+        else if (checkKeyType(key))
+            delete(key, member);
+    }
+
+    static byte[] entry(byte[] member, double score) {
+        return ByteBuffer.allocate(1 + 8 + member.length).put(ADD).putDouble(score).put(member).array();
+    }
+
+    @Override
+    public boolean checkKeyType(byte[] key) {
+        return isExist(key) ? memberLog(key) != null : true;
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        MemberLog memberLog = memberLog(key);
+        if (memberLog != null)
+            memberLog.clear(store, ih);
+    }
+
+    @Override
+    public DataTypeEnum dataType() {
+        return DataTypeEnum.ZSET;
+    }
+
+    @Override
+    public Collection<DataHelper> liveRecords() {
+        return ih.records(DataTypeEnum.ZSET);
+    }
+}
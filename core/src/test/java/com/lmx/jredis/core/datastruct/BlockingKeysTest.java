@@ -0,0 +1,190 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.google.common.base.Charsets;
+import org.junit.Assert;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Reply;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlockingKeysTest {
+
+    /**
+     * 内存中的list,等待者retry时从里面取元素
+     */
+    final Map<String, Integer> lists = new HashMap<>();
+    /**
+     * 按回复顺序记录的等待者名字
+     */
+    final List<String> served = new ArrayList<>();
+    final BlockingKeys keys = new BlockingKeys(10);
+
+    class StubWaiter extends BlockingKeys.Waiter {
+        final String name;
+        boolean active = true;
+        /**
+         * BRPOPLPUSH的目标key
+         */
+        String target;
+        Reply timedOut;
+
+        StubWaiter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public boolean retry() {
+            for (byte[] key : keys) {
+                String k = new String(key, Charsets.UTF_8);
+                Integer n = lists.get(k);
+                if (n != null && n > 0) {
+                    lists.put(k, n - 1);
+                    served.add(name);
+                    if (target != null) {
+                        push(target);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void timeout(Reply reply) {
+            timedOut = reply;
+        }
+    }
+
+    StubWaiter block(String name, long deadline, String... names) {
+        byte[][] k = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            k[i] = names[i].getBytes(Charsets.UTF_8);
+        }
+        StubWaiter waiter = new StubWaiter(name);
+        keys.block(waiter, new BlockingKeys.Blocked(keys, k, deadline, BulkReply.NIL_REPLY));
+        return waiter;
+    }
+
+    void push(String key) {
+        Integer n = lists.get(key);
+        lists.put(key, n == null ? 1 : n + 1);
+        keys.signal(key.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * 同一个key上的等待者按阻塞先后服务,取不到元素的继续等待
+     */
+    @Test
+    public void fifo() {
+        block("first", 0, "a");
+        block("second", 0, "a");
+        push("a");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals(1, keys.size());
+        push("a");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals(0, keys.size());
+        Assert.assertEquals(2, served.size());
+        Assert.assertEquals("first", served.get(0));
+        Assert.assertEquals("second", served.get(1));
+    }
+
+    /**
+     * 等待多个key的连接在其中一个key上被服务后,其他key上的登记也被移除
+     */
+    @Test
+    public void multiKey() {
+        block("both", 0, "a", "b");
+        StubWaiter other = block("other", 0, "b");
+        push("a");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals(1, keys.size());
+        push("b");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals("other", served.get(1));
+        Assert.assertNull(other.owner);
+        Assert.assertEquals(0, keys.size());
+        Assert.assertTrue(keys.waiters.isEmpty());
+    }
+
+    /**
+     * BRPOPLPUSH执行时push到目标key,同一次serve中服务目标key上的等待者
+     */
+    @Test
+    public void pushToTarget() {
+        StubWaiter mover = block("mover", 0, "src");
+        mover.target = "dst";
+        block("popper", 0, "dst");
+        push("src");
+        Assert.assertEquals(2, keys.serve());
+        Assert.assertEquals("mover", served.get(0));
+        Assert.assertEquals("popper", served.get(1));
+        Assert.assertEquals(0, lists.get("dst").intValue());
+        Assert.assertEquals(0, keys.size());
+    }
+
+    /**
+     * 到期的等待者收到超时回复并被移除,没有超时的继续等待
+     */
+    @Test
+    public void timeout() {
+        long now = System.currentTimeMillis();
+        StubWaiter timed = block("timed", now + 100, "a");
+        StubWaiter forever = block("forever", 0, "a");
+        Assert.assertEquals(0, keys.timeout(now));
+        Assert.assertNull(timed.timedOut);
+        Assert.assertEquals(1, keys.timeout(now + 1000));
+        Assert.assertSame(BulkReply.NIL_REPLY, timed.timedOut);
+        Assert.assertNull(forever.timedOut);
+        Assert.assertEquals(1, keys.size());
+        push("a");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals("forever", served.get(0));
+    }
+
+    /**
+     * 连接关闭时取消等待:不再被服务,之后到期也不回复
+     */
+    @Test
+    public void cancel() {
+        long now = System.currentTimeMillis();
+        StubWaiter closed = block("closed", now + 100, "a");
+        closed.active = false;
+        closed.cancel();
+        Assert.assertEquals(0, keys.size());
+        Assert.assertTrue(keys.waiters.isEmpty());
+        //重复取消没有影响
+        closed.cancel();
+        Assert.assertEquals(0, keys.size());
+        push("a");
+        Assert.assertEquals(0, keys.serve());
+        Assert.assertEquals(0, keys.timeout(now + 1000));
+        Assert.assertNull(closed.timedOut);
+        Assert.assertTrue(served.isEmpty());
+    }
+
+    /**
+     * 已经关闭但还没有取消的等待者被跳过,元素留给下一个等待者
+     */
+    @Test
+    public void skipInactive() {
+        StubWaiter dead = block("dead", 0, "a");
+        block("alive", 0, "a");
+        dead.active = false;
+        push("a");
+        Assert.assertEquals(1, keys.serve());
+        Assert.assertEquals("alive", served.get(0));
+        Assert.assertNull(dead.owner);
+        Assert.assertEquals(0, keys.size());
+        Assert.assertEquals(0, lists.get("a").intValue());
+    }
+}
@@ -0,0 +1,67 @@
+package com.lmx.jredis.core.datastruct;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class SimpleKVTest {
+
+    static final int DB = 0;
+    RedisDbDelegate.RedisDB redisDB;
+
+    @Before
+    public void before() {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            redisDB = new RedisDbDelegate.RedisDB();
+            redisDB.init(DB, 2, pool, 100);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        RedisDbDelegate.db.remove(DB);
+        for (BaseOP op : redisDB.ops()) {
+            op.getStore().clean();
+        }
+        redisDB.getIndexHelper().clean();
+    }
+
+    /**
+     * SET覆盖已存在的key和GET的热路径:SET不应产生任何临时对象,GET只分配返回的value数组
+     */
+    @Test
+    public void allocationRate() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        SimpleKV kv = redisDB.getSimpleKV();
+        byte[] key = "allocKey".getBytes(Charsets.UTF_8);
+        byte[] value = "0123456789abcdef".getBytes(Charsets.UTF_8);
+        Assert.assertTrue(kv.write(key, value));
+        int ops = 100000;
+        //warm up,让JIT完成编译
+        setAndGet(kv, key, value, ops);
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        setAndGet(kv, key, value, ops);
+        long perOp = (mx.getThreadAllocatedBytes(tid) - before) / ops;
+        //byte[16]的value数组约32字节
+        Assert.assertTrue("allocated " + perOp + " bytes/op", perOp <= 48);
+    }
+
+    static void setAndGet(SimpleKV kv, byte[] key, byte[] value, int ops) {
+        for (int i = 0; i < ops; i++) {
+            if (!kv.write(key, value) || !Arrays.equals(value, kv.read(key)))
+                Assert.fail();
+        }
+    }
+}
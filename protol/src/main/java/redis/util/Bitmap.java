@@ -0,0 +1,737 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * A redis string used as a bit array, offset 0 is the most significant bit of
+ * the first byte.
+ * <p/>
+ * Like a roaring bitmap the offsets are split into containers of 2^16 bits
+ * (8KB) that only exist when they hold a set bit. A container with at most
+ * ARRAY_MAX set bits is a sorted char[] of their low 16 bits, a denser one is
+ * 1024 long words. Bit i of a container lives in word i >>> 6 counted from the
+ * most significant bit, so each word is 8 bytes of the string in big-endian
+ * order and counting or searching goes a word at a time with Long.bitCount and
+ * Long.numberOfLeadingZeros. Without compression every container is a bitmap
+ * container, which still avoids copying the whole string when it grows.
+ * <p/>
+ * Bitwise operations combine the inputs container by container into a new
+ * bitmap and never materialize the full string.
+ */
+public class Bitmap {
+
+  public static final long MAX_BITS = 1L << 32;
+  static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+  private static final int[] EMPTY_KEYS = new int[0];
+  private static final Container[] EMPTY_CONTAINERS = new Container[0];
+
+  private final boolean compressed;
+  // Container keys (offset >>> 16) in ascending order
+  private int[] keys = EMPTY_KEYS;
+  private Container[] containers = EMPTY_CONTAINERS;
+  private int size;
+  // Length of the string in bytes, bits past the last container are 0
+  private long length;
+
+  public Bitmap(boolean compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+   * @return a bitmap with the bits of the string
+   */
+  public static Bitmap of(byte[] bytes, boolean compressed) {
+    Bitmap bitmap = new Bitmap(compressed);
+    for (int from = 0; from < bytes.length; from += WORDS * 8) {
+      long[] words = new long[WORDS];
+      int cardinality = 0;
+      int to = Math.min(bytes.length, from + WORDS * 8);
+      for (int i = from; i < to; i++) {
+        words[(i - from) >>> 3] |= (bytes[i] & 0xFFL) << (56 - ((i & 7) << 3));
+      }
+      for (long word : words) {
+        cardinality += Long.bitCount(word);
+      }
+      if (cardinality > 0) {
+        bitmap.append(from / (WORDS * 8), bitmap.shrink(new BitmapContainer(words, cardinality)));
+      }
+    }
+    bitmap.length = bytes.length;
+    return bitmap;
+  }
+
+  public long length() {
+    return length;
+  }
+
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  /**
+   * @return the bytes of the string
+   */
+  public byte[] toBytes() {
+    byte[] bytes = new byte[(int) length];
+    for (int c = 0; c < size; c++) {
+      long base = (long) keys[c] << 13;
+      Container container = containers[c];
+      for (int w = container.firstWord(); w >= 0; w = container.nextWord(w)) {
+        long word = container.word(w);
+        long at = base + (w << 3);
+        for (int b = 0; b < 8 && at + b < length && word != 0; b++, word <<= 8) {
+          bytes[(int) (at + b)] = (byte) (word >>> 56);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  public boolean get(long offset) {
+    Container container = container((int) (offset >>> 16));
+    return container != null && container.get((int) offset & 0xFFFF);
+  }
+
+  /**
+   * Sets or clears the bit, growing the string to cover the offset
+   *
+   * @return the previous bit
+   */
+  public boolean set(long offset, boolean bit) {
+    checkOffset(offset);
+    length = Math.max(length, (offset >>> 3) + 1);
+    int key = (int) (offset >>> 16);
+    int low = (int) offset & 0xFFFF;
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    if (index < 0) {
+      if (bit) {
+        insert(-(index + 1), key, compressed ? new ArrayContainer() : new BitmapContainer());
+        index = -(index + 1);
+      } else {
+        return false;
+      }
+    }
+    Container container = containers[index];
+    boolean previous = container.get(low);
+    if (previous != bit) {
+      container = bit ? container.add(low) : container.remove(low);
+      if (container.cardinality() == 0) {
+        delete(index);
+      } else {
+        containers[index] = compressed ? shrink(container) : container;
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * @return width (1 to 64) bits from the offset as an unsigned number, read a word at a time
+   */
+  public long getBits(long offset, int width) {
+    long word = offset >>> 6;
+    int shift = (int) offset & 63;
+    long value = word(word) << shift;
+    if (shift + width > 64) {
+      value |= word(word + 1) >>> (64 - shift);
+    }
+    return value >>> (64 - width);
+  }
+
+  /**
+   * Writes the low width bits of value from the offset, most significant first
+   */
+  public void setBits(long offset, int width, long value) {
+    checkOffset(offset + width - 1);
+    for (int i = 0; i < width; i++) {
+      set(offset + i, ((value >>> (width - 1 - i)) & 1) != 0);
+    }
+  }
+
+  /**
+   * @return the number of set bits in [from, to)
+   */
+  public long count(long from, long to) {
+    to = Math.min(to, length << 3);
+    long count = 0;
+    for (int c = start(from); c < size && ((long) keys[c] << 16) < to; c++) {
+      long base = (long) keys[c] << 16;
+      if (from <= base && base + 65536 <= to) {
+        count += containers[c].cardinality();
+      } else {
+        count += containers[c].count((int) (Math.max(from, base) - base), (int) (Math.min(to, base + 65536) - base));
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the offset of the first bit in [from, to) equal to bit, -1 if there is none
+   */
+  public long position(boolean bit, long from, long to) {
+    if (bit) {
+      for (int c = start(from); c < size && ((long) keys[c] << 16) < to; c++) {
+        long base = (long) keys[c] << 16;
+        int found = containers[c].next((int) (Math.max(from, base) - base), true);
+        if (found >= 0) {
+          return base + found < to ? base + found : -1;
+        }
+      }
+      return -1;
+    }
+    long offset = from;
+    while (offset < to) {
+      Container container = container((int) (offset >>> 16));
+      if (container == null) {
+        return offset;
+      }
+      int found = container.next((int) offset & 0xFFFF, false);
+      if (found >= 0) {
+        offset = (offset & ~0xFFFFL) + found;
+        return offset < to ? offset : -1;
+      }
+      offset = (offset | 0xFFFF) + 1;
+    }
+    return -1;
+  }
+
+  public enum Op {AND, OR, XOR}
+
+  /**
+   * @return the bitwise combination of the bitmaps, as long as the longest of them
+   */
+  public static Bitmap combine(Op op, Bitmap[] bitmaps, boolean compressed) {
+    Bitmap result = new Bitmap(compressed);
+    for (Bitmap bitmap : bitmaps) {
+      result.length = Math.max(result.length, bitmap.length);
+    }
+    int[] cursors = new int[bitmaps.length];
+    Container[] group = new Container[bitmaps.length];
+    while (true) {
+      // The smallest key not consumed yet, and the containers of every bitmap under it
+      int key = Integer.MAX_VALUE;
+      for (int i = 0; i < bitmaps.length; i++) {
+        if (cursors[i] < bitmaps[i].size) {
+          key = Math.min(key, bitmaps[i].keys[cursors[i]]);
+        }
+      }
+      if (key == Integer.MAX_VALUE) {
+        return result;
+      }
+      int present = 0;
+      for (int i = 0; i < bitmaps.length; i++) {
+        Bitmap bitmap = bitmaps[i];
+        if (cursors[i] < bitmap.size && bitmap.keys[cursors[i]] == key) {
+          group[present++] = bitmap.containers[cursors[i]++];
+        }
+      }
+      if (op == Op.AND && present < bitmaps.length) {
+        continue;
+      }
+      Container container = group[0];
+      for (int i = 1; i < present && container.cardinality() > 0; i++) {
+        container = container.combine(op, group[i]);
+      }
+      if (container.cardinality() > 0) {
+        container = container == group[0] ? container.copy() : container;
+        result.append(key, compressed ? result.shrink(container) : result.grow(container));
+      }
+    }
+  }
+
+  /**
+   * @return the complement of the bitmap over its length
+   */
+  public static Bitmap not(Bitmap bitmap, boolean compressed) {
+    Bitmap result = new Bitmap(compressed);
+    result.length = bitmap.length;
+    long bits = bitmap.length << 3;
+    for (int key = 0; ((long) key << 16) < bits; key++) {
+      Container container = bitmap.container(key);
+      long[] words = new long[WORDS];
+      int used = (int) Math.min(65536, bits - ((long) key << 16));
+      for (int w = 0; w < WORDS && (w << 6) < used; w++) {
+        long word = container == null ? -1L : ~container.word(w);
+        if ((w << 6) + 64 > used) {
+          word &= -1L << (64 - (used - (w << 6)));
+        }
+        words[w] = word;
+      }
+      BitmapContainer complement = new BitmapContainer(words, -1);
+      if (complement.cardinality() > 0) {
+        result.append(key, compressed ? result.shrink(complement) : complement);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of set bits in [from, to) of a plain string, whole bytes a word at a time
+   */
+  public static long count(byte[] bytes, long from, long to) {
+    long count = 0;
+    for (; from < to && (from & 7) != 0; from++) {
+      count += test(bytes, from) ? 1 : 0;
+    }
+    for (; from < to && (to & 7) != 0; to--) {
+      count += test(bytes, to - 1) ? 1 : 0;
+    }
+    int i = (int) (from >>> 3), end = (int) (to >>> 3);
+    for (; i + 8 <= end; i += 8) {
+      count += Long.bitCount(readLong(bytes, i));
+    }
+    for (; i < end; i++) {
+      count += Integer.bitCount(bytes[i] & 0xFF);
+    }
+    return count;
+  }
+
+  /**
+   * @return the offset of the first bit in [from, to) of a plain string equal to bit, -1 if there is none
+   */
+  public static long position(byte[] bytes, boolean bit, long from, long to) {
+    for (; from < to && (from & 7) != 0; from++) {
+      if (test(bytes, from) == bit) {
+        return from;
+      }
+    }
+    if (from >= to) {
+      return -1;
+    }
+    int i = (int) (from >>> 3), end = (int) ((to + 7) >>> 3);
+    long found = -1;
+    for (; i + 8 <= end && found < 0; i += 8) {
+      long word = bit ? readLong(bytes, i) : ~readLong(bytes, i);
+      if (word != 0) {
+        found = ((long) i << 3) + Long.numberOfLeadingZeros(word);
+      }
+    }
+    for (; i < end && found < 0; i++) {
+      int b = (bit ? bytes[i] : ~bytes[i]) & 0xFF;
+      if (b != 0) {
+        found = ((long) i << 3) + Integer.numberOfLeadingZeros(b) - 24;
+      }
+    }
+    return found < to ? found : -1;
+  }
+
+  private static boolean test(byte[] bytes, long offset) {
+    return (bytes[(int) (offset >>> 3)] & (0x80 >>> (int) (offset & 7))) != 0;
+  }
+
+  private static long readLong(byte[] bytes, int i) {
+    return (bytes[i] & 0xFFL) << 56 | (bytes[i + 1] & 0xFFL) << 48 | (bytes[i + 2] & 0xFFL) << 40
+            | (bytes[i + 3] & 0xFFL) << 32 | (bytes[i + 4] & 0xFFL) << 24 | (bytes[i + 5] & 0xFFL) << 16
+            | (bytes[i + 6] & 0xFFL) << 8 | (bytes[i + 7] & 0xFFL);
+  }
+
+  private static void checkOffset(long offset) {
+    if (offset < 0 || offset >= MAX_BITS) {
+      throw new IllegalArgumentException("bit offset is not an integer or out of range");
+    }
+  }
+
+  /**
+   * @return the 64 bits at the word index of the whole string
+   */
+  private long word(long word) {
+    Container container = container((int) (word >>> 10));
+    return container == null ? 0 : container.word((int) word & (WORDS - 1));
+  }
+
+  private Container container(int key) {
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    return index < 0 ? null : containers[index];
+  }
+
+  /**
+   * @return the index of the first container that may hold bits at or after the offset
+   */
+  private int start(long offset) {
+    int index = Arrays.binarySearch(keys, 0, size, (int) (offset >>> 16));
+    return index < 0 ? -(index + 1) : index;
+  }
+
+  private Container shrink(Container container) {
+    return compressed && container.cardinality() <= ARRAY_MAX ? container.toArray() : container;
+  }
+
+  private Container grow(Container container) {
+    return container instanceof ArrayContainer ? ((ArrayContainer) container).toBitmap() : container;
+  }
+
+  private void append(int key, Container container) {
+    insert(size, key, container);
+  }
+
+  private void insert(int index, int key, Container container) {
+    if (size == keys.length) {
+      int capacity = Math.max(4, size * 2);
+      keys = Arrays.copyOf(keys, capacity);
+      containers = Arrays.copyOf(containers, capacity);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(containers, index, containers, index + 1, size - index);
+    keys[index] = key;
+    containers[index] = container;
+    size++;
+  }
+
+  private void delete(int index) {
+    System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+    System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+    containers[--size] = null;
+  }
+
+  /**
+   * 2^16 bits, add and remove may return a container of the other kind
+   */
+  private static abstract class Container {
+
+    abstract int cardinality();
+
+    abstract boolean get(int i);
+
+    abstract Container add(int i);
+
+    abstract Container remove(int i);
+
+    /**
+     * @return set bits in [from, to)
+     */
+    abstract int count(int from, int to);
+
+    /**
+     * @return the first index at or after from whose bit is equal to bit, -1 if there is none
+     */
+    abstract int next(int from, boolean bit);
+
+    abstract long word(int w);
+
+    /**
+     * @return the first word that may be non-zero, -1 if none
+     */
+    abstract int firstWord();
+
+    abstract int nextWord(int w);
+
+    abstract Container copy();
+
+    abstract ArrayContainer toArray();
+
+    /**
+     * @return a new container, the inputs are left alone
+     */
+    abstract Container combine(Op op, Container other);
+  }
+
+  private static final class ArrayContainer extends Container {
+    char[] values;
+    int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean get(int i) {
+      return Arrays.binarySearch(values, 0, cardinality, (char) i) >= 0;
+    }
+
+    @Override
+    Container add(int i) {
+      if (cardinality == ARRAY_MAX) {
+        return toBitmap().add(i);
+      }
+      int index = -(Arrays.binarySearch(values, 0, cardinality, (char) i) + 1);
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = (char) i;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(int i) {
+      int index = Arrays.binarySearch(values, 0, cardinality, (char) i);
+      System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+      cardinality--;
+      return this;
+    }
+
+    @Override
+    int count(int from, int to) {
+      return rank(to) - rank(from);
+    }
+
+    /**
+     * @return the number of values below i
+     */
+    private int rank(int i) {
+      if (i > 0xFFFF) {
+        return cardinality;
+      }
+      int index = Arrays.binarySearch(values, 0, cardinality, (char) i);
+      return index < 0 ? -(index + 1) : index;
+    }
+
+    @Override
+    int next(int from, boolean bit) {
+      int index = rank(from);
+      if (bit) {
+        return index < cardinality ? values[index] : -1;
+      }
+      // Values from index on are consecutive up to the first gap
+      for (int i = from; i <= 0xFFFF; i++, index++) {
+        if (index == cardinality || values[index] != i) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    long word(int w) {
+      long word = 0;
+      for (int index = rank(w << 6); index < cardinality && values[index] >>> 6 == w; index++) {
+        word |= Long.MIN_VALUE >>> (values[index] & 63);
+      }
+      return word;
+    }
+
+    @Override
+    int firstWord() {
+      return cardinality == 0 ? -1 : values[0] >>> 6;
+    }
+
+    @Override
+    int nextWord(int w) {
+      int index = rank((w + 1) << 6);
+      return index < cardinality ? values[index] >>> 6 : -1;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 4)), cardinality);
+    }
+
+    @Override
+    ArrayContainer toArray() {
+      return this;
+    }
+
+    BitmapContainer toBitmap() {
+      long[] words = new long[WORDS];
+      for (int i = 0; i < cardinality; i++) {
+        words[values[i] >>> 6] |= Long.MIN_VALUE >>> (values[i] & 63);
+      }
+      return new BitmapContainer(words, cardinality);
+    }
+
+    @Override
+    Container combine(Op op, Container other) {
+      if (other instanceof BitmapContainer) {
+        if (op == Op.AND) {
+          char[] out = new char[cardinality];
+          int n = 0;
+          for (int i = 0; i < cardinality; i++) {
+            if (other.get(values[i])) {
+              out[n++] = values[i];
+            }
+          }
+          return new ArrayContainer(out, n);
+        }
+        return other.combine(op, this);
+      }
+      // Merge of two sorted arrays
+      ArrayContainer that = (ArrayContainer) other;
+      char[] out = new char[op == Op.AND ? Math.min(cardinality, that.cardinality) : cardinality + that.cardinality];
+      int n = 0, i = 0, j = 0;
+      while (i < cardinality && j < that.cardinality) {
+        char a = values[i], b = that.values[j];
+        if (a == b) {
+          if (op != Op.XOR) {
+            out[n++] = a;
+          }
+          i++;
+          j++;
+        } else if (a < b) {
+          if (op != Op.AND) {
+            out[n++] = a;
+          }
+          i++;
+        } else {
+          if (op != Op.AND) {
+            out[n++] = b;
+          }
+          j++;
+        }
+      }
+      if (op != Op.AND) {
+        while (i < cardinality) {
+          out[n++] = values[i++];
+        }
+        while (j < that.cardinality) {
+          out[n++] = that.values[j++];
+        }
+      }
+      ArrayContainer result = new ArrayContainer(out, n);
+      return n > ARRAY_MAX ? result.toBitmap() : result;
+    }
+  }
+
+  private static final class BitmapContainer extends Container {
+    final long[] words;
+    int cardinality;
+
+    BitmapContainer() {
+      this(new long[WORDS], 0);
+    }
+
+    /**
+     * @param cardinality the number of set bits, negative to count them
+     */
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      if (cardinality < 0) {
+        cardinality = 0;
+        for (long word : words) {
+          cardinality += Long.bitCount(word);
+        }
+      }
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean get(int i) {
+      return (words[i >>> 6] & (Long.MIN_VALUE >>> (i & 63))) != 0;
+    }
+
+    @Override
+    Container add(int i) {
+      words[i >>> 6] |= Long.MIN_VALUE >>> (i & 63);
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(int i) {
+      words[i >>> 6] &= ~(Long.MIN_VALUE >>> (i & 63));
+      cardinality--;
+      return this;
+    }
+
+    @Override
+    int count(int from, int to) {
+      if (from >= to) {
+        return 0;
+      }
+      int first = from >>> 6, last = (to - 1) >>> 6;
+      long firstMask = -1L >>> (from & 63);
+      long lastMask = -1L << (63 - ((to - 1) & 63));
+      if (first == last) {
+        return Long.bitCount(words[first] & firstMask & lastMask);
+      }
+      int count = Long.bitCount(words[first] & firstMask) + Long.bitCount(words[last] & lastMask);
+      for (int w = first + 1; w < last; w++) {
+        count += Long.bitCount(words[w]);
+      }
+      return count;
+    }
+
+    @Override
+    int next(int from, boolean bit) {
+      int w = from >>> 6;
+      long word = (bit ? words[w] : ~words[w]) & (-1L >>> (from & 63));
+      while (true) {
+        if (word != 0) {
+          return (w << 6) + Long.numberOfLeadingZeros(word);
+        }
+        if (++w == WORDS) {
+          return -1;
+        }
+        word = bit ? words[w] : ~words[w];
+      }
+    }
+
+    @Override
+    long word(int w) {
+      return words[w];
+    }
+
+    @Override
+    int firstWord() {
+      return nextWord(-1);
+    }
+
+    @Override
+    int nextWord(int w) {
+      for (w++; w < WORDS; w++) {
+        if (words[w] != 0) {
+          return w;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(words.clone(), cardinality);
+    }
+
+    @Override
+    ArrayContainer toArray() {
+      char[] values = new char[Math.max(cardinality, 4)];
+      int n = 0;
+      for (int w = 0; w < WORDS; w++) {
+        for (long word = words[w]; word != 0; word &= ~(Long.MIN_VALUE >>> Long.numberOfLeadingZeros(word))) {
+          values[n++] = (char) ((w << 6) + Long.numberOfLeadingZeros(word));
+        }
+      }
+      return new ArrayContainer(values, n);
+    }
+
+    @Override
+    Container combine(Op op, Container other) {
+      if (other instanceof ArrayContainer) {
+        if (op == Op.AND) {
+          return other.combine(op, this);
+        }
+        ArrayContainer that = (ArrayContainer) other;
+        BitmapContainer result = (BitmapContainer) copy();
+        for (int i = 0; i < that.cardinality; i++) {
+          char value = that.values[i];
+          if (op == Op.XOR && result.get(value)) {
+            result.remove(value);
+          } else if (!result.get(value)) {
+            result.add(value);
+          }
+        }
+        return result;
+      }
+      long[] that = ((BitmapContainer) other).words;
+      long[] out = new long[WORDS];
+      for (int w = 0; w < WORDS; w++) {
+        out[w] = op == Op.AND ? words[w] & that[w] : op == Op.OR ? words[w] | that[w] : words[w] ^ that[w];
+      }
+      return new BitmapContainer(out, -1);
+    }
+  }
+}
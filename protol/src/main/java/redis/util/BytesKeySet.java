@@ -2,33 +2,418 @@ package redis.util;
 
 import redis.util.BytesKey;
 
-import java.util.HashSet;
+import java.nio.charset.Charset;
+import java.util.*;
 
 /**
  * Map that uses byte[]s for keys. Wraps them for you. Passing a non-byte[] or
  * non-BytesKey will result in a CCE.
+ * <p/>
+ * While every member is an integer in canonical form (like redis: no sign
+ * other than '-', no leading zeros, fits in a long) and there are at most
+ * MAX_INTSET_ENTRIES of them, the members are kept in a sorted long[] (an
+ * intset) instead of the hash table. The first other member converts the set
+ * to hashed members for good. Hashed members live in a BytesKeyTable, so SSCAN
+ * reads COUNT buckets per call.
 */
-public class BytesKeySet extends HashSet<BytesKey> {
+public class BytesKeySet extends AbstractSet<BytesKey> implements Cloneable {
+
+  public static final int MAX_INTSET_ENTRIES = 512;
+  private static final long[] EMPTY = new long[0];
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).substring(1).getBytes(ASCII);
+  private static final byte[] MAX_LONG = String.valueOf(Long.MAX_VALUE).getBytes(ASCII);
+
+  // Sorted members while the set is an intset, null once it holds hashed members
+  private long[] ints = EMPTY;
+  private int count;
+  // Hashed members, the value is the member itself
+  private BytesKeyTable<BytesKey> table = new BytesKeyTable<BytesKey>();
 
   public boolean add(byte[] member) {
-    return super.add(new BytesKey(member));
+    return add(new BytesKey(member));
+  }
+
+  @Override
+  public boolean add(BytesKey key) {
+    if (ints != null) {
+      byte[] member = key.getBytes();
+      if (isInteger(member)) {
+        long value = toLong(member);
+        int index = Arrays.binarySearch(ints, 0, count, value);
+        if (index >= 0) {
+          return false;
+        }
+        if (count < MAX_INTSET_ENTRIES) {
+          insert(-(index + 1), value);
+          return true;
+        }
+      }
+      toHashed();
+    }
+    return table.put(key.getBytes(), key) == null;
   }
 
   @Override
   public boolean contains(Object o) {
-    return o instanceof byte[] ? contains((byte[]) o) : super.contains((BytesKey) o);
+    if (o instanceof byte[]) {
+      return contains((byte[]) o);
+    }
+    return contains(((BytesKey) o).getBytes());
   }
 
   @Override
   public boolean remove(Object o) {
-    return o instanceof byte[] ? remove((byte[]) o) : super.remove((BytesKey) o);
+    if (o instanceof byte[]) {
+      return remove((byte[]) o);
+    }
+    return remove(((BytesKey) o).getBytes());
   }
 
   public boolean contains(byte[] member) {
-    return super.contains(new BytesKey(member));
+    if (ints != null) {
+      return isInteger(member) && Arrays.binarySearch(ints, 0, count, toLong(member)) >= 0;
+    }
+    return table.containsKey(member);
   }
 
   public boolean remove(byte[] member) {
-    return super.remove(new BytesKey(member));
+    if (ints != null) {
+      int index = isInteger(member) ? Arrays.binarySearch(ints, 0, count, toLong(member)) : -1;
+      if (index < 0) {
+        return false;
+      }
+      delete(index);
+      return true;
+    }
+    return table.remove(member) != null;
+  }
+
+  @Override
+  public int size() {
+    return ints != null ? count : table.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public void clear() {
+    ints = EMPTY;
+    count = 0;
+    table.clear();
+  }
+
+  @Override
+  public Iterator<BytesKey> iterator() {
+    if (ints == null) {
+      return table.iterator();
+    }
+    return new Iterator<BytesKey>() {
+      int next;
+      int last = -1;
+
+      @Override
+      public boolean hasNext() {
+        return next < count;
+      }
+
+      @Override
+      public BytesKey next() {
+        if (next >= count) {
+          throw new NoSuchElementException();
+        }
+        last = next++;
+        return toKey(ints[last]);
+      }
+
+      @Override
+      public void remove() {
+        if (last < 0) {
+          throw new IllegalStateException();
+        }
+        delete(last);
+        next = last;
+        last = -1;
+      }
+    };
+  }
+
+  @Override
+  public Object clone() {
+    BytesKeySet copy;
+    try {
+      copy = (BytesKeySet) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+    if (ints != null) {
+      copy.ints = ints.clone();
+    }
+    copy.table = table.copy();
+    return copy;
+  }
+
+  public boolean isIntSet() {
+    return ints != null;
+  }
+
+  /**
+   * SSCAN: an intset is returned whole with cursor 0, hashed members by
+   * BytesKeyTable.scan
+   *
+   * @return the next cursor, 0 when the scan is complete
+   */
+  public long scan(long cursor, int count, List<BytesKey> page) {
+    if (ints != null) {
+      page.addAll(this);
+      return 0;
+    }
+    return table.scan(cursor, count, page);
+  }
+
+  /**
+   * @return a random member, null if the set is empty
+   */
+  public BytesKey random(Random random) {
+    if (ints != null) {
+      return count == 0 ? null : toKey(ints[random.nextInt(count)]);
+    }
+    return table.random(random);
+  }
+
+  /**
+   * @return the member at the index in sorted order, only for intsets
+   */
+  public BytesKey intAt(int index) {
+    if (ints == null || index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    return toKey(ints[index]);
+  }
+
+  /**
+   * Members in every set, at most limit of them (0 for no limit). The smallest
+   * set is walked and the others probed; when all of them are intsets this is a
+   * merge where every other set keeps a cursor that gallops forward, and stops
+   * as soon as one of them runs out.
+   */
+  public static BytesKeySet intersect(List<BytesKeySet> sets, int limit) {
+    List<BytesKeySet> sorted = new ArrayList<BytesKeySet>(sets);
+    Collections.sort(sorted, new Comparator<BytesKeySet>() {
+      @Override
+      public int compare(BytesKeySet o1, BytesKeySet o2) {
+        return o1.size() - o2.size();
+      }
+    });
+    BytesKeySet result = new BytesKeySet();
+    BytesKeySet first = sorted.get(0);
+    if (first.isEmpty()) {
+      return result;
+    }
+    if (allIntSets(sorted)) {
+      long[] out = new long[first.count];
+      int n = 0;
+      int[] cursors = new int[sorted.size()];
+      outer:
+      for (int i = 0; i < first.count && (limit == 0 || n < limit); i++) {
+        long value = first.ints[i];
+        for (int s = 1; s < sorted.size(); s++) {
+          BytesKeySet other = sorted.get(s);
+          int position = gallop(other.ints, cursors[s], other.count, value);
+          if (position == other.count) {
+            break outer;
+          }
+          cursors[s] = position;
+          if (other.ints[position] != value) {
+            continue outer;
+          }
+        }
+        out[n++] = value;
+      }
+      result.ints = out;
+      result.count = n;
+      return result;
+    }
+    outer:
+    for (BytesKey member : first) {
+      for (int s = 1; s < sorted.size(); s++) {
+        if (!sorted.get(s).contains(member.getBytes())) {
+          continue outer;
+        }
+      }
+      result.add(member);
+      if (result.size() == limit) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Members in any of the sets, intsets are merged in order
+   */
+  public static BytesKeySet union(List<BytesKeySet> sets) {
+    BytesKeySet result = new BytesKeySet();
+    if (!allIntSets(sets)) {
+      for (BytesKeySet set : sets) {
+        result.addAll(set);
+      }
+      return result;
+    }
+    for (BytesKeySet set : sets) {
+      long[] out = new long[result.count + set.count];
+      int n = 0, i = 0, j = 0;
+      while (i < result.count || j < set.count) {
+        if (j == set.count || (i < result.count && result.ints[i] < set.ints[j])) {
+          out[n++] = result.ints[i++];
+        } else {
+          if (i < result.count && result.ints[i] == set.ints[j]) {
+            i++;
+          }
+          out[n++] = set.ints[j++];
+        }
+      }
+      result.ints = out;
+      result.count = n;
+    }
+    if (result.count > MAX_INTSET_ENTRIES) {
+      result.toHashed();
+    }
+    return result;
+  }
+
+  /**
+   * Members of the first set that are in none of the others
+   */
+  public static BytesKeySet difference(List<BytesKeySet> sets) {
+    BytesKeySet first = sets.get(0);
+    BytesKeySet result = new BytesKeySet();
+    if (first.ints != null) {
+      long[] out = new long[first.count];
+      int n = 0;
+      outer:
+      for (int i = 0; i < first.count; i++) {
+        for (int s = 1; s < sets.size(); s++) {
+          if (sets.get(s).containsLong(first.ints[i])) {
+            continue outer;
+          }
+        }
+        out[n++] = first.ints[i];
+      }
+      result.ints = out;
+      result.count = n;
+      return result;
+    }
+    outer:
+    for (BytesKey member : first) {
+      for (int s = 1; s < sets.size(); s++) {
+        if (sets.get(s).contains(member.getBytes())) {
+          continue outer;
+        }
+      }
+      result.add(member);
+    }
+    return result;
+  }
+
+  private boolean containsLong(long value) {
+    return ints != null ? Arrays.binarySearch(ints, 0, count, value) >= 0 : table.containsKey(String.valueOf(value).getBytes(ASCII));
+  }
+
+  private static boolean allIntSets(List<BytesKeySet> sets) {
+    for (BytesKeySet set : sets) {
+      if (set.ints == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the first index in [from, to) whose value is >= value, to if there is none;
+   * probes from, from + 1, from + 2, from + 4 ... then binary searches the last step
+   */
+  static int gallop(long[] values, int from, int to, long value) {
+    if (from >= to || values[from] >= value) {
+      return from;
+    }
+    int low = from;
+    int step = 1;
+    while (from + step < to && values[from + step] < value) {
+      low = from + step;
+      step <<= 1;
+    }
+    int index = Arrays.binarySearch(values, low + 1, Math.min(from + step, to), value);
+    return index >= 0 ? index : -(index + 1);
+  }
+
+  private void insert(int index, long value) {
+    if (count == ints.length) {
+      ints = Arrays.copyOf(ints, Math.max(4, Math.min(count * 2, MAX_INTSET_ENTRIES)));
+    }
+    System.arraycopy(ints, index, ints, index + 1, count - index);
+    ints[index] = value;
+    count++;
+  }
+
+  private void delete(int index) {
+    System.arraycopy(ints, index + 1, ints, index, count - index - 1);
+    count--;
+  }
+
+  private void toHashed() {
+    long[] values = ints;
+    int size = count;
+    ints = null;
+    count = 0;
+    for (int i = 0; i < size; i++) {
+      BytesKey key = toKey(values[i]);
+      table.put(key.getBytes(), key);
+    }
+  }
+
+  private static BytesKey toKey(long value) {
+    return new BytesKey(String.valueOf(value).getBytes(ASCII));
+  }
+
+  /**
+   * @return whether the member is the canonical decimal form of a long
+   */
+  static boolean isInteger(byte[] member) {
+    int start = member.length > 0 && member[0] == '-' ? 1 : 0;
+    int digits = member.length - start;
+    if (digits == 0 || digits > MAX_LONG.length) {
+      return false;
+    }
+    if (member[start] == '0' && (digits > 1 || start == 1)) {
+      return false;
+    }
+    for (int i = start; i < member.length; i++) {
+      if (member[i] < '0' || member[i] > '9') {
+        return false;
+      }
+    }
+    if (digits < MAX_LONG.length) {
+      return true;
+    }
+    byte[] limit = start == 1 ? MIN_LONG : MAX_LONG;
+    for (int i = 0; i < digits; i++) {
+      if (member[start + i] != limit[i]) {
+        return member[start + i] < limit[i];
+      }
+    }
+    return true;
+  }
+
+  private static long toLong(byte[] member) {
+    boolean negative = member[0] == '-';
+    long value = 0;
+    for (int i = negative ? 1 : 0; i < member.length; i++) {
+      value = value * 10 - (member[i] - '0');
+    }
+    return negative ? value : -value;
   }
 }
@@ -0,0 +1,303 @@
+package redis.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Open addressing (linear probing) table keyed by byte[], used for the members
+ * of sets, sorted sets and hashes so SCAN can address the buckets directly.
+ * <p/>
+ * A remove leaves a tombstone, so a key always sits between its home slot
+ * (hash & mask) and the first empty slot after it. SCAN visits home slots in
+ * reverse binary order like redis' dictScan: when the table is rebuilt at
+ * another capacity a home slot maps to slots that differ only in the high
+ * bits, none of them before the cursor, so a key present from the first call
+ * to the last is returned at least once (maybe twice across a rebuild), and a
+ * call reads count home slots and their probe runs, whatever the size.
+ */
+public class BytesKeyTable<V> implements Iterable<V> {
+
+  static final int MIN_CAPACITY = 8;
+  private static final byte[] TOMBSTONE = new byte[0];
+
+  private byte[][] keys;
+  private Object[] values;
+  private int[] hashes;
+  private int size;
+  // live keys and tombstones
+  private int filled;
+
+  public BytesKeyTable() {
+    this(MIN_CAPACITY);
+  }
+
+  private BytesKeyTable(int capacity) {
+    keys = new byte[capacity][];
+    values = new Object[capacity];
+    hashes = new int[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int capacity() {
+    return keys.length;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(byte[] key) {
+    int i = find(key, hash(key));
+    return i < 0 ? null : (V) values[i];
+  }
+
+  public boolean containsKey(byte[] key) {
+    return find(key, hash(key)) >= 0;
+  }
+
+  /**
+   * @return the previous value, null if the key is new
+   */
+  @SuppressWarnings("unchecked")
+  public V put(byte[] key, V value) {
+    int h = hash(key);
+    int mask = keys.length - 1;
+    int free = -1;
+    int i = h & mask;
+    for (byte[] k; (k = keys[i]) != null; i = (i + 1) & mask) {
+      if (k == TOMBSTONE) {
+        if (free < 0) {
+          free = i;
+        }
+      } else if (hashes[i] == h && Arrays.equals(k, key)) {
+        V old = (V) values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+    if (free < 0) {
+      free = i;
+      filled++;
+    }
+    keys[free] = key;
+    values[free] = value;
+    hashes[free] = h;
+    size++;
+    if (filled > keys.length / 4 * 3) {
+      rebuild(capacityFor(size));
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value, null if the key is absent
+   */
+  public V remove(byte[] key) {
+    int i = find(key, hash(key));
+    if (i < 0) {
+      return null;
+    }
+    V old = removeAt(i);
+    if (keys.length > MIN_CAPACITY && size < keys.length / 8) {
+      rebuild(capacityFor(size));
+    }
+    return old;
+  }
+
+  public void clear() {
+    keys = new byte[MIN_CAPACITY][];
+    values = new Object[MIN_CAPACITY];
+    hashes = new int[MIN_CAPACITY];
+    size = 0;
+    filled = 0;
+  }
+
+  /**
+   * SCAN: visits count home slots from the cursor in reverse binary order and
+   * adds the values whose key has its home there
+   *
+   * @param cursor 0 to start, then the value returned by the previous call
+   * @return the next cursor, 0 when the scan is complete
+   */
+  @SuppressWarnings("unchecked")
+  public long scan(long cursor, int count, List<V> page) {
+    int mask = keys.length - 1;
+    int v = (int) cursor;
+    do {
+      int home = v & mask;
+      for (int i = home; keys[i] != null; i = (i + 1) & mask) {
+        if (keys[i] != TOMBSTONE && (hashes[i] & mask) == home) {
+          page.add((V) values[i]);
+        }
+      }
+      // set the bits above the mask, then increment the reversed cursor
+      v |= ~mask;
+      v = Integer.reverse(Integer.reverse(v) + 1);
+    } while (v != 0 && --count > 0);
+    return v & 0xFFFFFFFFL;
+  }
+
+  /**
+   * @return a random value by probing random slots, null if the table is empty
+   */
+  @SuppressWarnings("unchecked")
+  public V random(Random random) {
+    if (size == 0) {
+      return null;
+    }
+    int i;
+    do {
+      i = random.nextInt(keys.length);
+    } while (keys[i] == null || keys[i] == TOMBSTONE);
+    return (V) values[i];
+  }
+
+  /**
+   * @return a copy of the values
+   */
+  public List<V> values() {
+    List<V> list = new ArrayList<V>(size);
+    for (V value : this) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  /**
+   * Iterates the values, remove() leaves a tombstone so the rest of the table
+   * does not move
+   */
+  @Override
+  public Iterator<V> iterator() {
+    return new Iterator<V>() {
+      int next = advance(0);
+      int last = -1;
+
+      int advance(int i) {
+        while (i < keys.length && (keys[i] == null || keys[i] == TOMBSTONE)) {
+          i++;
+        }
+        return i;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next < keys.length;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public V next() {
+        if (next >= keys.length) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        next = advance(next + 1);
+        return (V) values[last];
+      }
+
+      @Override
+      public void remove() {
+        if (last < 0) {
+          throw new IllegalStateException();
+        }
+        removeAt(last);
+        last = -1;
+      }
+    };
+  }
+
+  public BytesKeyTable<V> copy() {
+    BytesKeyTable<V> copy = new BytesKeyTable<V>(keys.length);
+    copy.keys = keys.clone();
+    copy.values = values.clone();
+    copy.hashes = hashes.clone();
+    copy.size = size;
+    copy.filled = filled;
+    return copy;
+  }
+
+  private int find(byte[] key, int h) {
+    int mask = keys.length - 1;
+    for (int i = h & mask; ; i = (i + 1) & mask) {
+      byte[] k = keys[i];
+      if (k == null) {
+        return -1;
+      }
+      if (k != TOMBSTONE && hashes[i] == h && Arrays.equals(k, key)) {
+        return i;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V removeAt(int i) {
+    V old = (V) values[i];
+    keys[i] = TOMBSTONE;
+    values[i] = null;
+    size--;
+    return old;
+  }
+
+  /**
+   * Reinserts the live keys into a table of the given capacity, dropping the tombstones
+   */
+  private void rebuild(int capacity) {
+    byte[][] oldKeys = keys;
+    Object[] oldValues = values;
+    int[] oldHashes = hashes;
+    keys = new byte[capacity][];
+    values = new Object[capacity];
+    hashes = new int[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      byte[] k = oldKeys[j];
+      if (k == null || k == TOMBSTONE) {
+        continue;
+      }
+      int i = oldHashes[j] & mask;
+      while (keys[i] != null) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = k;
+      values[i] = oldValues[j];
+      hashes[i] = oldHashes[j];
+    }
+    filled = size;
+  }
+
+  /**
+   * @return the smallest power of two that keeps the table at most half full
+   */
+  static int capacityFor(int size) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < size * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * Polynomial hash of the bytes spread by the murmur3 finalizer, the home slot
+   * takes the low bits
+   */
+  static int hash(byte[] bytes) {
+    int h = 0;
+    for (byte b : bytes) {
+      h = 31 * h + b;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ h >>> 16;
+  }
+}
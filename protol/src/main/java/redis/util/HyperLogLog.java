@@ -0,0 +1,457 @@
+package redis.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A HyperLogLog in the string layout redis uses, so it can be stored and read
+ * back like any other string value.
+ * <p/>
+ * A 16 byte header ("HYLL", the encoding, 3 unused bytes and the cached
+ * cardinality as a little-endian long whose top bit marks it stale) is followed
+ * by the 2^14 registers. Dense registers are 6 bits each packed little-endian
+ * into 12KB. Sparse registers are runs: ZERO 00xxxxxx for up to 64 empty
+ * registers, XZERO 01xxxxxx yyyyyyyy for up to 16384 of them and VAL 1vvvvvxx
+ * for up to 4 registers with the value vvvvv + 1. A sparse value becomes
+ * dense once a register needs more than 32 or it grows past
+ * SPARSE_MAX_BYTES.
+ * <p/>
+ * Setting a register only clears the cached cardinality when the register
+ * grows. Merging dense registers takes 8 registers (6 bytes) at a time and
+ * picks the larger of each with carry-free arithmetic on a long.
+ */
+public class HyperLogLog {
+
+  public static final int P = 14;
+  public static final int REGISTERS = 1 << P;
+  public static final int HEADER = 16;
+  public static final int DENSE_SIZE = HEADER + REGISTERS * 6 / 8;
+  public static final int SPARSE_MAX_BYTES = 3000;
+  static final int DENSE = 0;
+  static final int SPARSE = 1;
+  private static final int Q = 64 - P;
+  private static final int MAX_SPARSE_VALUE = 32;
+  private static final double ALPHA_INF = 0.721347520444481703680;
+  private static final byte[] MAGIC = {'H', 'Y', 'L', 'L'};
+  // Even registers of a 48 bit group, each with 6 spare bits above it
+  private static final long LANES = 0x03F03F03F03FL;
+  private static final long GUARDS = 0x040040040040L;
+
+  private byte[] bytes;
+
+  /**
+   * An empty sparse HyperLogLog
+   */
+  public HyperLogLog() {
+    bytes = new byte[HEADER + 2];
+    System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+    bytes[4] = SPARSE;
+    bytes[HEADER] = (byte) 0x7F;
+    bytes[HEADER + 1] = (byte) 0xFF;
+  }
+
+  private HyperLogLog(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return the HyperLogLog stored in the string, null if the string is not one
+   */
+  public static HyperLogLog of(byte[] value) {
+    if (value.length < HEADER || value[0] != 'H' || value[1] != 'Y' || value[2] != 'L' || value[3] != 'L') {
+      return null;
+    }
+    if (value[4] == DENSE ? value.length != DENSE_SIZE : value[4] != SPARSE || !validSparse(value)) {
+      return null;
+    }
+    return new HyperLogLog(value);
+  }
+
+  /**
+   * @return the string to store, owned by this object
+   */
+  public byte[] toBytes() {
+    return bytes;
+  }
+
+  public boolean isSparse() {
+    return bytes[4] == SPARSE;
+  }
+
+  /**
+   * @return the register an element goes to in the high bits and the value it offers in the low 8 bits
+   */
+  public static int register(byte[] element) {
+    long hash = murmurHash64A(element, 0xadc83b19L);
+    int index = (int) (hash & (REGISTERS - 1));
+    hash >>>= P;
+    hash |= 1L << Q;
+    return index << 8 | (Long.numberOfTrailingZeros(hash) + 1);
+  }
+
+  /**
+   * @return whether the element changed a register
+   */
+  public boolean add(byte[] element) {
+    int register = register(element);
+    return set(register >>> 8, register & 0xFF);
+  }
+
+  /**
+   * Raises the register to count if it is lower
+   *
+   * @return whether the register changed
+   */
+  public boolean set(int index, int count) {
+    if (get(index) >= count) {
+      return false;
+    }
+    if (isSparse()) {
+      if (count > MAX_SPARSE_VALUE) {
+        toDense();
+      } else {
+        byte[] registers = registers();
+        registers[index] = (byte) count;
+        byte[] sparse = encodeSparse(registers);
+        if (sparse.length > SPARSE_MAX_BYTES) {
+          bytes = dense(registers, bytes);
+        } else {
+          bytes = sparse;
+        }
+        invalidate();
+        return true;
+      }
+    }
+    setDense(bytes, index, count);
+    invalidate();
+    return true;
+  }
+
+  public int get(int index) {
+    if (!isSparse()) {
+      return getDense(bytes, index);
+    }
+    int at = 0;
+    for (int i = HEADER; i < bytes.length; ) {
+      int b = bytes[i] & 0xFF;
+      int run;
+      int value = 0;
+      if ((b & 0x80) != 0) {
+        value = ((b >>> 2) & 0x1F) + 1;
+        run = (b & 3) + 1;
+        i++;
+      } else if ((b & 0x40) != 0) {
+        run = ((b & 0x3F) << 8 | (bytes[i + 1] & 0xFF)) + 1;
+        i += 2;
+      } else {
+        run = (b & 0x3F) + 1;
+        i++;
+      }
+      if (index < at + run) {
+        return value;
+      }
+      at += run;
+    }
+    return 0;
+  }
+
+  /**
+   * @return the estimated cardinality, from the header when it is still valid
+   */
+  public long count() {
+    if ((bytes[15] & 0x80) == 0) {
+      long cached = 0;
+      for (int i = 15; i >= 8; i--) {
+        cached = cached << 8 | (bytes[i] & 0xFF);
+      }
+      return cached;
+    }
+    long count = estimate(histogram(isSparse() ? registers() : null));
+    for (int i = 8; i < 16; i++) {
+      bytes[i] = (byte) (count >>> ((i - 8) << 3));
+    }
+    return count;
+  }
+
+  /**
+   * @return whether count() can answer from the header
+   */
+  public boolean isCached() {
+    return (bytes[15] & 0x80) == 0;
+  }
+
+  public void invalidate() {
+    bytes[15] |= (byte) 0x80;
+  }
+
+  /**
+   * Raises every register to the one of the other HyperLogLog, this one becomes dense
+   */
+  public void merge(HyperLogLog other) {
+    toDense();
+    if (other.isSparse()) {
+      byte[] registers = other.registers();
+      for (int i = 0; i < REGISTERS; i++) {
+        if (registers[i] > getDense(bytes, i)) {
+          setDense(bytes, i, registers[i]);
+        }
+      }
+    } else {
+      maxDense(bytes, other.bytes);
+    }
+    invalidate();
+  }
+
+  /**
+   * @return the cardinality of the union, the inputs are left alone
+   */
+  public static long count(List<HyperLogLog> hlls) {
+    HyperLogLog union = new HyperLogLog();
+    for (HyperLogLog hll : hlls) {
+      union.merge(hll);
+    }
+    return union.count();
+  }
+
+  public void toDense() {
+    if (isSparse()) {
+      bytes = dense(registers(), bytes);
+    }
+  }
+
+  /**
+   * Word-parallel max of two dense register arrays into the first one
+   */
+  static void maxDense(byte[] target, byte[] source) {
+    for (int i = HEADER; i < DENSE_SIZE; i += 6) {
+      long a = read48(target, i);
+      long b = read48(source, i);
+      long even = max(a & LANES, b & LANES);
+      long odd = max((a >>> 6) & LANES, (b >>> 6) & LANES);
+      write48(target, i, even | odd << 6);
+    }
+  }
+
+  /**
+   * @return the larger value in each 6 bit lane, lanes are 12 bits apart
+   */
+  private static long max(long a, long b) {
+    // Bit 6 of a lane survives the subtraction when a >= b
+    long ge = (((a | GUARDS) - b) & GUARDS) >>> 6;
+    long mask = ge * 0x3F;
+    return (a & mask) | (b & ~mask & LANES);
+  }
+
+  private static long read48(byte[] bytes, int at) {
+    long value = 0;
+    for (int i = 5; i >= 0; i--) {
+      value = value << 8 | (bytes[at + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static void write48(byte[] bytes, int at, long value) {
+    for (int i = 0; i < 6; i++) {
+      bytes[at + i] = (byte) (value >>> (i << 3));
+    }
+  }
+
+  static int getDense(byte[] bytes, int index) {
+    int bit = index * 6;
+    int at = HEADER + (bit >>> 3);
+    int shift = bit & 7;
+    int value = (bytes[at] & 0xFF) >>> shift;
+    if (shift > 2) {
+      value |= (bytes[at + 1] & 0xFF) << (8 - shift);
+    }
+    return value & 0x3F;
+  }
+
+  static void setDense(byte[] bytes, int index, int value) {
+    int bit = index * 6;
+    int at = HEADER + (bit >>> 3);
+    int shift = bit & 7;
+    bytes[at] = (byte) ((bytes[at] & ~(0x3F << shift)) | (value << shift));
+    if (shift > 2) {
+      bytes[at + 1] = (byte) ((bytes[at + 1] & ~(0x3F >>> (8 - shift))) | (value >>> (8 - shift)));
+    }
+  }
+
+  /**
+   * @return one byte per register decoded from the sparse runs
+   */
+  private byte[] registers() {
+    byte[] registers = new byte[REGISTERS];
+    int at = 0;
+    for (int i = HEADER; i < bytes.length; ) {
+      int b = bytes[i] & 0xFF;
+      if ((b & 0x80) != 0) {
+        int run = (b & 3) + 1;
+        Arrays.fill(registers, at, at + run, (byte) (((b >>> 2) & 0x1F) + 1));
+        at += run;
+        i++;
+      } else if ((b & 0x40) != 0) {
+        at += ((b & 0x3F) << 8 | (bytes[i + 1] & 0xFF)) + 1;
+        i += 2;
+      } else {
+        at += (b & 0x3F) + 1;
+        i++;
+      }
+    }
+    return registers;
+  }
+
+  private byte[] encodeSparse(byte[] registers) {
+    byte[] out = new byte[HEADER + REGISTERS * 2];
+    System.arraycopy(bytes, 0, out, 0, HEADER);
+    int n = HEADER;
+    for (int i = 0; i < REGISTERS; ) {
+      int value = registers[i];
+      int run = 1;
+      while (i + run < REGISTERS && registers[i + run] == value) {
+        run++;
+      }
+      i += run;
+      if (value == 0) {
+        if (run > 64) {
+          out[n++] = (byte) (0x40 | (run - 1) >>> 8);
+          out[n++] = (byte) (run - 1);
+        } else {
+          out[n++] = (byte) (run - 1);
+        }
+      } else {
+        for (; run > 0; run -= 4) {
+          out[n++] = (byte) (0x80 | (value - 1) << 2 | (Math.min(run, 4) - 1));
+        }
+      }
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private static byte[] dense(byte[] registers, byte[] header) {
+    byte[] dense = new byte[DENSE_SIZE];
+    System.arraycopy(header, 0, dense, 0, HEADER);
+    dense[4] = DENSE;
+    for (int i = 0; i < REGISTERS; i++) {
+      if (registers[i] != 0) {
+        setDense(dense, i, registers[i]);
+      }
+    }
+    return dense;
+  }
+
+  /**
+   * @return whether the runs cover exactly REGISTERS registers
+   */
+  private static boolean validSparse(byte[] value) {
+    int at = 0;
+    for (int i = HEADER; i < value.length; ) {
+      int b = value[i] & 0xFF;
+      if ((b & 0x80) != 0) {
+        at += (b & 3) + 1;
+        i++;
+      } else if ((b & 0x40) != 0) {
+        if (i + 1 == value.length) {
+          return false;
+        }
+        at += ((b & 0x3F) << 8 | (value[i + 1] & 0xFF)) + 1;
+        i += 2;
+      } else {
+        at += (b & 0x3F) + 1;
+        i++;
+      }
+    }
+    return at == REGISTERS;
+  }
+
+  /**
+   * @param registers decoded sparse registers, null to read the dense ones
+   * @return how many registers hold each value
+   */
+  private int[] histogram(byte[] registers) {
+    int[] histogram = new int[64];
+    for (int i = 0; i < REGISTERS; i++) {
+      histogram[registers == null ? getDense(bytes, i) : registers[i]]++;
+    }
+    return histogram;
+  }
+
+  /**
+   * The estimator redis uses (Ertl, "New cardinality estimation algorithms for HyperLogLog sketches")
+   */
+  static long estimate(int[] histogram) {
+    double m = REGISTERS;
+    double z = m * tau((m - histogram[Q + 1]) / m);
+    for (int j = Q; j >= 1; j--) {
+      z += histogram[j];
+      z *= 0.5;
+    }
+    z += m * sigma(histogram[0] / m);
+    return Math.round(ALPHA_INF * m * m / z);
+  }
+
+  private static double sigma(double x) {
+    if (x == 1) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double zPrime;
+    double y = 1;
+    double z = x;
+    do {
+      x *= x;
+      zPrime = z;
+      z += x * y;
+      y += y;
+    } while (zPrime != z);
+    return z;
+  }
+
+  private static double tau(double x) {
+    if (x == 0 || x == 1) {
+      return 0;
+    }
+    double zPrime;
+    double y = 1;
+    double z = 1 - x;
+    do {
+      x = Math.sqrt(x);
+      zPrime = z;
+      y *= 0.5;
+      z -= Math.pow(1 - x, 2) * y;
+    } while (zPrime != z);
+    return z / 3;
+  }
+
+  /**
+   * MurmurHash2, 64 bit version, reading the input as little-endian words
+   */
+  static long murmurHash64A(byte[] key, long seed) {
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    int length = key.length;
+    long h = seed ^ (length * m);
+    int end = length & ~7;
+    for (int i = 0; i < end; i += 8) {
+      long k = 0;
+      for (int j = 7; j >= 0; j--) {
+        k = k << 8 | (key[i + j] & 0xFF);
+      }
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+    int left = length & 7;
+    if (left > 0) {
+      for (int j = left - 1; j >= 0; j--) {
+        h ^= (long) (key[end + j] & 0xFF) << (j << 3);
+      }
+      h *= m;
+    }
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+}
@@ -0,0 +1,583 @@
+package redis.util;
+
+import java.util.*;
+
+/**
+ * An append-only log of entries ordered by id, with consumer groups
+ * <p/>
+ * Entries are packed into blocks of at most BLOCK_MAX_ENTRIES entries and
+ * BLOCK_MAX_BYTES bytes, indexed by the id of their first entry (the master
+ * id) in a sorted map, which plays the part of the rax in redis. Inside a
+ * block every id is stored as varint deltas from the master id, and an entry
+ * with the same fields as the master entry only stores its values. Entries
+ * are only ever removed from the head, so trimming moves a block's start
+ * offset until the whole block can be dropped.
+ */
+public class Stream {
+
+  public static final int BLOCK_MAX_BYTES = 4096;
+  public static final int BLOCK_MAX_ENTRIES = 100;
+  private static final byte SAME_FIELDS = 1;
+
+  /**
+   * Entry id, milliseconds and a sequence number within the millisecond
+   */
+  public static final class ID implements Comparable<ID> {
+    public static final ID MIN = new ID(0, 0);
+    public static final ID MAX = new ID(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final long ms;
+    private final long seq;
+
+    public ID(long ms, long seq) {
+      this.ms = ms;
+      this.seq = seq;
+    }
+
+    public long getMs() {
+      return ms;
+    }
+
+    public long getSeq() {
+      return seq;
+    }
+
+    /**
+     * @return the smallest id after this one, null after MAX
+     */
+    public ID next() {
+      if (seq < Long.MAX_VALUE) {
+        return new ID(ms, seq + 1);
+      }
+      return ms < Long.MAX_VALUE ? new ID(ms + 1, 0) : null;
+    }
+
+    /**
+     * @return the largest id before this one, null before MIN
+     */
+    public ID prev() {
+      if (seq > 0) {
+        return new ID(ms, seq - 1);
+      }
+      return ms > 0 ? new ID(ms - 1, Long.MAX_VALUE) : null;
+    }
+
+    /**
+     * Parses "ms-seq", or "ms" with the sequence number missingSeq
+     *
+     * @return null if it is not a valid id
+     */
+    public static ID parse(String id, long missingSeq) {
+      int dash = id.indexOf('-');
+      long ms = parseNumber(dash < 0 ? id : id.substring(0, dash));
+      long seq = dash < 0 ? missingSeq : parseNumber(id.substring(dash + 1));
+      return ms < 0 || seq < 0 ? null : new ID(ms, seq);
+    }
+
+    /**
+     * @return -1 unless the string is all digits and fits in a long
+     */
+    static long parseNumber(String s) {
+      if (s.isEmpty() || s.length() > 19) {
+        return -1;
+      }
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+          return -1;
+        }
+      }
+      try {
+        return Long.parseLong(s);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    @Override
+    public int compareTo(ID o) {
+      return ms != o.ms ? (ms < o.ms ? -1 : 1) : (seq < o.seq ? -1 : seq == o.seq ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ID && ((ID) o).ms == ms && ((ID) o).seq == seq;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (ms ^ ms >>> 32) * 31 + (int) (seq ^ seq >>> 32);
+    }
+
+    @Override
+    public String toString() {
+      return ms + "-" + seq;
+    }
+  }
+
+  public static final class Entry {
+    private final ID id;
+    private final byte[][] fields;
+
+    Entry(ID id, byte[][] fields) {
+      this.id = id;
+      this.fields = fields;
+    }
+
+    public ID getId() {
+      return id;
+    }
+
+    /**
+     * @return field, value, field, value...
+     */
+    public byte[][] getFields() {
+      return fields;
+    }
+  }
+
+  private static final class Block {
+    final ID master;
+    final byte[][] masterFields;
+    byte[] data = new byte[64];
+    // Bytes written, offset of the first entry that is not trimmed
+    int used;
+    int start;
+    // Entries not trimmed, entries written
+    int count;
+    int added;
+    ID last;
+
+    Block(ID master, byte[][] fields) {
+      this.master = master;
+      this.masterFields = new byte[fields.length / 2][];
+      for (int i = 0; i < masterFields.length; i++) {
+        masterFields[i] = fields[i * 2];
+      }
+    }
+  }
+
+  /**
+   * A pending entry: delivered to a consumer of a group but not acknowledged
+   */
+  public static final class Pending {
+    private final ID id;
+    private Consumer consumer;
+    private long time;
+    private long count;
+
+    Pending(ID id) {
+      this.id = id;
+    }
+
+    public ID getId() {
+      return id;
+    }
+
+    public Consumer getConsumer() {
+      return consumer;
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+
+  public static final class Consumer {
+    private final byte[] name;
+    private final TreeMap<ID, Pending> pending = new TreeMap<ID, Pending>();
+
+    Consumer(byte[] name) {
+      this.name = name;
+    }
+
+    public byte[] getName() {
+      return name;
+    }
+
+    public NavigableMap<ID, Pending> getPending() {
+      return pending;
+    }
+  }
+
+  public static final class Group {
+    private final byte[] name;
+    private ID lastDelivered;
+    private final Map<BytesKey, Consumer> consumers = new LinkedHashMap<BytesKey, Consumer>();
+    private final TreeMap<ID, Pending> pending = new TreeMap<ID, Pending>();
+
+    Group(byte[] name, ID lastDelivered) {
+      this.name = name;
+      this.lastDelivered = lastDelivered;
+    }
+
+    public byte[] getName() {
+      return name;
+    }
+
+    public ID getLastDelivered() {
+      return lastDelivered;
+    }
+
+    public void setLastDelivered(ID lastDelivered) {
+      this.lastDelivered = lastDelivered;
+    }
+
+    public Collection<Consumer> getConsumers() {
+      return consumers.values();
+    }
+
+    public NavigableMap<ID, Pending> getPending() {
+      return pending;
+    }
+
+    /**
+     * @return the consumer, null if there is none and create is false
+     */
+    public Consumer consumer(byte[] name, boolean create) {
+      BytesKey key = new BytesKey(name);
+      Consumer consumer = consumers.get(key);
+      if (consumer == null && create) {
+        consumer = new Consumer(name);
+        consumers.put(key, consumer);
+      }
+      return consumer;
+    }
+
+    /**
+     * Removes the consumer and its pending entries
+     *
+     * @return how many entries were pending, -1 if there was no such consumer
+     */
+    public long deleteConsumer(byte[] name) {
+      Consumer consumer = consumers.remove(new BytesKey(name));
+      if (consumer == null) {
+        return -1;
+      }
+      for (ID id : consumer.pending.keySet()) {
+        pending.remove(id);
+      }
+      return consumer.pending.size();
+    }
+
+    /**
+     * Makes the entry pending for the consumer, taking it from whoever had it
+     */
+    public void deliver(Consumer consumer, ID id, long time, long count) {
+      Pending p = pending.get(id);
+      if (p == null) {
+        p = new Pending(id);
+        pending.put(id, p);
+      } else {
+        p.consumer.pending.remove(id);
+      }
+      p.consumer = consumer;
+      p.time = time;
+      p.count = count;
+      consumer.pending.put(id, p);
+    }
+
+    /**
+     * @return false if the entry was not pending
+     */
+    public boolean ack(ID id) {
+      Pending p = pending.remove(id);
+      if (p == null) {
+        return false;
+      }
+      p.consumer.pending.remove(id);
+      return true;
+    }
+  }
+
+  private final TreeMap<ID, Block> blocks = new TreeMap<ID, Block>();
+  private long length;
+  private ID lastId = ID.MIN;
+  private final Map<BytesKey, Group> groups = new LinkedHashMap<BytesKey, Group>();
+
+  public long size() {
+    return length;
+  }
+
+  /**
+   * @return the largest id ever added, entries that were trimmed included
+   */
+  public ID getLastId() {
+    return lastId;
+  }
+
+  public void setLastId(ID lastId) {
+    this.lastId = lastId;
+  }
+
+  /**
+   * @return the id of the first entry, null if the stream is empty
+   */
+  public ID first() {
+    if (blocks.isEmpty()) {
+      return null;
+    }
+    Block b = blocks.firstEntry().getValue();
+    return decode(b, new int[]{b.start}).id;
+  }
+
+  public int getBlockCount() {
+    return blocks.size();
+  }
+
+  /**
+   * @return the id XADD * gives: now, or the next sequence number if the clock went backwards
+   */
+  public ID nextId(long now) {
+    if (now > lastId.ms) {
+      return new ID(now, 0);
+    }
+    return lastId.next();
+  }
+
+  /**
+   * Appends an entry, the caller makes sure that id is greater than the last id
+   *
+   * @param fields field, value, field, value...
+   */
+  public void add(ID id, byte[][] fields) {
+    Map.Entry<ID, Block> tail = blocks.lastEntry();
+    Block b = tail == null ? null : tail.getValue();
+    boolean same = b != null && sameFields(b, fields);
+    int size = entrySize(b == null ? id : b.master, id, fields, same);
+    if (b == null || b.added >= BLOCK_MAX_ENTRIES || b.used + size > BLOCK_MAX_BYTES) {
+      b = new Block(id, fields);
+      blocks.put(id, b);
+      same = true;
+      size = entrySize(id, id, fields, true);
+    }
+    if (b.used + size > b.data.length) {
+      b.data = Arrays.copyOf(b.data, Math.max(b.used + size, b.data.length * 2));
+    }
+    byte[] data = b.data;
+    int offset = b.used;
+    data[offset++] = same ? SAME_FIELDS : 0;
+    long msDelta = id.ms - b.master.ms;
+    offset = putVarint(data, offset, msDelta);
+    offset = putVarint(data, offset, msDelta == 0 ? id.seq - b.master.seq : id.seq);
+    if (!same) {
+      offset = putVarint(data, offset, fields.length / 2);
+    }
+    for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) {
+      offset = putVarint(data, offset, fields[i].length);
+      System.arraycopy(fields[i], 0, data, offset, fields[i].length);
+      offset += fields[i].length;
+    }
+    b.used = offset;
+    b.count++;
+    b.added++;
+    b.last = id;
+    length++;
+    lastId = id;
+  }
+
+  private static boolean sameFields(Block b, byte[][] fields) {
+    if (fields.length != b.masterFields.length * 2) {
+      return false;
+    }
+    for (int i = 0; i < b.masterFields.length; i++) {
+      if (!Arrays.equals(b.masterFields[i], fields[i * 2])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int entrySize(ID master, ID id, byte[][] fields, boolean same) {
+    long msDelta = id.ms - master.ms;
+    int size = 1 + varintSize(msDelta) + varintSize(msDelta == 0 ? id.seq - master.seq : id.seq);
+    if (!same) {
+      size += varintSize(fields.length / 2);
+    }
+    for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) {
+      size += varintSize(fields[i].length) + fields[i].length;
+    }
+    return size;
+  }
+
+  /**
+   * Reads the entry at offset[0] and moves offset[0] past it
+   */
+  private static Entry decode(Block b, int[] offset) {
+    byte[] data = b.data;
+    boolean same = data[offset[0]++] == SAME_FIELDS;
+    long msDelta = getVarint(data, offset);
+    long seq = getVarint(data, offset);
+    ID id = msDelta == 0 ? new ID(b.master.ms, b.master.seq + seq) : new ID(b.master.ms + msDelta, seq);
+    int pairs = same ? b.masterFields.length : (int) getVarint(data, offset);
+    byte[][] fields = new byte[pairs * 2][];
+    for (int i = 0; i < fields.length; i++) {
+      if (same && i % 2 == 0) {
+        fields[i] = b.masterFields[i / 2];
+        continue;
+      }
+      int length = (int) getVarint(data, offset);
+      fields[i] = Arrays.copyOfRange(data, offset[0], offset[0] + length);
+      offset[0] += length;
+    }
+    return new Entry(id, fields);
+  }
+
+  /**
+   * @return the entry with this id, null if there is none
+   */
+  public Entry get(ID id) {
+    List<Entry> entries = range(id, id, 1, false);
+    return entries.isEmpty() ? null : entries.get(0);
+  }
+
+  /**
+   * Entries with ids from start to end, both included
+   *
+   * @param count the most entries to return, negative for all of them
+   */
+  public List<Entry> range(ID start, ID end, long count, boolean reverse) {
+    List<Entry> entries = new ArrayList<Entry>();
+    if (count == 0 || start.compareTo(end) > 0 || blocks.isEmpty()) {
+      return entries;
+    }
+    if (!reverse) {
+      ID from = blocks.floorKey(start);
+      for (Block b : blocks.tailMap(from == null ? blocks.firstKey() : from, true).values()) {
+        int[] offset = {b.start};
+        while (offset[0] < b.used) {
+          Entry e = decode(b, offset);
+          if (e.id.compareTo(end) > 0) {
+            return entries;
+          }
+          if (e.id.compareTo(start) >= 0) {
+            entries.add(e);
+            if (entries.size() == count) {
+              return entries;
+            }
+          }
+        }
+      }
+      return entries;
+    }
+    for (Block b : blocks.headMap(end, true).descendingMap().values()) {
+      List<Entry> block = new ArrayList<Entry>(b.count);
+      int[] offset = {b.start};
+      while (offset[0] < b.used) {
+        block.add(decode(b, offset));
+      }
+      for (int i = block.size() - 1; i >= 0; i--) {
+        Entry e = block.get(i);
+        if (e.id.compareTo(start) < 0) {
+          return entries;
+        }
+        if (e.id.compareTo(end) <= 0) {
+          entries.add(e);
+          if (entries.size() == count) {
+            return entries;
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Removes entries from the head until at most maxlen are left, or until
+   * the first one is not before minid. Approximate trimming only drops
+   * whole blocks, so it may leave a few more entries.
+   *
+   * @param maxlen negative to trim by minid
+   * @param limit  the most entries to remove when approx, 0 for no limit
+   * @return the number of entries removed
+   */
+  public long trim(long maxlen, ID minid, boolean approx, long limit) {
+    long removed = 0;
+    while (!blocks.isEmpty()) {
+      Block b = blocks.firstEntry().getValue();
+      boolean whole = maxlen >= 0 ? length - b.count >= maxlen : b.last.compareTo(minid) < 0;
+      if (whole) {
+        if (approx && limit > 0 && removed + b.count > limit) {
+          break;
+        }
+        blocks.pollFirstEntry();
+        length -= b.count;
+        removed += b.count;
+        continue;
+      }
+      if (approx) {
+        break;
+      }
+      while (b.count > 0) {
+        int[] offset = {b.start};
+        ID id = decode(b, offset).id;
+        if (maxlen >= 0 ? length <= maxlen : id.compareTo(minid) >= 0) {
+          break;
+        }
+        b.start = offset[0];
+        b.count--;
+        length--;
+        removed++;
+      }
+      break;
+    }
+    return removed;
+  }
+
+  public Group group(byte[] name) {
+    return groups.get(new BytesKey(name));
+  }
+
+  public Collection<Group> getGroups() {
+    return groups.values();
+  }
+
+  /**
+   * @return the new group, null if there already is one with this name
+   */
+  public Group createGroup(byte[] name, ID lastDelivered) {
+    BytesKey key = new BytesKey(name);
+    if (groups.containsKey(key)) {
+      return null;
+    }
+    Group group = new Group(name, lastDelivered);
+    groups.put(key, group);
+    return group;
+  }
+
+  public boolean destroyGroup(byte[] name) {
+    return groups.remove(new BytesKey(name)) != null;
+  }
+
+  static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  static int putVarint(byte[] data, int offset, long value) {
+    while ((value & ~0x7FL) != 0) {
+      data[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    data[offset++] = (byte) value;
+    return offset;
+  }
+
+  static long getVarint(byte[] data, int[] offset) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = data[offset[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
@@ -1,36 +1,65 @@
 package redis.util;
 
+import com.google.common.primitives.UnsignedBytes;
 import redis.util.BytesKey;
-import redis.util.BytesKeyObjectMap;
+import redis.util.BytesKeyTable;
 import redis.util.ZSetEntry;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Sorted by score, look up by key
  * <p/>
+ * Entries are kept in a skiplist ordered by (score, key), keys compared as
+ * unsigned bytes like redis. Every forward link records its span (how many
+ * entries it skips) so rank lookups and access by rank are O(log n) like add
+ * and remove. Score and lex bounds are turned into ranks, ranges are then
+ * read with iterators that start at a rank and walk either way. Members are
+ * found by key in a BytesKeyTable, which also serves ZSCAN.
+ * <p/>
  * User: sam
  * Date: 7/29/12
  * Time: 4:40 PM
  */
 public class ZSet implements Iterable<ZSetEntry> {
 
-  private static final BytesKey EMPTY = new BytesKey(new byte[0]);
+  static final int MAX_LEVEL = 32;
+  static final double P = 0.25;
+  private static final Comparator<byte[]> LEX = UnsignedBytes.lexicographicalComparator();
+
+  private static class Node {
+    final ZSetEntry entry;
+    final Node[] next;
+    final int[] span;
+    Node prev;
+
+    Node(ZSetEntry entry, int level) {
+      this.entry = entry;
+      this.next = new Node[level];
+      this.span = new int[level];
+    }
+  }
+
   // A way to find an entry by key
-  private redis.util.BytesKeyObjectMap<ZSetEntry> map = new BytesKeyObjectMap<ZSetEntry>();
-  // A list that we keep sorted by score
-  private List<ZSetEntry> list = new ArrayList<ZSetEntry>();
+  private final BytesKeyTable<ZSetEntry> map = new BytesKeyTable<ZSetEntry>();
+  // The skiplist that we keep sorted by score, then key
+  private final Node head = new Node(null, MAX_LEVEL);
+  private Node tail;
+  private int level = 1;
+  private int size;
 
   public ZSet(redis.util.ZSet destination) {
-    map.putAll(destination.map);
-    list.addAll(destination.list);
+    for (ZSetEntry entry : destination) {
+      add(entry.getKey(), entry.getScore());
+    }
   }
 
   public ZSet() {
   }
 
   public int size() {
-    return list.size();
+    return size;
   }
 
   public ZSetEntry get(byte[] member2) {
@@ -43,96 +72,312 @@ public class ZSet implements Iterable<ZSetEntry> {
 
   @Override
   public Iterator<ZSetEntry> iterator() {
-    return list.iterator();
+    return iterator(head.next[0], false, Integer.MAX_VALUE);
   }
 
   public ZSetEntry get(BytesKey key) {
-    return map.get(key);
+    return map.get(key.getBytes());
   }
 
-  public List<ZSetEntry> list() {
-    return list;
+  /**
+   * ZSCAN, see BytesKeyTable.scan
+   *
+   * @return the next cursor, 0 when the scan is complete
+   */
+  public long scan(long cursor, int count, List<ZSetEntry> page) {
+    return map.scan(cursor, count, page);
   }
 
-  private static class ScoreComparator implements Comparator<ZSetEntry> {
-    @Override
-    public int compare(ZSetEntry o1, ZSetEntry o2) {
-      double value = o1.getScore() - o2.getScore();
-      return value < 0 ? -1 : value == (o1.getKey().compareTo(o2.getKey())) ? 0 : 1;
+  /**
+   * A copy of the entries in order, O(n)
+   */
+  public List<ZSetEntry> list() {
+    List<ZSetEntry> list = new ArrayList<ZSetEntry>(size);
+    for (ZSetEntry entry : this) {
+      list.add(entry);
     }
+    return list;
   }
 
   public void addAll(redis.util.ZSet other) {
-    for (ZSetEntry zSetEntry : other.list) {
-      remove(zSetEntry.getKey());
+    for (ZSetEntry zSetEntry : other) {
       add(zSetEntry.getKey(), zSetEntry.getScore());
     }
   }
 
+  /**
+   * @return true if the key was a member
+   */
   public boolean remove(BytesKey key) {
-    ZSetEntry current = map.get(key);
-    if (current != null) {
-      map.remove(key);
-      int index = Collections.binarySearch(list, current);
-      list.remove(index);
+    ZSetEntry current = map.remove(key.getBytes());
+    if (current == null) {
+      return false;
     }
-    return current == null;
+    delete(current.getScore(), key);
+    return true;
   }
 
+  /**
+   * Adds the key or updates its score
+   *
+   * @return true if the key is new
+   */
   public boolean add(BytesKey key, double score) {
-    ZSetEntry current = map.get(key);
+    if (Double.isNaN(score)) {
+      throw new IllegalArgumentException("score is not a number");
+    }
+    ZSetEntry current = map.get(key.getBytes());
     if (current != null) {
-      map.remove(key);
-      int index = Collections.binarySearch(list, current);
-      list.remove(index);
+      if (compare(current.getScore(), score) == 0) {
+        return false;
+      }
+      delete(current.getScore(), key);
     }
     ZSetEntry entry = new ZSetEntry(key, score);
-    map.put(key, entry);
-    int index = find(Collections.binarySearch(list, entry));
-    list.add(index, entry);
+    map.put(key.getBytes(), entry);
+    insert(entry);
     return current == null;
   }
 
-  public Iterable<ZSetEntry> subSet(final int minIndex, int maxIndex) {
-    final int finalMaxIndex = Math.min(maxIndex, list.size() - 1);
+  /**
+   * @return the 0-based rank of the key ordered by score, -1 if it is not a member
+   */
+  public int rank(byte[] member) {
+    BytesKey key = new BytesKey(member);
+    ZSetEntry entry = map.get(member);
+    if (entry == null) {
+      return -1;
+    }
+    int rank = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && compare(x.next[i].entry, entry.getScore(), key) <= 0) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+      if (x != head && x.entry.getKey().equals(key)) {
+        return rank - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the entry at the 0-based rank, null if out of range
+   */
+  public ZSetEntry getByRank(int rank) {
+    Node node = node(rank);
+    return node == null ? null : node.entry;
+  }
+
+  /**
+   * @return the entries with minIndex <= rank <= maxIndex in order, out of range indexes are clamped
+   */
+  public Iterable<ZSetEntry> subSet(int minIndex, int maxIndex) {
+    return range(minIndex, maxIndex, false);
+  }
+
+  /**
+   * @return the entries with from <= rank <= to, out of range indexes are clamped;
+   * walks from the lowest rank up or, when reverse, from the highest rank down
+   */
+  public Iterable<ZSetEntry> range(int from, int to, final boolean reverse) {
+    final int first = Math.max(from, 0);
+    final int last = Math.min(to, size - 1);
     return new Iterable<ZSetEntry>() {
       @Override
       public Iterator<ZSetEntry> iterator() {
-        return new Iterator<ZSetEntry>() {
-          int min = minIndex;
-
-          @Override
-          public boolean hasNext() {
-            return min <= finalMaxIndex;
-          }
-
-          @Override
-          public ZSetEntry next() {
-            return list.get(min++);
-          }
-
-          @Override
-          public void remove() {
-          }
-        };
+        return first > last ? ZSet.this.iterator(null, false, 0)
+                : ZSet.this.iterator(node(reverse ? last : first), reverse, last - first + 1);
       }
     };
   }
 
+  /**
+   * @return iterator from the entry at the 0-based rank towards higher ranks or, when reverse, lower ranks
+   */
+  public Iterator<ZSetEntry> iterator(int rank, boolean reverse) {
+    return iterator(node(rank), reverse, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return the number of entries with a score below the bound, counting equal scores when inclusive;
+   * this is also the rank of the first entry after the bound
+   */
+  public int scoreRank(double score, boolean inclusive) {
+    int rank = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && before(compare(x.next[i].entry.getScore(), score), inclusive)) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * Like scoreRank but for member bounds, only meaningful when all members have the same score
+   */
+  public int lexRank(byte[] member, boolean inclusive) {
+    int rank = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && before(LEX.compare(x.next[i].entry.getKey().getBytes(), member), inclusive)) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+    }
+    return rank;
+  }
+
+  private static boolean before(int compare, boolean inclusive) {
+    return compare < 0 || (inclusive && compare == 0);
+  }
+
   public boolean isEmpty() {
-    return list.size() == 0;
+    return size == 0;
+  }
+
+  private Iterator<ZSetEntry> iterator(final Node start, final boolean reverse, final int count) {
+    return new Iterator<ZSetEntry>() {
+      Node next = start;
+      int remaining = count;
+
+      @Override
+      public boolean hasNext() {
+        return next != null && remaining > 0;
+      }
+
+      @Override
+      public ZSetEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        ZSetEntry entry = next.entry;
+        next = reverse ? next.prev : next.next[0];
+        remaining--;
+        return entry;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static int compare(double score1, double score2) {
+    return score1 < score2 ? -1 : score1 > score2 ? 1 : 0;
+  }
+
+  private static int compare(ZSetEntry entry, double score, BytesKey key) {
+    int c = compare(entry.getScore(), score);
+    return c != 0 ? c : LEX.compare(entry.getKey().getBytes(), key.getBytes());
+  }
+
+  private static int randomLevel() {
+    int level = 1;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (level < MAX_LEVEL && random.nextDouble() < P) {
+      level++;
+    }
+    return level;
+  }
+
+  private void insert(ZSetEntry entry) {
+    Node[] update = new Node[MAX_LEVEL];
+    int[] rank = new int[MAX_LEVEL];
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      rank[i] = i == level - 1 ? 0 : rank[i + 1];
+      while (x.next[i] != null && compare(x.next[i].entry, entry.getScore(), entry.getKey()) < 0) {
+        rank[i] += x.span[i];
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    int newLevel = randomLevel();
+    if (newLevel > level) {
+      for (int i = level; i < newLevel; i++) {
+        rank[i] = 0;
+        update[i] = head;
+        head.span[i] = size;
+      }
+      level = newLevel;
+    }
+    x = new Node(entry, newLevel);
+    for (int i = 0; i < newLevel; i++) {
+      x.next[i] = update[i].next[i];
+      update[i].next[i] = x;
+      x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+      update[i].span[i] = rank[0] - rank[i] + 1;
+    }
+    for (int i = newLevel; i < level; i++) {
+      update[i].span[i]++;
+    }
+    x.prev = update[0] == head ? null : update[0];
+    if (x.next[0] != null) {
+      x.next[0].prev = x;
+    } else {
+      tail = x;
+    }
+    size++;
   }
 
-  public List<ZSetEntry> subSet(double min, double max) {
-    int minIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, min)));
-    int maxIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, max)));
-    if (list.get(maxIndex).getScore() > max) {
-      maxIndex = maxIndex - 1;
+  private void delete(double score, BytesKey key) {
+    Node[] update = new Node[MAX_LEVEL];
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && compare(x.next[i].entry, score, key) < 0) {
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    x = x.next[0];
+    if (x == null || compare(x.entry, score, key) != 0) {
+      return;
     }
-    return list.subList(minIndex, maxIndex + 1);
+    for (int i = 0; i < level; i++) {
+      if (update[i].next[i] == x) {
+        update[i].span[i] += x.span[i] - 1;
+        update[i].next[i] = x.next[i];
+      } else {
+        update[i].span[i]--;
+      }
+    }
+    if (x.next[0] != null) {
+      x.next[0].prev = x.prev;
+    } else {
+      tail = x.prev;
+    }
+    while (level > 1 && head.next[level - 1] == null) {
+      level--;
+    }
+    size--;
   }
 
-  private int find(int minIndex) {
-    return minIndex < 0 ? -(minIndex + 1) : minIndex;
+  /**
+   * @return the node at the 0-based rank
+   */
+  private Node node(int rank) {
+    if (rank < 0 || rank >= size) {
+      return null;
+    }
+    if (rank == size - 1) {
+      return tail;
+    }
+    int traversed = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && traversed + x.span[i] <= rank + 1) {
+        traversed += x.span[i];
+        x = x.next[i];
+      }
+      if (traversed == rank + 1) {
+        return x;
+      }
+    }
+    return null;
   }
 }
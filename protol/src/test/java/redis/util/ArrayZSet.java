@@ -0,0 +1,54 @@
+package redis.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ArrayList-backed ZSet as it was before the skiplist, kept only as the
+ * baseline of ZSetBenchmark. Entries are found by a binary search on the
+ * score alone, so with equal scores remove may drop another entry, as the old
+ * code did.
+ */
+class ArrayZSet {
+
+  private final BytesKeyObjectMap<ZSetEntry> map = new BytesKeyObjectMap<ZSetEntry>();
+  private final List<ZSetEntry> list = new ArrayList<ZSetEntry>();
+
+  int size() {
+    return list.size();
+  }
+
+  boolean add(BytesKey key, double score) {
+    ZSetEntry current = map.get(key);
+    if (current != null) {
+      map.remove(key);
+      int index = Collections.binarySearch(list, current);
+      list.remove(index);
+    }
+    ZSetEntry entry = new ZSetEntry(key, score);
+    map.put(key, entry);
+    int index = find(Collections.binarySearch(list, entry));
+    list.add(index, entry);
+    return current == null;
+  }
+
+  /**
+   * ZRANK as the server computed it on the old ZSet: a scan of the list
+   */
+  int rank(byte[] member) {
+    BytesKey key = new BytesKey(member);
+    int position = 0;
+    for (ZSetEntry entry : list) {
+      if (entry.getKey().equals(key)) {
+        return position;
+      }
+      position++;
+    }
+    return -1;
+  }
+
+  private int find(int index) {
+    return index < 0 ? -(index + 1) : index;
+  }
+}
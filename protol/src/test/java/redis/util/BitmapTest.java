@@ -0,0 +1,142 @@
+package redis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BitmapTest {
+
+  /**
+   * Random sets and clears, sparse and dense, checked against a byte[] string
+   */
+  @Test
+  public void setCountPosition() {
+    Random random = new Random(1);
+    for (boolean compressed : new boolean[]{true, false}) {
+      for (int bits : new int[]{1000, 300000}) {
+        Bitmap bitmap = new Bitmap(compressed);
+        byte[] bytes = new byte[0];
+        for (int i = 0; i < 20000; i++) {
+          long offset = i % 5 == 0 ? random.nextInt(bits) : random.nextInt(Math.max(1, bits / 40)) + bits / 2;
+          boolean bit = random.nextInt(4) != 0;
+          if (bytes.length <= offset >>> 3) {
+            bytes = Arrays.copyOf(bytes, (int) (offset >>> 3) + 1);
+          }
+          Assert.assertEquals(test(bytes, offset), bitmap.set(offset, bit));
+          set(bytes, offset, bit);
+        }
+        Assert.assertArrayEquals(bytes, bitmap.toBytes());
+        Assert.assertArrayEquals(bytes, Bitmap.of(bytes, compressed).toBytes());
+        Assert.assertEquals(bytes.length, bitmap.length());
+        long total = (long) bytes.length << 3;
+        for (int i = 0; i < 200; i++) {
+          long from = random.nextInt((int) total);
+          long to = from + random.nextInt((int) (total - from) + 1);
+          Assert.assertEquals(count(bytes, from, to), bitmap.count(from, to));
+          Assert.assertEquals(count(bytes, from, to), Bitmap.count(bytes, from, to));
+          for (boolean bit : new boolean[]{true, false}) {
+            Assert.assertEquals(position(bytes, bit, from, to), bitmap.position(bit, from, to));
+            Assert.assertEquals(position(bytes, bit, from, to), Bitmap.position(bytes, bit, from, to));
+          }
+          Assert.assertEquals(test(bytes, from), bitmap.get(from));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bits() {
+    Random random = new Random(2);
+    Bitmap bitmap = new Bitmap(true);
+    byte[] bytes = new byte[40];
+    for (int i = 0; i < 2000; i++) {
+      int width = 1 + random.nextInt(64);
+      long offset = random.nextInt(bytes.length * 8 - width + 1);
+      long value = random.nextLong();
+      bitmap.setBits(offset, width, value);
+      for (int b = 0; b < width; b++) {
+        set(bytes, offset + b, ((value >>> (width - 1 - b)) & 1) != 0);
+      }
+      long expected = 0;
+      for (int b = 0; b < width; b++) {
+        expected = expected << 1 | (test(bytes, offset + b) ? 1 : 0);
+      }
+      Assert.assertEquals(expected, bitmap.getBits(offset, width));
+    }
+    Assert.assertArrayEquals(bytes, Arrays.copyOf(bitmap.toBytes(), bytes.length));
+  }
+
+  /**
+   * AND, OR, XOR and NOT of bitmaps with different lengths and densities, checked byte by byte
+   */
+  @Test
+  public void combine() {
+    Random random = new Random(3);
+    for (int round = 0; round < 30; round++) {
+      boolean compressed = round % 2 == 0;
+      int n = 1 + random.nextInt(3);
+      byte[][] strings = new byte[n][];
+      Bitmap[] bitmaps = new Bitmap[n];
+      int longest = 0;
+      for (int i = 0; i < n; i++) {
+        strings[i] = new byte[random.nextInt(30000)];
+        int density = random.nextInt(3);
+        for (int j = 0; j < strings[i].length; j++) {
+          if (density == 2 || random.nextInt(density == 0 ? 200 : 3) == 0) {
+            strings[i][j] = (byte) random.nextInt(256);
+          }
+        }
+        bitmaps[i] = Bitmap.of(strings[i], compressed);
+        longest = Math.max(longest, strings[i].length);
+      }
+      for (Bitmap.Op op : Bitmap.Op.values()) {
+        byte[] expected = Arrays.copyOf(strings[0], longest);
+        for (int i = 1; i < n; i++) {
+          byte[] other = Arrays.copyOf(strings[i], longest);
+          for (int j = 0; j < longest; j++) {
+            expected[j] = (byte) (op == Bitmap.Op.AND ? expected[j] & other[j]
+                    : op == Bitmap.Op.OR ? expected[j] | other[j] : expected[j] ^ other[j]);
+          }
+        }
+        Bitmap result = Bitmap.combine(op, bitmaps, compressed);
+        Assert.assertArrayEquals(expected, result.toBytes());
+        Assert.assertEquals(count(expected, 0, (long) longest << 3), result.count(0, Bitmap.MAX_BITS));
+      }
+      byte[] expected = strings[0].clone();
+      for (int j = 0; j < expected.length; j++) {
+        expected[j] = (byte) ~expected[j];
+      }
+      Assert.assertArrayEquals(expected, Bitmap.not(bitmaps[0], compressed).toBytes());
+      Assert.assertArrayEquals(strings[0], bitmaps[0].toBytes());
+    }
+  }
+
+  static boolean test(byte[] bytes, long offset) {
+    return offset >>> 3 < bytes.length && (bytes[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) != 0;
+  }
+
+  static void set(byte[] bytes, long offset, boolean bit) {
+    int mask = 0x80 >>> (offset & 7);
+    int index = (int) (offset >>> 3);
+    bytes[index] = (byte) (bit ? bytes[index] | mask : bytes[index] & ~mask);
+  }
+
+  static long count(byte[] bytes, long from, long to) {
+    long count = 0;
+    for (long i = from; i < to; i++) {
+      count += test(bytes, i) ? 1 : 0;
+    }
+    return count;
+  }
+
+  static long position(byte[] bytes, boolean bit, long from, long to) {
+    for (long i = from; i < to; i++) {
+      if (test(bytes, i) == bit) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
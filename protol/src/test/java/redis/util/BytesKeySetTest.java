@@ -0,0 +1,118 @@
+package redis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class BytesKeySetTest {
+
+  @Test
+  public void isInteger() {
+    for (String s : new String[]{"0", "-1", "42", "9223372036854775807", "-9223372036854775808"}) {
+      Assert.assertTrue(s, BytesKeySet.isInteger(s.getBytes()));
+    }
+    for (String s : new String[]{"", "-", "-0", "01", "+1", "1a", " 1", "9223372036854775808", "-9223372036854775809", "12345678901234567890"}) {
+      Assert.assertFalse(s, BytesKeySet.isInteger(s.getBytes()));
+    }
+  }
+
+  @Test
+  public void gallop() {
+    long[] values = {1, 3, 5, 7, 9, 11, 13, 15, 17, 19};
+    for (int from = 0; from < values.length; from++) {
+      for (long value = 0; value <= 20; value++) {
+        int expected = from;
+        while (expected < values.length && values[expected] < value) {
+          expected++;
+        }
+        Assert.assertEquals(expected, BytesKeySet.gallop(values, from, values.length, value));
+      }
+    }
+  }
+
+  /**
+   * Random adds and removes against a HashSet: integer members stay in the intset
+   * until a non-integer member or more than MAX_INTSET_ENTRIES members convert it
+   */
+  @Test
+  public void addRemove() {
+    Random random = new Random(1);
+    for (int round = 0; round < 3; round++) {
+      BytesKeySet set = new BytesKeySet();
+      Set<String> expected = new HashSet<String>();
+      int range = round == 0 ? 300 : 2000;
+      for (int i = 0; i < 5000; i++) {
+        String member = String.valueOf(random.nextInt(range) - range / 2);
+        if (round == 2 && i == 2500) {
+          member = "text";
+        }
+        if (random.nextInt(3) == 0) {
+          Assert.assertEquals(expected.remove(member), set.remove(member.getBytes()));
+        } else {
+          Assert.assertEquals(expected.add(member), set.add(member.getBytes()));
+        }
+        Assert.assertEquals(expected.size(), set.size());
+      }
+      Assert.assertEquals(round == 0, set.isIntSet());
+      Assert.assertEquals(expected, strings(set));
+      for (String member : expected) {
+        Assert.assertTrue(set.contains(member.getBytes()));
+        Assert.assertTrue(set.contains(new BytesKey(member.getBytes())));
+      }
+      Assert.assertFalse(set.contains("missing".getBytes()));
+    }
+  }
+
+  /**
+   * Intersection, union and difference of intsets and hashed sets against HashSet
+   */
+  @Test
+  public void algebra() {
+    Random random = new Random(2);
+    for (int round = 0; round < 200; round++) {
+      List<BytesKeySet> sets = new ArrayList<BytesKeySet>();
+      List<Set<String>> expected = new ArrayList<Set<String>>();
+      int n = 1 + random.nextInt(4);
+      for (int i = 0; i < n; i++) {
+        BytesKeySet set = new BytesKeySet();
+        Set<String> model = new HashSet<String>();
+        int size = random.nextInt(round % 2 == 0 ? 400 : 800);
+        for (int j = 0; j < size; j++) {
+          String member = String.valueOf(random.nextInt(1000));
+          set.add(member.getBytes());
+          model.add(member);
+        }
+        if (random.nextInt(5) == 0) {
+          set.add("x".getBytes());
+          model.add("x");
+        }
+        sets.add(set);
+        expected.add(model);
+      }
+      Set<String> inter = new HashSet<String>(expected.get(0));
+      Set<String> union = new HashSet<String>();
+      Set<String> diff = new HashSet<String>(expected.get(0));
+      for (int i = 0; i < n; i++) {
+        inter.retainAll(expected.get(i));
+        union.addAll(expected.get(i));
+        if (i > 0) {
+          diff.removeAll(expected.get(i));
+        }
+      }
+      Assert.assertEquals(inter, strings(BytesKeySet.intersect(sets, 0)));
+      Assert.assertEquals(union, strings(BytesKeySet.union(sets)));
+      Assert.assertEquals(diff, strings(BytesKeySet.difference(sets)));
+      Assert.assertEquals(Math.min(inter.size(), 3), BytesKeySet.intersect(sets, 3).size());
+    }
+  }
+
+  static Set<String> strings(BytesKeySet set) {
+    Set<String> strings = new HashSet<String>();
+    for (BytesKey key : set) {
+      strings.add(new String(key.getBytes()));
+    }
+    Assert.assertEquals(set.size(), strings.size());
+    return strings;
+  }
+}
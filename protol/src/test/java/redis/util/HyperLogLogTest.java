@@ -0,0 +1,84 @@
+package redis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class HyperLogLogTest {
+
+  /**
+   * Estimates stay within a few percent while the registers go from sparse to dense
+   */
+  @Test
+  public void count() {
+    HyperLogLog hll = new HyperLogLog();
+    Assert.assertEquals(0, hll.count());
+    for (int i = 1; i <= 200000; i++) {
+      hll.add(("user:" + i).getBytes());
+      if (i == 7 || i == 1000 || i == 20000 || i == 200000) {
+        long count = hll.count();
+        Assert.assertTrue(i + " -> " + count, Math.abs(count - i) <= Math.max(1, i * 0.03));
+        Assert.assertTrue(hll.isCached());
+        Assert.assertEquals(count, HyperLogLog.of(hll.toBytes().clone()).count());
+      }
+      if (i == 1000) {
+        Assert.assertTrue(hll.isSparse());
+      }
+    }
+    Assert.assertFalse(hll.isSparse());
+    Assert.assertEquals(HyperLogLog.DENSE_SIZE, hll.toBytes().length);
+    Assert.assertFalse(hll.add("user:1".getBytes()));
+    Assert.assertTrue(hll.isCached());
+  }
+
+  /**
+   * Registers read back the same through sparse runs, dense packing and the word-parallel merge
+   */
+  @Test
+  public void registers() {
+    Random random = new Random(1);
+    int[] expected = new int[HyperLogLog.REGISTERS];
+    HyperLogLog sparse = new HyperLogLog();
+    for (int i = 0; i < 300; i++) {
+      int index = random.nextInt(HyperLogLog.REGISTERS);
+      int count = 1 + random.nextInt(32);
+      Assert.assertEquals(count > expected[index], sparse.set(index, count));
+      expected[index] = Math.max(expected[index], count);
+    }
+    Assert.assertTrue(sparse.isSparse());
+    byte[] dense = new byte[HyperLogLog.DENSE_SIZE];
+    int[] other = new int[HyperLogLog.REGISTERS];
+    for (int i = 0; i < HyperLogLog.REGISTERS; i++) {
+      Assert.assertEquals(expected[i], sparse.get(i));
+      other[i] = random.nextInt(52);
+      HyperLogLog.setDense(dense, i, other[i]);
+    }
+    for (int i = 0; i < HyperLogLog.REGISTERS; i++) {
+      Assert.assertEquals(other[i], HyperLogLog.getDense(dense, i));
+    }
+    System.arraycopy(HyperLogLog.of(sparse.toBytes()).toBytes(), 0, dense, 0, 4);
+    HyperLogLog merged = HyperLogLog.of(dense);
+    Assert.assertNotNull(merged);
+    merged.merge(sparse);
+    HyperLogLog copy = HyperLogLog.of(Arrays.copyOf(dense, dense.length));
+    HyperLogLog again = new HyperLogLog();
+    again.merge(sparse);
+    again.merge(copy);
+    for (int i = 0; i < HyperLogLog.REGISTERS; i++) {
+      Assert.assertEquals(Math.max(expected[i], other[i]), merged.get(i));
+      Assert.assertEquals(Math.max(expected[i], other[i]), again.get(i));
+    }
+  }
+
+  @Test
+  public void of() {
+    Assert.assertNull(HyperLogLog.of("not a hyperloglog".getBytes()));
+    byte[] bytes = new HyperLogLog().toBytes().clone();
+    Assert.assertNotNull(HyperLogLog.of(bytes));
+    Assert.assertNull(HyperLogLog.of(Arrays.copyOf(bytes, bytes.length - 1)));
+    bytes[4] = 0;
+    Assert.assertNull(HyperLogLog.of(bytes));
+  }
+}
@@ -0,0 +1,120 @@
+package redis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class StreamTest {
+
+  /**
+   * Random ranges both ways across many blocks, checked against a list, while trimming from the head
+   */
+  @Test
+  public void rangeTrim() {
+    Random random = new Random(1);
+    Stream stream = new Stream();
+    List<Stream.ID> ids = new ArrayList<Stream.ID>();
+    List<byte[][]> fields = new ArrayList<byte[][]>();
+    long ms = 1000;
+    for (int i = 0; i < 3000; i++) {
+      ms += random.nextInt(3);
+      Stream.ID id = stream.nextId(ms);
+      byte[][] entry = random.nextInt(5) == 0
+              ? new byte[][]{("f" + random.nextInt(3)).getBytes(), new byte[random.nextInt(200)]}
+              : new byte[][]{"name".getBytes(), ("v" + i).getBytes(), "n".getBytes(), String.valueOf(i).getBytes()};
+      stream.add(id, entry);
+      ids.add(id);
+      fields.add(entry);
+    }
+    Assert.assertTrue(stream.getBlockCount() >= 3000 / Stream.BLOCK_MAX_ENTRIES);
+    Assert.assertEquals(ids.get(ids.size() - 1), stream.getLastId());
+    for (int round = 0; round < 300; round++) {
+      if (round % 50 == 49) {
+        long removed = round % 100 == 49 ? stream.trim(ids.size() - 200, null, false, 0)
+                : stream.trim(-1, ids.get(150), false, 0);
+        Assert.assertTrue(removed > 0);
+        ids.subList(0, (int) removed).clear();
+        fields.subList(0, (int) removed).clear();
+        Assert.assertEquals(ids.size(), stream.size());
+        Assert.assertEquals(ids.get(0), stream.first());
+      }
+      int from = random.nextInt(ids.size());
+      int to = from + random.nextInt(ids.size() - from);
+      int count = random.nextInt(3) == 0 ? -1 : random.nextInt(50);
+      List<Stream.Entry> forward = stream.range(ids.get(from), ids.get(to), count, false);
+      List<Stream.Entry> backward = stream.range(ids.get(from), ids.get(to), count, true);
+      int expected = count < 0 ? to - from + 1 : Math.min(count, to - from + 1);
+      Assert.assertEquals(expected, forward.size());
+      Assert.assertEquals(expected, backward.size());
+      for (int i = 0; i < expected; i++) {
+        Assert.assertEquals(ids.get(from + i), forward.get(i).getId());
+        Assert.assertTrue(Arrays.deepEquals(fields.get(from + i), forward.get(i).getFields()));
+        Assert.assertEquals(ids.get(to - i), backward.get(i).getId());
+      }
+    }
+    Assert.assertNull(stream.get(Stream.ID.MIN));
+    Assert.assertEquals(0, stream.range(Stream.ID.MIN, Stream.ID.MAX, 0, false).size());
+  }
+
+  /**
+   * Approximate trimming only drops whole blocks and stops at the limit
+   */
+  @Test
+  public void approxTrim() {
+    Stream stream = new Stream();
+    for (int i = 1; i <= 1000; i++) {
+      stream.add(new Stream.ID(i, 0), new byte[][]{"f".getBytes(), "v".getBytes()});
+    }
+    Assert.assertEquals(0, stream.trim(950, null, true, 0));
+    Assert.assertEquals(800, stream.trim(150, null, true, 0));
+    Assert.assertEquals(200, stream.size());
+    Assert.assertEquals(100, stream.trim(0, null, true, 150));
+    Assert.assertEquals(new Stream.ID(901, 0), stream.first());
+    Assert.assertEquals(100, stream.trim(0, null, false, 0));
+    Assert.assertNull(stream.first());
+    Assert.assertEquals(new Stream.ID(1000, 0), stream.getLastId());
+    Assert.assertEquals(new Stream.ID(1000, 1), stream.nextId(999));
+  }
+
+  @Test
+  public void groups() {
+    Stream stream = new Stream();
+    Assert.assertNotNull(stream.createGroup("g".getBytes(), Stream.ID.MIN));
+    Assert.assertNull(stream.createGroup("g".getBytes(), Stream.ID.MIN));
+    Stream.Group group = stream.group("g".getBytes());
+    Stream.Consumer alice = group.consumer("alice".getBytes(), true);
+    Stream.Consumer bob = group.consumer("bob".getBytes(), true);
+    for (int i = 1; i <= 5; i++) {
+      group.deliver(i % 2 == 0 ? bob : alice, new Stream.ID(i, 0), i, 1);
+    }
+    Assert.assertEquals(5, group.getPending().size());
+    group.deliver(bob, new Stream.ID(1, 0), 10, 2);
+    Assert.assertEquals(2, alice.getPending().size());
+    Assert.assertEquals(3, bob.getPending().size());
+    Assert.assertTrue(group.ack(new Stream.ID(3, 0)));
+    Assert.assertFalse(group.ack(new Stream.ID(3, 0)));
+    Assert.assertEquals(3, group.deleteConsumer("bob".getBytes()));
+    Assert.assertEquals(-1, group.deleteConsumer("bob".getBytes()));
+    Assert.assertEquals(1, group.getPending().size());
+    Assert.assertTrue(stream.destroyGroup("g".getBytes()));
+    Assert.assertNull(stream.group("g".getBytes()));
+  }
+
+  @Test
+  public void parse() {
+    Assert.assertEquals(new Stream.ID(5, 0), Stream.ID.parse("5", 0));
+    Assert.assertEquals(new Stream.ID(5, Long.MAX_VALUE), Stream.ID.parse("5", Long.MAX_VALUE));
+    Assert.assertEquals(new Stream.ID(1526919030474L, 55), Stream.ID.parse("1526919030474-55", 0));
+    Assert.assertNull(Stream.ID.parse("5-", 0));
+    Assert.assertNull(Stream.ID.parse("-5", 0));
+    Assert.assertNull(Stream.ID.parse("a-1", 0));
+    Assert.assertNull(Stream.ID.parse("99999999999999999999", 0));
+    Assert.assertNull(Stream.ID.MAX.next());
+    Assert.assertNull(Stream.ID.MIN.prev());
+    Assert.assertEquals(new Stream.ID(4, Long.MAX_VALUE), new Stream.ID(5, 0).prev());
+  }
+}
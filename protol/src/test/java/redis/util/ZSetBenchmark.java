@@ -0,0 +1,115 @@
+package redis.util;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Old (ArrayZSet) vs new (skiplist ZSet) ns/op for add, update and rank at
+ * n = 10k, 100k and 1M members with random integer scores. Not a test, run
+ * it by hand after building protol:
+ * <pre>
+ * java -cp protol/target/classes:protol/target/test-classes:guava.jar redis.util.ZSetBenchmark
+ * </pre>
+ * Each cell is the last of ROUNDS rounds, the earlier ones warm up the JIT.
+ */
+public class ZSetBenchmark {
+
+  static final int ROUNDS = 3;
+  static final int[] SIZES = {10000, 100000, 1000000};
+  // the old rank is a scan of the list, keep its rounds short at 1M
+  static final int[] RANK_OPS = {1000, 200, 100};
+  static final int WRITE_OPS = 10000;
+  // keeps the ranks from being optimized away
+  static long sink;
+
+  interface Target {
+    boolean add(BytesKey key, double score);
+
+    int rank(byte[] member);
+  }
+
+  static Target oldZSet() {
+    final ArrayZSet zset = new ArrayZSet();
+    return new Target() {
+      @Override
+      public boolean add(BytesKey key, double score) {
+        return zset.add(key, score);
+      }
+
+      @Override
+      public int rank(byte[] member) {
+        return zset.rank(member);
+      }
+    };
+  }
+
+  static Target newZSet() {
+    final ZSet zset = new ZSet();
+    return new Target() {
+      @Override
+      public boolean add(BytesKey key, double score) {
+        return zset.add(key, score);
+      }
+
+      @Override
+      public int rank(byte[] member) {
+        return zset.rank(member);
+      }
+    };
+  }
+
+  public static void main(String[] args) {
+    for (int s = 0; s < SIZES.length; s++) {
+      int n = SIZES[s];
+      long[] before = run(oldZSet(), n, RANK_OPS[s]);
+      long[] after = run(newZSet(), n, RANK_OPS[s]);
+      System.out.println(String.format("n=%-6s add %d -> %d    update %d -> %d    rank %d -> %d",
+          n >= 1000000 ? n / 1000000 + "M" : n / 1000 + "k", before[0], after[0], before[1], after[1], before[2], after[2]));
+    }
+    System.out.println("sink " + sink);
+  }
+
+  /**
+   * @return ns/op of add, update and rank in the last round
+   */
+  static long[] run(Target zset, int n, int rankOps) {
+    Random random = new Random(1);
+    // insert in score order, so building the array version does not shift
+    long[] entries = new long[n];
+    for (int i = 0; i < n; i++) {
+      entries[i] = (long) random.nextInt(n) << 32 | i;
+    }
+    Arrays.sort(entries);
+    for (long e : entries) {
+      zset.add(key("m" + (int) e), e >>> 32);
+    }
+    long[] result = new long[3];
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < WRITE_OPS; i++) {
+        zset.add(key("a" + round + "-" + i), random.nextInt(n));
+      }
+      result[0] = (System.nanoTime() - start) / WRITE_OPS;
+
+      start = System.nanoTime();
+      for (int i = 0; i < WRITE_OPS; i++) {
+        zset.add(key("m" + random.nextInt(n)), random.nextInt(n));
+      }
+      result[1] = (System.nanoTime() - start) / WRITE_OPS;
+
+      // the old update may drop another member with the same score, so a rank can miss
+      start = System.nanoTime();
+      for (int i = 0; i < rankOps; i++) {
+        sink += zset.rank(("m" + random.nextInt(n)).getBytes(Charsets.UTF_8));
+      }
+      result[2] = (System.nanoTime() - start) / rankOps;
+    }
+    return result;
+  }
+
+  static BytesKey key(String member) {
+    return new BytesKey(member.getBytes(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,123 @@
+package redis.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class ZSetTest {
+
+  /**
+   * Random adds and removes with many equal scores, checked against a TreeMap ordered by (score, key)
+   */
+  @Test
+  public void addRemoveRank() {
+    ZSet zset = new ZSet();
+    Map<String, Double> scores = new HashMap<String, Double>();
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String member = "m" + random.nextInt(500);
+      if (random.nextInt(3) == 0) {
+        Assert.assertEquals(scores.remove(member) != null, zset.remove(member.getBytes()));
+      } else {
+        double score = random.nextInt(20);
+        Assert.assertEquals(!scores.containsKey(member), zset.add(new BytesKey(member.getBytes()), score));
+        scores.put(member, score);
+      }
+      if (i % 1000 == 0) {
+        check(zset, scores);
+      }
+    }
+    check(zset, scores);
+
+    for (int rank = 0; rank < zset.size(); rank += 97) {
+      ZSetEntry entry = zset.getByRank(rank);
+      Assert.assertEquals(rank, zset.scoreRank(entry.getScore(), false) + countEqualBefore(zset, rank));
+    }
+
+    ZSet copy = new ZSet(zset);
+    zset.remove("m1".getBytes());
+    Assert.assertEquals(scores.size(), copy.size());
+  }
+
+  @Test
+  public void ranges() {
+    ZSet zset = new ZSet();
+    for (int i = 0; i < 10; i++) {
+      zset.add(new BytesKey(("m" + i).getBytes()), i / 2);
+    }
+    Assert.assertEquals(2, zset.scoreRank(1.0, false));
+    Assert.assertEquals(6, zset.scoreRank(2.0, true));
+    Assert.assertEquals(10, zset.scoreRank(100.0, false));
+    Assert.assertEquals(0, zset.scoreRank(Double.NEGATIVE_INFINITY, true));
+    Assert.assertEquals(Arrays.asList("m0", "m1"), keys(zset.subSet(-5, 1)));
+    Assert.assertEquals(Arrays.asList("m9"), keys(zset.subSet(9, 20)));
+    Assert.assertEquals(Collections.emptyList(), keys(zset.subSet(10, 20)));
+    Assert.assertEquals(Arrays.asList("m5", "m4", "m3"), keys(zset.range(3, 5, true)));
+    Assert.assertEquals(Arrays.asList("m9", "m8"), keys(zset.range(8, 100, true)));
+    Assert.assertEquals(Arrays.asList("m2", "m1", "m0"), keys(iterable(zset.iterator(2, true))));
+    Assert.assertEquals(Arrays.asList("m8", "m9"), keys(iterable(zset.iterator(8, false))));
+    Assert.assertEquals(Collections.emptyList(), keys(new ZSet().range(0, -1, true)));
+    Assert.assertEquals(0, new ZSet().scoreRank(1.0, true));
+
+    ZSet lex = new ZSet();
+    for (String member : new String[]{"a", "b", "bb", "c", "\u00e9"}) {
+      lex.add(new BytesKey(member.getBytes(Charsets.UTF_8)), 0);
+    }
+    Assert.assertEquals(1, lex.lexRank("b".getBytes(), false));
+    Assert.assertEquals(2, lex.lexRank("b".getBytes(), true));
+    Assert.assertEquals(4, lex.lexRank("z".getBytes(), true));
+    Assert.assertEquals("\u00e9", new String(lex.getByRank(4).getKey().getBytes(), Charsets.UTF_8));
+  }
+
+  static int countEqualBefore(ZSet zset, int rank) {
+    int count = 0;
+    double score = zset.getByRank(rank).getScore();
+    for (int i = rank - 1; i >= 0 && zset.getByRank(i).getScore() == score; i--) {
+      count++;
+    }
+    return count;
+  }
+
+  static void check(ZSet zset, final Map<String, Double> scores) {
+    List<String> expected = new ArrayList<String>(scores.keySet());
+    Collections.sort(expected, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        int c = Double.compare(scores.get(o1), scores.get(o2));
+        return c != 0 ? c : UnsignedBytes.lexicographicalComparator().compare(o1.getBytes(), o2.getBytes());
+      }
+    });
+    Assert.assertEquals(expected.size(), zset.size());
+    Assert.assertEquals(expected, keys(zset));
+    for (int rank = 0; rank < expected.size(); rank++) {
+      String member = expected.get(rank);
+      Assert.assertEquals(rank, zset.rank(member.getBytes()));
+      Assert.assertEquals(member, new String(zset.getByRank(rank).getKey().getBytes()));
+      Assert.assertEquals(scores.get(member), zset.get(member.getBytes()).getScore(), 0);
+    }
+    Assert.assertEquals(-1, zset.rank("missing".getBytes()));
+    Assert.assertNull(zset.getByRank(expected.size()));
+    int from = expected.size() / 3, to = expected.size() / 2;
+    Assert.assertEquals(expected.subList(from, to + 1), keys(zset.subSet(from, to)));
+  }
+
+  static Iterable<ZSetEntry> iterable(final Iterator<ZSetEntry> iterator) {
+    return new Iterable<ZSetEntry>() {
+      @Override
+      public Iterator<ZSetEntry> iterator() {
+        return iterator;
+      }
+    };
+  }
+
+  static List<String> keys(Iterable<ZSetEntry> entries) {
+    List<String> keys = new ArrayList<String>();
+    for (ZSetEntry entry : entries) {
+      keys.add(new String(entry.getKey().getBytes()));
+    }
+    return keys;
+  }
+}
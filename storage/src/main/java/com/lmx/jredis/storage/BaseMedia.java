@@ -7,15 +7,22 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TODO 接口化，自己写一个NIO的储存，增加单元测试储存性能
  * 存储单元
+ * 文件由若干个固定大小的映射段(segment)组成,写满后自动追加新段
+ * 地址为long: 高32位段号,低32位段内偏移
+ * 所有读写都按绝对地址进行,不修改共享buffer的position;追加位置通过CAS预留,多线程可以同时分配
  * Created by lmx on 2017/4/14.
  */
 public class BaseMedia {
-    MappedByteBuffer buffer;
+    List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
     int size = 1024 * 1024;
+    int segmentSize;
     FileChannel fileChannel;
     static File file;
     static File defaultFile;
@@ -24,8 +31,16 @@ public class BaseMedia {
     final public static String CHARSET = "UTF-8";
     final char NORMAL = '1';
     final char DELETE = '0';
-    int maxUnit = 1024;
     static int dbLength = 4;
+    /**
+     * 段0头部8字节存放下一个可写地址
+     */
+    final static int HEAD = 8;
+    /**
+     * 下一个可写地址,分配时CAS预留,再同步到头部
+     */
+    final AtomicLong next = new AtomicLong();
+    final Object headLock = new Object();
 
     static {
         file = new File(BASE_DIR);
@@ -50,7 +65,7 @@ public class BaseMedia {
      *
      * @param db
      * @param fileName
-     * @param memSize
+     * @param memSize  单个段大小(MB)
      * @throws Exception
      */
     public BaseMedia(int db, String fileName, int memSize) throws Exception {
@@ -58,22 +73,138 @@ public class BaseMedia {
             f = new File(defaultFile.getAbsolutePath() + File.separator + fileName);
         else
             f = new File(defaultFile.getParentFile().getAbsolutePath() + File.separator + db + File.separator + fileName);
-        if (!f.exists())
-            f.createNewFile();
-        fileChannel = new RandomAccessFile(f, "rw").getChannel();
-        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, memSize * size);
+        open(memSize);
     }
 
     public BaseMedia(String fileName, int memSize) throws Exception {
         f = new File(defaultFile.getAbsolutePath() + File.separator + fileName);
+        open(memSize);
+    }
+
+    void open(int memSize) throws Exception {
         if (!f.exists())
             f.createNewFile();
+        segmentSize = memSize * size;
         fileChannel = new RandomAccessFile(f, "rw").getChannel();
-        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, memSize * size);
+        long exists = (fileChannel.size() + segmentSize - 1) / segmentSize;
+        for (int i = 0; i < Math.max(1, exists); i++) {
+            mapSegment(i);
+        }
+        long tail = segments.get(0).getLong(0);
+        next.set(tail == 0 ? address(0, HEAD) : tail);
     }
 
-    public void clean() throws Exception {
+    synchronized MappedByteBuffer mapSegment(int seg) throws Exception {
+        while (segments.size() <= seg) {
+            segments.add(fileChannel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+        }
+        return segments.get(seg);
+    }
+
+    public static long address(int seg, int offset) {
+        return ((long) seg << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static int segment(long address) {
+        return (int) (address >>> 32);
+    }
+
+    public static int offset(long address) {
+        return (int) address;
+    }
+
+    MappedByteBuffer buffer(long address) {
+        return segments.get(segment(address));
+    }
+
+    /**
+     * 下一个可写地址
+     */
+    long tail() {
+        return next.get();
+    }
+
+    /**
+     * 为长度为length的记录预留空间,段内分配只需要一次CAS;
+     * 当前段放不下时由一个线程切换到下一个段(必要时映射新段),其他线程重试
+     *
+     * @param length 记录总长度
+     * @return 记录起始地址
+     */
+    long allocate(int length) throws Exception {
+        if (length > segmentSize - HEAD)
+            throw new RuntimeException("exceed max storage limited exception");
+        for (; ; ) {
+            long pos = next.get();
+            if (offset(pos) + length > segmentSize) {
+                synchronized (this) {
+                    if (next.get() == pos) {
+                        long seg = nextSegment(segment(pos));
+                        mapSegment(segment(seg));
+                        next.set(seg);
+                    }
+                }
+                continue;
+            }
+            if (next.compareAndSet(pos, pos + length)) {
+                synchronized (headLock) {
+                    segments.get(0).putLong(0, next.get());
+                }
+                return pos;
+            }
+        }
+    }
+
+    /**
+     * 当前段写满后下一条记录的起始地址
+     *
+     * @param current 当前段号
+     */
+    long nextSegment(int current) throws Exception {
+        return address(current + 1, 0);
+    }
+
+    /**
+     * 把所有映射段刷到磁盘
+     */
+    public void force() {
+        for (MappedByteBuffer buffer : segments) {
+            buffer.force();
+        }
+    }
+
+    public String getName() {
+        return f.getName();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 关闭文件并解除所有映射,之后不能再访问
+     */
+    public void close() throws Exception {
         fileChannel.close();
+        for (MappedByteBuffer buffer : segments) {
+            unmap(buffer);
+        }
+        segments.clear();
+    }
+
+    public void clean() throws Exception {
+        close();
+        delFile();
+    }
+
+    /**
+     * 立即解除映射,之后不能再访问buffer
+     */
+    static void unmap(final MappedByteBuffer buffer) {
         AccessController.doPrivileged(new PrivilegedAction<Object>() {
             public Object run() {
                 try {
@@ -81,7 +212,6 @@ public class BaseMedia {
                     getCleanerMethod.setAccessible(true);
                     sun.misc.Cleaner cleaner = (sun.misc.Cleaner) getCleanerMethod.invoke(buffer, new Object[0]);
                     cleaner.clean();
-                    delFile();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -0,0 +1,212 @@
+package com.lmx.jredis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * list/hash/set/zset/stream的元素目录,文件为[索引文件名].dir:每个容器有一块区域,按写入顺序记录元素索引记录的起始地址,
+ * 容器槽位的数据长度字段记录区域的位置(8字节为单位,0表示还没有区域),启动时不需要扫描索引记录重建容器.
+ * 区域:[容量][条目数][索引记录地址...],容量为4的2的幂倍;已删除的元素留在区域中,读取时按记录状态跳过,
+ * 区域放不下新元素时只带着存活的元素换到新区域.
+ * 文件头:[魔数][文件尾][各档容量的空闲区域链表],空闲区域的条目数位置记下一个空闲区域.
+ * 只在sync时修改,调用方保证期间没有写操作;先写区域再改槽位,本次替换下来的区域sync结束时才放入空闲链表,
+ * 异常退出最多泄漏区域
+ * Created by lmx on 2018/1/26.
+ */
+public class ContainerDirectory {
+    static final long MAGIC = 0x4A52444952310001L;
+    static final int CLASSES = 28;
+    static final int HEADER = 8 + 8 + 4 * CLASSES;
+    static final int MIN_CAPACITY = 4;
+
+    final File file;
+    final FileChannel channel;
+    /**
+     * 文件头的魔数正确,区域可以用来恢复容器
+     */
+    boolean valid;
+    long end;
+    final int[] free = new int[CLASSES];
+    /**
+     * 本次sync中被替换或随key删除的区域
+     */
+    final List<Integer> released = new ArrayList<>();
+
+    public ContainerDirectory(File file) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        ByteBuffer header = read(0, HEADER);
+        if (header != null && header.getLong() == MAGIC) {
+            end = header.getLong();
+            for (int i = 0; i < CLASSES; i++) {
+                free[i] = header.getInt();
+            }
+            valid = end >= HEADER && end <= channel.size();
+        }
+        if (!valid)
+            reset();
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * 丢弃所有区域,下一次sync之前文件头都是无效的
+     */
+    public void reset() throws IOException {
+        channel.truncate(0);
+        end = HEADER;
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = 0;
+        }
+        released.clear();
+        valid = false;
+        write(0, ByteBuffer.allocate(HEADER));
+    }
+
+    /**
+     * @return 区域中的全部索引记录地址, 区域不存在或越界时为空
+     */
+    public List<Long> read(int region) throws IOException {
+        List<Long> entries = new ArrayList<>();
+        ByteBuffer header = region == 0 ? null : read(pos(region), 8);
+        if (header == null)
+            return entries;
+        int capacity = header.getInt();
+        int size = header.getInt();
+        if (size < 0 || size > capacity || pos(region) + 8 + 8L * capacity > end)
+            return entries;
+        ByteBuffer b = read(pos(region) + 8, 8 * size);
+        for (int i = 0; i < size; i++) {
+            entries.add(b.getLong());
+        }
+        return entries;
+    }
+
+    /**
+     * 在区域末尾追加地址,先写地址再改条目数
+     *
+     * @return 区域不存在或放不下时返回false, 需要调用allocate换区域
+     */
+    public boolean append(int region, List<Long> added) throws IOException {
+        ByteBuffer header = region == 0 ? null : read(pos(region), 8);
+        if (header == null)
+            return false;
+        int capacity = header.getInt();
+        int size = header.getInt();
+        if (size < 0 || size + added.size() > capacity)
+            return false;
+        ByteBuffer b = ByteBuffer.allocate(8 * added.size());
+        for (Long address : added) {
+            b.putLong(address);
+        }
+        b.flip();
+        write(pos(region) + 8 + 8L * size, b);
+        write(pos(region) + 4, (ByteBuffer) ByteBuffer.allocate(4).putInt(size + added.size()).flip());
+        return true;
+    }
+
+    /**
+     * 分配容量不小于地址数两倍的区域并写入地址
+     *
+     * @return 新区域的位置
+     */
+    public int allocate(List<Long> entries) throws IOException {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * entries.size()) {
+            capacity <<= 1;
+        }
+        int k = Integer.numberOfTrailingZeros(capacity / MIN_CAPACITY);
+        if (k >= CLASSES)
+            throw new IllegalStateException("container of " + entries.size() + " elements exceeds directory capacity");
+        int region = free[k];
+        if (region != 0) {
+            free[k] = read(pos(region) + 4, 4).getInt();
+        } else {
+            if ((end >>> 3) > Integer.MAX_VALUE)
+                throw new IllegalStateException(file + " exceeds max size");
+            region = (int) (end >>> 3);
+            end += 8 + 8L * capacity;
+        }
+        //整块写入,文件长度始终覆盖到文件尾
+        ByteBuffer b = ByteBuffer.allocate(8 + 8 * capacity);
+        b.putInt(capacity).putInt(entries.size());
+        for (Long address : entries) {
+            b.putLong(address);
+        }
+        b.clear();
+        write(pos(region), b);
+        return region;
+    }
+
+    /**
+     * 区域不再被槽位引用,sync结束时放入空闲链表
+     */
+    public void release(int region) {
+        if (region != 0)
+            released.add(region);
+    }
+
+    /**
+     * 释放区域并写入文件头后刷盘
+     */
+    public void sync() throws IOException {
+        for (Integer region : released) {
+            ByteBuffer header = read(pos(region), 4);
+            if (header == null)
+                continue;
+            int k = Integer.numberOfTrailingZeros(header.getInt() / MIN_CAPACITY);
+            write(pos(region) + 4, (ByteBuffer) ByteBuffer.allocate(4).putInt(free[k]).flip());
+            free[k] = region;
+        }
+        released.clear();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(MAGIC).putLong(end);
+        for (int i = 0; i < CLASSES; i++) {
+            header.putInt(free[i]);
+        }
+        header.flip();
+        write(0, header);
+        channel.force(false);
+        valid = true;
+    }
+
+    /**
+     * @return 文件大小, 包括空闲区域
+     */
+    public long getBytes() {
+        return end;
+    }
+
+    static long pos(int region) {
+        return (long) region << 3;
+    }
+
+    ByteBuffer read(long pos, int length) throws IOException {
+        if (pos + length > channel.size())
+            return null;
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0)
+                return null;
+        }
+        b.flip();
+        return b;
+    }
+
+    void write(long pos, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b, pos + b.position());
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
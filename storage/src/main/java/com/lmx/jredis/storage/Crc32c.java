@@ -0,0 +1,68 @@
+package com.lmx.jredis.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.lmx.jredis.storage.DirectMemory.UNSAFE;
+
+/**
+ * CRC32C(Castagnoli),JDK8没有自带实现;按slicing-by-8每次处理8个字节,可以直接校验映射区
+ * 用法:crc = update(INIT, ...), 结果为finish(crc)
+ * Created by lmx on 2017/12/29.
+ */
+final class Crc32c {
+    static final int INIT = ~0;
+    static final int POLY = 0x82F63B78;
+    static final int[][] T = new int[8][256];
+    static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            T[0][i] = c;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int k = 1; k < 8; k++) {
+                T[k][i] = (T[k - 1][i] >>> 8) ^ T[0][T[k - 1][i] & 0xFF];
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    static int update(int crc, byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length)
+            throw new IndexOutOfBoundsException();
+        return update(crc, bytes, DirectMemory.BYTE_ARRAY_OFFSET + offset, length);
+    }
+
+    static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        return update(crc, null, DirectMemory.address(buffer, offset, length), length);
+    }
+
+    static int update(int crc, Object base, long address, int length) {
+        while (length >= 8) {
+            long v = UNSAFE.getLong(base, address);
+            if (!LITTLE_ENDIAN)
+                v = Long.reverseBytes(v);
+            int lo = (int) v ^ crc;
+            int hi = (int) (v >>> 32);
+            crc = T[7][lo & 0xFF] ^ T[6][(lo >>> 8) & 0xFF] ^ T[5][(lo >>> 16) & 0xFF] ^ T[4][lo >>> 24]
+                    ^ T[3][hi & 0xFF] ^ T[2][(hi >>> 8) & 0xFF] ^ T[1][(hi >>> 16) & 0xFF] ^ T[0][hi >>> 24];
+            address += 8;
+            length -= 8;
+        }
+        while (length-- > 0) {
+            crc = (crc >>> 8) ^ T[0][(crc ^ UNSAFE.getByte(base, address++)) & 0xFF];
+        }
+        return crc;
+    }
+
+    static int finish(int crc) {
+        return ~crc;
+    }
+}
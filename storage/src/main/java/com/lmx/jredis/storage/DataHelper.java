@@ -8,10 +8,12 @@ import lombok.Data;
 @Data
 public class DataHelper {
     String type = DataTypeEnum.KV.getDesc();
-    String key;
-    String hash;
-    int pos;//value position
-    int selfPos;//key position
+    byte[] key;
+    byte[] hash;
+    volatile long pos;//value address, moved by compaction
+    long selfPos;//key address
     int length;//value bytes length
+    volatile int version;//odd while the value is being rewritten, readers retry on change
+    long slot;//slot address in the off-heap HashIndex, 0 for list/hash elements
     long expire;//timeout
 }
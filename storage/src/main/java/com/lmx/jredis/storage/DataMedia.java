@@ -1,13 +1,92 @@
 package com.lmx.jredis.storage;
 
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 数据(value)存储区
- * 格式：头四位放最新值的position,其次是数据长度和数据内容
+ * 格式：头八位放最新值的地址,其次是按大小分档的自描述记录
+ * [key长度][key][field长度][field][前缀长度][crc32c][序号][类型][槽位大小][数据长度][数据...槽位][状态位]
+ * key/field长度为变长整数,前缀长度为记录开头到数据的字节数;数据地址(DataHelper.pos)指向数据,
+ * 定长部分按数据地址往前取.序号每次写入递增,同一个key以序号最大的为准,list按序号排列.
+ * crc32c覆盖key/field/序号/类型/数据长度/数据,槽位大小和状态位不在校验范围内(搬迁和删除时会修改).
+ * 索引丢失时可以用scan并行扫描全部数据记录重建,也可以只校验不重建(scrub)
+ * 每个段记录存活字节数,存活率低的段由compact搬迁存活记录后回收复用
+ * 写操作在lock内串行执行,读操作不加锁,通过DataHelper.version校验读到的是完整数据
+ * 各段存活字节数在刷盘时保存到[文件名].live,索引没有变化时启动直接加载,不需要遍历所有记录
  * Created by lmx on 2017/4/13.
  */
+@Slf4j
 public class DataMedia extends BaseMedia {
+    /**
+     * 回收的段在宽限期后才能复用,保证并发读取旧地址的请求读完
+     */
+    static long reuseGraceMs = 1000;
+    /**
+     * 数据之前的定长部分:[前缀长度][crc32c][序号][类型][槽位大小][数据长度],下面是相对数据地址的偏移
+     */
+    static final int FIXED = 4 + 4 + 8 + 1 + 4 + 4;
+    static final int PREFIX = -25;
+    static final int CRC = -21;
+    static final int SEQ = -17;
+    static final int TYPE = -9;
+    static final int CAPACITY = -8;
+    static final int LENGTH = -4;
+    static final byte[] NO_KEY = new byte[0];
+    final ReentrantLock lock = new ReentrantLock();
+    long[] live = new long[0];
+    Map<Integer, Long> quarantine = new LinkedHashMap<>();
+    /**
+     * 最后一次写入的序号
+     */
+    long seq;
+    /**
+     * 复用回收段的次数,scan期间变化说明段内容可能被覆盖
+     */
+    volatile long recycled;
+    /**
+     * 最近一次scan的结果
+     */
+    volatile ScanResult lastScan;
+
+    /**
+     * scan遍历到的每条未删除且校验通过的记录,会被多个线程同时调用
+     */
+    public interface Visitor {
+        void visit(byte type, byte[] key, byte[] field, long seq, DataHelper dh) throws Exception;
+    }
+
+    @Data
+    public static class ScanResult {
+        long records;
+        long live;
+        long corrupt;
+        long torn;
+        long bytes;
+        long millis;
+        /**
+         * 尾部写了一半的第一条记录的起始地址,没有时为-1
+         */
+        long tornAt = -1;
+
+        /**
+         * @return 每秒扫描的MB数
+         */
+        public double getMbPerSecond() {
+            return bytes / 1024.0 / 1024 / Math.max(1, millis) * 1000;
+        }
+    }
 
     public DataMedia(String fileName, int size) throws Exception {
         super(fileName, size);
@@ -17,50 +96,781 @@ public class DataMedia extends BaseMedia {
         super(db, fileName, size);
     }
 
+    /**
+     * 兼容旧格式的写入,b中为[长度][数据],不记录key
+     */
     public DataHelper add(ByteBuffer b) throws Exception {
-        int pos = 0;
-        if ((pos = buffer.getInt()) != 0)
-            buffer.position(pos);
-        else
-            buffer.position(4);
-        buffer.put(b);
-        buffer.putChar(NORMAL);
-        DataHelper dh = new DataHelper();
-        dh.pos = pos == 0 ? 4 + 4 : pos + 4;
-        int curPos = buffer.position();
-        buffer.position(0);
-        buffer.putInt(curPos);//head 4 byte in last postion
-        buffer.rewind();
-        return dh;
+        byte[] value = new byte[b.getInt()];
+        b.get(value);
+        return add(value);
+    }
+
+    /**
+     * 不记录key的写入,这样的记录不能用来重建索引
+     */
+    public DataHelper add(byte[] value) throws Exception {
+        return add((byte) 0, NO_KEY, null, value);
+    }
+
+    /**
+     * @param type  DataTypeEnum.getCode()
+     * @param key   所属的key,hash为hash名
+     * @param field hash的field,list块的编号,其他类型为null
+     */
+    public DataHelper add(byte type, byte[] key, byte[] field, byte[] value) throws Exception {
+        lock.lock();
+        try {
+            long pos = write(type, key, field, value);
+            addLive(segment(pos), recordLength(buffer(pos), offset(pos)));
+            DataHelper dh = new DataHelper();
+            dh.pos = pos;
+            dh.length = value.length;
+            return dh;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按value长度分配合适的槽位,写入完整的记录
+     *
+     * @return 数据地址
+     */
+    long write(byte type, byte[] key, byte[] field, byte[] value) throws Exception {
+        return write(type, key, field, value, 0);
+    }
+
+    /**
+     * @param reserve 槽位至少能放下的数据长度,给之后原地追加留出空间
+     */
+    long write(byte type, byte[] key, byte[] field, byte[] value, int reserve) throws Exception {
+        int fieldLength = field == null ? 0 : field.length;
+        int prefix = Varint.size(key.length) + key.length + Varint.size(fieldLength) + fieldLength + FIXED;
+        int capacity = slotSize(Math.max(value.length, reserve));
+        long start = allocate(prefix + capacity + 2);
+        MappedByteBuffer buffer = buffer(start);
+        int offset = Varint.put(buffer, offset(start), key.length);
+        DirectMemory.put(buffer, offset, key, 0, key.length);
+        offset = Varint.put(buffer, offset + key.length, fieldLength);
+        if (field != null)
+            DirectMemory.put(buffer, offset, field, 0, fieldLength);
+        int pos = offset(start) + prefix;
+        buffer.putInt(pos + PREFIX, prefix);
+        buffer.putLong(pos + SEQ, ++seq);
+        buffer.put(pos + TYPE, type);
+        buffer.putInt(pos + CAPACITY, capacity);
+        buffer.putInt(pos + LENGTH, value.length);
+        DirectMemory.put(buffer, pos, value, 0, value.length);
+        buffer.putInt(pos + CRC, crc(buffer, pos, value.length));
+        buffer.putChar(pos + capacity, NORMAL);
+        return address(segment(start), pos);
+    }
+
+    /**
+     * 按映射区中的内容计算记录的crc32c
+     *
+     * @param offset 数据在段内的偏移
+     */
+    static int crc(MappedByteBuffer buffer, int offset, int length) {
+        int prefix = buffer.getInt(offset + PREFIX);
+        int crc = Crc32c.update(Crc32c.INIT, buffer, offset - prefix, prefix - FIXED);
+        crc = Crc32c.update(crc, buffer, offset + SEQ, 8 + 1);
+        //数据长度和数据是连续的
+        crc = Crc32c.update(crc, buffer, offset + LENGTH, 4 + length);
+        return Crc32c.finish(crc);
     }
 
     public byte[] get(DataHelper dh) {
-        buffer.position(dh.pos);
-        byte[] data = new byte[dh.length];
-        buffer.get(data);
-        if (buffer.getChar() == DELETE)
-            return null;
-        buffer.rewind();
-        return data;
+        for (; ; ) {
+            int version = dh.version;
+            if ((version & 1) == 0) {
+                long pos = dh.pos;
+                MappedByteBuffer buffer = buffer(pos);
+                int offset = offset(pos);
+                int capacity = capacity(buffer, offset);
+                byte[] data = null;
+                //读到的是已经被复用的旧地址时槽位大小不可信,由调用方校验后重试
+                if (capacity >= 0 && offset + capacity + 2 <= segmentSize && buffer.getChar(offset + capacity) != DELETE) {
+                    data = new byte[Math.min(dh.length, capacity)];
+                    DirectMemory.get(buffer, offset, data, 0, data.length);
+                }
+                DirectMemory.loadFence();
+                if (dh.version == version)
+                    return data;
+            }
+            Thread.yield();
+        }
     }
 
     public void remove(DataHelper dh) {
-        buffer.position(dh.pos + dh.length);
-        buffer.putChar(DELETE);
-        buffer.rewind();
-    }
-
-    public DataHelper update(DataHelper dh, byte[] newBuf) {
-        buffer.position(dh.pos - 4);
-        int length = newBuf.length;
-        if (length > maxUnit)
-            throw new RuntimeException("exceed max storage limited exception");
-        else {
-            buffer.putInt(length);
-            buffer.put(newBuf);
-            dh.length = length;
-            buffer.rewind();
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = buffer(dh.pos);
+            int capacity = capacity(buffer, offset(dh.pos));
+            int statusPos = offset(dh.pos) + capacity;
+            if (buffer.getChar(statusPos) == DELETE)
+                return;
+            buffer.putChar(statusPos, DELETE);
+            addLive(segment(dh.pos), -recordLength(buffer, offset(dh.pos)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 新值能放进原槽位时原地覆盖,否则带着原来的key写入新槽位并删除旧记录,dh.pos随之变化,
+     * 调用方需要通过IndexHelper.updateIndex同步索引.两种情况都会分配新的序号
+     */
+    public DataHelper update(DataHelper dh, byte[] newBuf) throws Exception {
+        lock.lock();
+        dh.version++;
+        try {
+            MappedByteBuffer buffer = buffer(dh.pos);
+            int offset = offset(dh.pos);
+            int capacity = capacity(buffer, offset);
+            if (newBuf.length <= capacity) {
+                DirectMemory.put(buffer, offset, newBuf, 0, newBuf.length);
+                buffer.putInt(offset + LENGTH, newBuf.length);
+                buffer.putLong(offset + SEQ, ++seq);
+                buffer.putInt(offset + CRC, crc(buffer, offset, newBuf.length));
+            } else {
+                byte[][] keyField = keyField(buffer, offset);
+                long pos = write(buffer.get(offset + TYPE), keyField[0], keyField[1], newBuf);
+                addLive(segment(pos), recordLength(buffer(pos), offset(pos)));
+                addLive(segment(dh.pos), -recordLength(buffer, offset));
+                buffer.putChar(offset + capacity, DELETE);
+                dh.pos = pos;
+            }
+            dh.length = newBuf.length;
             return dh;
+        } finally {
+            dh.version++;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在数据末尾追加:槽位剩余空间够时原地写入,只改写数据长度、序号和crc,不读出原数据;
+     * 否则带着原来的key写入至少能放下reserve字节的新槽位并删除旧记录,dh.pos随之变化,
+     * 调用方需要通过IndexHelper.updateIndex同步索引
+     */
+    public DataHelper append(DataHelper dh, byte[] tail, int reserve) throws Exception {
+        lock.lock();
+        dh.version++;
+        try {
+            MappedByteBuffer buffer = buffer(dh.pos);
+            int offset = offset(dh.pos);
+            int capacity = capacity(buffer, offset);
+            int length = buffer.getInt(offset + LENGTH);
+            if (length + tail.length <= capacity) {
+                DirectMemory.put(buffer, offset + length, tail, 0, tail.length);
+                buffer.putInt(offset + LENGTH, length + tail.length);
+                buffer.putLong(offset + SEQ, ++seq);
+                buffer.putInt(offset + CRC, crc(buffer, offset, length + tail.length));
+            } else {
+                byte[] data = new byte[length + tail.length];
+                DirectMemory.get(buffer, offset, data, 0, length);
+                System.arraycopy(tail, 0, data, length, tail.length);
+                byte[][] keyField = keyField(buffer, offset);
+                long pos = write(buffer.get(offset + TYPE), keyField[0], keyField[1], data, reserve);
+                addLive(segment(pos), recordLength(buffer(pos), offset(pos)));
+                addLive(segment(dh.pos), -recordLength(buffer, offset));
+                buffer.putChar(offset + capacity, DELETE);
+                dh.pos = pos;
+            }
+            dh.length = length + tail.length;
+            return dh;
+        } finally {
+            dh.version++;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 原地改写field(list块重新编号),新field和原来的长度相同,重新计算crc并分配新的序号
+     */
+    public void rename(DataHelper dh, byte[] field) {
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = buffer(dh.pos);
+            int offset = offset(dh.pos);
+            int start = offset - buffer.getInt(offset + PREFIX);
+            int keyLength = Varint.get(buffer, start, offset);
+            start += Varint.size(keyLength) + keyLength;
+            int fieldLength = Varint.get(buffer, start, offset);
+            if (fieldLength != field.length)
+                throw new IllegalArgumentException("field length " + field.length + " != " + fieldLength);
+            DirectMemory.put(buffer, start + Varint.size(fieldLength), field, 0, fieldLength);
+            stamp(dh);
+        } finally {
+            lock.unlock();
         }
     }
+
+    /**
+     * 不修改内容,只给记录分配新的序号
+     */
+    public void stamp(DataHelper dh) {
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = buffer(dh.pos);
+            int offset = offset(dh.pos);
+            buffer.putLong(offset + SEQ, ++seq);
+            buffer.putInt(offset + CRC, crc(buffer, offset, buffer.getInt(offset + LENGTH)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 记录的序号
+     */
+    public long seq(DataHelper dh) {
+        return buffer(dh.pos).getLong(offset(dh.pos) + SEQ);
+    }
+
+    /**
+     * @return 最后一次写入的序号,下一次写入的序号为它加1
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return 记录的field,没有时返回null
+     */
+    public byte[] field(DataHelper dh) {
+        lock.lock();
+        try {
+            return keyField(buffer(dh.pos), offset(dh.pos))[1];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从记录开头解析key和field,field长度为0时返回null
+     *
+     * @param offset 数据在段内的偏移
+     */
+    static byte[][] keyField(MappedByteBuffer buffer, int offset) {
+        int start = offset - buffer.getInt(offset + PREFIX);
+        byte[] key = new byte[Varint.get(buffer, start, offset)];
+        start += Varint.size(key.length);
+        DirectMemory.get(buffer, start, key, 0, key.length);
+        start += key.length;
+        int fieldLength = Varint.get(buffer, start, offset);
+        byte[] field = null;
+        if (fieldLength > 0) {
+            field = new byte[fieldLength];
+            DirectMemory.get(buffer, start + Varint.size(fieldLength), field, 0, fieldLength);
+        }
+        return new byte[][]{key, field};
+    }
+
+    static int capacity(MappedByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + CAPACITY);
+    }
+
+    /**
+     * 槽位大小:16字节起步,之后每个2的幂区间再分4档,浪费不超过25%
+     */
+    static int slotSize(int length) {
+        if (length <= 16)
+            return 16;
+        int step = Integer.highestOneBit(length - 1) >> 2;
+        return (length + step - 1) / step * step;
+    }
+
+    /**
+     * @param offset 数据在段内的偏移
+     * @return 记录总长度:前缀+槽位+状态位
+     */
+    static int recordLength(MappedByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + PREFIX) + capacity(buffer, offset) + 2;
+    }
+
+    void addLive(int seg, long delta) {
+        if (live.length <= seg)
+            live = Arrays.copyOf(live, segments.size());
+        live[seg] += delta;
+    }
+
+    /**
+     * 优先复用已回收的段,其次映射新段
+     */
+    @Override
+    long nextSegment(int current) throws Exception {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Integer, Long>> it = quarantine.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Long> e = it.next();
+            if (now - e.getValue() >= reuseGraceMs) {
+                it.remove();
+                int seg = e.getKey();
+                //清掉旧记录,scan遇到全0即认为段结束,不会把残留的旧记录当成有效数据
+                int begin = seg == 0 ? HEAD : 0;
+                DirectMemory.fill(segments.get(seg), begin, segmentSize - begin, (byte) 0);
+                recycled++;
+                return address(seg, begin);
+            }
+        }
+        return address(segments.size(), 0);
+    }
+
+    /**
+     * 启动时根据索引重新统计每个段的存活字节数和最大序号,没有存活数据的段直接回收
+     *
+     * @param records 当前存活的所有记录
+     */
+    public void recoverStats(Collection<DataHelper> records) {
+        lock.lock();
+        try {
+            live = new long[segments.size()];
+            for (DataHelper dh : records) {
+                MappedByteBuffer buffer = buffer(dh.pos);
+                addLive(segment(dh.pos), recordLength(buffer, offset(dh.pos)));
+                seq = Math.max(seq, buffer.getLong(offset(dh.pos) + SEQ));
+            }
+            int tailSeg = segment(tail());
+            for (int seg = 0; seg < segments.size(); seg++) {
+                if (seg != tailSeg && live[seg] == 0)
+                    quarantine.put(seg, 0L);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 映射段刷盘后保存各段存活字节数和当前序号:[尾地址][序号][段数][存活字节...]
+     */
+    @Override
+    public void force() {
+        super.force();
+        lock.lock();
+        try {
+            ByteBuffer b = ByteBuffer.allocate(8 + 8 + 4 + 8 * segments.size());
+            b.putLong(tail());
+            b.putLong(seq);
+            b.putInt(segments.size());
+            for (int seg = 0; seg < segments.size(); seg++) {
+                b.putLong(liveBytes(seg));
+            }
+            b.flip();
+            RandomAccessFile raf = new RandomAccessFile(statsFile(), "rw");
+            try {
+                raf.setLength(0);
+                raf.getChannel().write(b);
+                raf.getChannel().force(true);
+            } finally {
+                raf.close();
+            }
+        } catch (Exception e) {
+            log.error("save live stats of {} error", getName(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    File statsFile() {
+        return new File(f.getPath() + ".live");
+    }
+
+    /**
+     * 加载上次刷盘时保存的存活字节数,调用方需要保证之后数据没有被修改过(索引是直接恢复的)
+     *
+     * @return 保存的统计和当前文件一致并加载成功
+     */
+    public boolean loadStats() {
+        File file = statsFile();
+        if (!file.exists())
+            return false;
+        lock.lock();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() != 20 + 8L * segments.size() || raf.readLong() != tail())
+                    return false;
+                long savedSeq = raf.readLong();
+                if (raf.readInt() != segments.size())
+                    return false;
+                seq = savedSeq;
+                live = new long[segments.size()];
+                for (int seg = 0; seg < live.length; seg++) {
+                    live[seg] = raf.readLong();
+                }
+            } finally {
+                raf.close();
+            }
+            int tailSeg = segment(tail());
+            for (int seg = 0; seg < segments.size(); seg++) {
+                if (seg != tailSeg && live[seg] == 0)
+                    quarantine.put(seg, 0L);
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("load live stats of {} error", getName(), e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void delFile() {
+        super.delFile();
+        statsFile().delete();
+    }
+
+    /**
+     * @return 存活率低于liveRatio的已写满段(不含待复用的段)
+     */
+    public Set<Integer> victims(double liveRatio) {
+        Set<Integer> victims = new HashSet<>();
+        lock.lock();
+        try {
+            int tailSeg = segment(tail());
+            for (int seg = 0; seg < segments.size(); seg++) {
+                if (seg == tailSeg || quarantine.containsKey(seg))
+                    continue;
+                if (liveBytes(seg) < usedBytes(seg) * liveRatio)
+                    victims.add(seg);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return victims;
+    }
+
+    /**
+     * 增量压缩:挑选存活率低于liveRatio的已写满段,把其中存活记录逐条搬到日志尾部,
+     * 同时更新数据地址和索引记录,段内存活字节清零后进入待复用队列.
+     * 每条记录搬迁单独加锁,可以和正常读写同时进行
+     *
+     * @param records   当前存活的所有记录
+     * @param ih        记录所属的索引
+     * @param liveRatio 存活率阈值
+     * @return 搬迁的记录数
+     */
+    public int compact(Collection<DataHelper> records, IndexHelper ih, double liveRatio) throws Exception {
+        Set<Integer> victims = victims(liveRatio);
+        if (victims.isEmpty())
+            return 0;
+        int moved = 0;
+        for (DataHelper dh : records) {
+            lock.lock();
+            try {
+                if (victims.contains(segment(dh.pos))) {
+                    dh.version++;
+                    try {
+                        if (move(dh)) {
+                            ih.updatePos(dh);
+                            moved++;
+                        }
+                    } finally {
+                        dh.version++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (Integer seg : victims) {
+                if (liveBytes(seg) == 0)
+                    quarantine.put(seg, now);
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.info("compact {} victims {}, moved {} records", getName(), victims, moved);
+        return moved;
+    }
+
+    /**
+     * 整条记录(含key和序号)原样复制到日志尾部,只有槽位大小按数据长度重新计算,crc不变;
+     * 旧记录标记为删除,避免scan时出现两条相同的记录.调用方负责修改dh.version
+     */
+    boolean move(DataHelper dh) throws Exception {
+        long old = dh.pos;
+        MappedByteBuffer buffer = buffer(old);
+        int offset = offset(old);
+        int capacity = capacity(buffer, offset);
+        if (buffer.getChar(offset + capacity) == DELETE)
+            return false;
+        int prefix = buffer.getInt(offset + PREFIX);
+        int newCapacity = slotSize(dh.length);
+        long start = allocate(prefix + newCapacity + 2);
+        MappedByteBuffer dest = buffer(start);
+        int pos = offset(start) + prefix;
+        DirectMemory.copy(buffer, offset - prefix, dest, offset(start), prefix + dh.length);
+        dest.putInt(pos + CAPACITY, newCapacity);
+        dest.putChar(pos + newCapacity, NORMAL);
+        addLive(segment(start), recordLength(dest, pos));
+        addLive(segment(old), -recordLength(buffer, offset));
+        dh.pos = address(segment(start), pos);
+        buffer.putChar(offset + capacity, DELETE);
+        return true;
+    }
+
+    long usedBytes(int seg) {
+        if (quarantine.containsKey(seg))
+            return 0;
+        long tail = tail();
+        if (seg == segment(tail))
+            return offset(tail) - (seg == 0 ? HEAD : 0);
+        return segmentSize - (seg == 0 ? HEAD : 0);
+    }
+
+    long liveBytes(int seg) {
+        return seg < live.length ? live[seg] : 0;
+    }
+
+    public long getLiveBytes() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (int seg = 0; seg < segments.size(); seg++) {
+                total += liveBytes(seg);
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDeadBytes() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (int seg = 0; seg < segments.size(); seg++) {
+                total += usedBytes(seg) - liveBytes(seg);
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 存活字节占已用字节的比例
+     */
+    public double getLiveRatio() {
+        long live = getLiveBytes(), dead = getDeadBytes();
+        return live + dead == 0 ? 1 : (double) live / (live + dead);
+    }
+
+    /**
+     * 每个段一个任务并行扫描全部记录,逐条校验结构和crc32c.
+     * 结构不合法表示段结束(段尾未写满的部分为0),之后还有非0内容时记为损坏;
+     * crc不符的记录不交给visitor,是尾段最后一条时记为写了一半(torn),否则记为损坏.
+     * 可以和正常读写同时进行:只扫描开始时尾地址之前的记录,crc不符时加锁重新校验一次,排除正在原地更新的记录.
+     * 压缩后尾部会复用回收的低段,尾段之后的段仍然有存活记录,所以扫描除回收段之外的所有段,尾地址只用来限定尾段的结束位置
+     *
+     * @param visitor 为null时只校验(scrub)
+     */
+    public ScanResult scan(ForkJoinPool pool, final Visitor visitor) throws Exception {
+        long start = System.currentTimeMillis();
+        final long tail;
+        final Set<Integer> skip;
+        final long recycledAt;
+        int count;
+        lock.lock();
+        try {
+            tail = tail();
+            count = segments.size();
+            skip = new HashSet<>(quarantine.keySet());
+            recycledAt = recycled;
+        } finally {
+            lock.unlock();
+        }
+        final ScanResult result = new ScanResult();
+        final AtomicLong[] counters = new AtomicLong[]{new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()};
+        final AtomicLong tornAt = new AtomicLong(-1);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int seg = 0; seg < count; seg++) {
+            if (skip.contains(seg))
+                continue;
+            final int s = seg;
+            tasks.add(pool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    scan(s, tail, recycledAt, visitor, counters, tornAt);
+                    return null;
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.get();
+        }
+        result.records = counters[0].get();
+        result.live = counters[1].get();
+        result.corrupt = counters[2].get();
+        result.torn = counters[3].get();
+        result.bytes = counters[4].get();
+        result.tornAt = tornAt.get();
+        result.millis = System.currentTimeMillis() - start;
+        lastScan = result;
+        return result;
+    }
+
+    public ScanResult scan(final Visitor visitor) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return scan(pool, visitor);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @param counters 记录数,未删除记录数,损坏数,torn数,扫描字节数
+     */
+    void scan(int seg, long tail, long recycledAt, Visitor visitor, AtomicLong[] counters, AtomicLong tornAt) throws Exception {
+        MappedByteBuffer buffer = segments.get(seg);
+        boolean tailSeg = seg == segment(tail);
+        int end = tailSeg ? offset(tail) : segmentSize;
+        int offset = seg == 0 ? HEAD : 0;
+        long records = 0, live = 0, corrupt = 0;
+        while (offset < end) {
+            int pos = parse(buffer, offset, end);
+            if (pos < 0) {
+                if (tailSeg) {
+                    //分配了空间但没有写完整
+                    tornAt.set(address(seg, offset));
+                    counters[3].incrementAndGet();
+                } else if (!isZero(buffer, offset, end)) {
+                    log.warn("{} segment {} broken at {}", getName(), seg, offset);
+                    corrupt++;
+                }
+                break;
+            }
+            int recordEnd = pos + capacity(buffer, pos) + 2;
+            records++;
+            if (buffer.getChar(pos + capacity(buffer, pos)) == NORMAL) {
+                int length = buffer.getInt(pos + LENGTH);
+                if (buffer.getInt(pos + CRC) != crc(buffer, pos, length) && !recheck(buffer, pos, recycledAt)) {
+                    if (tailSeg && recordEnd == end) {
+                        tornAt.set(address(seg, offset));
+                        counters[3].incrementAndGet();
+                    } else {
+                        log.warn("{} crc mismatch at segment {} offset {}", getName(), seg, pos);
+                        corrupt++;
+                    }
+                } else {
+                    live++;
+                    if (visitor != null) {
+                        byte[] key = new byte[Varint.get(buffer, offset, pos)];
+                        int p = offset + Varint.size(key.length);
+                        DirectMemory.get(buffer, p, key, 0, key.length);
+                        p += key.length;
+                        int fieldLength = Varint.get(buffer, p, pos);
+                        byte[] field = null;
+                        if (fieldLength > 0) {
+                            field = new byte[fieldLength];
+                            DirectMemory.get(buffer, p + Varint.size(fieldLength), field, 0, fieldLength);
+                        }
+                        DataHelper dh = new DataHelper();
+                        dh.pos = address(seg, pos);
+                        dh.length = buffer.getInt(pos + LENGTH);
+                        visitor.visit(buffer.get(pos + TYPE), key, field, buffer.getLong(pos + SEQ), dh);
+                    }
+                }
+            }
+            offset = recordEnd;
+        }
+        counters[0].addAndGet(records);
+        counters[1].addAndGet(live);
+        counters[2].addAndGet(corrupt);
+        counters[4].addAndGet(offset - (seg == 0 ? HEAD : 0));
+    }
+
+    /**
+     * 校验offset处记录的结构
+     *
+     * @return 数据的偏移, 不合法时返回-1
+     */
+    int parse(MappedByteBuffer buffer, int offset, int end) {
+        int keyLength = Varint.get(buffer, offset, end);
+        if (keyLength < 0)
+            return -1;
+        int p = offset + Varint.size(keyLength) + keyLength;
+        int fieldLength = p < end ? Varint.get(buffer, p, end) : -1;
+        if (fieldLength < 0)
+            return -1;
+        long pos = (long) p + Varint.size(fieldLength) + fieldLength + FIXED;
+        if (pos > end || buffer.getInt((int) pos + PREFIX) != pos - offset)
+            return -1;
+        int capacity = capacity(buffer, (int) pos);
+        int length = buffer.getInt((int) pos + LENGTH);
+        if (capacity < 16 || length < 0 || length > capacity || pos + capacity + 2 > end)
+            return -1;
+        char status = buffer.getChar((int) pos + capacity);
+        return status == NORMAL || status == DELETE ? (int) pos : -1;
+    }
+
+    /**
+     * crc不符时加锁再校验一次,记录正在被原地更新、已经删除或所在段已被复用时不算损坏
+     */
+    boolean recheck(MappedByteBuffer buffer, int pos, long recycledAt) {
+        lock.lock();
+        try {
+            return recycled != recycledAt || buffer.getChar(pos + capacity(buffer, pos)) != NORMAL
+                    || buffer.getInt(pos + CRC) == crc(buffer, pos, buffer.getInt(pos + LENGTH));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static boolean isZero(MappedByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 丢弃从address开始写了一半的记录,之后从这里继续写.只能在启动时没有读写的情况下调用
+     */
+    public void discardTail(long address) {
+        lock.lock();
+        try {
+            if (address < 0 || address >= tail())
+                return;
+            MappedByteBuffer buffer = buffer(address);
+            DirectMemory.fill(buffer, offset(address), (segment(address) == segment(tail()) ? offset(tail()) : segmentSize) - offset(address), (byte) 0);
+            next.set(address);
+            synchronized (headLock) {
+                segments.get(0).putLong(0, address);
+            }
+            log.warn("{} discard torn tail from segment {} offset {}", getName(), segment(address), offset(address));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 检查第一条记录是不是当前的自描述格式,旧格式的数据文件需要先用IndexMigration转换
+     */
+    public boolean isCurrentFormat() {
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = segments.get(0);
+            int end = segment(tail()) == 0 ? offset(tail()) : segmentSize;
+            return isEmpty() || parse(buffer, HEAD, end) > 0 || isZero(buffer, HEAD, Math.min(end, HEAD + FIXED + 16));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return tail() == address(0, HEAD);
+    }
+
+    public ScanResult getLastScan() {
+        return lastScan;
+    }
 }
@@ -3,15 +3,41 @@ package com.lmx.jredis.storage;
 import lombok.Getter;
 
 /**
+ * HASH_PACKED是小hash打包成一条记录的编码(见HashFields),只出现在数据记录和索引记录中,key的类型仍是HASH
  * Created by limingxin on 2017/12/8.
  */
 public enum DataTypeEnum {
-    KV("kv"), LIST("list"), HASH("hash");
+    KV("kv"), LIST("list"), HASH("hash"), HASH_PACKED("hashPacked"), SET("set"), ZSET("zset"), STREAM("stream");
 
     @Getter
     String desc;
 
+    static final DataTypeEnum[] CODES = values();
+    /**
+     * 旧格式(IndexMigration转换前)中的类型
+     */
+    static final DataTypeEnum[] LEGACY = {KV, LIST, HASH};
+
     DataTypeEnum(String desc) {
         this.desc = desc;
     }
+
+    /**
+     * 索引中使用的1字节类型标记
+     */
+    public byte getCode() {
+        return (byte) (ordinal() + 1);
+    }
+
+    public static DataTypeEnum of(byte code) {
+        return CODES[code - 1];
+    }
+
+    public static DataTypeEnum ofDesc(String desc) {
+        for (DataTypeEnum type : CODES) {
+            if (type.desc.equals(desc))
+                return type;
+        }
+        throw new IllegalArgumentException("unknown data type " + desc);
+    }
 }
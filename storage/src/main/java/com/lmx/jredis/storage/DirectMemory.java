@@ -0,0 +1,89 @@
+package com.lmx.jredis.storage;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * 映射区和byte[]之间按绝对偏移拷贝,不移动buffer的position,也不创建duplicate/临时buffer
+ * Created by lmx on 2017/12/20.
+ */
+public final class DirectMemory {
+    static final Unsafe UNSAFE;
+    static final long ADDRESS_OFFSET;
+    static final long BYTE_ARRAY_OFFSET;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (Unsafe) f.get(null);
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private DirectMemory() {
+    }
+
+    static long address(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", capacity " + buffer.capacity());
+        return UNSAFE.getLong(buffer, ADDRESS_OFFSET) + offset;
+    }
+
+    /**
+     * 把src[srcOffset, srcOffset+length)写到buffer的offset处
+     */
+    public static void put(ByteBuffer buffer, int offset, byte[] src, int srcOffset, int length) {
+        if (srcOffset < 0 || srcOffset + length > src.length)
+            throw new IndexOutOfBoundsException();
+        UNSAFE.copyMemory(src, BYTE_ARRAY_OFFSET + srcOffset, null, address(buffer, offset, length), length);
+    }
+
+    /**
+     * 从buffer的offset处读length字节到dest[destOffset]
+     */
+    public static void get(ByteBuffer buffer, int offset, byte[] dest, int destOffset, int length) {
+        if (destOffset < 0 || destOffset + length > dest.length)
+            throw new IndexOutOfBoundsException();
+        UNSAFE.copyMemory(null, address(buffer, offset, length), dest, BYTE_ARRAY_OFFSET + destOffset, length);
+    }
+
+    /**
+     * buffer内部两段区域之间的拷贝(可以跨段)
+     */
+    public static void copy(ByteBuffer src, int srcOffset, ByteBuffer dest, int destOffset, int length) {
+        UNSAFE.copyMemory(address(src, srcOffset, length), address(dest, destOffset, length), length);
+    }
+
+    /**
+     * 把buffer中offset处的length字节置为value
+     */
+    public static void fill(ByteBuffer buffer, int offset, int length, byte value) {
+        UNSAFE.setMemory(address(buffer, offset, length), length, value);
+    }
+
+    /**
+     * 保证之前的读取不会被重排到之后的读取后面,用于读取完成后再次校验版本号
+     */
+    public static void loadFence() {
+        UNSAFE.loadFence();
+    }
+
+    /**
+     * 比较buffer中offset处的length字节是否和bytes相同
+     */
+    public static boolean equals(ByteBuffer buffer, int offset, byte[] bytes) {
+        long address = address(buffer, offset, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            if (UNSAFE.getByte(address + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+}
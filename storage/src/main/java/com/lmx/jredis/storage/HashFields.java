@@ -0,0 +1,303 @@
+package com.lmx.jredis.storage;
+
+import redis.util.BytesKeyTable;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * hash的内存结构,两种编码:
+ * packed  field数和field/value长度都不超过阈值时,所有field/value打包在一条数据记录里:[field长度][field][value长度][value]...,
+ *         类型为HASH_PACKED,key是hash名,内存中只有这一条记录,读写时顺序解析整条记录(元素不多)
+ * hashed  每个field一条数据记录,内存中按field建开放寻址表,读写都是O(1),HSCAN按表的槽位遍历
+ * packed超过阈值时转换为hashed,之后不再转回.转换先写入各field的记录再删除打包记录,
+ * 中途退出时两种记录同时存在,由load按field数判断哪一份是完整的
+ * 写操作由调用方持有写锁串行执行,读写都在HashFields上同步
+ * Created by lmx on 2018/1/12.
+ */
+public class HashFields {
+    public static final int MAX_PACKED_ENTRIES = 128;
+    public static final int MAX_PACKED_VALUE = 64;
+
+    final byte[] key;
+    /**
+     * 打包记录,hashed编码时为null
+     */
+    DataHelper packed;
+    /**
+     * 打包记录中的field数,-1表示还没有解析(启动恢复之后第一次使用时计算)
+     */
+    int packedCount = -1;
+    BytesKeyTable<DataHelper> fields = new BytesKeyTable<>();
+    /**
+     * 启动恢复时读到的同一个field的旧记录(旧版本HSET更新后又追加的重复记录),由load删除
+     */
+    List<DataHelper> stale;
+
+    HashFields(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * 新建hash:写入只有一个field的记录,加入索引时由IndexHelper.put创建HashFields
+     */
+    public static void create(DataMedia store, IndexHelper ih, byte[] key, byte[] field, byte[] value) throws Exception {
+        if (fits(field, value))
+            ih.add(packedRecord(store, key, Arrays.asList(field, value)));
+        else
+            ih.add(fieldRecord(store, key, field, value));
+    }
+
+    static boolean fits(byte[] field, byte[] value) {
+        return field.length <= MAX_PACKED_VALUE && value.length <= MAX_PACKED_VALUE;
+    }
+
+    static DataHelper packedRecord(DataMedia store, byte[] key, List<byte[]> entries) throws Exception {
+        DataHelper dh = store.add(DataTypeEnum.HASH_PACKED.getCode(), key, null, encode(entries));
+        dh.type = DataTypeEnum.HASH_PACKED.getDesc();
+        dh.key = key;
+        return dh;
+    }
+
+    static DataHelper fieldRecord(DataMedia store, byte[] key, byte[] field, byte[] value) throws Exception {
+        DataHelper dh = store.add(DataTypeEnum.HASH.getCode(), key, field, value);
+        dh.type = DataTypeEnum.HASH.getDesc();
+        dh.hash = key;
+        dh.key = field;
+        return dh;
+    }
+
+    /**
+     * IndexHelper.put调用:放入打包记录或field记录
+     *
+     * @return 当前field数
+     */
+    synchronized int add(DataHelper dh) {
+        DataHelper replaced;
+        if (dh.type.equals(DataTypeEnum.HASH_PACKED.getDesc())) {
+            replaced = packed;
+            packed = dh;
+            packedCount = -1;
+        } else {
+            replaced = fields.put(dh.key, dh);
+        }
+        if (replaced != null) {
+            if (stale == null)
+                stale = new ArrayList<>();
+            stale.add(replaced);
+        }
+        return packed == null ? fields.size() : Math.max(packedCount, 0);
+    }
+
+    /**
+     * 启动恢复之后调用:删除重复的旧记录;打包记录和field记录同时存在时(转换中途退出),
+     * field记录不少于打包记录中的field数说明field已经写完,删除打包记录,否则删除field记录
+     *
+     * @return 是否有需要删除的记录
+     */
+    public synchronized boolean load(DataMedia store, IndexHelper ih) {
+        boolean repaired = false;
+        if (stale != null) {
+            for (DataHelper dh : stale) {
+                ih.remove(dh);
+                store.remove(dh);
+            }
+            stale = null;
+            repaired = true;
+        }
+        if (packed != null && !fields.isEmpty()) {
+            if (fields.size() >= size(store)) {
+                ih.remove(packed);
+                store.remove(packed);
+                packed = null;
+            } else {
+                for (DataHelper dh : fields.values()) {
+                    ih.remove(dh);
+                    store.remove(dh);
+                }
+                fields.clear();
+            }
+            repaired = true;
+        }
+        return repaired;
+    }
+
+    public synchronized boolean isPacked() {
+        return packed != null;
+    }
+
+    /**
+     * @return field不存在时返回null
+     */
+    public synchronized byte[] get(DataMedia store, byte[] field) {
+        if (packed != null) {
+            List<byte[]> entries = decode(store.get(packed));
+            int i = indexOf(entries, field);
+            return i < 0 ? null : entries.get(i + 1);
+        }
+        DataHelper dh = fields.get(field);
+        return dh == null ? null : store.get(dh);
+    }
+
+    /**
+     * 设置field的值,打包记录超过阈值时转换为hashed
+     *
+     * @return 是否新增了field
+     */
+    public synchronized boolean put(DataMedia store, IndexHelper ih, byte[] field, byte[] value) throws Exception {
+        if (packed != null) {
+            List<byte[]> entries = decode(store.get(packed));
+            int i = indexOf(entries, field);
+            if (i >= 0) {
+                entries.set(i + 1, value);
+            } else {
+                entries.add(field);
+                entries.add(value);
+            }
+            if (fits(field, value) && entries.size() / 2 <= MAX_PACKED_ENTRIES) {
+                store.update(packed, encode(entries));
+                ih.updateIndex(packed);
+                packedCount = entries.size() / 2;
+            } else {
+                convert(store, ih, entries);
+            }
+            return i < 0;
+        }
+        DataHelper dh = fields.get(field);
+        if (dh == null) {
+            ih.add(fieldRecord(store, key, field, value));
+            return true;
+        }
+        store.update(dh, value);
+        ih.updateIndex(dh);
+        return false;
+    }
+
+    void convert(DataMedia store, IndexHelper ih, List<byte[]> entries) throws Exception {
+        for (int i = 0; i < entries.size(); i += 2) {
+            ih.add(fieldRecord(store, key, entries.get(i), entries.get(i + 1)));
+        }
+        ih.remove(packed);
+        store.remove(packed);
+        packed = null;
+    }
+
+    /**
+     * @return field是否存在
+     */
+    public synchronized boolean remove(DataMedia store, IndexHelper ih, byte[] field) throws Exception {
+        if (packed != null) {
+            List<byte[]> entries = decode(store.get(packed));
+            int i = indexOf(entries, field);
+            if (i < 0)
+                return false;
+            entries.subList(i, i + 2).clear();
+            store.update(packed, encode(entries));
+            ih.updateIndex(packed);
+            packedCount = entries.size() / 2;
+            return true;
+        }
+        DataHelper dh = fields.remove(field);
+        if (dh == null)
+            return false;
+        ih.remove(dh);
+        store.remove(dh);
+        return true;
+    }
+
+    public synchronized int size(DataMedia store) {
+        if (packed == null)
+            return fields.size();
+        if (packedCount < 0)
+            packedCount = decode(store.get(packed)).size() / 2;
+        return packedCount;
+    }
+
+    /**
+     * @return 所有field和value,交替排列
+     */
+    public synchronized List<byte[]> entries(DataMedia store) {
+        if (packed != null)
+            return decode(store.get(packed));
+        List<byte[]> entries = new ArrayList<>(fields.size() * 2);
+        for (DataHelper dh : fields) {
+            entries.add(dh.key);
+            entries.add(store.get(dh));
+        }
+        return entries;
+    }
+
+    /**
+     * HSCAN,packed编码一次返回所有field,游标为0
+     *
+     * @param page 返回的field和value,交替排列
+     * @return 下一次的游标, 遍历完成时返回0
+     */
+    public synchronized long scan(DataMedia store, long cursor, int count, List<byte[]> page) {
+        if (packed != null) {
+            page.addAll(decode(store.get(packed)));
+            return 0;
+        }
+        List<DataHelper> found = new ArrayList<>();
+        long next = fields.scan(cursor, count, found);
+        for (DataHelper dh : found) {
+            page.add(dh.key);
+            page.add(store.get(dh));
+        }
+        return next;
+    }
+
+    /**
+     * 删除所有记录和它们的索引记录
+     */
+    public synchronized void clear(DataMedia store, IndexHelper ih) {
+        for (DataHelper dh : records()) {
+            ih.remove(dh);
+            store.remove(dh);
+        }
+        packed = null;
+        packedCount = -1;
+        fields.clear();
+        stale = null;
+    }
+
+    /**
+     * @return 所有数据记录(包括启动恢复时还没有删除的重复记录)
+     */
+    public synchronized List<DataHelper> records() {
+        List<DataHelper> records = fields.values();
+        if (packed != null)
+            records.add(packed);
+        if (stale != null)
+            records.addAll(stale);
+        return records;
+    }
+
+    static int indexOf(List<byte[]> entries, byte[] field) {
+        for (int i = 0; i < entries.size(); i += 2) {
+            if (Arrays.equals(entries.get(i), field))
+                return i;
+        }
+        return -1;
+    }
+
+    static byte[] encode(List<byte[]> entries) {
+        int length = 0;
+        for (byte[] b : entries) {
+            length += Varint.sizeOf(b);
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (byte[] b : entries) {
+            Varint.putBytes(data, b);
+        }
+        return data.array();
+    }
+
+    static List<byte[]> decode(byte[] data) {
+        List<byte[]> entries = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset = Varint.skipBytes(data, offset)) {
+            entries.add(Varint.getBytes(data, offset));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,792 @@
+package com.lmx.jredis.storage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.lmx.jredis.storage.DirectMemory.UNSAFE;
+
+/**
+ * 开放寻址(线性探测)哈希索引,表本身是一个映射文件,每个key占一个定长槽位:
+ * [版本号][hash][类型|状态][访问信息][数据长度][数据地址][过期时间][索引记录地址][key地址]
+ * 类型和状态各占半个字节.访问信息3字节,供maxmemory淘汰使用:LRU为最近访问时间(秒,取低24位,约194天回绕),
+ * LFU为[衰减时间(分钟,取低16位,约45天回绕)][对数计数器],计数255在4个多小时内就衰减到0,回绕前早已衰减完;
+ * 读请求不修改版本号,和类型|状态字节一起CAS写入,并发访问时丢失个别更新不影响近似淘汰
+ * key本身不复制,槽位只记录key在索引文件中的地址([变长长度][key]),比较时直接读映射区.
+ * list/hash/set/zset/stream的槽位数据地址为容器下标,数据长度为元素目录的区域位置,见ContainerDirectory.
+ * 写操作加锁串行;读操作不加锁,按槽位版本号(写入期间为奇数)校验读到的字段是完整的.
+ * 装载因子超过0.75时扩容:新表建好后整体替换,旧表所有槽位版本号置为奇数使正在读的请求重试,
+ * 旧表延迟解除映射.
+ * 文件头:[魔数][容量][已用][已删除][干净标记][索引文件尾地址][附加信息],
+ * sync刷盘后置干净标记并记下索引文件尾地址,之后第一次修改清除干净标记;
+ * 启动时干净且尾地址一致的表直接使用,不干净的表修复写了一半的槽位后只需要重放尾地址之后的索引记录
+ * Created by lmx on 2017/12/26.
+ */
+public class HashIndex {
+    static final long MAGIC = 0x4A52484958310002L;
+    static final int HEADER = 64;
+    static final int H_CAPACITY = 8;
+    static final int H_USED = 12;
+    static final int H_DELETED = 16;
+    static final int H_CLEAN = 20;
+    static final int H_STAMP = 24;
+    static final int H_EXTRA = 32;
+
+    static final int SLOT = 48;
+    static final int VERSION = 0;
+    static final int HASH = 4;
+    static final int STATE = 8;
+    static final int LENGTH = 12;
+    static final int POS = 16;
+    static final int EXPIRE = 24;
+    static final int SELF_POS = 32;
+    static final int KEY_ADDR = 40;
+
+    static final byte EMPTY = 0;
+    static final byte USED = 1;
+    static final byte DELETED = 2;
+    static final float LOAD_FACTOR = 0.75f;
+    static final long RETIRE_MS = 1000;
+    /**
+     * 单个映射区不能超过2G
+     */
+    static final int MAX_CAPACITY = 1 << 25;
+    /**
+     * LFU新key的初始计数,避免刚写入就被淘汰;计数越大增长越慢,约100万次访问达到255
+     */
+    static final int LFU_INIT = 5;
+    static final int LFU_LOG_FACTOR = 10;
+    static final int ACCESS_MASK = 0xFFFFFF;
+    /**
+     * 类型|状态字节在[类型|状态][访问信息]这个int中的位移
+     */
+    static final int STATE_SHIFT = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 24;
+
+    static class Table {
+        final MappedByteBuffer mapped;
+        final long header;
+        final long address;
+        final int capacity;
+        int used;
+        int deleted;
+        long retiredAt;
+
+        /**
+         * 新建一个空表,覆盖已有文件
+         */
+        Table(File file, int capacity) throws Exception {
+            file.delete();
+            this.capacity = capacity;
+            this.mapped = map(file, HEADER + (long) capacity * SLOT);
+            this.header = DirectMemory.address(mapped, 0, HEADER);
+            this.address = header + HEADER;
+            UNSAFE.putLong(header, MAGIC);
+            UNSAFE.putInt(header + H_CAPACITY, capacity);
+        }
+
+        /**
+         * 映射已有的表
+         */
+        Table(MappedByteBuffer mapped) {
+            this.mapped = mapped;
+            this.header = DirectMemory.address(mapped, 0, HEADER);
+            this.address = header + HEADER;
+            this.capacity = UNSAFE.getInt(header + H_CAPACITY);
+            this.used = UNSAFE.getInt(header + H_USED);
+            this.deleted = UNSAFE.getInt(header + H_DELETED);
+        }
+
+        static MappedByteBuffer map(File file, long length) throws Exception {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < length)
+                    raf.setLength(length);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+        }
+
+        long slot(int i) {
+            return address + (long) i * SLOT;
+        }
+    }
+
+    /**
+     * 解析key地址所在的映射区
+     */
+    final BaseMedia media;
+    final File file;
+    final ReentrantLock lock = new ReentrantLock();
+    volatile Table table;
+    List<Table> retired = new ArrayList<>();
+    /**
+     * 访问信息按LFU计数记录,否则记录LRU时间
+     */
+    volatile boolean lfu;
+
+    /**
+     * @param file 表文件,已有的表直接映射,由调用方根据isClean/getStamp决定是否可用
+     */
+    public HashIndex(BaseMedia media, int capacity, File file) throws Exception {
+        this.media = media;
+        this.file = file;
+        Table t = open(file);
+        if (t == null)
+            t = new Table(file, Integer.highestOneBit(Math.max(16, capacity - 1) << 1));
+        this.table = t;
+    }
+
+    static Table open(File file) throws Exception {
+        if (file.length() < HEADER)
+            return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            //文件头是按本机字节序写入的
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+            raf.getChannel().read(header, 0);
+            int capacity = header.getInt(H_CAPACITY);
+            if (header.getLong(0) != MAGIC || Integer.bitCount(capacity) != 1 || capacity > MAX_CAPACITY
+                    || raf.length() < HEADER + (long) capacity * SLOT)
+                return null;
+            return new Table(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT));
+        } finally {
+            raf.close();
+        }
+    }
+
+    static int hash(byte[] key) {
+        int h = 0x9747b28c;
+        for (byte b : key) {
+            h = 31 * h + b;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    boolean keyEquals(long slot, byte[] key) {
+        long keyAddr = UNSAFE.getLong(slot + KEY_ADDR);
+        MappedByteBuffer buffer = media.buffer(keyAddr);
+        int offset = BaseMedia.offset(keyAddr);
+        int length = Varint.get(buffer, offset, buffer.capacity());
+        return length == key.length && DirectMemory.equals(buffer, offset + Varint.size(length), key);
+    }
+
+    /**
+     * 在指定的表中查找key所在槽位,只看已写完的槽位,不加锁
+     *
+     * @return 槽位内存地址, 不存在返回0
+     */
+    long find(Table t, byte[] key, int h) {
+        int mask = t.capacity - 1;
+        for (int i = h & mask, n = 0; n < t.capacity; i = (i + 1) & mask, n++) {
+            long slot = t.slot(i);
+            int version = UNSAFE.getIntVolatile(null, slot + VERSION);
+            byte state = state(slot);
+            if (state == EMPTY && (version & 1) == 0)
+                return 0;
+            if (state == USED && UNSAFE.getInt(slot + HASH) == h && keyEquals(slot, key)) {
+                UNSAFE.loadFence();
+                if (UNSAFE.getIntVolatile(null, slot + VERSION) == version)
+                    return slot;
+                //槽位正在被修改,从头再找一次
+                i = (h & mask) - 1;
+                n = -1;
+                Thread.yield();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 读取key对应的槽位到dh中,dh.version记录读取时的版本号,之后可以用validate确认期间没有被修改
+     *
+     * @return key是否存在
+     */
+    public boolean get(byte[] key, DataHelper dh) {
+        int h = hash(key);
+        for (; ; ) {
+            Table t = table;
+            long slot = find(t, key, h);
+            if (slot == 0) {
+                if (t == table)
+                    return false;
+                continue;
+            }
+            int version = UNSAFE.getIntVolatile(null, slot + VERSION);
+            if ((version & 1) == 0) {
+                dh.type = DataTypeEnum.of(type(slot)).getDesc();
+                dh.length = UNSAFE.getInt(slot + LENGTH);
+                dh.pos = UNSAFE.getLong(slot + POS);
+                dh.expire = UNSAFE.getLong(slot + EXPIRE);
+                dh.selfPos = UNSAFE.getLong(slot + SELF_POS);
+                dh.slot = slot;
+                dh.version = version;
+                if (validate(dh) && state(slot) == USED)
+                    return true;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return 从get到现在槽位没有被修改过
+     */
+    public boolean validate(DataHelper dh) {
+        UNSAFE.loadFence();
+        return UNSAFE.getIntVolatile(null, dh.slot + VERSION) == dh.version;
+    }
+
+    public boolean contains(byte[] key) {
+        int h = hash(key);
+        for (; ; ) {
+            Table t = table;
+            if (find(t, key, h) != 0)
+                return true;
+            if (t == table)
+                return false;
+        }
+    }
+
+    /**
+     * 插入或覆盖key对应的槽位
+     *
+     * @return 槽位内存地址
+     */
+    public long put(byte[] key, byte type, long pos, int length, long expire, long selfPos, long keyAddr) {
+        int h = hash(key);
+        lock.lock();
+        try {
+            markDirty();
+            long slot = find(table, key, h);
+            if (slot == 0) {
+                Table t = table;
+                if (t.used + t.deleted + 1 > t.capacity * LOAD_FACTOR)
+                    t = resize(t.used + 1 > t.capacity * LOAD_FACTOR / 2 ? t.capacity * 2 : t.capacity);
+                slot = insertSlot(t, h);
+                if (state(slot) == DELETED)
+                    t.deleted--;
+                t.used++;
+                begin(slot);
+                UNSAFE.putInt(slot + HASH, h);
+                UNSAFE.putLong(slot + KEY_ADDR, keyAddr);
+                setState(slot, USED);
+                long now = System.currentTimeMillis();
+                setAccess(slot, lfu ? minutes(now) << 8 | LFU_INIT : lruClock(now));
+            } else {
+                begin(slot);
+            }
+            UNSAFE.putByte(slot + STATE, (byte) (type << 4 | USED));
+            UNSAFE.putInt(slot + LENGTH, length);
+            UNSAFE.putLong(slot + POS, pos);
+            UNSAFE.putLong(slot + EXPIRE, expire);
+            UNSAFE.putLong(slot + SELF_POS, selfPos);
+            end(slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 探测路径上第一个空槽位或已删除槽位
+     */
+    static long insertSlot(Table t, int h) {
+        int mask = t.capacity - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            long slot = t.slot(i);
+            if (state(slot) != USED)
+                return slot;
+        }
+    }
+
+    void begin(long slot) {
+        UNSAFE.putIntVolatile(null, slot + VERSION, UNSAFE.getInt(slot + VERSION) + 1);
+        UNSAFE.storeFence();
+    }
+
+    void end(long slot) {
+        UNSAFE.putIntVolatile(null, slot + VERSION, UNSAFE.getInt(slot + VERSION) + 1);
+    }
+
+    /**
+     * 原地修改value前调用,期间读请求会等待并重试;必须和endWrite成对调用
+     */
+    public void beginWrite(DataHelper dh) {
+        lock.lock();
+        markDirty();
+        begin(dh.slot);
+    }
+
+    public void endWrite(DataHelper dh) {
+        end(dh.slot);
+        lock.unlock();
+    }
+
+    /**
+     * 在beginWrite/endWrite之间调用,同步新的数据地址和长度
+     */
+    public void setData(DataHelper dh) {
+        UNSAFE.putLong(dh.slot + POS, dh.pos);
+        UNSAFE.putInt(dh.slot + LENGTH, dh.length);
+    }
+
+    public void setExpire(long slot, long expire) {
+        lock.lock();
+        try {
+            markDirty();
+            begin(slot);
+            UNSAFE.putLong(slot + EXPIRE, expire);
+            end(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 修改容器槽位引用的元素目录区域
+     */
+    public void setLength(long slot, int length) {
+        lock.lock();
+        try {
+            markDirty();
+            begin(slot);
+            UNSAFE.putInt(slot + LENGTH, length);
+            end(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除key,槽位标记为已删除(探测链不断开),扩容时清理
+     *
+     * @return 被删除的槽位内容, key不存在返回null
+     */
+    public DataHelper remove(byte[] key) {
+        int h = hash(key);
+        lock.lock();
+        try {
+            long slot = find(table, key, h);
+            if (slot == 0)
+                return null;
+            markDirty();
+            DataHelper dh = new DataHelper();
+            dh.type = DataTypeEnum.of(type(slot)).getDesc();
+            dh.pos = UNSAFE.getLong(slot + POS);
+            dh.length = UNSAFE.getInt(slot + LENGTH);
+            dh.selfPos = UNSAFE.getLong(slot + SELF_POS);
+            begin(slot);
+            setState(slot, DELETED);
+            end(slot);
+            table.used--;
+            table.deleted++;
+            return dh;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 重建为新容量的表,只复制存活槽位;新表写在临时文件中,建好后替换表文件.
+     * 旧表所有槽位版本号置为奇数,正在读旧表的请求校验失败后到新表重试
+     */
+    Table resize(int capacity) {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalStateException("hash index exceeds max capacity " + MAX_CAPACITY);
+        Table old = table;
+        File tmp = new File(file.getPath() + ".tmp");
+        Table t;
+        try {
+            t = new Table(tmp, capacity);
+        } catch (Exception e) {
+            throw new IllegalStateException("resize hash index error", e);
+        }
+        UNSAFE.putLong(t.header + H_STAMP, UNSAFE.getLong(old.header + H_STAMP));
+        UNSAFE.putLong(t.header + H_EXTRA, UNSAFE.getLong(old.header + H_EXTRA));
+        int mask = capacity - 1;
+        for (int i = 0; i < old.capacity; i++) {
+            long src = old.slot(i);
+            if (state(src) != USED)
+                continue;
+            int h = UNSAFE.getInt(src + HASH);
+            int j = h & mask;
+            while (state(t.slot(j)) != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            UNSAFE.copyMemory(src, t.slot(j), SLOT);
+            UNSAFE.putInt(t.slot(j) + VERSION, 0);
+            t.used++;
+        }
+        //表建好后再替换文件,中途退出时原文件仍然是完整的旧表
+        if (!tmp.renameTo(file))
+            throw new IllegalStateException("rename " + tmp + " to " + file + " failed");
+        table = t;
+        for (int i = 0; i < old.capacity; i++) {
+            long slot = old.slot(i);
+            UNSAFE.putIntVolatile(null, slot + VERSION, UNSAFE.getInt(slot + VERSION) + 1);
+        }
+        retire(old);
+        return t;
+    }
+
+    void retire(Table old) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Table> it = retired.iterator(); it.hasNext(); ) {
+            Table r = it.next();
+            if (now - r.retiredAt >= RETIRE_MS) {
+                BaseMedia.unmap(r.mapped);
+                it.remove();
+            }
+        }
+        old.retiredAt = now;
+        retired.add(old);
+    }
+
+    /**
+     * 写操作前清除文件头的干净标记,表在下一次sync之前不能直接用于启动
+     */
+    public void markDirty() {
+        long header = table.header;
+        if (UNSAFE.getInt(header + H_CLEAN) != 0)
+            UNSAFE.putIntVolatile(null, header + H_CLEAN, 0);
+    }
+
+    /**
+     * 表刷盘并写入文件头,调用方需要保证期间没有写操作,且索引文件已经刷盘
+     *
+     * @param stamp 索引文件当前的尾地址
+     * @param extra 调用方需要随表一起保存的信息
+     */
+    public void sync(long stamp, long extra) {
+        lock.lock();
+        try {
+            Table t = table;
+            UNSAFE.putInt(t.header + H_CLEAN, 0);
+            t.mapped.force();
+            UNSAFE.putInt(t.header + H_USED, t.used);
+            UNSAFE.putInt(t.header + H_DELETED, t.deleted);
+            UNSAFE.putLong(t.header + H_STAMP, stamp);
+            UNSAFE.putLong(t.header + H_EXTRA, extra);
+            UNSAFE.putIntVolatile(null, t.header + H_CLEAN, 1);
+            t.mapped.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param stamp 索引文件当前的尾地址
+     * @return 表在上一次sync之后没有被修改过,且sync时索引文件的尾地址就是stamp
+     */
+    public boolean isClean(long stamp) {
+        long header = table.header;
+        return UNSAFE.getInt(header + H_CLEAN) == 1 && UNSAFE.getLong(header + H_STAMP) == stamp;
+    }
+
+    /**
+     * @return 上一次sync时索引文件的尾地址,没有sync过为0
+     */
+    public long getStamp() {
+        return UNSAFE.getLong(table.header + H_STAMP);
+    }
+
+    /**
+     * @return 附加信息,sync时保存,也可以随时通过setExtra修改
+     */
+    public long getExtra() {
+        return UNSAFE.getLong(table.header + H_EXTRA);
+    }
+
+    public void setExtra(long extra) {
+        UNSAFE.putLong(table.header + H_EXTRA, extra);
+    }
+
+    /**
+     * 丢弃表中所有内容,换成同样容量的空表
+     */
+    public void clear() throws Exception {
+        lock.lock();
+        try {
+            Table old = table;
+            table = new Table(file, old.capacity);
+            BaseMedia.unmap(old.mapped);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public interface Repairer {
+        /**
+         * 重新读取写了一半的槽位对应的索引记录
+         *
+         * @param type 槽位中的类型
+         * @param dh   selfPos为槽位记录的索引记录地址,需要填入pos/length/expire
+         * @return 记录已删除时返回false, 槽位随之删除
+         */
+        boolean repair(byte type, DataHelper dh);
+    }
+
+    /**
+     * 启动时修复异常退出前正在修改的槽位(版本号为奇数),并重新统计已用和已删除槽位数.
+     * 调用方需要保证期间没有读写
+     *
+     * @return 修复的槽位数
+     */
+    public int repair(Repairer repairer) {
+        Table t = table;
+        int repaired = 0;
+        t.used = 0;
+        t.deleted = 0;
+        DataHelper dh = new DataHelper();
+        for (int i = 0; i < t.capacity; i++) {
+            long slot = t.slot(i);
+            int version = UNSAFE.getInt(slot + VERSION);
+            byte state = state(slot);
+            if ((version & 1) != 0) {
+                repaired++;
+                UNSAFE.putInt(slot + VERSION, version + 1);
+                if (state == USED) {
+                    byte type = type(slot);
+                    dh.selfPos = UNSAFE.getLong(slot + SELF_POS);
+                    dh.pos = UNSAFE.getLong(slot + POS);
+                    dh.length = UNSAFE.getInt(slot + LENGTH);
+                    dh.expire = UNSAFE.getLong(slot + EXPIRE);
+                    if (type < 1 || type > DataTypeEnum.CODES.length || !repairer.repair(type, dh)) {
+                        state = DELETED;
+                        setState(slot, DELETED);
+                    } else {
+                        UNSAFE.putLong(slot + POS, dh.pos);
+                        UNSAFE.putInt(slot + LENGTH, dh.length);
+                        UNSAFE.putLong(slot + EXPIRE, dh.expire);
+                    }
+                }
+            }
+            if (state == USED)
+                t.used++;
+            else if (state == DELETED)
+                t.deleted++;
+        }
+        return repaired;
+    }
+
+    public interface Visitor {
+        void visit(byte type, byte[] key, DataHelper dh);
+    }
+
+    public void setLfu(boolean lfu) {
+        this.lfu = lfu;
+    }
+
+    static byte state(long slot) {
+        return (byte) (UNSAFE.getByte(slot + STATE) & 0x0F);
+    }
+
+    static byte type(long slot) {
+        return (byte) ((UNSAFE.getByte(slot + STATE) & 0xFF) >>> 4);
+    }
+
+    /**
+     * 保留类型,持有锁时调用
+     */
+    static void setState(long slot, byte state) {
+        UNSAFE.putByte(slot + STATE, (byte) (UNSAFE.getByte(slot + STATE) & 0xF0 | state));
+    }
+
+    static int access(long slot) {
+        int word = UNSAFE.getInt(slot + STATE);
+        return (STATE_SHIFT == 0 ? word >>> 8 : word) & ACCESS_MASK;
+    }
+
+    /**
+     * 读请求不持有锁,CAS写入,不会覆盖同时写入的类型|状态字节
+     */
+    static void setAccess(long slot, int access) {
+        for (; ; ) {
+            int word = UNSAFE.getInt(slot + STATE);
+            int updated = STATE_SHIFT == 0 ? (word & 0xFF) | access << 8 : (word & 0xFF000000) | access;
+            if (UNSAFE.compareAndSwapInt(null, slot + STATE, word, updated))
+                return;
+        }
+    }
+
+    static int lruClock(long now) {
+        return (int) (now / 1000) & ACCESS_MASK;
+    }
+
+    static int minutes(long now) {
+        return (int) (now / 60000) & 0xFFFF;
+    }
+
+    public void touch(long slot) {
+        touch(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * 记录一次访问,LFU计数先按经过的分钟数衰减,再以1/((计数-初始值)*10+1)的概率加1
+     */
+    public void touch(long slot, long now) {
+        if (!lfu) {
+            setAccess(slot, lruClock(now));
+            return;
+        }
+        int counter = frequency(slot, now);
+        if (counter < 255) {
+            int base = Math.max(0, counter - LFU_INIT);
+            if (ThreadLocalRandom.current().nextInt(base * LFU_LOG_FACTOR + 1) == 0)
+                counter++;
+        }
+        setAccess(slot, minutes(now) << 8 | counter);
+    }
+
+    public int idleSeconds(long slot) {
+        return idleSeconds(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * @return 距离最近一次访问的秒数, 超过约194天会回绕
+     */
+    public int idleSeconds(long slot, long now) {
+        return (lruClock(now) - access(slot)) & ACCESS_MASK;
+    }
+
+    public int frequency(long slot) {
+        return frequency(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * @return 按经过的分钟数衰减后的LFU计数
+     */
+    public int frequency(long slot, long now) {
+        int access = access(slot);
+        int elapsed = (minutes(now) - (access >>> 8)) & 0xFFFF;
+        return Math.max(0, (access & 0xFF) - elapsed);
+    }
+
+    /**
+     * 随机采样count个key,每次随机选一个位置向后找到第一个使用中的槽位,不加锁
+     */
+    public void sample(Random random, int count, Visitor visitor) {
+        Table t = table;
+        if (t.used == 0)
+            return;
+        int mask = t.capacity - 1;
+        for (int n = 0; n < count; n++) {
+            for (int i = random.nextInt(t.capacity), probe = 0; probe < t.capacity; i = (i + 1) & mask, probe++) {
+                long slot = t.slot(i);
+                if (state(slot) == USED) {
+                    visit(slot, visitor);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 遍历当前表中所有key,遍历期间的修改可能看不到
+     */
+    public void forEach(Visitor visitor) {
+        Table t = table;
+        for (int i = 0; i < t.capacity; i++) {
+            long slot = t.slot(i);
+            if (state(slot) == USED)
+                visit(slot, visitor);
+        }
+    }
+
+    /**
+     * SCAN:从cursor开始按反向二进制顺序遍历count个home位置(hash & mask),返回home在这些位置的key,不加锁,调用方保证期间没有写操作.
+     * 线性探测且删除只留墓碑,home为i的key都在i到它之后第一个空槽位之间.
+     * 表只会扩容:旧表的一个home位置在新表中分成几个只有高位不同的位置,按反向二进制顺序都不在游标之前,
+     * 所以从第一次调用到遍历完成一直存在的key至少返回一次(扩容时可能重复返回)
+     *
+     * @param cursor 上一次返回的游标,0表示从头开始
+     * @return 下一次的游标, 遍历完成时返回0
+     */
+    public long scan(long cursor, int count, Visitor visitor) {
+        Table t = table;
+        int mask = t.capacity - 1;
+        int v = (int) cursor;
+        do {
+            int home = v & mask;
+            for (int i = home, n = 0; n < t.capacity; i = (i + 1) & mask, n++) {
+                long slot = t.slot(i);
+                byte state = state(slot);
+                if (state == EMPTY)
+                    break;
+                if (state == USED && (UNSAFE.getInt(slot + HASH) & mask) == home)
+                    visit(slot, visitor);
+            }
+            //高位置1后反转加1再反转,即反向二进制的下一个位置
+            v |= ~mask;
+            v = Integer.reverse(Integer.reverse(v) + 1);
+        } while (v != 0 && --count > 0);
+        return v & 0xFFFFFFFFL;
+    }
+
+    void visit(long slot, Visitor visitor) {
+        byte type = type(slot);
+        DataHelper dh = new DataHelper();
+        dh.type = DataTypeEnum.of(type).getDesc();
+        dh.length = UNSAFE.getInt(slot + LENGTH);
+        dh.pos = UNSAFE.getLong(slot + POS);
+        dh.expire = UNSAFE.getLong(slot + EXPIRE);
+        dh.selfPos = UNSAFE.getLong(slot + SELF_POS);
+        dh.slot = slot;
+        long keyAddr = UNSAFE.getLong(slot + KEY_ADDR);
+        MappedByteBuffer buffer = media.buffer(keyAddr);
+        int offset = BaseMedia.offset(keyAddr);
+        byte[] key = new byte[Varint.get(buffer, offset, buffer.capacity())];
+        DirectMemory.get(buffer, offset + Varint.size(key.length), key, 0, key.length);
+        dh.key = key;
+        visitor.visit(type, key, dh);
+    }
+
+    public int size() {
+        return table.used;
+    }
+
+    /**
+     * @return 使用中的槽位占用的字节数,删除key后随之减少
+     */
+    public long getUsedBytes() {
+        return (long) table.used * SLOT;
+    }
+
+    /**
+     * @return 索引表占用的映射内存
+     */
+    public long getMemoryBytes() {
+        return (long) table.capacity * SLOT;
+    }
+
+    /**
+     * 解除映射,之后不能再访问
+     */
+    public void close() {
+        lock.lock();
+        try {
+            BaseMedia.unmap(table.mapped);
+            for (Table r : retired) {
+                BaseMedia.unmap(r.mapped);
+            }
+            retired.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
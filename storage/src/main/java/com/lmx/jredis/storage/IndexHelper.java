@@ -4,165 +4,836 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 索引(key)存储区
- * 格式：头四位放最新值的position,其次是数据长度和数据内容
+ * 格式：头八位放最新值的地址,其次是索引记录
+ * [标记][key长度][key]([hash长度][hash])[数据地址][数据长度][过期时间][状态]
+ * 标记1字节,高4位为记录格式版本,低4位为类型;长度为变长整数;hash只有hash的field记录才有(key为field),
+ * hash的打包记录和list一样key为hash名;状态1字节.
+ * 记录地址(selfPos)指向状态字节,定长部分按selfPos往前取;段尾未写满的部分为0,不是合法的标记.
+ * 旧格式的文件需要先用IndexMigration转换
+ * key索引是映射到[索引文件名].hash的HashIndex,不在堆上为每个key创建对象;
+ * list/hash/set/zset/stream的元素记录地址保存在[索引文件名].dir的元素目录中(见ContainerDirectory),
+ * 容器在第一次访问key时才按目录读出元素,启动时不扫描元素记录.
+ * 启动时按key索引的状态选择恢复方式:
+ * restored 上次正常关闭或checkpoint之后没有写过,直接使用
+ * tail     异常退出,修复写了一半的槽位后只重放上次checkpoint之后追加的索引记录(包括元素记录)
+ * full     没有可用的key索引或元素目录,扫描全部索引记录重建
+ * 扫描按段拆分到ForkJoinPool中并行执行(记录不跨段,每个段可以独立解析)
  * Created by lmx on 2017/4/14.
  */
 @Slf4j
 @EqualsAndHashCode(callSuper = false)
 public abstract class IndexHelper extends BaseMedia {
+    static final ThreadLocal<DataHelper> VIEW = new ThreadLocal<DataHelper>() {
+        @Override
+        protected DataHelper initialValue() {
+            return new DataHelper();
+        }
+    };
+    /**
+     * key -> 槽位,字符串的数据地址/长度/过期时间直接放在堆外槽位中,
+     * list/hash/set/zset/stream的槽位记录的是containers中的下标,list的容器是QuickList,hash的是HashFields,set/zset/stream的是MemberLog
+     */
+    @Getter
+    HashIndex index;
+    /**
+     * 当前记录格式版本,写在每条记录的标记字节中.
+     * 2:数据文件改为自描述记录,和版本1的索引记录格式相同,但不能配合旧数据文件使用
+     */
+    static final int FORMAT = 2;
+    static final byte LIVE = 1;
+    static final byte REMOVED = 0;
+    /**
+     * 记录末尾的定长部分:[数据地址][数据长度][过期时间][状态]
+     */
+    static final int TRAILER = 8 + 4 + 8 + 1;
+
+    public static final String RESTORED = "restored";
+    public static final String TAIL = "tail";
+    public static final String FULL = "full";
+    /**
+     * 启动时的恢复方式,恢复耗时和扫描的记录数
+     */
+    @Getter
+    String recoveryMode;
     @Getter
-    public Map<String, Object> kv = new ConcurrentHashMap<>();
-    public Map<String, Long> expire = new ConcurrentHashMap<>();
-    boolean first = true;
+    long recoveryMillis;
+    @Getter
+    long recoveredRecords;
+    /**
+     * list/hash的元素索引,写操作加锁,读取不加锁
+     */
+    volatile Object[] containers = new Object[16];
+    int containerCount;
+    Deque<Integer> freeContainers = new ArrayDeque<>();
+    /**
+     * 元素目录,以及上次sync之后各容器新增的元素记录地址,sync时追加到目录
+     */
+    ContainerDirectory directory;
+    Map<IndexKey, List<Long>> pending = new HashMap<>();
+    /**
+     * 启动恢复期间已经放入容器的元素记录,重放的记录可能已经在目录中
+     */
+    Set<Long> recovered;
+    /**
+     * 设置了过期时间的key,由后台线程主动删除
+     */
+    TimingWheel expires;
 
     public IndexHelper(String fileName, int size) throws Exception {
         super(fileName, size);
+        openIndex();
     }
 
     public IndexHelper(int db, String fileName, int size) throws Exception {
         super(db, fileName, size);
+        openIndex();
     }
 
-    public Object type(String key) {
-        return kv.get(key);
+    void openIndex() throws Exception {
+        if (tail() > address(0, HEAD) && !isFormat(segments.get(0).get(HEAD)))
+            throw new IllegalStateException(f + " is in an old record format, stop the server and run "
+                    + IndexMigration.class.getName() + " first");
+        index = new HashIndex(this, 1024, new File(f.getPath() + ".hash"));
+        directory = new ContainerDirectory(new File(f.getPath() + ".dir"));
+        long stamp = index.getStamp();
+        if (!directory.isValid() && index.getExtra() > 0)
+            recoveryMode = FULL;
+        else if (index.isClean(tail()))
+            recoveryMode = RESTORED;
+        else if (stamp >= address(0, HEAD) && stamp <= tail())
+            recoveryMode = TAIL;
+        else
+            recoveryMode = FULL;
     }
 
-    public void setExpire(String key, long timeOut) {
-        expire.put(key, timeOut + System.currentTimeMillis());
+    /**
+     * @return 启动时直接使用了上次保存的key索引,数据文件也没有被修改过
+     */
+    public boolean isRestored() {
+        return recoveryMode.equals(RESTORED);
     }
 
-    public long getExpire(String key) {
-        if (expire.containsKey(key))
-            return expire.get(key);
-        else
-            return 0L;
+    /**
+     * 字符串返回线程内复用的DataHelper(只能在本次调用中使用,不能保存),list返回QuickList,hash返回HashFields,
+     * set/zset/stream返回MemberLog.
+     * 同时记录一次访问,用于maxmemory淘汰
+     */
+    public Object type(byte[] key) {
+        DataHelper view = VIEW.get();
+        if (!index.get(key, view))
+            return null;
+        index.touch(view.slot);
+        if (view.type == DataTypeEnum.KV.getDesc())
+            return view;
+        Object[] c = containers;
+        int handle = (int) view.pos;
+        Object container = handle < c.length ? c[handle] : null;
+        return container != null ? container : load(key, DataTypeEnum.ofDesc(view.type), handle, view.length);
+    }
+
+    /**
+     * 第一次访问容器:按槽位引用的目录区域读出元素记录,只取存活且属于这个key的记录.
+     * 启动时清理的重复记录只可能出现在重放过记录的容器中,这些容器在恢复期间已经读出
+     */
+    synchronized Object load(byte[] key, DataTypeEnum type, int handle, int region) {
+        Object container = handle < containers.length ? containers[handle] : null;
+        if (container != null)
+            return container;
+        container = type == DataTypeEnum.LIST ? new QuickList(key)
+                : type == DataTypeEnum.HASH ? new HashFields(key) : new MemberLog(type, key);
+        for (DataHelper dh : elements(key, type, region)) {
+            if (recovered != null)
+                recovered.add(dh.selfPos);
+            add(container, dh);
+        }
+        setContainer(handle, container);
+        return container;
+    }
+
+    /**
+     * @return 目录区域中仍然存活的元素记录
+     */
+    synchronized List<DataHelper> elements(byte[] key, DataTypeEnum type, int region) {
+        List<DataHelper> found = new ArrayList<>();
+        try {
+            for (Long start : directory.read(region)) {
+                DataHelper dh = record(start);
+                if (dh == null)
+                    continue;
+                DataTypeEnum t = DataTypeEnum.ofDesc(dh.type);
+                boolean hash = t == DataTypeEnum.HASH || t == DataTypeEnum.HASH_PACKED;
+                if ((hash ? type == DataTypeEnum.HASH : t == type)
+                        && Arrays.equals(t == DataTypeEnum.HASH ? dh.hash : dh.key, key))
+                    found.add(dh);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("read container directory of " + getName() + " error", e);
+        }
+        return found;
+    }
+
+    static int add(Object container, DataHelper dh) {
+        if (container instanceof QuickList) {
+            ((QuickList) container).add(dh);
+            return (int) ((QuickList) container).size();
+        }
+        if (container instanceof HashFields)
+            return ((HashFields) container).add(dh);
+        return ((MemberLog) container).add(dh);
+    }
+
+    /**
+     * @return 从type取出字符串索引到现在,数据地址和内容没有被写操作修改
+     */
+    public boolean validate(DataHelper dh) {
+        return dh.slot == 0 || index.validate(dh);
+    }
+
+    public void setExpire(byte[] key, long timeOut) {
+        setExpireAt(key, timeOut + System.currentTimeMillis());
+    }
+
+    /**
+     * 修改过期时间,只改写槽位和槽位引用的那条索引记录,O(1).
+     * 容器的过期时间只以槽位为准:重启时槽位随key索引一起恢复,修复写了一半的槽位时从它引用的记录读取;
+     * 只有key索引不可用(full)时才取容器第一条存活记录中的值,元素记录中的过期时间是写入时容器的值
+     *
+     * @param expire 过期时间(毫秒时间戳),0表示不过期
+     * @return key是否存在
+     */
+    public boolean setExpireAt(byte[] key, long expire) {
+        DataHelper view = VIEW.get();
+        if (!index.get(key, view))
+            return false;
+        index.markDirty();
+        writeExpire(view.selfPos, expire);
+        index.setExpire(view.slot, expire);
+        if (expires != null && expire > 0)
+            expires.add(key, expire);
+        return true;
+    }
+
+    void writeExpire(long selfPos, long expire) {
+        buffer(selfPos).putLong(offset(selfPos) - 8, expire);
+    }
+
+    /**
+     * 建立过期时间轮,登记索引中所有设置了过期时间的key,启动恢复索引之后调用一次
+     *
+     * @param tickMs 时间轮每格的毫秒数
+     * @return 登记的key数
+     */
+    public int initExpires(long tickMs) {
+        final TimingWheel wheel = new TimingWheel(tickMs, System.currentTimeMillis());
+        index.forEach(new HashIndex.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, DataHelper dh) {
+                if (dh.expire > 0)
+                    wheel.add(key, dh.expire);
+            }
+        });
+        expires = wheel;
+        return wheel.size();
+    }
+
+    /**
+     * 从时间轮取出一个到期的key,登记之后过期时间被修改过或key已删除的条目也会返回,需要调用方核对
+     *
+     * @return 没有到期的key时返回null
+     */
+    public TimingWheel.Entry pollExpired(long now) {
+        return expires == null ? null : expires.poll(now);
+    }
+
+    public int getExpiresPending() {
+        return expires == null ? 0 : expires.size();
     }
 
-    public long rmExpire(String key) {
-        return expire.remove(key);
+    public long getExpire(byte[] key) {
+        DataHelper view = VIEW.get();
+        return index.get(key, view) ? view.expire : 0L;
     }
 
-    public boolean exist(String key) {
-        return kv.containsKey(key);
+    public long rmExpire(byte[] key) {
+        long expire = getExpire(key);
+        if (expire != 0)
+            setExpireAt(key, 0L);
+        return expire;
     }
 
-    public void remove(String key) {
-        kv.remove(key);
+    public boolean exist(byte[] key) {
+        return index.contains(key);
+    }
+
+    public void remove(byte[] key) {
+        DataHelper removed = index.remove(key);
+        if (removed != null && removed.type != DataTypeEnum.KV.getDesc()) {
+            synchronized (this) {
+                containers[(int) removed.pos] = null;
+                freeContainers.push((int) removed.pos);
+                pending.remove(IndexKey.probe(key));
+                directory.release(removed.length);
+            }
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return 所有key,用于keys命令
+     */
+    public List<byte[]> keys() {
+        final List<byte[]> keys = new ArrayList<>();
+        index.forEach(new HashIndex.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, DataHelper dh) {
+                keys.add(key);
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * SCAN命令按游标分批遍历key,见HashIndex.scan,调用方持有读锁或写锁
+     *
+     * @return 下一次的游标, 遍历完成时返回0
+     */
+    public long scan(long cursor, int count, HashIndex.Visitor visitor) {
+        return index.scan(cursor, count, visitor);
+    }
+
+    /**
+     * 指定类型当前存活的所有数据记录,字符串返回槽位的拷贝,还没有访问过的容器直接从目录读取
+     */
+    public Collection<DataHelper> records(final DataTypeEnum type) {
+        final List<DataHelper> records = new ArrayList<>();
+        if (type == DataTypeEnum.KV) {
+            index.forEach(new HashIndex.Visitor() {
+                @Override
+                public void visit(byte code, byte[] key, DataHelper dh) {
+                    if (code == type.getCode())
+                        records.add(dh);
+                }
+            });
+            return records;
+        }
+        for (Object o : containers) {
+            if (o != null && containerType(o) == type)
+                records.addAll(elements(o));
+        }
+        final Map<IndexKey, Integer> unloaded = new HashMap<>();
+        index.forEach(new HashIndex.Visitor() {
+            @Override
+            public void visit(byte code, byte[] key, DataHelper dh) {
+                int handle = (int) dh.pos;
+                if (code == type.getCode() && (handle >= containers.length || containers[handle] == null))
+                    unloaded.put(new IndexKey(key), dh.length);
+            }
+        });
+        for (Map.Entry<IndexKey, Integer> e : unloaded.entrySet()) {
+            records.addAll(elements(e.getKey().bytes, type, e.getValue()));
+        }
+        return records;
+    }
+
+    static DataTypeEnum containerType(Object container) {
+        if (container instanceof QuickList)
+            return DataTypeEnum.LIST;
+        if (container instanceof HashFields)
+            return DataTypeEnum.HASH;
+        return ((MemberLog) container).getType();
+    }
+
+    /**
+     * @return 容器中所有的数据记录
+     */
+    static List<DataHelper> elements(Object container) {
+        if (container instanceof QuickList)
+            return ((QuickList) container).blocks();
+        if (container instanceof HashFields)
+            return ((HashFields) container).records();
+        return ((MemberLog) container).blocks();
+    }
+
+    /**
+     * @return 指定类型已经读出的容器(QuickList/HashFields/MemberLog),启动恢复之后用来解析块头和清理重复记录
+     */
+    public <T> List<T> containers(Class<T> type) {
+        List<T> found = new ArrayList<>();
+        for (Object o : containers) {
+            if (type.isInstance(o))
+                found.add(type.cast(o));
+        }
+        return found;
+    }
+
+    /**
+     * @return 每个key占用的索引内存(堆外槽位),不含list/hash元素
+     */
+    public long getBytesPerKey() {
+        int size = index.size();
+        return size == 0 ? 0 : index.getMemoryBytes() / size;
     }
 
     public int add(DataHelper dh) throws Exception {
         if (dh == null)
             return -1;
-        int indexPos;
-        if ((indexPos = buffer.getInt()) != 0)
-            buffer.position(indexPos);
-        else
-            buffer.position(4);
-        String key = dh.key;
-        byte[] keyBytes = key.getBytes(CHARSET);
-        int pos = dh.pos;
-
-        buffer.putInt(keyBytes.length);
-        buffer.put(keyBytes);
-
-        String type = dh.type;
-        byte[] typeBytes = type.getBytes(CHARSET);
-        buffer.putInt(typeBytes.length);
-        buffer.put(typeBytes);
-        byte[] hb;
-        if (type.equals(DataTypeEnum.HASH.getDesc())) {
-            String h = dh.hash;
-            hb = h.getBytes(CHARSET);
-            buffer.putInt(hb.length);
-            buffer.put(hb);
-        }
-        buffer.putInt(pos);
-        buffer.putInt(dh.length);
-        buffer.putLong(dh.expire);
-        buffer.putChar(NORMAL);
-
-        int curPos = buffer.position();
-        buffer.position(0);
-        buffer.putInt(curPos);//head 4 byte in last postion
-        dh.selfPos = curPos - 2;
-        buffer.rewind();
-        if (dh.getType().equals(DataTypeEnum.KV.getDesc())) {
-            kv.put(key, dh);
-        } else if (dh.getType().equals(DataTypeEnum.LIST.getDesc())) {
-            if (!kv.containsKey(key)) {
-                kv.put(key, new LinkedList<DataHelper>());
-            }
-            ((List) kv.get(key)).add(dh);
-            return ((List) kv.get(key)).size();
-        } else if (dh.getType().equals(DataTypeEnum.HASH.getDesc())) {
-            if (!kv.containsKey(dh.getHash())) {
-                kv.put(dh.getHash(), new HashMap<String, DataHelper>());
+        index.markDirty();
+        byte[] keyBytes = dh.key;
+        DataTypeEnum type = DataTypeEnum.ofDesc(dh.type);
+        byte[] hb = type == DataTypeEnum.HASH ? dh.hash : null;
+        if (type != DataTypeEnum.KV) {
+            //新元素沿用容器当前的过期时间
+            DataHelper view = VIEW.get();
+            if (index.get(hb == null ? keyBytes : hb, view) && view.type != DataTypeEnum.KV.getDesc())
+                dh.expire = view.expire;
+        }
+        int recordLength = recordLength(keyBytes, hb);
+        long indexPos = allocate(recordLength);
+        MappedByteBuffer buffer = buffer(indexPos);
+        int offset = offset(indexPos);
+
+        buffer.put(offset++, tag(type));
+        offset = Varint.put(buffer, offset, keyBytes.length);
+        DirectMemory.put(buffer, offset, keyBytes, 0, keyBytes.length);
+        offset += keyBytes.length;
+        if (hb != null) {
+            offset = Varint.put(buffer, offset, hb.length);
+            DirectMemory.put(buffer, offset, hb, 0, hb.length);
+            offset += hb.length;
+        }
+        buffer.putLong(offset, dh.pos);
+        buffer.putInt(offset += 8, dh.length);
+        buffer.putLong(offset += 4, dh.expire);
+        buffer.put(offset += 8, LIVE);
+
+        dh.selfPos = address(segment(indexPos), offset);
+        return put(dh);
+    }
+
+    static int recordLength(byte[] key, byte[] hash) {
+        return 1 + Varint.size(key.length) + key.length + (hash == null ? 0 : Varint.size(hash.length) + hash.length) + TRAILER;
+    }
+
+    /**
+     * @return 索引记录的起始地址, 由记录地址(状态字节)往前推算
+     */
+    static long start(DataHelper dh) {
+        byte[] hb = dh.type.equals(DataTypeEnum.HASH.getDesc()) ? dh.hash : null;
+        return address(segment(dh.selfPos), offset(dh.selfPos) - (recordLength(dh.key, hb) - 1));
+    }
+
+    static byte tag(DataTypeEnum type) {
+        return (byte) (FORMAT << 4 | type.getCode());
+    }
+
+    static boolean isFormat(byte tag) {
+        return (tag & 0xFF) >>> 4 == FORMAT;
+    }
+
+    /**
+     * 把一条索引记录放入内存索引:字符串直接写槽位,list/set/zset的块和hash的记录加入对应容器,
+     * 记录地址在下一次sync时追加到容器的目录区域
+     *
+     * @return list/hash的元素个数(启动恢复期间list为0,打包的hash为0),set/zset为0
+     */
+    protected int put(DataHelper dh) {
+        if (dh.type.equals(DataTypeEnum.KV.getDesc())) {
+            dh.slot = index.put(dh.key, DataTypeEnum.KV.getCode(), dh.pos, dh.length, dh.expire, dh.selfPos, keyAddress(dh));
+            return 0;
+        }
+        DataTypeEnum type = DataTypeEnum.ofDesc(dh.type);
+        byte[] key = type == DataTypeEnum.HASH ? dh.hash : dh.key;
+        if (type == DataTypeEnum.HASH_PACKED)
+            type = DataTypeEnum.HASH;
+        DataHelper view = VIEW.get();
+        int handle = -1;
+        int region = 0;
+        if (index.get(key, view) && view.type != DataTypeEnum.KV.getDesc()) {
+            handle = (int) view.pos;
+            region = view.length;
+        }
+        synchronized (this) {
+            Object container;
+            if (handle >= 0) {
+                container = load(key, type, handle, region);
+                //重放的记录已经在目录中
+                if (recovered != null && !recovered.add(dh.selfPos))
+                    return 0;
+            } else {
+                container = type == DataTypeEnum.LIST ? new QuickList(key)
+                        : type == DataTypeEnum.HASH ? new HashFields(key) : new MemberLog(type, key);
+                handle = newContainer(container);
+                index.put(key, type.getCode(), handle, 0, dh.expire, dh.selfPos, keyAddress(dh));
             }
-            ((Map) kv.get(dh.getHash())).put(key, dh);
-            return ((Map) kv.get(dh.getHash())).size();
+            IndexKey k = IndexKey.probe(key);
+            List<Long> added = pending.get(k);
+            if (added == null)
+                pending.put(new IndexKey(key), added = new ArrayList<>());
+            added.add(start(dh));
+            return add(container, dh);
+        }
+    }
+
+    int newContainer(Object container) {
+        Integer free = freeContainers.poll();
+        int handle;
+        if (free != null) {
+            handle = free;
+        } else {
+            handle = containerCount++;
+            if (handle == containers.length)
+                containers = Arrays.copyOf(containers, handle * 2);
+            //随时记在表头,异常退出后重建容器时使用
+            index.setExtra(containerCount);
+        }
+        containers[handle] = container;
+        return handle;
+    }
+
+    void setContainer(int handle, Object container) {
+        if (handle >= containers.length)
+            containers = Arrays.copyOf(containers, Math.max(handle + 1, containers.length * 2));
+        containerCount = Math.max(containerCount, handle + 1);
+        containers[handle] = container;
+    }
+
+    /**
+     * 槽位引用的key在索引记录中的地址:字符串和list为标记之后的[key长度][key],
+     * hash为记录中的[hash长度][hash]
+     */
+    static long keyAddress(DataHelper dh) {
+        int offset = offset(dh.selfPos) - (TRAILER - 1);
+        if (dh.type.equals(DataTypeEnum.HASH.getDesc())) {
+            offset -= Varint.size(dh.hash.length) + dh.hash.length;
+            return address(segment(dh.selfPos), offset);
         }
-        return 0;
+        offset -= Varint.size(dh.key.length) + dh.key.length;
+        return address(segment(dh.selfPos), offset);
+    }
+
+    /**
+     * 字符串原地修改value前调用,期间读请求会等待重试;必须和endWrite成对调用
+     */
+    public void beginWrite(DataHelper dh) {
+        if (dh.slot != 0)
+            index.beginWrite(dh);
+    }
+
+    public void endWrite(DataHelper dh) {
+        if (dh.slot != 0)
+            index.endWrite(dh);
     }
 
+    /**
+     * 数据更新后同步索引记录中的数据地址和长度(地址可能因为重新分配槽位而变化),
+     * 字符串需要在beginWrite/endWrite之间调用
+     */
     public void updateIndex(DataHelper dh) {
-        buffer.position(dh.selfPos - 8 - 4);
-        buffer.putInt(dh.length);
-        buffer.rewind();
+        index.markDirty();
+        MappedByteBuffer buffer = buffer(dh.selfPos);
+        buffer.putLong(offset(dh.selfPos) - 8 - 4 - 8, dh.pos);
+        buffer.putInt(offset(dh.selfPos) - 8 - 4, dh.length);
+        if (dh.slot != 0)
+            index.setData(dh);
+    }
+
+    /**
+     * 数据被搬迁后更新索引记录中的数据地址
+     */
+    public void updatePos(DataHelper dh) {
+        index.markDirty();
+        buffer(dh.selfPos).putLong(offset(dh.selfPos) - 8 - 4 - 8, dh.pos);
+        if (dh.slot != 0) {
+            index.beginWrite(dh);
+            index.setData(dh);
+            index.endWrite(dh);
+        }
     }
 
     public void remove(DataHelper dh) {
-        buffer.position(dh.selfPos);
-        buffer.putChar(DELETE);
-        buffer.rewind();
+        index.markDirty();
+        buffer(dh.selfPos).put(offset(dh.selfPos), REMOVED);
+    }
+
+    /**
+     * 索引文件刷盘后保存元素目录和key索引,调用方需要保证期间没有写操作
+     */
+    @Override
+    public void force() {
+        super.force();
+        synchronized (this) {
+            try {
+                syncDirectory();
+            } catch (IOException e) {
+                //目录没有写完时不保存key索引,下次启动按tail恢复
+                log.error("sync container directory of {} error", getName(), e);
+                return;
+            }
+            index.sync(tail(), containerCount == freeContainers.size() ? 0 : containerCount);
+        }
+    }
+
+    /**
+     * 新增的元素记录地址追加到容器的目录区域,放不下时带着存活的元素换到新区域并修改槽位
+     */
+    void syncDirectory() throws IOException {
+        DataHelper view = new DataHelper();
+        for (Map.Entry<IndexKey, List<Long>> e : pending.entrySet()) {
+            byte[] key = e.getKey().bytes;
+            if (!index.get(key, view) || view.type == DataTypeEnum.KV.getDesc())
+                continue;
+            int region = view.length;
+            if (directory.append(region, e.getValue()))
+                continue;
+            List<Long> entries = new ArrayList<>();
+            for (Long start : directory.read(region)) {
+                if (record(start) != null)
+                    entries.add(start);
+            }
+            entries.addAll(e.getValue());
+            index.setLength(view.slot, directory.allocate(entries));
+            directory.release(region);
+        }
+        pending.clear();
+        directory.sync();
+    }
+
+    /**
+     * 启动时恢复索引,见类注释.已有key索引时只重放上次sync之后的记录,其中的元素记录加入按目录读出的容器,
+     * 其他容器在第一次访问时读出
+     */
+    public void recoverIndex(ForkJoinPool pool) throws Exception {
+        long start = System.currentTimeMillis();
+        long tail = tail();
+        long kvFrom;
+        if (recoveryMode.equals(FULL)) {
+            index.clear();
+            directory.reset();
+            kvFrom = address(0, HEAD);
+        } else {
+            if (recoveryMode.equals(TAIL)) {
+                int repaired = index.repair(new HashIndex.Repairer() {
+                    @Override
+                    public boolean repair(byte type, DataHelper dh) {
+                        return reload(type, dh);
+                    }
+                });
+                log.info("{} repaired {} index slots", getName(), repaired);
+            }
+            kvFrom = recoveryMode.equals(TAIL) ? index.getStamp() : tail;
+            int count = (int) index.getExtra();
+            containers = new Object[Math.max(16, count)];
+            containerCount = count;
+            recovered = new HashSet<>();
+        }
+        List<ForkJoinTask<List<DataHelper>>> tasks = new ArrayList<>();
+        final AtomicLong records = new AtomicLong();
+        if (kvFrom < tail) {
+            for (int seg = segment(kvFrom); seg <= segment(tail); seg++) {
+                final int s = seg;
+                //kvFrom是上次sync时的尾地址,一定在记录边界上
+                final int begin = seg == segment(kvFrom) ? offset(kvFrom) : 0;
+                final int end = seg == segment(tail) ? offset(tail) : segmentSize;
+                final long from = kvFrom;
+                tasks.add(pool.submit(new Callable<List<DataHelper>>() {
+                    @Override
+                    public List<DataHelper> call() throws Exception {
+                        List<DataHelper> found = new ArrayList<>();
+                        records.addAndGet(scan(s, begin, end, from, found));
+                        return found;
+                    }
+                }));
+            }
+        }
+        //按段依次加入,list的块由QuickList.load按块编号排序
+        for (ForkJoinTask<List<DataHelper>> task : tasks) {
+            for (DataHelper dh : task.get()) {
+                wrapData(dh);
+            }
+        }
+        if (!recoveryMode.equals(FULL)) {
+            final BitSet used = new BitSet();
+            index.forEach(new HashIndex.Visitor() {
+                @Override
+                public void visit(byte type, byte[] key, DataHelper dh) {
+                    if (type != DataTypeEnum.KV.getCode())
+                        used.set((int) dh.pos);
+                }
+            });
+            for (int i = 0; i < containerCount; i++) {
+                if (!used.get(i))
+                    freeContainers.push(i);
+            }
+        }
+        recovered = null;
+        recoveredRecords = records.get();
+        recoveryMillis = System.currentTimeMillis() - start;
     }
 
     public void recoverIndex() throws Exception {
-        buffer.position(4);
-        while (buffer.hasRemaining()) {
-            int keyLength = buffer.getInt();
-            if (first && keyLength <= 0) {
-                first = false;
-                buffer.rewind();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            recoverIndex(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 解析一个段内的索引记录,标记不合法(段尾未写满的部分为0)或写了一半的记录表示段结束.
+     * 只处理地址不小于kvFrom的记录:字符串记录直接放入key索引(wrapData会被多个线程同时调用),
+     * 其中已删除的记录如果仍被槽位引用则删除槽位;存活的list/hash元素放入elements按段顺序处理
+     *
+     * @return 处理的记录数(不含跳过的记录)
+     */
+    int scan(int seg, int offset, int end, long kvFrom, List<DataHelper> elements) {
+        MappedByteBuffer buffer = segments.get(seg);
+        int count = 0;
+        DataHelper view = new DataHelper();
+        while (offset < end) {
+            byte tag = buffer.get(offset);
+            int code = tag & 0x0F;
+            if (!isFormat(tag) || code < 1 || code > DataTypeEnum.CODES.length)
                 break;
-            }
-            if (keyLength <= 0)
+            DataTypeEnum type = DataTypeEnum.of((byte) code);
+            int keyLength = Varint.get(buffer, offset + 1, end);
+            if (keyLength < 0)
                 break;
-            byte[] keyBytes = new byte[keyLength];
-            buffer.get(keyBytes);
-            String key = new String(keyBytes, CHARSET);
-
-            int typeLength = buffer.getInt();
-            byte[] typeBytes = new byte[typeLength];
-            buffer.get(typeBytes);
-            String type = new String(typeBytes, CHARSET);
-            String hash_ = null;
-            if (type.equals(DataTypeEnum.HASH.getDesc())) {
-                int hashLength = buffer.getInt();
-                byte[] hashLengthB = new byte[hashLength];
-                buffer.get(hashLengthB);
-                hash_ = new String(hashLengthB, CHARSET);
+            int keyOffset = offset + 1 + Varint.size(keyLength);
+            int next = keyOffset + keyLength;
+            int hashLength = 0;
+            if (type == DataTypeEnum.HASH) {
+                hashLength = Varint.get(buffer, next, end);
+                if (hashLength < 0)
+                    break;
+                next += Varint.size(hashLength) + hashLength;
             }
-            int dataIndex = buffer.getInt();
-            int dataLength = buffer.getInt();
-            long expire = buffer.getLong();
-            char status = buffer.getChar();
+            int statusOffset = next + TRAILER - 1;
+            if (statusOffset >= end)
+                break;
+            long selfPos = address(seg, statusOffset);
+            boolean live = buffer.get(statusOffset) == LIVE;
+            boolean kv = type == DataTypeEnum.KV;
+            offset = statusOffset + 1;
+            if (selfPos < kvFrom || !kv && !live)
+                continue;
+            count++;
             DataHelper dh = new DataHelper();
-            dh.key = key;
-            dh.pos = dataIndex;
-            dh.length = dataLength;
-            dh.type = type;
-            dh.hash = hash_;
-            dh.expire = expire;
-            dh.selfPos = buffer.position() - 2;
-            if (status == NORMAL)
+            dh.key = new byte[keyLength];
+            DirectMemory.get(buffer, keyOffset, dh.key, 0, keyLength);
+            dh.type = type.getDesc();
+            if (type == DataTypeEnum.HASH) {
+                dh.hash = new byte[hashLength];
+                DirectMemory.get(buffer, next - hashLength, dh.hash, 0, hashLength);
+            }
+            dh.pos = buffer.getLong(next);
+            dh.length = buffer.getInt(next + 8);
+            dh.expire = buffer.getLong(next + 12);
+            dh.selfPos = selfPos;
+            if (!kv) {
+                elements.add(dh);
+            } else if (live) {
                 wrapData(dh);
+            } else if (index.get(dh.key, view) && view.selfPos == selfPos) {
+                index.remove(dh.key);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按起始地址解析一条存活的索引记录,地址无效、记录已删除或不完整时返回null
+     */
+    DataHelper record(long start) {
+        int seg = segment(start);
+        int offset = offset(start);
+        long tail = tail();
+        if (start < address(0, HEAD) || start >= tail || seg >= segments.size())
+            return null;
+        int end = seg == segment(tail) ? offset(tail) : segmentSize;
+        MappedByteBuffer buffer = segments.get(seg);
+        byte tag = buffer.get(offset);
+        int code = tag & 0x0F;
+        if (!isFormat(tag) || code < 1 || code > DataTypeEnum.CODES.length)
+            return null;
+        DataTypeEnum type = DataTypeEnum.of((byte) code);
+        int keyLength = Varint.get(buffer, offset + 1, end);
+        if (keyLength < 0)
+            return null;
+        int keyOffset = offset + 1 + Varint.size(keyLength);
+        int next = keyOffset + keyLength;
+        int hashLength = 0;
+        if (type == DataTypeEnum.HASH) {
+            hashLength = Varint.get(buffer, next, end);
+            if (hashLength < 0)
+                return null;
+            next += Varint.size(hashLength) + hashLength;
         }
+        int statusOffset = next + TRAILER - 1;
+        if (statusOffset >= end || buffer.get(statusOffset) != LIVE)
+            return null;
+        DataHelper dh = new DataHelper();
+        dh.key = new byte[keyLength];
+        DirectMemory.get(buffer, keyOffset, dh.key, 0, keyLength);
+        dh.type = type.getDesc();
+        if (type == DataTypeEnum.HASH) {
+            dh.hash = new byte[hashLength];
+            DirectMemory.get(buffer, next - hashLength, dh.hash, 0, hashLength);
+        }
+        dh.pos = buffer.getLong(next);
+        dh.length = buffer.getInt(next + 8);
+        dh.expire = buffer.getLong(next + 12);
+        dh.selfPos = address(seg, statusOffset);
+        return dh;
+    }
+
+    /**
+     * 按索引记录重新填充写了一半的槽位,记录已删除或地址无效时返回false
+     */
+    boolean reload(byte type, DataHelper dh) {
+        long selfPos = dh.selfPos;
+        int offset = offset(selfPos);
+        if (segment(selfPos) >= segments.size() || selfPos >= tail() || offset < TRAILER || offset >= segmentSize)
+            return false;
+        MappedByteBuffer buffer = buffer(selfPos);
+        if (buffer.get(offset) != LIVE)
+            return false;
+        //list/hash槽位的数据地址是容器下标,不从记录中读取
+        if (type == DataTypeEnum.KV.getCode()) {
+            dh.pos = buffer.getLong(offset - 8 - 4 - 8);
+            dh.length = buffer.getInt(offset - 8 - 4);
+        }
+        dh.expire = buffer.getLong(offset - 8);
+        return true;
     }
 
     public abstract void wrapData(DataHelper dataHelper);
+
+    @Override
+    public void close() throws Exception {
+        index.close();
+        directory.close();
+        super.close();
+    }
+
+    @Override
+    public void clean() throws Exception {
+        super.clean();
+        index.file.delete();
+        directory.file.delete();
+    }
 }
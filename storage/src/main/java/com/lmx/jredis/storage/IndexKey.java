@@ -0,0 +1,65 @@
+package com.lmx.jredis.storage;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 索引中使用的key,直接包装命令里的byte[],避免转换成String
+ * 查询时通过probe复用线程内的实例,不产生临时对象;放进map的必须是new出来的实例
+ * Created by lmx on 2017/12/20.
+ */
+public class IndexKey {
+    private static final ThreadLocal<IndexKey> PROBE = new ThreadLocal<IndexKey>() {
+        @Override
+        protected IndexKey initialValue() {
+            return new IndexKey();
+        }
+    };
+
+    byte[] bytes;
+    int hashCode;
+
+    private IndexKey() {
+    }
+
+    public IndexKey(byte[] bytes) {
+        set(bytes);
+    }
+
+    /**
+     * 线程内复用的查询key,只能用于get/containsKey/remove,不能放入map或跨调用持有
+     */
+    public static IndexKey probe(byte[] bytes) {
+        return PROBE.get().set(bytes);
+    }
+
+    IndexKey set(byte[] bytes) {
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+        return this;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof IndexKey))
+            return false;
+        IndexKey other = (IndexKey) o;
+        return hashCode == other.hashCode && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, Charset.forName(BaseMedia.CHARSET));
+    }
+}
@@ -0,0 +1,286 @@
+package com.lmx.jredis.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把旧格式的索引和数据文件转换为当前的记录格式,服务停止后执行一次:
+ * java -cp ... com.lmx.jredis.storage.IndexMigration [db个数] [段大小MB,即memorySize/2]
+ * 索引v0:[key长度][key][类型长度][类型字符串]([hash长度][hash])[数据地址][数据长度][过期时间][状态字符]
+ * 索引v1:和当前格式相同,格式号为1
+ * 旧数据文件:[槽位大小][数据长度][数据...槽位][状态位]
+ * 只复制未删除的记录:从旧数据文件读出value,按当前格式写入新数据文件,再写入新的索引记录.
+ * 原文件保留为[文件名].v0,key索引文件删除,下次启动全量重建
+ * Created by lmx on 2017/12/28.
+ */
+@Slf4j
+public class IndexMigration {
+    static final String FILE = "keyIndex";
+    static final String SUFFIX = ".migrating";
+
+    public static void main(String[] args) throws Exception {
+        int dbSize = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int segmentMb = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        for (int db = 0; db < dbSize; db++) {
+            int migrated = migrate(db, segmentMb);
+            System.out.println("db " + db + ": " + (migrated < 0 ? "already in the current format" : "migrated " + migrated + " records"));
+        }
+    }
+
+    /**
+     * 旧数据文件,只读映射,按数据地址读取value
+     */
+    static class OldData {
+        final FileChannel channel;
+        final long size;
+        final int segmentSize;
+        final Map<Integer, MappedByteBuffer> segments = new HashMap<>();
+
+        OldData(File file, int segmentSize) throws Exception {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            size = channel.size();
+            this.segmentSize = segmentSize;
+        }
+
+        byte[] read(long pos, int length) throws Exception {
+            int seg = BaseMedia.segment(pos);
+            MappedByteBuffer buffer = segments.get(seg);
+            if (buffer == null) {
+                long start = (long) seg * segmentSize;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+                segments.put(seg, buffer);
+            }
+            byte[] value = new byte[length];
+            DirectMemory.get(buffer, BaseMedia.offset(pos), value, 0, length);
+            return value;
+        }
+
+        void close() throws Exception {
+            channel.close();
+            for (MappedByteBuffer buffer : segments.values()) {
+                BaseMedia.unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return 转换的记录数, 文件已经是当前格式或不存在时返回-1
+     */
+    public static int migrate(int db, int segmentMb) throws Exception {
+        File dir = db == 0 ? BaseMedia.defaultFile : new File(BaseMedia.defaultFile.getParentFile(), String.valueOf(db));
+        File source = new File(dir, FILE);
+        if (!source.exists() || source.length() < BaseMedia.HEAD)
+            return -1;
+        int segmentSize = segmentMb * 1024 * 1024;
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        FileChannel channel = raf.getChannel();
+        Map<String, OldData> oldData = new HashMap<>();
+        Map<String, DataMedia> newData = new HashMap<>();
+        IndexHelper target = null;
+        int count = 0;
+        try {
+            int segments = (int) ((channel.size() + segmentSize - 1) / segmentSize);
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(segmentSize, channel.size()));
+            long tail = first.getLong(0);
+            if (tail <= BaseMedia.address(0, BaseMedia.HEAD) || IndexHelper.isFormat(first.get(BaseMedia.HEAD)))
+                return -1;
+            //v1的标记字节高4位为1,v0的第一个字节是key长度int的最高字节,一定为0
+            boolean v1 = (first.get(BaseMedia.HEAD) & 0xFF) >>> 4 == 1;
+            BaseMedia.unmap(first);
+            for (DataTypeEnum type : DataTypeEnum.LEGACY) {
+                File old = new File(dir, dataFile(type));
+                if (old.exists())
+                    oldData.put(type.getDesc(), new OldData(old, segmentSize * 2));
+                deleteFiles(dir, dataFile(type) + SUFFIX);
+                newData.put(type.getDesc(), new DataMedia(db, dataFile(type) + SUFFIX, segmentMb * 2));
+            }
+            deleteFiles(dir, FILE + SUFFIX);
+            target = new IndexHelper(db, FILE + SUFFIX, segmentMb) {
+                @Override
+                public void wrapData(DataHelper dataHelper) {
+                }
+            };
+            for (int seg = 0; seg < segments && seg <= BaseMedia.segment(tail); seg++) {
+                long start = (long) seg * segmentSize;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, channel.size() - start));
+                int end = seg == BaseMedia.segment(tail) ? BaseMedia.offset(tail) : buffer.capacity();
+                List<DataHelper> records = new ArrayList<>();
+                if (v1)
+                    parseV1(buffer, seg == 0 ? BaseMedia.HEAD : 0, end, records);
+                else
+                    parseV0(buffer, seg == 0 ? BaseMedia.HEAD : 0, end, records);
+                BaseMedia.unmap(buffer);
+                for (DataHelper dh : records) {
+                    if (copy(dh, oldData.get(dh.type), newData.get(dh.type), target))
+                        count++;
+                }
+            }
+            for (DataMedia media : newData.values()) {
+                media.force();
+            }
+            target.force();
+        } finally {
+            channel.close();
+            raf.close();
+            for (OldData old : oldData.values()) {
+                old.close();
+            }
+            for (DataMedia media : newData.values()) {
+                media.close();
+            }
+            if (target != null)
+                target.close();
+        }
+        replace(dir, FILE);
+        for (DataTypeEnum type : DataTypeEnum.LEGACY) {
+            replace(dir, dataFile(type));
+        }
+        log.info("migrated {} records of {}, old files kept as *.v0", count, source);
+        return count;
+    }
+
+    static String dataFile(DataTypeEnum type) {
+        switch (type) {
+            case LIST:
+                return "listData";
+            case HASH:
+                return "hashData";
+            default:
+                return "valueData";
+        }
+    }
+
+    static void deleteFiles(File dir, String name) {
+        new File(dir, name).delete();
+        new File(dir, name + ".hash").delete();
+        new File(dir, name + ".live").delete();
+    }
+
+    /**
+     * 原文件改名为.v0,转换后的文件改为原来的名字,统计和key索引文件下次启动重新生成
+     */
+    static void replace(File dir, String name) {
+        File source = new File(dir, name);
+        if (source.exists() && !source.renameTo(new File(dir, name + ".v0")))
+            throw new IllegalStateException("backup " + source + " failed");
+        if (!new File(dir, name + SUFFIX).renameTo(source))
+            throw new IllegalStateException("replace " + source + " failed");
+        deleteFiles(dir, name + SUFFIX);
+        new File(dir, name + ".hash").delete();
+        new File(dir, name + ".live").delete();
+    }
+
+    /**
+     * 从旧数据文件读出value,写入新数据文件和新索引
+     *
+     * @return 旧数据文件存在并且复制成功
+     */
+    static boolean copy(DataHelper dh, OldData old, DataMedia media, IndexHelper target) throws Exception {
+        if (old == null) {
+            log.warn("data file of {} not found, skip key {}", dh.type, new String(dh.key, BaseMedia.CHARSET));
+            return false;
+        }
+        byte[] value = old.read(dh.pos, dh.length);
+        boolean hash = dh.type.equals(DataTypeEnum.HASH.getDesc());
+        DataHelper copy = media.add(DataTypeEnum.ofDesc(dh.type).getCode(), hash ? dh.hash : dh.key, hash ? dh.key : null, value);
+        copy.type = dh.type;
+        copy.key = dh.key;
+        copy.hash = dh.hash;
+        copy.expire = dh.expire;
+        target.add(copy);
+        return true;
+    }
+
+    /**
+     * 按v1格式解析一个段:[标记][key长度][key]([hash长度][hash])[数据地址][数据长度][过期时间][状态]
+     */
+    static void parseV1(MappedByteBuffer buffer, int offset, int end, List<DataHelper> records) {
+        while (offset < end) {
+            byte tag = buffer.get(offset);
+            int code = tag & 0x0F;
+            if ((tag & 0xFF) >>> 4 != 1 || code < 1 || code > DataTypeEnum.LEGACY.length)
+                break;
+            DataTypeEnum type = DataTypeEnum.of((byte) code);
+            int keyLength = Varint.get(buffer, offset + 1, end);
+            if (keyLength < 0)
+                break;
+            offset += 1 + Varint.size(keyLength);
+            if (offset + keyLength > end)
+                break;
+            DataHelper dh = new DataHelper();
+            dh.type = type.getDesc();
+            dh.key = new byte[keyLength];
+            DirectMemory.get(buffer, offset, dh.key, 0, keyLength);
+            offset += keyLength;
+            if (type == DataTypeEnum.HASH) {
+                int hashLength = Varint.get(buffer, offset, end);
+                if (hashLength < 0 || offset + Varint.size(hashLength) + hashLength > end)
+                    break;
+                offset += Varint.size(hashLength);
+                dh.hash = new byte[hashLength];
+                DirectMemory.get(buffer, offset, dh.hash, 0, hashLength);
+                offset += hashLength;
+            }
+            if (offset + IndexHelper.TRAILER > end)
+                break;
+            dh.pos = buffer.getLong(offset);
+            dh.length = buffer.getInt(offset + 8);
+            dh.expire = buffer.getLong(offset + 12);
+            byte status = buffer.get(offset + 20);
+            offset += IndexHelper.TRAILER;
+            if (status == IndexHelper.LIVE)
+                records.add(dh);
+        }
+    }
+
+    /**
+     * 按v0格式解析一个段,长度为0或不完整的记录表示段结束
+     */
+    static void parseV0(MappedByteBuffer buffer, int offset, int end, List<DataHelper> records) throws Exception {
+        while (offset + 4 <= end) {
+            int keyLength = buffer.getInt(offset);
+            if (keyLength <= 0 || offset + 4 + keyLength + 4 > end)
+                break;
+            byte[] key = new byte[keyLength];
+            DirectMemory.get(buffer, offset + 4, key, 0, keyLength);
+            offset += 4 + keyLength;
+            int typeLength = buffer.getInt(offset);
+            if (typeLength <= 0 || offset + 4 + typeLength > end)
+                break;
+            byte[] typeBytes = new byte[typeLength];
+            DirectMemory.get(buffer, offset + 4, typeBytes, 0, typeLength);
+            offset += 4 + typeLength;
+            String type = DataTypeEnum.ofDesc(new String(typeBytes, BaseMedia.CHARSET)).getDesc();
+            byte[] hash = null;
+            if (type.equals(DataTypeEnum.HASH.getDesc())) {
+                int hashLength = offset + 4 <= end ? buffer.getInt(offset) : -1;
+                if (hashLength < 0 || offset + 4 + hashLength > end)
+                    break;
+                hash = new byte[hashLength];
+                DirectMemory.get(buffer, offset + 4, hash, 0, hashLength);
+                offset += 4 + hashLength;
+            }
+            if (offset + 8 + 4 + 8 + 2 > end)
+                break;
+            DataHelper dh = new DataHelper();
+            dh.key = key;
+            dh.type = type;
+            dh.hash = hash;
+            dh.pos = buffer.getLong(offset);
+            dh.length = buffer.getInt(offset + 8);
+            dh.expire = buffer.getLong(offset + 12);
+            char status = buffer.getChar(offset + 20);
+            offset += 8 + 4 + 8 + 2;
+            if (status == '1')
+                records.add(dh);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.lmx.jredis.storage;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * set/zset/stream的持久化:对成员的修改按顺序追加到块记录中,条目的内容(如[增删标记][成员])由调用方编码.
+ * 块记录的field为8字节的块编号,块数据为[条目长度][条目]...,尾块写满后新建编号加1的块.
+ * 追加条目时直接写在尾块槽位的剩余空间里,只改写记录的数据长度;放不下时尾块搬到容量翻倍的槽位,
+ * 每次追加的代价和块大小无关(crc按映射区重新计算,块上限取得较小)
+ * 启动恢复时只建立块目录,第一次访问key时才按编号顺序读出全部条目,由调用方重放成内存结构(见members),
+ * 之后的读写都在内存结构上进行,写操作同时追加条目.
+ * 条目数远多于成员数时调用方用当前成员重写(rewrite):先写入新块再删除旧块,中途退出时新旧块都会被重放,
+ * 新块只包含添加条目,重放结果仍然是重写前的成员
+ * 写操作由调用方持有写锁串行执行,读写都在MemberLog上同步
+ * Created by lmx on 2018/1/15.
+ */
+public class MemberLog {
+    public static final int MAX_BLOCK_BYTES = 2 * 1024;
+    /**
+     * 条目数超过成员数的两倍加上这个数时重写
+     */
+    public static final int MIN_REWRITE_ENTRIES = 256;
+
+    /**
+     * 条目重放成内存结构
+     */
+    public interface Loader<T> {
+        T create();
+
+        void replay(T members, byte[] entry);
+    }
+
+    public static class Block extends DataHelper {
+        final long id;
+        /**
+         * 新写入的块中的条目数,加载时读到的块为0
+         */
+        int count;
+
+        Block(long id, DataTypeEnum type) {
+            this.id = id;
+            this.type = type.getDesc();
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    final DataTypeEnum type;
+    final byte[] key;
+    /**
+     * 按编号排序的块
+     */
+    List<Block> blocks = new ArrayList<>();
+    /**
+     * 启动恢复时从索引记录读到的块,第一次访问时才读取块编号
+     */
+    List<DataHelper> loading;
+    /**
+     * 块中的条目数,加载之后才准确
+     */
+    long entries;
+    /**
+     * 重放得到的内存结构,null表示还没有加载
+     */
+    Object members;
+
+    MemberLog(DataTypeEnum type, byte[] key) {
+        this.type = type;
+        this.key = key;
+    }
+
+    /**
+     * 新建key:写入第一批条目,加入索引时由IndexHelper.put创建MemberLog
+     */
+    public static void create(DataMedia store, IndexHelper ih, DataTypeEnum type, byte[] key, List<byte[]> entries) throws Exception {
+        write(store, ih, type, key, 0, entries);
+    }
+
+    /**
+     * 把条目按块的上限打包成编号从id开始的新块
+     */
+    static void write(DataMedia store, IndexHelper ih, DataTypeEnum type, byte[] key, long id, List<byte[]> entries) throws Exception {
+        List<byte[]> pending = new ArrayList<>();
+        int bytes = 0;
+        for (int i = 0; i <= entries.size(); i++) {
+            byte[] entry = i < entries.size() ? entries.get(i) : null;
+            if (!pending.isEmpty() && (entry == null || bytes + Varint.sizeOf(entry) > MAX_BLOCK_BYTES)) {
+                ih.add(newBlock(store, type, key, id++, pending));
+                pending = new ArrayList<>();
+                bytes = 0;
+            }
+            if (entry != null) {
+                pending.add(entry);
+                bytes += Varint.sizeOf(entry);
+            }
+        }
+    }
+
+    static Block newBlock(DataMedia store, DataTypeEnum type, byte[] key, long id, List<byte[]> entries) throws Exception {
+        int length = 0;
+        for (byte[] entry : entries) {
+            length += Varint.sizeOf(entry);
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (byte[] entry : entries) {
+            Varint.putBytes(data, entry);
+        }
+        DataHelper dh = store.add(type.getCode(), key, ByteBuffer.allocate(8).putLong(id).array(), data.array());
+        Block b = new Block(id, type);
+        b.key = key;
+        b.pos = dh.pos;
+        b.length = dh.length;
+        b.count = entries.size();
+        return b;
+    }
+
+    public DataTypeEnum getType() {
+        return type;
+    }
+
+    /**
+     * IndexHelper.put调用:新块放在尾部,启动恢复时读到的记录先暂存
+     */
+    synchronized int add(DataHelper dh) {
+        if (dh instanceof Block) {
+            blocks.add((Block) dh);
+            entries += ((Block) dh).count;
+        } else {
+            if (loading == null)
+                loading = new ArrayList<>();
+            loading.add(dh);
+        }
+        return 0;
+    }
+
+    /**
+     * @return 加载后的内存结构,第一次调用时读出所有块重放
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T members(DataMedia store, Loader<T> loader) {
+        if (members != null)
+            return (T) members;
+        resolve(store);
+        T loaded = loader.create();
+        long count = 0;
+        for (Block b : blocks) {
+            byte[] data = store.get(b);
+            for (int offset = 0; offset < data.length; offset = Varint.skipBytes(data, offset)) {
+                loader.replay(loaded, Varint.getBytes(data, offset));
+                count++;
+            }
+        }
+        entries = count;
+        members = loaded;
+        return loaded;
+    }
+
+    public synchronized boolean isLoaded() {
+        return members != null;
+    }
+
+    /**
+     * 读取暂存记录的块编号,按编号放入目录;块搬迁时异常退出留下的同编号记录只保留一条
+     */
+    void resolve(DataMedia store) {
+        if (loading == null)
+            return;
+        for (DataHelper dh : loading) {
+            Block b = new Block(ByteBuffer.wrap(store.field(dh)).getLong(), type);
+            b.key = key;
+            b.pos = dh.pos;
+            b.length = dh.length;
+            b.selfPos = dh.selfPos;
+            b.expire = dh.expire;
+            blocks.add(b);
+        }
+        loading = null;
+        Collections.sort(blocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block o1, Block o2) {
+                return Long.compare(o1.id, o2.id);
+            }
+        });
+        for (int i = blocks.size() - 1; i > 0; i--) {
+            if (blocks.get(i).id == blocks.get(i - 1).id)
+                blocks.remove(i);
+        }
+    }
+
+    /**
+     * 追加一个条目,尾块没有写满时追加到尾块,否则新建一个块.调用方先通过members加载
+     */
+    public synchronized void append(DataMedia store, IndexHelper ih, byte[] entry) throws Exception {
+        Block last = blocks.get(blocks.size() - 1);
+        int size = Varint.sizeOf(entry);
+        if (last.length + size <= MAX_BLOCK_BYTES) {
+            ByteBuffer tail = ByteBuffer.allocate(size);
+            Varint.putBytes(tail, entry);
+            store.append(last, tail.array(), Math.min(MAX_BLOCK_BYTES, 2 * (last.length + size)));
+            ih.updateIndex(last);
+        } else {
+            ih.add(newBlock(store, type, key, last.id + 1, Collections.singletonList(entry)));
+        }
+        entries++;
+    }
+
+    /**
+     * @param size 当前成员数
+     * @return 条目是否多到需要重写
+     */
+    public synchronized boolean shouldRewrite(int size) {
+        return entries > 2L * size + MIN_REWRITE_ENTRIES;
+    }
+
+    /**
+     * 用当前成员的添加条目替换所有块
+     */
+    public synchronized void rewrite(DataMedia store, IndexHelper ih, List<byte[]> entries) throws Exception {
+        List<Block> old = new ArrayList<>(blocks);
+        write(store, ih, type, key, old.get(old.size() - 1).id + 1, entries);
+        for (Block b : old) {
+            ih.remove(b);
+            store.remove(b);
+        }
+        blocks.subList(0, old.size()).clear();
+        this.entries = entries.size();
+    }
+
+    /**
+     * 删除所有块记录和它们的索引记录
+     */
+    public synchronized void clear(DataMedia store, IndexHelper ih) {
+        for (DataHelper dh : blocks()) {
+            ih.remove(dh);
+            store.remove(dh);
+        }
+        blocks = new ArrayList<>();
+        loading = null;
+        members = null;
+        entries = 0;
+    }
+
+    /**
+     * @return 所有块记录(包括启动恢复时还没有解析的)
+     */
+    public synchronized List<DataHelper> blocks() {
+        List<DataHelper> list = new ArrayList<DataHelper>(blocks);
+        if (loading != null)
+            list.addAll(loading);
+        return list;
+    }
+
+    public synchronized int getBlockCount() {
+        return blocks.size() + (loading == null ? 0 : loading.size());
+    }
+}
@@ -0,0 +1,705 @@
+package com.lmx.jredis.storage;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * list的内存结构:元素按顺序打包在数据文件的块记录里,堆上只有块的目录(每块一个对象),元素本身不占堆内存
+ * 块记录的field为8字节的块编号,头部新建的块编号递减,尾部新建的递增,重建时按编号排序;
+ * 块数据为[首元素位置][元素长度][元素]...,位置是元素的绝对序号,LPUSH递减,RPUSH递增,中间的元素位置不变.
+ * 下标i的元素位置为首块位置+i,按各块的首元素位置二分找到块,再在块内顺序解析;
+ * 目录是两端都留有空位的数组,两端的push/pop只改写头块或尾块,为O(1),按下标读取为O(log 块数)
+ * LINSERT/LREM/LTRIM在中间改写块,首元素位置不变,之后的位置随之移动;启动时只有头块的位置取自块头,
+ * 其余的块由前一个块推算,所以删除头块前先改写下一个块的块头.块写满时拆成两块,较短一侧的块改编号腾出编号
+ * 每次修改至少给一条块记录分配新的序号(删除块时给相邻的块),重放日志时按块记录的最大序号判断修改是否已经写入
+ * 写操作由调用方持有写锁串行执行,读写都在QuickList上同步
+ * Created by lmx on 2018/1/8.
+ */
+public class QuickList {
+    /**
+     * 块写满的条件,超过上限的单个元素独占一个块
+     */
+    public static final int MAX_BLOCK_BYTES = 8 * 1024;
+    public static final int MAX_BLOCK_ENTRIES = 128;
+    /**
+     * 块数据开头的首元素位置
+     */
+    static final int HEADER = 8;
+
+    public static class Block extends DataHelper {
+        long id;
+        /**
+         * 首元素的位置
+         */
+        long start;
+        int count;
+        /**
+         * 块记录的序号
+         */
+        long seq;
+
+        Block(long id) {
+            this.id = id;
+            this.type = DataTypeEnum.LIST.getDesc();
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    final byte[] key;
+    /**
+     * 块目录,有效范围[first, last)
+     */
+    Block[] blocks = new Block[4];
+    int first = 2;
+    int last = 2;
+    /**
+     * 启动恢复时从索引记录读到的块,还没有解析块头,由load统一排序
+     */
+    List<DataHelper> loading;
+    /**
+     * 块记录的最大序号
+     */
+    long seq;
+
+    QuickList(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * 新建list:写入只有一个元素的块,加入索引时由IndexHelper.put创建QuickList
+     *
+     * @param start 元素的位置,正常写入为0,重放日志时按日志记录
+     */
+    public static void create(DataMedia store, IndexHelper ih, byte[] key, byte[] value, long start) throws Exception {
+        ih.add(newBlock(store, key, 0, start, Collections.singletonList(value)));
+    }
+
+    static Block newBlock(DataMedia store, byte[] key, long id, long start, List<byte[]> values) throws Exception {
+        int length = HEADER;
+        for (byte[] value : values) {
+            length += Varint.sizeOf(value);
+        }
+        ByteBuffer data = ByteBuffer.allocate(length).putLong(start);
+        for (byte[] value : values) {
+            Varint.putBytes(data, value);
+        }
+        return newBlock(store, key, id, data.array(), values.size());
+    }
+
+    /**
+     * @param data 打包好的块数据,开头是首元素位置
+     */
+    static Block newBlock(DataMedia store, byte[] key, long id, byte[] data, int count) throws Exception {
+        DataHelper dh = store.add(DataTypeEnum.LIST.getCode(), key, ByteBuffer.allocate(8).putLong(id).array(), data);
+        Block b = new Block(id);
+        b.key = key;
+        b.pos = dh.pos;
+        b.length = dh.length;
+        b.start = ByteBuffer.wrap(data).getLong();
+        b.count = count;
+        b.seq = store.seq(dh);
+        return b;
+    }
+
+    /**
+     * IndexHelper.put调用:新块按编号放在头部或尾部,拆分出的块插在中间;启动恢复时读到的记录先暂存
+     */
+    synchronized void add(DataHelper dh) {
+        if (!(dh instanceof Block)) {
+            if (loading == null)
+                loading = new ArrayList<>();
+            loading.add(dh);
+            return;
+        }
+        Block b = (Block) dh;
+        seq = Math.max(seq, b.seq);
+        if (first == last || b.id > blocks[last - 1].id) {
+            if (last == blocks.length)
+                grow();
+            blocks[last++] = b;
+        } else if (b.id < blocks[first].id) {
+            if (first == 0)
+                grow();
+            blocks[--first] = b;
+        } else {
+            int k = findId(b.id);
+            if (blocks[k].id == b.id)
+                throw new IllegalStateException("list block " + b.id + " already exists");
+            if (last == blocks.length) {
+                int old = first;
+                grow();
+                k += first - old;
+            }
+            System.arraycopy(blocks, k, blocks, k + 1, last - k);
+            blocks[k] = b;
+            last++;
+        }
+    }
+
+    /**
+     * 按块数重新分配目录,已有的块放在中间,两端各留出空位
+     */
+    void grow() {
+        int n = last - first;
+        Block[] grown = new Block[n * 2 + 4];
+        int from = (grown.length - n) / 2;
+        System.arraycopy(blocks, first, grown, from, n);
+        blocks = grown;
+        first = from;
+        last = from + n;
+    }
+
+    /**
+     * 启动恢复之后调用:读取暂存记录的块编号和首元素位置,按编号放入目录.
+     * 没有块编号的记录是旧格式(每个元素一条记录),按记录顺序返回,由调用方转换
+     *
+     * @return 旧格式的元素记录
+     */
+    public synchronized List<DataHelper> load(DataMedia store) {
+        if (loading == null)
+            return Collections.emptyList();
+        List<DataHelper> legacy = new ArrayList<>();
+        List<Block> found = new ArrayList<>();
+        for (DataHelper dh : loading) {
+            byte[] field = store.field(dh);
+            if (field == null || field.length != 8) {
+                legacy.add(dh);
+                continue;
+            }
+            byte[] data = store.get(dh);
+            Block b = new Block(ByteBuffer.wrap(field).getLong());
+            b.key = key;
+            b.pos = dh.pos;
+            b.length = dh.length;
+            b.selfPos = dh.selfPos;
+            b.expire = dh.expire;
+            b.start = ByteBuffer.wrap(data).getLong();
+            b.count = count(data);
+            b.seq = store.seq(dh);
+            found.add(b);
+        }
+        loading = null;
+        Collections.sort(found, new Comparator<Block>() {
+            @Override
+            public int compare(Block o1, Block o2) {
+                return Long.compare(o1.id, o2.id);
+            }
+        });
+        for (Block b : found) {
+            //块搬迁时异常退出留下的重复记录
+            if (first != last && b.id == blocks[last - 1].id)
+                continue;
+            //除头块外的首元素位置由前一个块推算,和块头不一致时以推算为准
+            if (first != last)
+                b.start = blocks[last - 1].start + blocks[last - 1].count;
+            add(b);
+        }
+        return legacy;
+    }
+
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    public synchronized long size() {
+        return first == last ? 0 : tail() - head();
+    }
+
+    /**
+     * @return 首元素的位置,list为空时为0
+     */
+    public synchronized long head() {
+        return first == last ? 0 : blocks[first].start;
+    }
+
+    /**
+     * @return 尾元素之后的位置,list为空时为0
+     */
+    public synchronized long tail() {
+        return first == last ? 0 : blocks[last - 1].start + blocks[last - 1].count;
+    }
+
+    /**
+     * 在头部或尾部加入一个元素,端块没有写满时改写端块,否则新建一个块
+     *
+     * @return push之后的元素个数
+     */
+    public synchronized long push(DataMedia store, IndexHelper ih, byte[] value, boolean head) throws Exception {
+        Block b = head ? blocks[first] : blocks[last - 1];
+        if (b.count < MAX_BLOCK_ENTRIES && b.length + Varint.sizeOf(value) <= MAX_BLOCK_BYTES) {
+            byte[] data = store.get(b);
+            ByteBuffer updated = ByteBuffer.allocate(data.length + Varint.sizeOf(value));
+            if (head) {
+                updated.putLong(b.start - 1);
+                Varint.putBytes(updated, value);
+                updated.put(data, HEADER, data.length - HEADER);
+            } else {
+                updated.put(data);
+                Varint.putBytes(updated, value);
+            }
+            write(store, ih, b, updated.array());
+            b.count++;
+            if (head)
+                b.start--;
+        } else {
+            ih.add(newBlock(store, key, head ? b.id - 1 : b.id + 1, head ? b.start - 1 : b.start + b.count,
+                    Collections.singletonList(value)));
+        }
+        return size();
+    }
+
+    /**
+     * 在尾部加入多个元素,按块的上限打包成新块,用于转换旧格式
+     */
+    public synchronized void pushAll(DataMedia store, IndexHelper ih, List<byte[]> values) throws Exception {
+        List<byte[]> pending = new ArrayList<>();
+        int bytes = HEADER;
+        for (int i = 0; i <= values.size(); i++) {
+            byte[] value = i < values.size() ? values.get(i) : null;
+            if (!pending.isEmpty() && (value == null || pending.size() == MAX_BLOCK_ENTRIES
+                    || bytes + Varint.sizeOf(value) > MAX_BLOCK_BYTES)) {
+                long id = first == last ? 0 : blocks[last - 1].id + 1;
+                ih.add(newBlock(store, key, id, tail(), pending));
+                pending = new ArrayList<>();
+                bytes = HEADER;
+            }
+            if (value != null) {
+                pending.add(value);
+                bytes += Varint.sizeOf(value);
+            }
+        }
+    }
+
+    /**
+     * 弹出头部或尾部的元素,块空了之后删除块记录和它的索引记录
+     *
+     * @return list为空时返回null
+     */
+    public synchronized byte[] pop(DataMedia store, IndexHelper ih, boolean head) throws Exception {
+        if (first == last)
+            return null;
+        Block b = head ? blocks[first] : blocks[last - 1];
+        byte[] data = store.get(b);
+        int from = offsetOf(data, head ? 0 : b.count - 1);
+        int end = Varint.skipBytes(data, from);
+        byte[] value = Varint.getBytes(data, from);
+        if (b.count == 1) {
+            drop(store, ih, head ? first : last - 1);
+            return value;
+        }
+        ByteBuffer updated = ByteBuffer.allocate(data.length - (end - from));
+        if (head) {
+            updated.putLong(b.start + 1);
+            updated.put(data, end, data.length - end);
+        } else {
+            updated.put(data, 0, from);
+        }
+        write(store, ih, b, updated.array());
+        b.count--;
+        if (head)
+            b.start++;
+        return value;
+    }
+
+    /**
+     * @param index 下标,负数从尾部开始
+     * @return 越界时返回null
+     */
+    public synchronized byte[] get(DataMedia store, long index) {
+        index = normalize(index);
+        if (index < 0)
+            return null;
+        long pos = head() + index;
+        Block b = blocks[find(pos)];
+        byte[] data = store.get(b);
+        return Varint.getBytes(data, offsetOf(data, (int) (pos - b.start)));
+    }
+
+    /**
+     * 替换下标处的元素,只改写所在的块
+     *
+     * @param index 下标,负数从尾部开始
+     * @return 越界时返回false
+     */
+    public synchronized boolean set(DataMedia store, IndexHelper ih, long index, byte[] value) throws Exception {
+        index = normalize(index);
+        if (index < 0)
+            return false;
+        long pos = head() + index;
+        Block b = blocks[find(pos)];
+        byte[] data = store.get(b);
+        int from = offsetOf(data, (int) (pos - b.start));
+        int end = Varint.skipBytes(data, from);
+        ByteBuffer updated = ByteBuffer.allocate(from + Varint.sizeOf(value) + data.length - end);
+        updated.put(data, 0, from);
+        Varint.putBytes(updated, value);
+        updated.put(data, end, data.length - end);
+        write(store, ih, b, updated.array());
+        return true;
+    }
+
+    /**
+     * @return 第一个和value相同的元素的下标,没有时返回-1
+     */
+    public synchronized long indexOf(DataMedia store, byte[] value) {
+        for (int k = first; k < last; k++) {
+            Block b = blocks[k];
+            byte[] data = store.get(b);
+            int offset = HEADER;
+            for (int i = 0; i < b.count; i++) {
+                if (matches(data, offset, value))
+                    return b.start + i - head();
+                offset = Varint.skipBytes(data, offset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * LINSERT:在下标处插入元素,之后的元素位置加1;所在的块写满时拆成两块
+     *
+     * @param index 0到size,size表示加在尾部
+     * @return 插入之后的元素个数
+     */
+    public synchronized long insert(DataMedia store, IndexHelper ih, long index, byte[] value) throws Exception {
+        long pos = head() + index;
+        int k = find(pos);
+        Block b = blocks[k];
+        byte[] data = store.get(b);
+        int from = offsetOf(data, (int) (pos - b.start));
+        ByteBuffer updated = ByteBuffer.allocate(data.length + Varint.sizeOf(value));
+        updated.putLong(b.start);
+        updated.put(data, HEADER, from - HEADER);
+        Varint.putBytes(updated, value);
+        updated.put(data, from, data.length - from);
+        if (b.count < MAX_BLOCK_ENTRIES && updated.capacity() <= MAX_BLOCK_BYTES) {
+            write(store, ih, b, updated.array());
+            b.count++;
+        } else {
+            int offset = k - first;
+            split(store, ih, k, updated.array(), b.count + 1);
+            k = first + offset;
+        }
+        restart(k);
+        return size();
+    }
+
+    /**
+     * 把第k个块拆成两块,前一半留在原块,后一半写入编号紧随其后的新块.较短一侧的块从外向里依次加减编号,
+     * 编号始终递增;先写新块再改写原块,中途退出时后一半元素重复而不会丢失
+     *
+     * @param data  拆分前块的新内容
+     * @param count data中的元素个数
+     */
+    void split(DataMedia store, IndexHelper ih, int k, byte[] data, int count) throws Exception {
+        Block b = blocks[k];
+        if (last - 1 - k <= k - first) {
+            for (int j = last - 1; j > k; j--) {
+                renumber(store, blocks[j], blocks[j].id + 1);
+            }
+        } else {
+            for (int j = first; j <= k; j++) {
+                renumber(store, blocks[j], blocks[j].id - 1);
+            }
+        }
+        int half = count / 2;
+        int offset = offsetOf(data, half);
+        ih.add(newBlock(store, key, b.id + 1, pack(b.start + half, data, offset, data.length), count - half));
+        write(store, ih, b, pack(b.start, data, HEADER, offset));
+        b.count = half;
+    }
+
+    void renumber(DataMedia store, Block b, long id) {
+        store.rename(b, ByteBuffer.allocate(8).putLong(id).array());
+        b.id = id;
+        seq = store.seq(b);
+    }
+
+    /**
+     * LREM:删除和value相同的元素,count大于0时从头部开始最多删除count个,小于0时从尾部开始,0删除全部;
+     * 之后的元素位置前移,只改写有匹配元素的块,删空的块整块删除
+     *
+     * @return 删除的个数
+     */
+    public synchronized long remove(DataMedia store, IndexHelper ih, byte[] value, long count) throws Exception {
+        long limit = count == 0 ? Long.MAX_VALUE : Math.abs(count);
+        boolean reverse = count < 0;
+        long head = head();
+        long removed = 0;
+        for (int k = reverse ? last - 1 : first; removed < limit && k >= first && k < last; ) {
+            Block b = blocks[k];
+            byte[] data = store.get(b);
+            int[] offsets = new int[b.count + 1];
+            offsets[0] = HEADER;
+            for (int i = 0; i < b.count; i++) {
+                offsets[i + 1] = Varint.skipBytes(data, offsets[i]);
+            }
+            boolean[] matched = new boolean[b.count];
+            int n = 0;
+            int bytes = 0;
+            for (int j = 0; j < b.count && removed + n < limit; j++) {
+                int i = reverse ? b.count - 1 - j : j;
+                if (matches(data, offsets[i], value)) {
+                    matched[i] = true;
+                    n++;
+                    bytes += offsets[i + 1] - offsets[i];
+                }
+            }
+            removed += n;
+            if (n == b.count) {
+                boolean head0 = k == first;
+                //首元素位置不变,下一个块成为头块
+                if (head0 && k + 1 < last)
+                    blocks[k + 1].start = b.start;
+                drop(store, ih, k);
+                if (reverse)
+                    k--;
+                else if (head0)
+                    k++;
+                continue;
+            }
+            if (n > 0) {
+                ByteBuffer updated = ByteBuffer.allocate(data.length - bytes).putLong(b.start);
+                for (int i = 0; i < b.count; i++) {
+                    if (!matched[i])
+                        updated.put(data, offsets[i], offsets[i + 1] - offsets[i]);
+                }
+                write(store, ih, b, updated.array());
+                b.count -= n;
+            }
+            k += reverse ? -1 : 1;
+        }
+        if (first != last) {
+            blocks[first].start = head;
+            restart(first);
+        }
+        return removed;
+    }
+
+    /**
+     * LTRIM:只保留下标[start, end)的元素,调用方保证范围非空.先从两端整块删除,再改写两端的块,元素位置不变
+     */
+    public synchronized void trim(DataMedia store, IndexHelper ih, long start, long end) throws Exception {
+        long from = head() + start;
+        long to = head() + end;
+        while (blocks[first].start + blocks[first].count <= from) {
+            drop(store, ih, first);
+        }
+        while (blocks[last - 1].start >= to) {
+            drop(store, ih, last - 1);
+        }
+        Block b = blocks[first];
+        if (b.start < from) {
+            byte[] data = store.get(b);
+            write(store, ih, b, pack(from, data, offsetOf(data, (int) (from - b.start)), data.length));
+            b.count -= from - b.start;
+            b.start = from;
+        }
+        b = blocks[last - 1];
+        if (b.start + b.count > to) {
+            byte[] data = store.get(b);
+            write(store, ih, b, pack(b.start, data, HEADER, offsetOf(data, (int) (to - b.start))));
+            b.count = (int) (to - b.start);
+        }
+    }
+
+    /**
+     * LRANGE:下标含义和redis相同,包含stop,负数从尾部开始,越界的部分截掉
+     */
+    public synchronized List<byte[]> range(DataMedia store, long start, long stop) {
+        long size = size();
+        if (start < 0)
+            start = Math.max(0, size + start);
+        if (stop < 0)
+            stop += size;
+        stop = Math.min(stop, size - 1);
+        List<byte[]> values = new ArrayList<>();
+        if (start > stop)
+            return values;
+        long pos = head() + start;
+        long end = head() + stop;
+        for (int k = find(pos); k < last && pos <= end; k++) {
+            Block b = blocks[k];
+            byte[] data = store.get(b);
+            int offset = offsetOf(data, (int) (pos - b.start));
+            for (; pos <= end && pos < b.start + b.count; pos++) {
+                int length = Varint.get(data, offset);
+                offset += Varint.size(length);
+                values.add(Arrays.copyOfRange(data, offset, offset + length));
+                offset += length;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 删除所有块记录和它们的索引记录
+     */
+    public synchronized void clear(DataMedia store, IndexHelper ih) {
+        for (DataHelper dh : blocks()) {
+            ih.remove(dh);
+            store.remove(dh);
+        }
+        blocks = new Block[4];
+        first = last = 2;
+        loading = null;
+    }
+
+    /**
+     * @return 所有块记录(包括启动恢复时还没有解析的)
+     */
+    public synchronized List<DataHelper> blocks() {
+        List<DataHelper> list = new ArrayList<>(last - first + (loading == null ? 0 : loading.size()));
+        for (int i = first; i < last; i++) {
+            list.add(blocks[i]);
+        }
+        if (loading != null)
+            list.addAll(loading);
+        return list;
+    }
+
+    public synchronized int getBlockCount() {
+        return last - first;
+    }
+
+    void write(DataMedia store, IndexHelper ih, Block b, byte[] data) throws Exception {
+        store.update(b, data);
+        ih.updateIndex(b);
+        seq = store.seq(b);
+    }
+
+    /**
+     * 删除第k个块的记录,之前先给相邻的块分配新的序号;删除的是头块时改写下一个块的块头为它的首元素位置,
+     * 重启后推算出的位置保持不变
+     */
+    void drop(DataMedia store, IndexHelper ih, int k) throws Exception {
+        Block b = blocks[k];
+        if (k == first && k + 1 < last) {
+            Block next = blocks[k + 1];
+            byte[] data = store.get(next);
+            if (ByteBuffer.wrap(data).getLong() != next.start) {
+                ByteBuffer.wrap(data).putLong(0, next.start);
+                write(store, ih, next, data);
+            } else {
+                stamp(store, next);
+            }
+        } else if (k > first) {
+            stamp(store, blocks[k - 1]);
+        }
+        ih.remove(b);
+        store.remove(b);
+        if (k == first) {
+            blocks[first++] = null;
+        } else {
+            System.arraycopy(blocks, k + 1, blocks, k, last - k - 1);
+            blocks[--last] = null;
+        }
+        if (first == last)
+            first = last = blocks.length / 2;
+    }
+
+    void stamp(DataMedia store, Block b) {
+        store.stamp(b);
+        seq = store.seq(b);
+    }
+
+    /**
+     * 从第k个块之后按前一个块的元素个数重新推算首元素位置
+     */
+    void restart(int k) {
+        for (int j = k + 1; j < last; j++) {
+            blocks[j].start = blocks[j - 1].start + blocks[j - 1].count;
+        }
+    }
+
+    /**
+     * @return 以start为首元素位置,data[from, to)为元素的块数据
+     */
+    static byte[] pack(long start, byte[] data, int from, int to) {
+        return ByteBuffer.allocate(HEADER + to - from).putLong(start).put(data, from, to - from).array();
+    }
+
+    /**
+     * @return 负数下标转换成从头部开始的下标,越界时返回-1
+     */
+    long normalize(long index) {
+        long size = size();
+        if (index < 0)
+            index += size;
+        return index < 0 || index >= size ? -1 : index;
+    }
+
+    /**
+     * 二分查找包含位置pos的块:首元素位置不大于pos的最后一个块
+     */
+    int find(long pos) {
+        int low = first;
+        int high = last - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blocks[mid].start <= pos)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * 二分查找编号大于等于id的第一个块
+     */
+    int findId(long id) {
+        int low = first;
+        int high = last - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].id < id)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    static boolean matches(byte[] data, int offset, byte[] value) {
+        int length = Varint.get(data, offset);
+        if (length != value.length)
+            return false;
+        offset += Varint.size(length);
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 块内第i个元素的偏移
+     */
+    static int offsetOf(byte[] data, int i) {
+        int offset = HEADER;
+        for (; i > 0; i--) {
+            offset = Varint.skipBytes(data, offset);
+        }
+        return offset;
+    }
+
+    static int count(byte[] data) {
+        int count = 0;
+        for (int offset = HEADER; offset < data.length; offset = Varint.skipBytes(data, offset)) {
+            count++;
+        }
+        return count;
+    }
+}
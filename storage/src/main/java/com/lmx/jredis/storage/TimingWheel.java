@@ -0,0 +1,156 @@
+package com.lmx.jredis.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分层时间轮,按过期时间登记key,后台线程每个tick取出到期的key删除
+ * 4层,每层64格,第0层每格一个tick,第n层每格64^n个tick,超出范围的放在overflow中,第3层转完一圈时重新放入.
+ * 低层转完一圈时把上一层当前格中的条目按剩余时间重新放入低层(cascade),放入和取出都是O(1),
+ * 低层为空时直接跳到下一次cascade的位置,长时间没有推进也不需要逐个tick追赶
+ * 过期时间修改或key被删除时不从时间轮中移除,到期时由调用方核对key当前的过期时间,不一致的直接丢弃
+ * 非线程安全,调用方持有写锁
+ * Created by lmx on 2018/1/3.
+ */
+public class TimingWheel {
+    static final int BITS = 6;
+    static final int SLOTS = 1 << BITS;
+    static final int MASK = SLOTS - 1;
+    static final int LEVELS = 4;
+
+    public static class Entry {
+        final byte[] key;
+        final long expire;
+
+        Entry(byte[] key, long expire) {
+            this.key = key;
+            this.expire = expire;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        /**
+         * @return 登记时的过期时间(毫秒时间戳)
+         */
+        public long getExpire() {
+            return expire;
+        }
+    }
+
+    final long tickMs;
+    final List<Entry>[][] buckets;
+    /**
+     * 每层的条目数
+     */
+    final int[] counts = new int[LEVELS];
+    List<Entry> overflow = new ArrayList<>();
+    /**
+     * 已经到期,等待调用方取走的条目
+     */
+    final ArrayDeque<Entry> ready = new ArrayDeque<>();
+    /**
+     * 当前tick号,即时间戳/tickMs
+     */
+    long current;
+    int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, long now) {
+        this.tickMs = tickMs;
+        this.current = now / tickMs;
+        buckets = new List[LEVELS][SLOTS];
+    }
+
+    /**
+     * @param expire 过期时间(毫秒时间戳),已经过期的直接进入待取队列
+     */
+    public void add(byte[] key, long expire) {
+        place(new Entry(key, expire));
+        size++;
+    }
+
+    void place(Entry e) {
+        //向上取整,到期时过期时间一定不晚于当前时间
+        long tick = (e.expire + tickMs - 1) / tickMs;
+        long delta = tick - current;
+        if (delta <= 0) {
+            ready.add(e);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1))) {
+                int slot = (int) (tick >>> (BITS * level)) & MASK;
+                List<Entry> bucket = buckets[level][slot];
+                if (bucket == null)
+                    bucket = buckets[level][slot] = new ArrayList<>();
+                bucket.add(e);
+                counts[level]++;
+                return;
+            }
+        }
+        overflow.add(e);
+    }
+
+    /**
+     * 时间轮推进到now,返回一个到期的条目
+     *
+     * @return 没有到期的条目时返回null
+     */
+    public Entry poll(long now) {
+        if (ready.isEmpty())
+            advance(now / tickMs);
+        Entry e = ready.poll();
+        if (e != null)
+            size--;
+        return e;
+    }
+
+    void advance(long target) {
+        while (current < target && ready.isEmpty()) {
+            long next = current + 1;
+            for (int level = 0; level < LEVELS && counts[level] == 0; level++) {
+                int shift = BITS * (level + 1);
+                next = ((current >>> shift) + 1) << shift;
+            }
+            if (next - current >= 1L << (BITS * LEVELS) && overflow.isEmpty())
+                next = target;
+            current = Math.min(next, target);
+            //从高层到低层依次cascade,条目逐层下落
+            for (int level = LEVELS; level > 0; level--) {
+                if ((current & ((1L << (BITS * level)) - 1)) != 0)
+                    continue;
+                if (level == LEVELS) {
+                    List<Entry> far = overflow;
+                    overflow = new ArrayList<>();
+                    for (Entry e : far) {
+                        place(e);
+                    }
+                } else {
+                    cascade(level, (int) (current >>> (BITS * level)) & MASK);
+                }
+            }
+            cascade(0, (int) current & MASK);
+        }
+    }
+
+    void cascade(int level, int slot) {
+        List<Entry> bucket = buckets[level][slot];
+        if (bucket == null)
+            return;
+        buckets[level][slot] = null;
+        counts[level] -= bucket.size();
+        for (Entry e : bucket) {
+            place(e);
+        }
+    }
+
+    /**
+     * @return 登记的条目数(包括已经失效还没到期的)
+     */
+    public int size() {
+        return size;
+    }
+}
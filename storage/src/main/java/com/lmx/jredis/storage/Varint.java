@@ -0,0 +1,96 @@
+package com.lmx.jredis.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 无符号变长整数:每个字节低7位存数据(低位在前),最高位为1表示后面还有字节,int最多5个字节
+ * 以及用它做长度前缀的字节串,list块和hash打包记录的元素都是这个格式
+ * Created by lmx on 2017/12/28.
+ */
+final class Varint {
+    static final int MAX_SIZE = 5;
+
+    private Varint() {
+    }
+
+    static int size(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return 写入后的偏移
+     */
+    static int put(ByteBuffer buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put(offset++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(offset++, (byte) value);
+        return offset;
+    }
+
+    /**
+     * @param limit 可读范围的结束偏移
+     * @return 读到的值, 超过limit、超过5个字节或超出int范围时返回-1
+     */
+    static int get(ByteBuffer buffer, int offset, int limit) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            if (offset >= limit)
+                return -1;
+            byte b = buffer.get(offset++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value < 0 ? -1 : value;
+        }
+        return -1;
+    }
+
+    /**
+     * 从数组解析,调用方保证是完整的变长整数(由put写入的数据)
+     */
+    static int get(byte[] data, int offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[offset++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * 带长度前缀的字节串[长度][字节]占用的字节数
+     */
+    static int sizeOf(byte[] bytes) {
+        return size(bytes.length) + bytes.length;
+    }
+
+    /**
+     * 在buffer当前位置写入[长度][字节]
+     */
+    static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.position(put(buffer, buffer.position(), bytes.length));
+        buffer.put(bytes);
+    }
+
+    /**
+     * @return offset处的[长度][字节]之后的偏移
+     */
+    static int skipBytes(byte[] data, int offset) {
+        int length = get(data, offset);
+        return offset + size(length) + length;
+    }
+
+    static byte[] getBytes(byte[] data, int offset) {
+        int length = get(data, offset);
+        offset += size(length);
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
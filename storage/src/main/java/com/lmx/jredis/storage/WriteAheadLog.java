@@ -0,0 +1,399 @@
+package com.lmx.jredis.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 预写日志,所有写命令先追加到这里再修改映射文件
+ * 格式：[记录长度][crc32][op][db][arg][key长度][key][field长度][field][value长度][value],长度-1表示null
+ * 追加只写内存缓冲,由后台线程批量写文件并fsync(组提交),多个写命令共用一次fsync
+ * fsync策略:
+ * always   每批写入都fsync,所在批次落盘后才回复客户端(由刷盘线程回调,io线程不等待)
+ * everysec 每秒最多fsync一次,最多丢失约1秒数据
+ * no       只写文件,何时落盘由操作系统决定
+ * checkpoint把映射文件刷盘后清空日志,启动时replay上次checkpoint之后的记录
+ * Created by lmx on 2017/12/22.
+ */
+@Slf4j
+public class WriteAheadLog {
+    public enum Policy {
+        ALWAYS, EVERYSEC, NO
+    }
+
+    public interface Replayer {
+        void replay(byte op, int db, long arg, byte[] key, byte[] field, byte[] value) throws Exception;
+    }
+
+    final Policy policy;
+    final File f;
+    final FileChannel channel;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition pendingCond = lock.newCondition();
+    /**
+     * 刷盘线程写文件和checkpoint截断日志互斥
+     */
+    final ReentrantLock ioLock = new ReentrantLock();
+    final CRC32 crc = new CRC32();
+    /**
+     * 日志序号 -> 该序号之前的记录落盘后执行的回调
+     */
+    final TreeMap<Long, List<Runnable>> callbacks = new TreeMap<>();
+    ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    /**
+     * 序号为累计追加的字节数,不随checkpoint截断而重置;持有lock时修改
+     */
+    volatile long appended;
+    volatile long durable;
+    long firstPendingTime;
+    long lastFsync;
+    volatile boolean running = true;
+    Thread flusher;
+
+    long fsyncCount;
+    long fsyncTotalNanos;
+    long fsyncMaxNanos;
+    volatile long fsyncLastNanos;
+
+    public WriteAheadLog(String fileName, Policy policy) throws Exception {
+        this.policy = policy;
+        f = new File(BaseMedia.defaultFile.getParentFile(), fileName);
+        if (!f.exists())
+            f.createNewFile();
+        channel = new RandomAccessFile(f, "rw").getChannel();
+    }
+
+    public static Policy policy(String name) {
+        return Policy.valueOf(name.trim().toUpperCase());
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void start() {
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        log.error("wal flush error", e);
+                    }
+                }
+            }
+        }, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void close() throws Exception {
+        running = false;
+        lock.lock();
+        try {
+            pendingCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null)
+            flusher.join(2000);
+        flush();
+        channel.close();
+    }
+
+    /**
+     * 追加一条记录到内存缓冲
+     *
+     * @return 记录的日志序号
+     */
+    public long append(byte op, int db, byte[] key, byte[] field, byte[] value, long arg) {
+        int length = 4 + 1 + 4 + 8 + length(key) + length(field) + length(value);
+        lock.lock();
+        try {
+            if (pending.remaining() < 4 + length) {
+                ByteBuffer grow = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 4 + length));
+                pending.flip();
+                grow.put(pending);
+                pending = grow;
+            }
+            int start = pending.position();
+            pending.putInt(length);
+            pending.putInt(0);
+            pending.put(op);
+            pending.putInt(db);
+            pending.putLong(arg);
+            put(key);
+            put(field);
+            put(value);
+            crc.reset();
+            crc.update(pending.array(), start + 8, length - 4);
+            pending.putInt(start + 4, (int) crc.getValue());
+            if (appended == durable)
+                firstPendingTime = System.currentTimeMillis();
+            appended += 4 + length;
+            pendingCond.signal();
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static int length(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    void put(byte[] bytes) {
+        if (bytes == null) {
+            pending.putInt(-1);
+        } else {
+            pending.putInt(bytes.length);
+            pending.put(bytes);
+        }
+    }
+
+    /**
+     * @return 所有线程已经追加的最后一个日志序号;读命令可能读到其他线程写入的值,回复前按它等待落盘
+     */
+    public long getAppended() {
+        return appended;
+    }
+
+    /**
+     * @return 序号之前的记录已经落盘,非always策略总是返回true
+     */
+    public boolean isDurable(long lsn) {
+        return policy != Policy.ALWAYS || durable >= lsn;
+    }
+
+    /**
+     * 序号之前的记录落盘后执行回调,回调在刷盘线程上执行,不能阻塞;
+     * 已经落盘、非always策略或日志已关闭时直接在当前线程执行
+     */
+    public void whenDurable(long lsn, Runnable callback) {
+        if (!isDurable(lsn)) {
+            lock.lock();
+            try {
+                if (durable < lsn && running) {
+                    List<Runnable> list = callbacks.get(lsn);
+                    if (list == null)
+                        callbacks.put(lsn, list = new ArrayList<>(1));
+                    list.add(callback);
+                    pendingCond.signal();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * 取出当前缓冲写文件,按策略决定是否fsync;等待期间新追加的记录会在下一批一起提交
+     */
+    void flush() throws Exception {
+        long lsn;
+        lock.lock();
+        try {
+            if (pending.position() == 0 && running)
+                pendingCond.await(policy == Policy.ALWAYS ? 100 : 1000, TimeUnit.MILLISECONDS);
+            ByteBuffer swap = flushing;
+            flushing = pending;
+            pending = swap;
+            pending.clear();
+            lsn = appended;
+        } finally {
+            lock.unlock();
+        }
+        ioLock.lock();
+        try {
+            flushing.flip();
+            while (flushing.hasRemaining()) {
+                channel.write(flushing);
+            }
+            flushing.clear();
+            long now = System.currentTimeMillis();
+            if (lsn > durable && (policy == Policy.ALWAYS || (policy == Policy.EVERYSEC && now - lastFsync >= 1000))) {
+                long start = System.nanoTime();
+                channel.force(false);
+                recordFsync(System.nanoTime() - start);
+                lastFsync = now;
+            } else if (policy == Policy.EVERYSEC && lsn > durable) {
+                //本批只写入了page cache,留到下一次fsync
+                return;
+            }
+        } finally {
+            ioLock.unlock();
+        }
+        synced(lsn);
+    }
+
+    void synced(long lsn) {
+        List<Runnable> ready = null;
+        lock.lock();
+        try {
+            if (lsn > durable)
+                durable = lsn;
+            if (durable < appended)
+                firstPendingTime = System.currentTimeMillis();
+            Map<Long, List<Runnable>> done = callbacks.headMap(durable, true);
+            if (!done.isEmpty()) {
+                ready = new ArrayList<>();
+                for (List<Runnable> list : done.values()) {
+                    ready.addAll(list);
+                }
+                done.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (ready != null) {
+            for (Runnable callback : ready) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    log.error("wal callback error", e);
+                }
+            }
+        }
+    }
+
+    void recordFsync(long nanos) {
+        fsyncCount++;
+        fsyncTotalNanos += nanos;
+        fsyncMaxNanos = Math.max(fsyncMaxNanos, nanos);
+        fsyncLastNanos = nanos;
+    }
+
+    /**
+     * 映射文件已经刷盘,日志中的记录都不再需要,清空日志.
+     * 调用方需要保证期间没有新的写命令
+     *
+     * @param forceData 把所有映射文件刷盘
+     */
+    public void checkpoint(Runnable forceData) throws Exception {
+        forceData.run();
+        long lsn;
+        ioLock.lock();
+        lock.lock();
+        try {
+            pending.clear();
+            //刷盘线程已经取出但还没写入的批次同样作废
+            flushing.clear();
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            lsn = appended;
+        } finally {
+            lock.unlock();
+            ioLock.unlock();
+        }
+        synced(lsn);
+    }
+
+    /**
+     * 重放上次checkpoint之后的记录,遇到写了一半或校验失败的记录即停止并截掉后面的部分
+     *
+     * @return 重放的记录数
+     */
+    public int replay(Replayer replayer) throws Exception {
+        long size = channel.size();
+        if (size == 0)
+            return 0;
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int count = 0;
+        CRC32 check = new CRC32();
+        while (buf.remaining() >= 8) {
+            int start = buf.position();
+            int length = buf.getInt();
+            if (length < 4 + 1 + 4 + 8 + 12 || length > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+            int expect = buf.getInt();
+            byte[] body = new byte[length - 4];
+            buf.get(body);
+            check.reset();
+            check.update(body);
+            if ((int) check.getValue() != expect) {
+                buf.position(start);
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte op = record.get();
+            int db = record.getInt();
+            long arg = record.getLong();
+            replayer.replay(op, db, arg, read(record), read(record), read(record));
+            count++;
+        }
+        if (buf.position() < size) {
+            log.warn("wal {} torn tail at {}, discard {} bytes", f.getName(), buf.position(), size - buf.position());
+            channel.truncate(buf.position());
+        }
+        channel.position(channel.size());
+        return count;
+    }
+
+    static byte[] read(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+
+    public long getFsyncCount() {
+        return fsyncCount;
+    }
+
+    public long getFsyncLastMicros() {
+        return fsyncLastNanos / 1000;
+    }
+
+    public long getFsyncAvgMicros() {
+        long count = fsyncCount;
+        return count == 0 ? 0 : fsyncTotalNanos / count / 1000;
+    }
+
+    public long getFsyncMaxMicros() {
+        return fsyncMaxNanos / 1000;
+    }
+
+    /**
+     * @return 已追加但还没有落盘的字节数
+     */
+    public long getLagBytes() {
+        lock.lock();
+        try {
+            return appended - durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 最早一条未落盘记录已等待的毫秒数
+     */
+    public long getLagMillis() {
+        lock.lock();
+        try {
+            return appended == durable ? 0 : System.currentTimeMillis() - firstPendingTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
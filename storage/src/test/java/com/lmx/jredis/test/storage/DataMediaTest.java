@@ -1,17 +1,31 @@
 package com.lmx.jredis.test.storage;
 
 import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.BaseMedia;
 import com.lmx.jredis.storage.DataHelper;
 import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.QuickList;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DataMediaTest {
+public class DataMediaTest extends StorageTestSupport {
 
+    static final File BASE = new File("data", "0");
     DataMedia test;
 
     @Before
@@ -64,4 +78,310 @@ public class DataMediaTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void grow() throws Exception {
+        byte[] value = new byte[1000];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        DataHelper[] helpers = new DataHelper[3000];
+        for (int i = 0; i < helpers.length; i++) {
+            ByteBuffer b = ByteBuffer.allocate(4 + value.length);
+            b.putInt(value.length);
+            b.put(value);
+            b.flip();
+            helpers[i] = test.add(b);
+            helpers[i].setLength(value.length);
+        }
+        Assert.assertTrue(test.getSegmentCount() > 1);
+        for (DataHelper dh : helpers) {
+            Assert.assertArrayEquals(value, test.get(dh));
+        }
+    }
+
+    @Test
+    public void compact() throws Exception {
+        IndexHelper ih = new IndexHelper("testIndex", 1) {
+            public void wrapData(DataHelper dataHelper) {
+            }
+        };
+        try {
+            List<DataHelper> live = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                byte[] value = String.format("%-500s", "value" + i).getBytes(Charsets.UTF_8);
+                ByteBuffer b = ByteBuffer.allocate(4 + value.length);
+                b.putInt(value.length);
+                b.put(value);
+                b.flip();
+                DataHelper dh = test.add(b);
+                dh.setLength(value.length);
+                dh.setKey(("key" + i).getBytes(Charsets.UTF_8));
+                ih.add(dh);
+                if (i % 10 == 0)
+                    live.add(dh);
+                else
+                    test.remove(dh);
+            }
+            long dead = test.getDeadBytes();
+            Assert.assertTrue(test.compact(live, ih, 0.5) > 0);
+            Assert.assertTrue(test.getDeadBytes() < dead);
+            for (DataHelper dh : live) {
+                Assert.assertEquals(new String(dh.getKey(), Charsets.UTF_8).replace("key", "value"), new String(test.get(dh), Charsets.UTF_8).trim());
+            }
+        } finally {
+            ih.clean();
+        }
+    }
+
+    /**
+     * checkpoint之后没有写过的key索引重新打开时直接使用,不扫描索引文件,容器按目录读出;写过之后只重放checkpoint之后的记录
+     */
+    @Test
+    public void restoreIndex() throws Exception {
+        IndexHelper ih = openIndex("restoreIndex");
+        Assert.assertFalse(ih.isRestored());
+        for (int i = 0; i < 5000; i++) {
+            DataHelper dh = test.add(("value" + i).getBytes(Charsets.UTF_8));
+            dh.setKey(("key" + i).getBytes(Charsets.UTF_8));
+            ih.add(dh);
+        }
+        DataHelper element = test.add("a".getBytes(Charsets.UTF_8));
+        element.setKey("list".getBytes(Charsets.UTF_8));
+        element.setType("list");
+        ih.add(element);
+        ih.force();
+
+        IndexHelper restored = openIndex("restoreIndex");
+        Assert.assertTrue(restored.isRestored());
+        restored.recoverIndex();
+        Assert.assertEquals(5001, restored.size());
+        DataHelper dh = (DataHelper) restored.type("key4999".getBytes(Charsets.UTF_8));
+        Assert.assertEquals("value4999", new String(test.get(dh), Charsets.UTF_8));
+        Assert.assertEquals(1, ((QuickList) restored.type("list".getBytes(Charsets.UTF_8))).blocks().size());
+        //list的元素从目录读出,不扫描索引记录
+        Assert.assertEquals(0, restored.getRecoveredRecords());
+        //checkpoint之后的修改:只需要重放之后追加的记录
+        restored.remove("key0".getBytes(Charsets.UTF_8));
+        DataHelper late = test.add("late".getBytes(Charsets.UTF_8));
+        late.setKey("lateKey".getBytes(Charsets.UTF_8));
+        restored.add(late);
+        DataHelper lateElement = test.add("b".getBytes(Charsets.UTF_8));
+        lateElement.setKey("list".getBytes(Charsets.UTF_8));
+        lateElement.setType("list");
+        restored.add(lateElement);
+
+        IndexHelper tail = openIndex("restoreIndex");
+        Assert.assertEquals(IndexHelper.TAIL, tail.getRecoveryMode());
+        tail.recoverIndex();
+        Assert.assertEquals(2, tail.getRecoveredRecords());
+        Assert.assertEquals(5001, tail.size());
+        Assert.assertNull(tail.type("key0".getBytes(Charsets.UTF_8)));
+        Assert.assertEquals("late", new String(test.get((DataHelper) tail.type("lateKey".getBytes(Charsets.UTF_8))), Charsets.UTF_8));
+        Assert.assertEquals(2, ((QuickList) tail.type("list".getBytes(Charsets.UTF_8))).blocks().size());
+    }
+
+    @Test
+    public void largeValue() throws Exception {
+        byte[] value = new byte[64 * 1024];
+        new Random(1).nextBytes(value);
+        DataHelper dh = test.add(value);
+        Assert.assertArrayEquals(value, test.get(dh));
+        //relocate
+        long pos = dh.getPos();
+        byte[] bigger = new byte[100 * 1024];
+        new Random(2).nextBytes(bigger);
+        test.update(dh, bigger);
+        Assert.assertNotEquals(pos, dh.getPos());
+        Assert.assertArrayEquals(bigger, test.get(dh));
+        //in place
+        pos = dh.getPos();
+        byte[] smaller = "12345".getBytes(Charsets.UTF_8);
+        test.update(dh, smaller);
+        Assert.assertEquals(pos, dh.getPos());
+        Assert.assertArrayEquals(smaller, test.get(dh));
+    }
+
+    /**
+     * 扫描自描述记录:key/field/序号完整,搬迁后的旧记录不会重复出现,crc不符的中间记录算损坏,最后一条算torn
+     */
+    @Test
+    public void scan() throws Exception {
+        List<DataHelper> added = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] field = i % 2 == 0 ? null : ("field" + i).getBytes(Charsets.UTF_8);
+            added.add(test.add((byte) 3, ("key" + i).getBytes(Charsets.UTF_8), field, ("value" + i).getBytes(Charsets.UTF_8)));
+        }
+        //relocate key0
+        test.update(added.get(0), new byte[100]);
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicLong maxSeq = new AtomicLong();
+        DataMedia.ScanResult result = test.scan(new DataMedia.Visitor() {
+            @Override
+            public void visit(byte type, byte[] key, byte[] field, long seq, DataHelper dh) {
+                Assert.assertEquals(3, type);
+                String k = new String(key, Charsets.UTF_8);
+                int i = Integer.parseInt(k.substring(3));
+                Assert.assertEquals(i % 2 == 0 ? null : "field" + i, field == null ? null : new String(field, Charsets.UTF_8));
+                keys.add(k);
+                maxSeq.set(Math.max(maxSeq.get(), seq));
+            }
+        });
+        Assert.assertEquals(100, keys.size());
+        Assert.assertEquals(101, result.getRecords());
+        Assert.assertEquals(101, maxSeq.get());
+        Assert.assertEquals(0, result.getCorrupt() + result.getTorn());
+
+        //data of key50 and of the last record (relocated key0) flipped on disk
+        RandomAccessFile raf = new RandomAccessFile(new File(BASE, "test"), "rw");
+        for (DataHelper dh : new DataHelper[]{added.get(50), added.get(0)}) {
+            raf.seek(dh.getPos());
+            byte b = raf.readByte();
+            raf.seek(dh.getPos());
+            raf.writeByte(b ^ 1);
+        }
+        raf.close();
+        result = test.scan(null);
+        Assert.assertEquals(98, result.getLive());
+        Assert.assertEquals(1, result.getCorrupt());
+        Assert.assertEquals(1, result.getTorn());
+        test.discardTail(result.getTornAt());
+        result = test.scan(null);
+        Assert.assertEquals(100, result.getRecords());
+        Assert.assertEquals(0, result.getTorn());
+    }
+
+    /**
+     * 压缩回收的低段被复用后尾地址在其他有存活记录的段之前,重建索引的扫描仍然要找到所有存活记录
+     */
+    @Test
+    public void scanAfterReuse() throws Exception {
+        IndexHelper ih = new IndexHelper("reuseIndex", 1) {
+            public void wrapData(DataHelper dataHelper) {
+            }
+        };
+        try {
+            byte[] value = new byte[500];
+            List<DataHelper> first = new ArrayList<>();
+            List<DataHelper> live = new ArrayList<>();
+            int i = 0;
+            //segment 0写满后再写4个段
+            for (DataHelper dh = null; dh == null || BaseMedia.segment(dh.getPos()) < 5; i++) {
+                dh = test.add((byte) 3, ("key" + i).getBytes(Charsets.UTF_8), null, value);
+                dh.setKey(("key" + i).getBytes(Charsets.UTF_8));
+                ih.add(dh);
+                (BaseMedia.segment(dh.getPos()) == 0 ? first : live).add(dh);
+            }
+            for (DataHelper dh : first) {
+                ih.remove(dh.getKey());
+                test.remove(dh);
+            }
+            test.compact(live, ih, 0.5);
+            //等回收段过了复用的宽限期,写到尾部进入segment 0
+            Thread.sleep(1100);
+            for (DataHelper dh = null; dh == null || BaseMedia.segment(dh.getPos()) != 0; i++) {
+                dh = test.add((byte) 3, ("key" + i).getBytes(Charsets.UTF_8), null, value);
+                live.add(dh);
+            }
+            final AtomicInteger found = new AtomicInteger();
+            DataMedia.ScanResult result = test.scan(new DataMedia.Visitor() {
+                @Override
+                public void visit(byte type, byte[] key, byte[] field, long seq, DataHelper dh) {
+                    found.incrementAndGet();
+                }
+            });
+            Assert.assertEquals(live.size(), found.get());
+            Assert.assertEquals(live.size(), result.getLive());
+            Assert.assertEquals(0, result.getCorrupt() + result.getTorn());
+        } finally {
+            ih.clean();
+        }
+    }
+
+    /**
+     * 一个写线程不断原地覆盖/换槽位,多个读线程不加锁读取,不能读到一半的数据
+     */
+    @Test
+    public void concurrentReadWrite() throws Exception {
+        final byte[] small = String.format("%-20s", "small").replace(' ', 's').getBytes(Charsets.UTF_8);
+        final byte[] large = String.format("%-3000s", "large").replace(' ', 'l').getBytes(Charsets.UTF_8);
+        final DataHelper dh = test.add(small);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger torn = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        byte[] v = test.get(dh);
+                        if (!Arrays.equals(v, small) && !Arrays.equals(v, large))
+                            torn.incrementAndGet();
+                    }
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+        for (int i = 0; i < 20000; i++) {
+            test.update(dh, i % 2 == 0 ? large : small);
+        }
+        stop.set(true);
+        for (Thread t : readers) {
+            t.join();
+        }
+        Assert.assertEquals(0, torn.get());
+    }
+
+    /**
+     * 多线程同时追加索引记录,预留的地址互不重叠,重启后能全部恢复
+     */
+    @Test
+    public void concurrentAppend() throws Exception {
+        final AtomicInteger recovered = new AtomicInteger();
+        final IndexHelper ih = new IndexHelper("appendIndex", 1) {
+            public void wrapData(DataHelper dataHelper) {
+                recovered.incrementAndGet();
+            }
+        };
+        try {
+            List<Thread> writers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int id = i;
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 10000; j++) {
+                                DataHelper dh = new DataHelper();
+                                dh.setKey(("key" + id + "_" + j).getBytes(Charsets.UTF_8));
+                                ih.add(dh);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                t.start();
+                writers.add(t);
+            }
+            for (Thread t : writers) {
+                t.join();
+            }
+            Assert.assertEquals(40000, ih.size());
+            Assert.assertTrue("bytes/key " + ih.getBytesPerKey(), ih.getBytesPerKey() <= 128);
+            for (int i = 0; i < 10000; i += 2) {
+                ih.remove(("key1_" + i).getBytes(Charsets.UTF_8));
+            }
+            Assert.assertEquals(35000, ih.size());
+            Assert.assertNull(ih.type("key1_0".getBytes(Charsets.UTF_8)));
+            Assert.assertNotNull(ih.type("key1_1".getBytes(Charsets.UTF_8)));
+            Assert.assertNotNull(ih.type("key3_9999".getBytes(Charsets.UTF_8)));
+            Assert.assertTrue(ih.getSegmentCount() > 1);
+            ih.recoverIndex();
+            Assert.assertEquals(40000, recovered.get());
+        } finally {
+            ih.clean();
+        }
+    }
 }
@@ -0,0 +1,113 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.DataTypeEnum;
+import com.lmx.jredis.storage.HashFields;
+import com.lmx.jredis.storage.IndexHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class HashFieldsTest extends StorageTestSupport {
+    static final byte[] KEY = "hash".getBytes(Charsets.UTF_8);
+
+    /**
+     * 随机设置和删除field,和HashMap对照:field数超过阈值后从packed转换为hashed;重新打开后从索引记录恢复出相同的hash,
+     * 过期时间只写在槽位中,同样恢复
+     */
+    @Test
+    public void putRemove() throws Exception {
+        DataMedia store = openStore("hashFieldsData");
+        IndexHelper ih = openIndex("hashFieldsIndex");
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(1);
+        boolean converted = false;
+        for (int i = 0; i < 5000; i++) {
+            HashFields hash = (HashFields) ih.type(KEY);
+            //前一半field数在阈值附近,后一半超过阈值
+            String field = "f" + random.nextInt(i < 2500 ? HashFields.MAX_PACKED_ENTRIES + 8 : 1000);
+            String value = i + "-" + new String(new char[random.nextInt(40)]).replace('\0', 'v');
+            if (hash == null) {
+                HashFields.create(store, ih, KEY, bytes(field), bytes(value));
+                expected.put(field, value);
+            } else if (random.nextInt(4) == 0) {
+                Assert.assertEquals(expected.remove(field) != null, hash.remove(store, ih, bytes(field)));
+                if (hash.size(store) == 0)
+                    ih.remove(KEY);
+            } else {
+                Assert.assertEquals(expected.put(field, value) == null, hash.put(store, ih, bytes(field), bytes(value)));
+            }
+            hash = (HashFields) ih.type(KEY);
+            if (hash != null && !hash.isPacked())
+                converted = true;
+            Assert.assertEquals(expected.size(), hash == null ? 0 : hash.size(store));
+        }
+        Assert.assertTrue(converted);
+        HashFields hash = (HashFields) ih.type(KEY);
+        Assert.assertEquals(expected, pairs(hash.entries(store)));
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            Assert.assertEquals(e.getValue(), string(hash.get(store, bytes(e.getKey()))));
+        }
+        Assert.assertNull(hash.get(store, bytes("missing")));
+        Assert.assertEquals(expected.size(), hash.records().size());
+        long expire = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(ih.setExpireAt(KEY, expire));
+        for (DataHelper dh : hash.records()) {
+            Assert.assertEquals(0, dh.getExpire());
+        }
+
+        ih.force();
+        IndexHelper reopened = openIndex("hashFieldsIndex");
+        reopened.recoverIndex();
+        HashFields recovered = (HashFields) reopened.type(KEY);
+        Assert.assertFalse(recovered.load(store, reopened));
+        Assert.assertEquals(expected, pairs(recovered.entries(store)));
+        Assert.assertEquals(expire, reopened.getExpire(KEY));
+    }
+
+    /**
+     * 转换中途退出:打包记录和部分field记录同时存在时保留打包记录;同一个field的重复记录只保留最后一条
+     */
+    @Test
+    public void loadInterrupted() throws Exception {
+        DataMedia store = openStore("hashFieldsData");
+        IndexHelper ih = openIndex("hashFieldsIndex");
+        HashFields.create(store, ih, KEY, bytes("a"), bytes("1"));
+        HashFields hash = (HashFields) ih.type(KEY);
+        hash.put(store, ih, bytes("b"), bytes("2"));
+        hash.put(store, ih, bytes("c"), bytes("3"));
+        ih.add(fieldRecord(store, "a", "1"));
+        ih.add(fieldRecord(store, "x", "old"));
+        ih.add(fieldRecord(store, "x", "new"));
+
+        ih.force();
+        IndexHelper reopened = openIndex("hashFieldsIndex");
+        reopened.recoverIndex();
+        HashFields recovered = (HashFields) reopened.type(KEY);
+        Assert.assertTrue(recovered.load(store, reopened));
+        Assert.assertTrue(recovered.isPacked());
+        Assert.assertEquals(3, recovered.size(store));
+        Assert.assertEquals(1, recovered.records().size());
+        Assert.assertEquals("2", string(recovered.get(store, bytes("b"))));
+        Assert.assertNull(recovered.get(store, bytes("x")));
+    }
+
+    static DataHelper fieldRecord(DataMedia store, String field, String value) throws Exception {
+        DataHelper dh = store.add(DataTypeEnum.HASH.getCode(), KEY, bytes(field), bytes(value));
+        dh.setType(DataTypeEnum.HASH.getDesc());
+        dh.setHash(KEY);
+        dh.setKey(bytes(field));
+        return dh;
+    }
+
+    static Map<String, String> pairs(List<byte[]> entries) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < entries.size(); i += 2) {
+            map.put(string(entries.get(i)), string(entries.get(i + 1)));
+        }
+        return map;
+    }
+}
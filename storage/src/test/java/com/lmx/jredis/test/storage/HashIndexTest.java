@@ -0,0 +1,66 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.HashIndex;
+import com.lmx.jredis.storage.IndexHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class HashIndexTest {
+
+    /**
+     * 很久没有访问的key:LRU空闲时间超过16位秒数(约18小时)、LFU经过整256分钟时都不能回绕成刚访问过
+     */
+    @Test
+    public void accessClock() throws Exception {
+        DataMedia store = new DataMedia("accessData", 1);
+        IndexHelper ih = new IndexHelper("accessIndex", 1) {
+            public void wrapData(DataHelper dataHelper) {
+            }
+        };
+        try {
+            ScanTest.add(store, ih, "key");
+            HashIndex index = ih.getIndex();
+            long slot = slot(index, "key");
+            long then = System.currentTimeMillis();
+
+            index.touch(slot, then);
+            long day = TimeUnit.DAYS.toMillis(1);
+            Assert.assertEquals(0, index.idleSeconds(slot, then));
+            Assert.assertEquals(86400, index.idleSeconds(slot, then + day));
+            Assert.assertEquals(30 * 86400, index.idleSeconds(slot, then + 30 * day));
+
+            //LFU的key从写入时的初始计数开始
+            index.setLfu(true);
+            ScanTest.add(store, ih, "hot");
+            slot = slot(index, "hot");
+            then = System.currentTimeMillis();
+            index.touch(slot, then);
+            int counter = index.frequency(slot, then);
+            Assert.assertTrue(String.valueOf(counter), counter >= 5);
+            long minute = TimeUnit.MINUTES.toMillis(1);
+            Assert.assertEquals(counter - 3, index.frequency(slot, then + 3 * minute));
+            Assert.assertEquals(0, index.frequency(slot, then + 256 * minute));
+            Assert.assertEquals(0, index.frequency(slot, then + 512 * minute));
+            Assert.assertEquals(0, index.frequency(slot, then + day));
+            //类型和状态不受访问信息写入影响
+            DataHelper dh = new DataHelper();
+            Assert.assertTrue(index.get("hot".getBytes(Charsets.UTF_8), dh));
+            Assert.assertEquals(slot, dh.getSlot());
+            Assert.assertEquals("kv", dh.getType());
+        } finally {
+            ih.clean();
+            store.clean();
+        }
+    }
+
+    static long slot(HashIndex index, String key) {
+        DataHelper dh = new DataHelper();
+        Assert.assertTrue(key, index.get(key.getBytes(Charsets.UTF_8), dh));
+        return dh.getSlot();
+    }
+}
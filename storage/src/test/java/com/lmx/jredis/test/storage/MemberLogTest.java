@@ -0,0 +1,100 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.DataTypeEnum;
+import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.MemberLog;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class MemberLogTest extends StorageTestSupport {
+    static final byte[] KEY = "set".getBytes(Charsets.UTF_8);
+    /**
+     * 条目为[+|-][成员]
+     */
+    static final MemberLog.Loader<Set<String>> LOADER = new MemberLog.Loader<Set<String>>() {
+        @Override
+        public Set<String> create() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public void replay(Set<String> members, byte[] entry) {
+            String member = new String(entry, 1, entry.length - 1, Charsets.UTF_8);
+            if (entry[0] == '+')
+                members.add(member);
+            else
+                members.remove(member);
+        }
+    };
+
+    /**
+     * 随机添加和删除成员,和HashSet对照:条目写满多个块,条目过多时重写;追加到尾块的条目大多原地写入;
+     * 重新打开后只建立块目录,第一次访问时重放出相同的成员
+     */
+    @Test
+    public void appendRewrite() throws Exception {
+        DataMedia store = openStore("memberLogData");
+        IndexHelper ih = openIndex("memberLogIndex");
+        MemberLog.create(store, ih, DataTypeEnum.SET, KEY, Collections.singletonList(entry('+', "m0")));
+        MemberLog log = (MemberLog) ih.type(KEY);
+        Set<String> expected = new HashSet<>(Collections.singleton("m0"));
+        Random random = new Random(1);
+        int maxBlocks = 0;
+        boolean rewritten = false;
+        int inBlock = 0, moved = 0;
+        for (int i = 0; i < 20000; i++) {
+            Set<String> members = log.members(store, LOADER);
+            String member = "m" + random.nextInt(300) + new String(new char[random.nextInt(30)]).replace('\0', 'x');
+            char op = random.nextInt(3) == 0 ? '-' : '+';
+            List<DataHelper> blocks = log.blocks();
+            DataHelper tail = blocks.get(blocks.size() - 1);
+            long pos = tail.getPos();
+            log.append(store, ih, entry(op, member));
+            if (log.getBlockCount() == blocks.size()) {
+                inBlock++;
+                if (tail.getPos() != pos)
+                    moved++;
+            }
+            LOADER.replay(members, entry(op, member));
+            if (op == '+')
+                expected.add(member);
+            else
+                expected.remove(member);
+            if (log.shouldRewrite(members.size())) {
+                List<byte[]> entries = new ArrayList<>();
+                for (String m : members) {
+                    entries.add(entry('+', m));
+                }
+                log.rewrite(store, ih, entries);
+                rewritten = true;
+            }
+            maxBlocks = Math.max(maxBlocks, log.getBlockCount());
+        }
+        Assert.assertTrue(rewritten);
+        Assert.assertTrue(maxBlocks > 1);
+        Assert.assertTrue(moved + "/" + inBlock, moved * 8 < inBlock);
+        Assert.assertEquals(expected, log.members(store, LOADER));
+
+        ih.force();
+        IndexHelper reopened = openIndex("memberLogIndex");
+        reopened.recoverIndex();
+        MemberLog recovered = (MemberLog) reopened.type(KEY);
+        Assert.assertFalse(recovered.isLoaded());
+        Assert.assertEquals(log.getBlockCount(), recovered.getBlockCount());
+        Assert.assertEquals(expected, recovered.members(store, LOADER));
+        Assert.assertTrue(recovered.isLoaded());
+
+        recovered.clear(store, reopened);
+        Assert.assertEquals(0, recovered.getBlockCount());
+        Assert.assertTrue(reopened.records(DataTypeEnum.SET).isEmpty());
+    }
+
+    static byte[] entry(char op, String member) {
+        return (op + member).getBytes(Charsets.UTF_8);
+    }
+}
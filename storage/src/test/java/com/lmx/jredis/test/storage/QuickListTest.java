@@ -0,0 +1,159 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.IndexHelper;
+import com.lmx.jredis.storage.QuickList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+public class QuickListTest extends StorageTestSupport {
+    static final byte[] KEY = "list".getBytes(Charsets.UTF_8);
+
+    /**
+     * 随机在两端push/pop并修改元素,和LinkedList对照;重新打开后不扫描索引记录,按元素目录恢复出相同的list
+     */
+    @Test
+    public void pushPop() throws Exception {
+        DataMedia store = openStore("quickListData");
+        IndexHelper ih = openIndex("quickListIndex");
+        LinkedList<String> expected = new LinkedList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            QuickList list = (QuickList) ih.type(KEY);
+            int op = random.nextInt(10);
+            String value = i + "-" + new String(new char[random.nextInt(100)]).replace('\0', 'v');
+            if (list == null) {
+                QuickList.create(store, ih, KEY, bytes(value), 0);
+                expected.add(value);
+            } else if (op < 3) {
+                list.push(store, ih, bytes(value), true);
+                expected.addFirst(value);
+            } else if (op < 6) {
+                list.push(store, ih, bytes(value), false);
+                expected.addLast(value);
+            } else if (op < 8) {
+                boolean head = op == 6;
+                Assert.assertEquals(head ? expected.removeFirst() : expected.removeLast(), string(list.pop(store, ih, head)));
+                if (list.size() == 0)
+                    ih.remove(KEY);
+            } else {
+                int index = random.nextInt(expected.size());
+                list.set(store, ih, index, bytes(value));
+                expected.set(index, value);
+            }
+            //中途sync,元素目录的区域被追加、换新或随key删除释放
+            if (i % 1000 == 999)
+                ih.force();
+        }
+        QuickList list = (QuickList) ih.type(KEY);
+        Assert.assertEquals(expected.size(), list.size());
+        Assert.assertTrue(list.getBlockCount() > 10);
+        for (int i = 0; i < expected.size(); i += 97) {
+            Assert.assertEquals(expected.get(i), string(list.get(store, i)));
+        }
+        Assert.assertEquals(expected.getLast(), string(list.get(store, -1)));
+        Assert.assertNull(list.get(store, expected.size()));
+        Assert.assertEquals(expected.subList(10, 300), strings(list.range(store, 10, 299)));
+        Assert.assertEquals(expected, strings(list.range(store, 0, -1)));
+        Assert.assertEquals(expected.subList(expected.size() - 5, expected.size()), strings(list.range(store, -5, 100000)));
+        Assert.assertTrue(list.range(store, 5, 2).isEmpty());
+
+        ih.force();
+        IndexHelper reopened = openIndex("quickListIndex");
+        reopened.recoverIndex();
+        Assert.assertEquals(0, reopened.getRecoveredRecords());
+        QuickList recovered = (QuickList) reopened.type(KEY);
+        Assert.assertTrue(recovered.load(store).isEmpty());
+        Assert.assertEquals(list.getBlockCount(), recovered.getBlockCount());
+        Assert.assertEquals(list.head(), recovered.head());
+        Assert.assertEquals(expected, strings(recovered.range(store, 0, -1)));
+    }
+
+    /**
+     * 在中间插入(块写满后拆分)、按值删除和截断,和LinkedList对照;重新打开后块的编号和首元素位置不变
+     */
+    @Test
+    public void insertRemoveTrim() throws Exception {
+        DataMedia store = openStore("quickListData");
+        IndexHelper ih = openIndex("quickListIndex");
+        LinkedList<String> expected = new LinkedList<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.add("v" + i % 10);
+        }
+        List<byte[]> values = new ArrayList<>();
+        for (String value : expected) {
+            values.add(bytes(value));
+        }
+        QuickList.create(store, ih, KEY, values.get(0), 0);
+        QuickList list = (QuickList) ih.type(KEY);
+        for (int i = 1; i < values.size(); i++) {
+            list.push(store, ih, values.get(i), false);
+        }
+        list.push(store, ih, bytes("h"), true);
+        expected.addFirst("h");
+        long head = list.head();
+        int blocks = list.getBlockCount();
+        Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            int index = random.nextInt(expected.size() + 1);
+            String value = "i" + i % 7;
+            list.insert(store, ih, index, bytes(value));
+            expected.add(index, value);
+        }
+        Assert.assertTrue(list.getBlockCount() > blocks);
+        Assert.assertEquals(head, list.head());
+        Assert.assertEquals(expected, strings(list.range(store, 0, -1)));
+        Assert.assertEquals(expected.indexOf("i3"), list.indexOf(store, bytes("i3")));
+        Assert.assertEquals(-1, list.indexOf(store, bytes("none")));
+
+        Assert.assertEquals(3, list.remove(store, ih, bytes("v1"), 3));
+        Assert.assertEquals(2, list.remove(store, ih, bytes("v2"), -2));
+        for (int i = 0; i < 3; i++) {
+            expected.remove("v1");
+        }
+        for (int i = 0; i < 2; i++) {
+            expected.removeLastOccurrence("v2");
+        }
+        int all = 0;
+        for (String value : expected) {
+            if (value.startsWith("i"))
+                all++;
+        }
+        for (int i = 0; i < 7; i++) {
+            all -= list.remove(store, ih, bytes("i" + i), 0);
+        }
+        Assert.assertEquals(0, all);
+        List<String> removed = new ArrayList<>(expected);
+        expected.clear();
+        for (String value : removed) {
+            if (!value.startsWith("i"))
+                expected.add(value);
+        }
+        Assert.assertEquals(head, list.head());
+        Assert.assertEquals(expected, strings(list.range(store, 0, -1)));
+
+        list.trim(store, ih, 300, 700);
+        List<String> trimmed = new ArrayList<>(expected.subList(300, 700));
+        Assert.assertEquals(trimmed, strings(list.range(store, 0, -1)));
+        Assert.assertEquals(head + 300, list.head());
+        //头块弹空后下一个块成为头块,它的块头在中间修改后已经过时
+        for (blocks = list.getBlockCount(); list.getBlockCount() == blocks; ) {
+            Assert.assertEquals(trimmed.remove(0), string(list.pop(store, ih, true)));
+        }
+
+        ih.force();
+        IndexHelper reopened = openIndex("quickListIndex");
+        reopened.recoverIndex();
+        QuickList recovered = (QuickList) reopened.type(KEY);
+        Assert.assertTrue(recovered.load(store).isEmpty());
+        Assert.assertEquals(list.head(), recovered.head());
+        Assert.assertEquals(list.getBlockCount(), recovered.getBlockCount());
+        Assert.assertEquals(trimmed, strings(recovered.range(store, 0, -1)));
+    }
+}
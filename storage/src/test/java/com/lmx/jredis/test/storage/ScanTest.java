@@ -0,0 +1,143 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.HashIndex;
+import com.lmx.jredis.storage.IndexHelper;
+import org.junit.Assert;
+import org.junit.Test;
+import redis.util.BytesKeyTable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ScanTest {
+
+    /**
+     * 遍历中途索引多次扩容、删除部分key,从头到尾都存在的key都能返回
+     */
+    @Test
+    public void scanIndex() throws Exception {
+        DataMedia store = new DataMedia("scanData", 1);
+        IndexHelper ih = new IndexHelper("scanIndex", 1) {
+            public void wrapData(DataHelper dataHelper) {
+            }
+        };
+        try {
+            for (int i = 0; i < 500; i++) {
+                add(store, ih, "key" + i);
+            }
+            final Set<String> seen = new HashSet<>();
+            HashIndex.Visitor visitor = new HashIndex.Visitor() {
+                @Override
+                public void visit(byte type, byte[] key, DataHelper dh) {
+                    seen.add(new String(key, Charsets.UTF_8));
+                }
+            };
+            long cursor = 0;
+            int calls = 0;
+            do {
+                cursor = ih.scan(cursor, 10, visitor);
+                if (++calls == 20) {
+                    for (int i = 0; i < 20000; i++) {
+                        add(store, ih, "more" + i);
+                    }
+                    for (int i = 0; i < 500; i += 7) {
+                        ih.remove(("key" + i).getBytes(Charsets.UTF_8));
+                    }
+                }
+            } while (cursor != 0);
+            for (int i = 0; i < 500; i++) {
+                if (i % 7 != 0)
+                    Assert.assertTrue("key" + i, seen.contains("key" + i));
+            }
+            Assert.assertTrue(calls > 20);
+        } finally {
+            ih.clean();
+            store.clean();
+        }
+    }
+
+    /**
+     * 成员表中途扩容、缩容,从头到尾都存在的成员都能返回
+     */
+    @Test
+    public void scanMembers() {
+        BytesKeyTable<String> members = new BytesKeyTable<>();
+        for (int i = 0; i < 1000; i++) {
+            put(members, "m" + i);
+        }
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            List<String> page = new ArrayList<>();
+            cursor = members.scan(cursor, 10, page);
+            seen.addAll(page);
+            if (++calls == 30) {
+                for (int i = 0; i < 5000; i++) {
+                    put(members, "n" + i);
+                }
+            } else if (calls == 60) {
+                for (int i = 0; i < 5000; i++) {
+                    members.remove(("n" + i).getBytes(Charsets.UTF_8));
+                }
+                for (int i = 0; i < 1000; i += 2) {
+                    members.remove(("m" + i).getBytes(Charsets.UTF_8));
+                }
+            }
+        } while (cursor != 0);
+        for (int i = 1; i < 1000; i += 2) {
+            Assert.assertTrue("m" + i, seen.contains("m" + i));
+        }
+        List<String> all = new ArrayList<>();
+        Assert.assertEquals(0, members.scan(0, members.capacity(), all));
+        Assert.assertEquals(members.size(), all.size());
+    }
+
+    /**
+     * 每次调用只访问count个槽位,次数为容量/count,与成员总数无关
+     */
+    @Test
+    public void scanMembersPerCall() {
+        BytesKeyTable<String> members = new BytesKeyTable<>();
+        for (int i = 0; i < 200000; i++) {
+            put(members, "m" + i);
+        }
+        int count = 128;
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        int maxPage = 0;
+        do {
+            List<String> page = new ArrayList<>();
+            cursor = members.scan(cursor, count, page);
+            maxPage = Math.max(maxPage, page.size());
+            seen.addAll(page);
+            calls++;
+        } while (cursor != 0);
+        Assert.assertEquals(members.capacity() / count, calls);
+        Assert.assertTrue(String.valueOf(maxPage), maxPage <= 2 * count);
+        Assert.assertEquals(members.size(), seen.size());
+    }
+
+    static void put(BytesKeyTable<String> members, String member) {
+        members.put(member.getBytes(Charsets.UTF_8), member);
+    }
+
+    static void add(DataMedia store, IndexHelper ih, String key) throws Exception {
+        byte[] value = key.getBytes(Charsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(4 + value.length);
+        b.putInt(value.length);
+        b.put(value);
+        b.flip();
+        DataHelper dh = store.add(b);
+        dh.setLength(value.length);
+        dh.setKey(value);
+        ih.add(dh);
+    }
+}
@@ -0,0 +1,65 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.DataHelper;
+import com.lmx.jredis.storage.DataMedia;
+import com.lmx.jredis.storage.IndexHelper;
+import org.junit.After;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 打开的索引和数据文件在测试结束后统一删除;同一个名字可以多次打开,模拟重启后恢复
+ */
+public abstract class StorageTestSupport {
+    final List<IndexHelper> indexes = new ArrayList<>();
+    final List<DataMedia> stores = new ArrayList<>();
+
+    /**
+     * 恢复时读到的索引记录都加入索引
+     */
+    IndexHelper openIndex(String name) throws Exception {
+        IndexHelper ih = new IndexHelper(name, 1) {
+            public void wrapData(DataHelper dataHelper) {
+                put(dataHelper);
+            }
+        };
+        indexes.add(ih);
+        return ih;
+    }
+
+    DataMedia openStore(String name) throws Exception {
+        DataMedia store = new DataMedia(name, 1);
+        stores.add(store);
+        return store;
+    }
+
+    @After
+    public void cleanOpened() throws Exception {
+        for (IndexHelper ih : indexes) {
+            ih.clean();
+        }
+        for (DataMedia store : stores) {
+            store.clean();
+        }
+        indexes.clear();
+        stores.clear();
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(Charsets.UTF_8);
+    }
+
+    static String string(byte[] b) {
+        return new String(b, Charsets.UTF_8);
+    }
+
+    static List<String> strings(List<byte[]> values) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] value : values) {
+            strings.add(string(value));
+        }
+        return strings;
+    }
+}
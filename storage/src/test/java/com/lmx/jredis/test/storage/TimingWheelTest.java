@@ -0,0 +1,41 @@
+package com.lmx.jredis.test.storage;
+
+import com.lmx.jredis.storage.TimingWheel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TimingWheelTest {
+
+    /**
+     * 各层和overflow中的条目都在到期的tick取出,不早也不晚
+     */
+    @Test
+    public void poll() {
+        long start = 1000000;
+        TimingWheel wheel = new TimingWheel(10, start);
+        Random random = new Random(1);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            //最远约80天,超出4层的范围
+            long expire = start + (i % 10 == 0 ? random.nextInt(Integer.MAX_VALUE) * 3L : random.nextInt(10000000));
+            wheel.add(String.valueOf(expire).getBytes(), expire);
+        }
+        wheel.add("past".getBytes(), start - 5);
+        Assert.assertArrayEquals("past".getBytes(), wheel.poll(start).getKey());
+        Assert.assertEquals(count, wheel.size());
+        int polled = 0;
+        long now = start;
+        for (long step = 10; polled < count; now += step, step = Math.min(step * 2, 3600000)) {
+            TimingWheel.Entry e;
+            while ((e = wheel.poll(now)) != null) {
+                Assert.assertTrue(e.getExpire() <= now);
+                //上一次推进时还没有到期
+                Assert.assertTrue(e.getExpire() > now - step - 10);
+                polled++;
+            }
+        }
+        Assert.assertEquals(0, wheel.size());
+    }
+}
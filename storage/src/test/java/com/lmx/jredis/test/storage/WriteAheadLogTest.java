@@ -0,0 +1,129 @@
+package com.lmx.jredis.test.storage;
+
+import com.google.common.base.Charsets;
+import com.lmx.jredis.storage.WriteAheadLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriteAheadLogTest {
+
+    File file = new File("data", "testLog");
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void replay() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog("testLog", WriteAheadLog.Policy.ALWAYS);
+        wal.start();
+        for (int i = 0; i < 100; i++) {
+            wal.append((byte) 1, 0, ("key" + i).getBytes(Charsets.UTF_8), null, ("value" + i).getBytes(Charsets.UTF_8), i);
+        }
+        final CountDownLatch durable = new CountDownLatch(1);
+        wal.whenDurable(wal.getAppended(), new Runnable() {
+            @Override
+            public void run() {
+                durable.countDown();
+            }
+        });
+        Assert.assertTrue(durable.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(wal.isDurable(wal.getAppended()));
+        Assert.assertEquals(0, wal.getLagBytes());
+        Assert.assertTrue(wal.getFsyncCount() > 0);
+        wal.close();
+        //写了一半的记录
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(100);
+        raf.write(new byte[10]);
+        raf.close();
+
+        final List<String> keys = new ArrayList<>();
+        wal = new WriteAheadLog("testLog", WriteAheadLog.Policy.EVERYSEC);
+        int count = wal.replay(new WriteAheadLog.Replayer() {
+            @Override
+            public void replay(byte op, int db, long arg, byte[] key, byte[] field, byte[] value) {
+                Assert.assertNull(field);
+                Assert.assertEquals("value" + arg, new String(value, Charsets.UTF_8));
+                keys.add(new String(key, Charsets.UTF_8));
+            }
+        });
+        Assert.assertEquals(100, count);
+        Assert.assertEquals("key99", keys.get(99));
+        wal.checkpoint(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        wal.close();
+        Assert.assertEquals(0, file.length());
+    }
+
+    /**
+     * 回调在所在批次落盘后由刷盘线程执行,已经落盘时直接执行
+     */
+    @Test
+    public void whenDurable() throws Exception {
+        final WriteAheadLog wal = new WriteAheadLog("testLog", WriteAheadLog.Policy.ALWAYS);
+        wal.start();
+        try {
+            final CountDownLatch latch = new CountDownLatch(100);
+            final AtomicLong lag = new AtomicLong();
+            for (int i = 0; i < 100; i++) {
+                final long lsn = wal.append((byte) 1, 0, ("key" + i).getBytes(Charsets.UTF_8), null, null, i);
+                wal.whenDurable(lsn, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!wal.isDurable(lsn))
+                            lag.incrementAndGet();
+                        latch.countDown();
+                    }
+                });
+            }
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, lag.get());
+            final Thread caller = Thread.currentThread();
+            final boolean[] inline = new boolean[1];
+            wal.whenDurable(wal.getAppended(), new Runnable() {
+                @Override
+                public void run() {
+                    inline[0] = Thread.currentThread() == caller;
+                }
+            });
+            Assert.assertTrue(inline[0]);
+            //其他线程追加的记录也计入回复前要等待的序号
+            final long[] other = new long[1];
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    other[0] = wal.append((byte) 1, 0, "other".getBytes(Charsets.UTF_8), null, null, 0);
+                }
+            };
+            writer.start();
+            writer.join();
+            Assert.assertEquals(other[0], wal.getAppended());
+            final CountDownLatch done = new CountDownLatch(1);
+            wal.whenDurable(wal.getAppended(), new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(wal.isDurable(other[0]));
+        } finally {
+            wal.close();
+        }
+    }
+}
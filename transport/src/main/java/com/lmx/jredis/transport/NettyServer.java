@@ -30,7 +30,7 @@ public class NettyServer {
 
     @Value("${rpcServer.host:0.0.0.0}")
     String host;
-    @Value("${rpcServer.ioThreadNum:1}")
+    @Value("${rpcServer.ioThreadNum:4}")
     int ioThreadNum;
     @Value("${rpcServer.backlog:1024}")
     int backlog;
@@ -47,7 +47,7 @@ public class NettyServer {
 
     @PostConstruct
     public void start() throws Exception {
-        bossGroup = new NioEventLoopGroup(ioThreadNum);
+        bossGroup = new NioEventLoopGroup(1);
         workerGroup = new NioEventLoopGroup(ioThreadNum);
         final RedisServer redis = new SimpleRedisServer();
         nettyServerHandler.init(redis);
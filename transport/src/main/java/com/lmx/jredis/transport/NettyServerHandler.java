@@ -4,9 +4,13 @@ import com.google.common.base.Charsets;
 import com.lmx.jredis.core.BusHelper;
 import com.lmx.jredis.core.RedisException;
 import com.lmx.jredis.core.RedisServer;
+import com.lmx.jredis.core.datastruct.BlockingKeys;
+import com.lmx.jredis.core.datastruct.RedisDbDelegate;
+import com.lmx.jredis.storage.WriteAheadLog;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -18,8 +22,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import static redis.netty4.ErrorReply.NYI_REPLY;
 import static redis.netty4.StatusReply.QUIT;
@@ -31,11 +35,41 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Command> {
 
     @Autowired
     BusHelper busHelper;
+    @Autowired
+    RedisDbDelegate delegate;
     private Map<BytesKey, Wrapper> methods = new HashMap();
+    /**
+     * 只读取持久化数据的命令,可以在多个io线程上并发执行;其余命令持有写锁串行执行
+     */
+    static final Set<String> READ_COMMANDS = new HashSet<>(Arrays.asList(
+            "get", "lrange", "lindex", "llen", "hget", "hgetall", "hexists", "hlen", "hkeys", "hvals", "hmget",
+            "scard", "sismember", "smembers", "srandmember", "sdiff", "sinter", "sintercard", "sunion",
+            "zcard", "zcount", "zlexcount", "zrange", "zrangebyscore", "zrangebylex", "zrank", "zrevrange", "zrevrangebyscore",
+            "zrevrangebylex", "zrevrank", "zscore", "xlen", "xrange", "xrevrange", "xread",
+            "type", "keys", "scan", "hscan", "sscan", "zscan", "ping", "echo", "ttl", "pttl"));
+    /**
+     * 可能增加内存的写命令,执行前按maxmemory淘汰,淘汰不了时拒绝
+     */
+    static final Set<String> DENY_OOM_COMMANDS = new HashSet<>(Arrays.asList(
+            "set", "setnx", "setex", "psetex", "mset", "msetnx", "append", "getset", "setrange", "setbit", "bitop", "bitfield",
+            "incr", "incrby", "decr", "decrby", "incrbyfloat", "lpush", "rpush", "lpushx", "rpushx",
+            "linsert", "lset", "rpoplpush", "hset", "hsetnx", "hmset", "hincrby", "hincrbyfloat",
+            "sadd", "zadd", "zincrby", "pfadd", "pfmerge", "xadd"));
+    static final ErrorReply OOM_REPLY = new ErrorReply("OOM command not allowed when used memory > 'maxmemory'");
+    /**
+     * 连接阻塞期间收到的命令,唤醒后按顺序执行
+     */
+    static final AttributeKey<ArrayDeque<Command>> PENDING = AttributeKey.valueOf("pending");
+    static final AttributeKey<BlockingKeys.Waiter> WAITER = AttributeKey.valueOf("waiter");
 
     public interface Wrapper {
         Reply execute(Command command, ChannelHandlerContext ch) throws RedisException;
 
+        /**
+         * 不加锁直接执行,唤醒阻塞的连接时由持有写锁的线程调用
+         */
+        Reply invoke(Command command, ChannelHandlerContext ch);
+
         Reply execute(Command command, SocketChannel ch) throws RedisException;
     }
 
@@ -43,17 +77,40 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Command> {
         final Class<? extends RedisServer> aClass = rs.getClass();
         for (final Method method : aClass.getMethods()) {
             final Class<?>[] types = method.getParameterTypes();
+            final boolean readOnly = READ_COMMANDS.contains(method.getName());
+            final boolean denyOom = DENY_OOM_COMMANDS.contains(method.getName());
             methods.put(new BytesKey(method.getName().getBytes()), new Wrapper() {
                 @Override
                 public Reply execute(Command command, ChannelHandlerContext ch) throws RedisException {
-                    Object[] objects = new Object[types.length];
                     long start = System.currentTimeMillis();
+                    Lock lock = readOnly ? delegate.getLock().readLock() : delegate.getLock().writeLock();
+                    lock.lock();
+                    try {
+                        if (denyOom && !delegate.freeMemoryIfNeeded())
+                            return OOM_REPLY;
+                        Reply reply = invoke(command, ch);
+                        if (!readOnly) {
+                            if (reply instanceof BlockingKeys.Blocked)
+                                block(ch, this, command, (BlockingKeys.Blocked) reply);
+                            delegate.serveBlocked();
+                        }
+                        return reply;
+                    } finally {
+                        lock.unlock();
+                        if (log.isDebugEnabled())
+                            log.debug("method {},cost {}ms", method.getName(), (System.currentTimeMillis() - start));
+                    }
+                }
+
+                @Override
+                public Reply invoke(Command command, ChannelHandlerContext ch) {
+                    Object[] objects = new Object[types.length];
                     try {
                         command.toArguments(objects, types);
                         rs.setChannelHandlerContext(ch);
                         return (Reply) method.invoke(rs, objects);
                     } catch (IllegalAccessException e) {
-                        throw new RedisException("Invalid server implementation");
+                        return new ErrorReply("ERR Invalid server implementation");
                     } catch (InvocationTargetException e) {
                         Throwable te = e.getTargetException();
                         if (!(te instanceof RedisException)) {
@@ -62,8 +119,6 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Command> {
                         return new ErrorReply("ERR " + te.getMessage());
                     } catch (Exception e) {
                         return new ErrorReply("ERR " + e.getMessage());
-                    } finally {
-                        log.info("method {},cost {}ms", method.getName(), (System.currentTimeMillis() - start));
                     }
                 }
 
@@ -75,10 +130,87 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Command> {
         }
     }
 
+    /**
+     * 阻塞命令取不到元素:登记等待者,之后收到的命令暂存到唤醒为止(连接继续读取,关闭时可以及时取消等待),调用方持有写锁
+     */
+    void block(final ChannelHandlerContext ctx, final Wrapper wrapper, final Command command, BlockingKeys.Blocked blocked) {
+        ctx.channel().attr(PENDING).set(new ArrayDeque<Command>());
+        BlockingKeys.Waiter waiter = new BlockingKeys.Waiter() {
+            @Override
+            public boolean isActive() {
+                return ctx.channel().isActive();
+            }
+
+            @Override
+            public boolean retry() {
+                Reply reply = wrapper.invoke(command, ctx);
+                if (reply instanceof BlockingKeys.Blocked)
+                    return false;
+                wakeUp(ctx, command, reply);
+                return true;
+            }
+
+            @Override
+            public void timeout(Reply reply) {
+                wakeUp(ctx, command, reply);
+            }
+        };
+        ctx.channel().attr(WAITER).set(waiter);
+        blocked.getOwner().block(waiter, blocked);
+    }
+
+    /**
+     * 唤醒的线程(持有写锁)执行的写命令落盘后发送回复,暂存的命令回到连接的io线程执行
+     */
+    void wakeUp(final ChannelHandlerContext ctx, Command command, Reply reply) {
+        ctx.channel().attr(WAITER).set(null);
+        final Reply toSend = toReply(command, reply);
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                ctx.writeAndFlush(toSend);
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            resume(ctx);
+                        } catch (Exception e) {
+                            ctx.fireExceptionCaught(e);
+                        }
+                    }
+                });
+            }
+        };
+        WriteAheadLog wal = delegate.getWal();
+        if (wal == null)
+            send.run();
+        else
+            wal.whenDurable(wal.getAppended(), send);
+    }
+
+    void resume(ChannelHandlerContext ctx) throws Exception {
+        ArrayDeque<Command> pending = ctx.channel().attr(PENDING).getAndSet(null);
+        while (pending != null && !pending.isEmpty()) {
+            channelRead0(ctx, pending.poll());
+            //再次阻塞时剩下的命令继续暂存
+            ArrayDeque<Command> blocked = ctx.channel().attr(PENDING).get();
+            if (blocked != null) {
+                blocked.addAll(pending);
+                break;
+            }
+        }
+        channelReadComplete(ctx);
+    }
+
     private static final byte LOWER_DIFF = 'a' - 'A';
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
+        ArrayDeque<Command> pending = ctx.channel().attr(PENDING).get();
+        if (pending != null) {
+            pending.add(msg);
+            return;
+        }
         byte[] name = msg.getName();
 
         for (int i = 0; i < name.length; i++) {
@@ -94,21 +226,70 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Command> {
         } else {
             reply = wrapper.execute(msg, ctx);
         }
+        if (reply instanceof BlockingKeys.Blocked) {
+            //回复在唤醒或超时时发送
+            return;
+        }
         if (reply == QUIT) {
             ctx.close();
         } else {
-            if (msg.isInline()) {
-                if (reply == null) {
-                    reply = new InlineReply(null);
-                } else {
-                    reply = new InlineReply(reply.data());
-                }
-            }
+            ctx.write(toReply(msg, reply));
+        }
+    }
+
+    static Reply toReply(Command msg, Reply reply) {
+        if (msg.isInline()) {
             if (reply == null) {
-                reply = NYI_REPLY;
+                reply = new InlineReply(null);
+            } else {
+                reply = new InlineReply(reply.data());
+            }
+        }
+        if (reply == null) {
+            reply = NYI_REPLY;
+        }
+        return reply;
+    }
+
+    /**
+     * 一次读到的所有命令执行完后统一刷出回复(组提交):always策略下到目前为止追加的预写日志落盘前不刷出,
+     * 也不再读取这个连接,落盘后由刷盘线程回调刷出并恢复读取,io线程不等待.
+     * 按所有线程的日志序号等待:读命令在其他io线程上执行,可能读到别的连接刚写入、还没有落盘的值
+     */
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        WriteAheadLog wal = delegate.getWal();
+        long lsn = wal == null ? 0 : wal.getAppended();
+        if (wal == null || wal.isDurable(lsn)) {
+            ctx.flush();
+            return;
+        }
+        ctx.channel().config().setAutoRead(false);
+        wal.whenDurable(lsn, new Runnable() {
+            @Override
+            public void run() {
+                ctx.flush();
+                ctx.channel().config().setAutoRead(true);
+            }
+        });
+    }
+
+    /**
+     * 阻塞中的连接关闭时取消等待
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        BlockingKeys.Waiter waiter = ctx.channel().attr(WAITER).getAndSet(null);
+        if (waiter != null) {
+            Lock lock = delegate.getLock().writeLock();
+            lock.lock();
+            try {
+                waiter.cancel();
+            } finally {
+                lock.unlock();
             }
-            ctx.writeAndFlush(reply);
         }
+        super.channelInactive(ctx);
     }
 
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -254,7 +254,8 @@ public class NetEventHandler implements EventHandler<RequestEvent> {
                     } catch (Exception e) {
                         return new ErrorReply("ERR " + e.getMessage());
                     } finally {
-                        log.info("method {},cost {}ms", method.getName(), (System.currentTimeMillis() - start));
+                        if (log.isDebugEnabled())
+                            log.debug("method {},cost {}ms", method.getName(), (System.currentTimeMillis() - start));
                     }
                 }
             });